@@ -0,0 +1,175 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.datamodel;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Instrumented unit test of the block-level deltas computed by {@link BlockIndex}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BlockIndexTest {
+
+    private static final int BLOCK = BlockIndex.DEFAULT_BLOCK_SIZE;
+    private static final int CONTENT_SIZE = 20 * BLOCK + 1234;
+    private static final String ETAG = "5a1f0c3e9b7d2";
+    private static final String ACCOUNT_NAME = "admin@cloud.example.com";
+    private static final String OTHER_ACCOUNT_NAME = "user@cloud.example.com";
+    private static final String REMOTE_PATH = "/Documents/report.odt";
+
+    private byte[] mContent;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mContent = new byte[CONTENT_SIZE];
+        new Random(7).nextBytes(mContent);
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "block_index_test.bin");
+        write(mContent);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        BlockIndex.deleteAll(ACCOUNT_NAME);
+        BlockIndex.deleteAll(OTHER_ACCOUNT_NAME);
+    }
+
+
+    @Test
+    public void unchangedFileHasNoRanges() throws Exception {
+        BlockIndex.Delta delta = BlockIndex.build(mFile, ETAG).computeDelta(mFile);
+
+        assertNotNull(delta);
+        assertTrue(delta.getRanges().isEmpty());
+        assertEquals(0, delta.getChangedBytes());
+    }
+
+    @Test
+    public void modifiedBytesAreSentAsTheirBlocks() throws Exception {
+        BlockIndex index = BlockIndex.build(mFile, ETAG);
+
+        // a byte in block 3, and two bytes across the boundary of blocks 9 and 10
+        mContent[3 * BLOCK + 100] ^= 0x01;
+        mContent[10 * BLOCK - 1] ^= 0x01;
+        mContent[10 * BLOCK] ^= 0x01;
+        write(mContent);
+        BlockIndex.Delta delta = index.computeDelta(mFile);
+
+        List<long[]> ranges = delta.getRanges();
+        assertEquals(2, ranges.size());
+        assertRange(3 * BLOCK, 4 * BLOCK - 1, ranges.get(0));
+        assertRange(9 * BLOCK, 11 * BLOCK - 1, ranges.get(1));
+        assertEquals(3 * BLOCK, delta.getChangedBytes());
+    }
+
+    @Test
+    public void appendedContentIsSentFromTheLastIndexedBlock() throws Exception {
+        BlockIndex index = BlockIndex.build(mFile, ETAG);
+
+        byte[] appended = new byte[CONTENT_SIZE + 5000];
+        System.arraycopy(mContent, 0, appended, 0, CONTENT_SIZE);
+        write(appended);
+        BlockIndex.Delta delta = index.computeDelta(mFile);
+
+        // the last, partial, block changes length and is sent again with the new bytes
+        assertEquals(1, delta.getRanges().size());
+        assertRange(20 * BLOCK, appended.length - 1, delta.getRanges().get(0));
+    }
+
+    @Test
+    public void truncatedFileCannotBeSentAsDelta() throws Exception {
+        BlockIndex index = BlockIndex.build(mFile, ETAG);
+
+        byte[] truncated = new byte[CONTENT_SIZE - 10];
+        System.arraycopy(mContent, 0, truncated, 0, truncated.length);
+        write(truncated);
+
+        assertNull(index.computeDelta(mFile));
+    }
+
+    @Test
+    public void updatedIndexMatchesNewVersion() throws Exception {
+        BlockIndex index = BlockIndex.build(mFile, ETAG);
+        mContent[5 * BLOCK] ^= 0x01;
+        write(mContent);
+
+        BlockIndex updated = index.computeDelta(mFile).getUpdatedIndex().withEtag("new-etag");
+        updated.save(ACCOUNT_NAME, REMOTE_PATH);
+        BlockIndex loaded = BlockIndex.load(ACCOUNT_NAME, REMOTE_PATH);
+
+        assertNotNull(loaded);
+        assertEquals("new-etag", loaded.getEtag());
+        assertEquals(CONTENT_SIZE, loaded.getLength());
+        assertTrue(loaded.computeDelta(mFile).getRanges().isEmpty());
+    }
+
+    @Test
+    public void indexesOfFolderAndAccountAreDeletedTogether() throws Exception {
+        BlockIndex index = BlockIndex.build(mFile, ETAG);
+        index.save(ACCOUNT_NAME, REMOTE_PATH);
+        index.save(ACCOUNT_NAME, "/Documents/Drafts/letter.odt");
+
+        BlockIndex.delete(ACCOUNT_NAME, "/Documents/");
+        assertNull(BlockIndex.load(ACCOUNT_NAME, REMOTE_PATH));
+        assertNull(BlockIndex.load(ACCOUNT_NAME, "/Documents/Drafts/letter.odt"));
+
+        index.save(ACCOUNT_NAME, REMOTE_PATH);
+        index.save(OTHER_ACCOUNT_NAME, REMOTE_PATH);
+        BlockIndex.deleteAll(ACCOUNT_NAME);
+        assertNull(BlockIndex.load(ACCOUNT_NAME, REMOTE_PATH));
+        assertNotNull(BlockIndex.load(OTHER_ACCOUNT_NAME, REMOTE_PATH));
+    }
+
+
+    private void assertRange(long first, long last, long[] range) {
+        assertEquals(first, range[0]);
+        assertEquals(last, range[1]);
+    }
+
+    private void write(byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.datamodel;
+
+import android.accounts.Account;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.elastos.android.MainApp;
+import org.elastos.android.db.ProviderMeta;
+import org.elastos.android.utils.FileStorageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Instrumented unit test of {@link FolderContentWindow}, and of the order of the folders set in SQL.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FolderContentWindowTest {
+
+    private static final String[] COLUMNS = new String[] {
+        ProviderMeta.ProviderTableMeta._ID,
+        ProviderMeta.ProviderTableMeta.FILE_PATH,
+        ProviderMeta.ProviderTableMeta.FILE_NAME,
+        ProviderMeta.ProviderTableMeta.FILE_PARENT,
+        ProviderMeta.ProviderTableMeta.FILE_CONTENT_TYPE,
+        ProviderMeta.ProviderTableMeta.FILE_STORAGE_PATH,
+        ProviderMeta.ProviderTableMeta.FILE_CONTENT_LENGTH,
+        ProviderMeta.ProviderTableMeta.FILE_CREATION,
+        ProviderMeta.ProviderTableMeta.FILE_MODIFIED,
+        ProviderMeta.ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA,
+        ProviderMeta.ProviderTableMeta.FILE_LAST_SYNC_DATE,
+        ProviderMeta.ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA,
+        ProviderMeta.ProviderTableMeta.FILE_KEEP_IN_SYNC,
+        ProviderMeta.ProviderTableMeta.FILE_ETAG,
+        ProviderMeta.ProviderTableMeta.FILE_TREE_ETAG,
+        ProviderMeta.ProviderTableMeta.FILE_SHARED_VIA_LINK,
+        ProviderMeta.ProviderTableMeta.FILE_SHARED_WITH_SHAREE,
+        ProviderMeta.ProviderTableMeta.FILE_PERMISSIONS,
+        ProviderMeta.ProviderTableMeta.FILE_REMOTE_ID,
+        ProviderMeta.ProviderTableMeta.FILE_UPDATE_THUMBNAIL,
+        ProviderMeta.ProviderTableMeta.FILE_IS_DOWNLOADING,
+        ProviderMeta.ProviderTableMeta.FILE_ETAG_IN_CONFLICT,
+        ProviderMeta.ProviderTableMeta.FILE_PRIVATE_LINK
+    };
+
+    private static final int CACHE_SIZE = 4;
+
+    private FileDataStorageManager mStorageManager;
+    private FolderContentWindow mWindow;
+
+    @Before
+    public void setUp() {
+        mStorageManager = new FileDataStorageManager(
+            new Account("test@cloud.example.com", MainApp.getAccountType()),
+            InstrumentationRegistry.getTargetContext().getContentResolver()
+        );
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        addRow(cursor, 10, "Documents/", "DIR", 0, 0);
+        addRow(cursor, 11, "Photos/", "DIR", 0, 0);
+        addRow(cursor, 12, ".hidden", "text/plain", 10, 0);
+        for (int i = 0; i < 20; i++) {
+            addRow(cursor, 100 + i, "photo_" + i + ".jpg", "image/jpeg", 1024, i);
+        }
+        mWindow = new FolderContentWindow(mStorageManager, cursor, CACHE_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mWindow.close();
+    }
+
+
+    @Test
+    public void filesAreReadInTheOrderOfTheCursor() {
+        assertEquals(23, mWindow.size());
+        assertEquals(10, mWindow.get(0).getFileId());
+        assertTrue(mWindow.get(1).isFolder());
+        assertEquals("photo_19.jpg", mWindow.get(22).getFileName());
+    }
+
+    @Test
+    public void recentFilesAreKept() {
+        OCFile file = mWindow.get(5);
+        assertSame(file, mWindow.get(5));
+    }
+
+    @Test
+    public void positionIsFoundById() {
+        OCFile file = new OCFile("/Photos/photo_7.jpg");
+        file.setFileId(107);
+        assertEquals(10, mWindow.indexOf(file));
+
+        file.setFileId(999);
+        assertEquals(-1, mWindow.indexOf(file));
+    }
+
+    @Test
+    public void replacedFileIsNotEvicted() {
+        OCFile updated = new OCFile("/Photos/photo_0.jpg");
+        updated.setFileId(100);
+        updated.setEtag("updated");
+        mWindow.set(3, updated);
+
+        // more files than the cache keeps
+        for (int i = 4; i < mWindow.size(); i++) {
+            mWindow.get(i);
+        }
+        assertSame(updated, mWindow.get(3));
+    }
+
+    @Test
+    public void hiddenFilesAreNotCounted() {
+        assertEquals(2, mWindow.getFoldersCount());
+        assertEquals(20, mWindow.getFilesCount());
+    }
+
+    @Test
+    public void foldersAreSortedFirst() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE files (" +
+                ProviderMeta.ProviderTableMeta._ID + " INTEGER PRIMARY KEY, " +
+                ProviderMeta.ProviderTableMeta.FILE_NAME + " TEXT, " +
+                ProviderMeta.ProviderTableMeta.FILE_CONTENT_TYPE + " TEXT, " +
+                ProviderMeta.ProviderTableMeta.FILE_CONTENT_LENGTH + " INTEGER, " +
+                ProviderMeta.ProviderTableMeta.FILE_MODIFIED + " INTEGER)");
+            db.execSQL("INSERT INTO files VALUES (1, 'b.txt', 'text/plain', 300, 2)");
+            db.execSQL("INSERT INTO files VALUES (2, 'Zeta', 'DIR', 0, 1)");
+            db.execSQL("INSERT INTO files VALUES (3, 'A.txt', 'text/plain', 100, 3)");
+            db.execSQL("INSERT INTO files VALUES (4, 'alpha', 'DIR', 0, 4)");
+
+            assertEquals("[4, 2, 3, 1]",
+                queryIds(db, FileDataStorageManager.getFolderSortOrder(FileStorageUtils.SORT_NAME, true)));
+            assertEquals("[2, 4, 1, 3]",
+                queryIds(db, FileDataStorageManager.getFolderSortOrder(FileStorageUtils.SORT_NAME, false)));
+            assertEquals("[4, 2, 3, 1]",
+                queryIds(db, FileDataStorageManager.getFolderSortOrder(FileStorageUtils.SORT_SIZE, true)));
+            assertEquals("[2, 4, 1, 3]",
+                queryIds(db, FileDataStorageManager.getFolderSortOrder(FileStorageUtils.SORT_DATE, true)));
+        } finally {
+            db.close();
+        }
+    }
+
+
+    private static String queryIds(SQLiteDatabase db, String sortOrder) {
+        List<Long> ids = new ArrayList<>();
+        Cursor c = db.query("files", new String[]{ProviderMeta.ProviderTableMeta._ID},
+            null, null, null, null, sortOrder);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids.toString();
+    }
+
+    private static void addRow(MatrixCursor cursor, long id, String name, String mimeType, long length,
+                               long modified) {
+        // columns left NULL are read as 0 or NULL
+        Object[] row = new Object[COLUMNS.length];
+        row[0] = id;
+        row[1] = "/Photos/" + name;
+        row[2] = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+        row[3] = 1;
+        row[4] = mimeType;
+        row[6] = length;
+        row[8] = modified;
+        cursor.addRow(row);
+    }
+}
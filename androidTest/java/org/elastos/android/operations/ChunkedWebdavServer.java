@@ -0,0 +1,327 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Minimal WebDAV stand-in for the tests of chunked uploads.
+ *
+ * Stores the chunks of chunked PUTs, and assembles them when all of them were received. PROPFINDs
+ * are answered with the length and modification time of the assembled file.
+ *
+ * A fixed delay can be added to every response, and the throughput of every connection capped, as a
+ * tunnelled link does.
+ */
+class ChunkedWebdavServer extends Thread {
+
+    private static final Pattern CHUNK_PATH = Pattern.compile(".*-chunking-(\\d+)-(\\d+)-(\\d+)$");
+
+    private final ServerSocket mServerSocket;
+    private final long mResponseDelayMs;
+    private final int mBytesPerSecondPerConnection;
+
+    private final Map<Integer, byte[]> mChunks = new HashMap<>();
+    private final Set<Integer> mFailOnce = new HashSet<>();
+    private final AtomicInteger mReceivedRequests = new AtomicInteger(0);
+    private final AtomicLong mReceivedBytes = new AtomicLong(0);
+    private byte[] mAssembled;
+    private long mAssembledMtime;
+
+    /**
+     * @param responseDelayMs               Delay added to every response.
+     * @param bytesPerSecondPerConnection   Maximum throughput of every connection; 0 for no limit.
+     */
+    ChunkedWebdavServer(long responseDelayMs, int bytesPerSecondPerConnection) throws IOException {
+        mServerSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        mResponseDelayMs = responseDelayMs;
+        mBytesPerSecondPerConnection = bytesPerSecondPerConnection;
+        setDaemon(true);
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Forgets the chunks and the file received, and clears the counters.
+     */
+    synchronized void reset() {
+        mChunks.clear();
+        mAssembled = null;
+        clearCounters();
+    }
+
+    /**
+     * Clears the counters of requests and bytes received, keeping the chunks and the file.
+     */
+    void clearCounters() {
+        mReceivedRequests.set(0);
+        mReceivedBytes.set(0);
+    }
+
+    /**
+     * Makes the first request for the given chunk fail with a server error.
+     */
+    synchronized void failOnce(int chunkIndex) {
+        mFailOnce.add(chunkIndex);
+    }
+
+    synchronized byte[] getAssembled() {
+        return mAssembled;
+    }
+
+    /**
+     * @return  Number of chunk requests received completely.
+     */
+    int getReceivedRequests() {
+        return mReceivedRequests.get();
+    }
+
+    /**
+     * @return  Bytes of chunk bodies received, including those of interrupted requests.
+     */
+    long getReceivedBytes() {
+        return mReceivedBytes.get();
+    }
+
+    void shutdown() throws IOException {
+        mServerSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }).start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            int contentLength = 0;
+            boolean chunkedEncoding = false;
+            long mtime = 0;
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                String lowerCase = line.toLowerCase(Locale.US);
+                if (lowerCase.startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                } else if (lowerCase.startsWith("transfer-encoding:") && lowerCase.contains("chunked")) {
+                    chunkedEncoding = true;
+                } else if (lowerCase.startsWith("x-oc-mtime:")) {
+                    mtime = Long.parseLong(line.substring(11).trim());
+                }
+            }
+
+            String method = requestLine.split(" ")[0];
+            String path = requestLine.split(" ")[1];
+            OutputStream out = socket.getOutputStream();
+
+            if ("PROPFIND".equals(method)) {
+                if (chunkedEncoding) {
+                    skipChunkedBody(in);
+                } else {
+                    readBody(in, contentLength, false);
+                }
+                writePropfindResponse(out, path);
+                return;
+            }
+
+            byte[] body = readBody(in, contentLength, true);
+            if (body == null) {
+                return;
+            }
+            mReceivedRequests.incrementAndGet();
+            if (mResponseDelayMs > 0) {
+                Thread.sleep(mResponseDelayMs);
+            }
+
+            Matcher matcher = CHUNK_PATH.matcher(path);
+            int status = ("PUT".equals(method) && matcher.matches()) ?
+                storeChunk(Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)), body, mtime) :
+                400;
+
+            String statusLine = (status == 201) ? "201 Created" :
+                (status == 503) ? "503 Service Unavailable" : "400 Bad Request";
+            writeResponse(out, statusLine, null);
+
+        } catch (Exception e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Receives a body under the throughput cap of the connection.
+     *
+     * @return  Body received, or null if the client closed the connection before sending all of it.
+     */
+    private byte[] readBody(InputStream in, int contentLength, boolean count)
+            throws IOException, InterruptedException {
+        byte[] body = new byte[contentLength];
+        int received = 0;
+        long startTime = System.nanoTime();
+        while (received < contentLength) {
+            int read = in.read(body, received, contentLength - received);
+            if (read < 0) {
+                return null;
+            }
+            received += read;
+            if (count) {
+                mReceivedBytes.addAndGet(read);
+            }
+            if (mBytesPerSecondPerConnection > 0) {
+                long expectedMs = received * 1000L / mBytesPerSecondPerConnection;
+                long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+                if (expectedMs > elapsedMs) {
+                    Thread.sleep(expectedMs - elapsedMs);
+                }
+            }
+        }
+        return body;
+    }
+
+    private static void skipChunkedBody(InputStream in) throws IOException {
+        String sizeLine;
+        while ((sizeLine = readLine(in)) != null) {
+            int size = Integer.parseInt(sizeLine.split(";")[0].trim(), 16);
+            if (size == 0) {
+                readLine(in);
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                in.read();
+            }
+            readLine(in);
+        }
+    }
+
+    private void writePropfindResponse(OutputStream out, String path) throws IOException {
+        byte[] assembled;
+        long mtime;
+        synchronized (this) {
+            assembled = mAssembled;
+            mtime = mAssembledMtime;
+        }
+        if (assembled == null) {
+            writeResponse(out, "404 Not Found", null);
+            return;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String multistatus =
+            "<?xml version=\"1.0\"?>" +
+            "<d:multistatus xmlns:d=\"DAV:\">" +
+            "<d:response>" +
+            "<d:href>" + path + "</d:href>" +
+            "<d:propstat>" +
+            "<d:prop>" +
+            "<d:getcontentlength>" + assembled.length + "</d:getcontentlength>" +
+            "<d:getlastmodified>" + format.format(new Date(mtime * 1000)) + "</d:getlastmodified>" +
+            "<d:getetag>\"" + Integer.toHexString(assembled.length) + Long.toHexString(mtime) + "\"</d:getetag>" +
+            "<d:getcontenttype>application/octet-stream</d:getcontenttype>" +
+            "<d:resourcetype/>" +
+            "</d:prop>" +
+            "<d:status>HTTP/1.1 200 OK</d:status>" +
+            "</d:propstat>" +
+            "</d:response>" +
+            "</d:multistatus>";
+        writeResponse(out, "207 Multi-Status", multistatus);
+    }
+
+    private static void writeResponse(OutputStream out, String statusLine, String body) throws IOException {
+        byte[] bodyBytes = (body == null) ? new byte[0] : body.getBytes("UTF-8");
+        out.write(("HTTP/1.1 " + statusLine + "\r\n" +
+            (body == null ? "" : "Content-Type: application/xml; charset=utf-8\r\n") +
+            "Content-Length: " + bodyBytes.length + "\r\n" +
+            "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.write(bodyBytes);
+        out.flush();
+    }
+
+    private synchronized int storeChunk(int chunkCount, int chunkIndex, byte[] data, long mtime)
+            throws IOException {
+        if (mFailOnce.remove(chunkIndex)) {
+            return 503;
+        }
+        mChunks.put(chunkIndex, data);
+        if (mChunks.size() == chunkCount) {
+            ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+            for (int i = 0; i < chunkCount; i++) {
+                assembled.write(mChunks.get(i));
+            }
+            mAssembled = assembled.toByteArray();
+            mAssembledMtime = mtime;
+        }
+        return 201;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return (c == -1 && line.length() == 0) ? null : line.toString();
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+
+import org.elastos.android.datamodel.BlockIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Instrumented tests of the PATCH requests sent by {@link DeltaUploadRemoteOperation}, and of its
+ * fallback to a full upload.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DeltaUploadRemoteOperationTest {
+
+    private static final String TAG = DeltaUploadRemoteOperationTest.class.getSimpleName();
+
+    private static final int BLOCK = BlockIndex.DEFAULT_BLOCK_SIZE;
+    private static final int CONTENT_SIZE = 20 * BLOCK + 1234;
+    private static final String REMOTE_PATH = "/Documents/report.odt";
+
+    private byte[] mContent;
+    private File mLocalFile;
+    private PartialUpdateWebdavServer mServer;
+    private OwnCloudClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        mContent = new byte[CONTENT_SIZE];
+        new Random(11).nextBytes(mContent);
+        mLocalFile = new File(context.getCacheDir(), TAG + ".bin");
+        write(mContent);
+
+        mServer = startServer(mContent, true);
+        mClient = createClient(mServer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        mLocalFile.delete();
+    }
+
+
+    @Test
+    public void changedBlocksAreSentAsPatches() throws Exception {
+        BlockIndex index = BlockIndex.build(mLocalFile, mServer.getEtag());
+        mContent[3 * BLOCK + 10] ^= 0x01;
+        mContent[12 * BLOCK + 20] ^= 0x01;
+        write(mContent);
+
+        DeltaUploadRemoteOperation upload = newUpload(index);
+        RemoteOperationResult result = upload.execute(mClient);
+
+        assertTrue("Delta upload failed: " + result.getLogMessage(), result.isSuccess());
+        assertTrue("Content in server differs", Arrays.equals(mContent, mServer.getContent()));
+        assertEquals(2, mServer.getRequests("PATCH"));
+        assertEquals(0, mServer.getRequests("PUT"));
+        assertEquals(2 * BLOCK, mServer.getReceivedBytes());
+        assertEquals(2 * BLOCK, upload.getSentBytes());
+        assertNotNull(upload.getUpdatedIndex());
+    }
+
+    @Test
+    public void failedRangeFallsBackToFullUpload() throws Exception {
+        BlockIndex index = BlockIndex.build(mLocalFile, mServer.getEtag());
+        mContent[3 * BLOCK + 10] ^= 0x01;
+        mContent[12 * BLOCK + 20] ^= 0x01;
+        write(mContent);
+        // the first range is applied, the second one is not
+        mServer.failPatch(1);
+
+        DeltaUploadRemoteOperation upload = newUpload(index);
+        RemoteOperationResult result = upload.execute(mClient);
+
+        assertTrue("Fallback upload failed: " + result.getLogMessage(), result.isSuccess());
+        assertTrue("Content in server differs", Arrays.equals(mContent, mServer.getContent()));
+        assertEquals(1, mServer.getRequests("PUT"));
+    }
+
+    @Test
+    public void versionChangedInServerIsNotOverwritten() throws Exception {
+        BlockIndex index = BlockIndex.build(mLocalFile, mServer.getEtag());
+        byte[] serverContent = mServer.getContent();
+        mServer.touch();
+        mContent[3 * BLOCK + 10] ^= 0x01;
+        write(mContent);
+
+        RemoteOperationResult result = newUpload(index).execute(mClient);
+
+        assertFalse(result.isSuccess());
+        assertEquals(0, mServer.getRequests("PUT"));
+        assertTrue("Content in server changed", Arrays.equals(serverContent, mServer.getContent()));
+    }
+
+    @Test
+    public void partialUpdateSupportIsCheckedOncePerServer() throws Exception {
+        assertTrue(DeltaUploadRemoteOperation.supportsPartialUpdate(mClient, REMOTE_PATH));
+        assertTrue(DeltaUploadRemoteOperation.supportsPartialUpdate(mClient, REMOTE_PATH));
+        assertEquals(1, mServer.getRequests("OPTIONS"));
+
+        PartialUpdateWebdavServer otherServer = startServer(mContent, false);
+        try {
+            OwnCloudClient otherClient = createClient(otherServer);
+            assertFalse(DeltaUploadRemoteOperation.supportsPartialUpdate(otherClient, REMOTE_PATH));
+            assertFalse(DeltaUploadRemoteOperation.supportsPartialUpdate(otherClient, REMOTE_PATH));
+            assertEquals(1, otherServer.getRequests("OPTIONS"));
+        } finally {
+            otherServer.shutdown();
+        }
+    }
+
+    @Test
+    public void mostlyChangedFileIsNotWorthADelta() throws Exception {
+        BlockIndex index = BlockIndex.build(mLocalFile, mServer.getEtag());
+        new Random(12).nextBytes(mContent);
+        write(mContent);
+
+        assertFalse(DeltaUploadRemoteOperation.isWorthSending(index.computeDelta(mLocalFile), CONTENT_SIZE));
+    }
+
+
+    private DeltaUploadRemoteOperation newUpload(BlockIndex index) throws IOException {
+        BlockIndex.Delta delta = index.computeDelta(mLocalFile);
+        assertTrue(DeltaUploadRemoteOperation.isWorthSending(delta, mLocalFile.length()));
+        return new DeltaUploadRemoteOperation(mLocalFile.getAbsolutePath(), REMOTE_PATH,
+            "application/octet-stream", null, "1500000000", index, delta);
+    }
+
+    private static PartialUpdateWebdavServer startServer(byte[] content, boolean partialUpdates)
+            throws IOException {
+        PartialUpdateWebdavServer server = new PartialUpdateWebdavServer(content, partialUpdates);
+        server.start();
+        return server;
+    }
+
+    private OwnCloudClient createClient(PartialUpdateWebdavServer server) {
+        return OwnCloudClientFactory.createOwnCloudClient(
+            Uri.parse("http://127.0.0.1:" + server.getPort()),
+            InstrumentationRegistry.getTargetContext(),
+            false
+        );
+    }
+
+    private void write(byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(mLocalFile);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
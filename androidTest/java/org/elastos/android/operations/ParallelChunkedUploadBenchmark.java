@@ -0,0 +1,155 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Instrumented benchmark comparing chunked uploads with a growing number of chunks in flight, with
+ * {@link ParallelChunkedUploadRemoteOperation}.
+ *
+ * The server is a local WebDAV stand-in, {@link ChunkedWebdavServer}, adding a fixed delay to every
+ * response and capping the throughput of every connection, as a tunnelled link does.
+ *
+ * Results are written to logcat with tag {@link #TAG}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ParallelChunkedUploadBenchmark {
+
+    private static final String TAG = ParallelChunkedUploadBenchmark.class.getSimpleName();
+
+    private static final int[] CHUNKS_IN_FLIGHT = {1, 2, 3, 4};
+    private static final int CONTENT_SIZE = 8 * 1024 * 1024;
+    private static final long CHUNK_SIZE = 1024 * 1024;
+    private static final long RESPONSE_DELAY_MS = 200;
+    private static final int BYTES_PER_SECOND_PER_CONNECTION = 4 * 1024 * 1024;
+    private static final String REMOTE_PATH = "/video.mp4";
+
+    private byte[] mContent;
+    private File mLocalFile;
+    private ChunkedWebdavServer mServer;
+    private OwnCloudClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        mContent = new byte[CONTENT_SIZE];
+        new Random(42).nextBytes(mContent);
+        mLocalFile = new File(context.getCacheDir(), TAG + ".bin");
+        FileOutputStream out = new FileOutputStream(mLocalFile);
+        try {
+            out.write(mContent);
+        } finally {
+            out.close();
+        }
+
+        mServer = new ChunkedWebdavServer(RESPONSE_DELAY_MS, BYTES_PER_SECOND_PER_CONNECTION);
+        mServer.start();
+
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+            Uri.parse("http://127.0.0.1:" + mServer.getPort()),
+            context,
+            false
+        );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        mLocalFile.delete();
+    }
+
+
+    @Test
+    public void chunksInFlightSpeedUpBigUploads() throws Exception {
+        long sequentialMs = 0;
+        for (int inFlight : CHUNKS_IN_FLIGHT) {
+            ParallelChunkedUploadRemoteOperation operation = newUpload(inFlight);
+
+            long start = System.nanoTime();
+            RemoteOperationResult result = operation.execute(mClient);
+            long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+            assertTrue("Upload with " + inFlight + " chunks in flight failed: " + result.getLogMessage(),
+                result.isSuccess());
+            assertTrue("Uploaded content differs", Arrays.equals(mContent, mServer.getAssembled()));
+
+            if (inFlight == 1) {
+                sequentialMs = elapsedMs;
+            }
+            Log.i(TAG, inFlight + " chunks in flight: " + CONTENT_SIZE + " bytes in " + elapsedMs + " ms, " +
+                (CONTENT_SIZE / 1024 * 1000L / elapsedMs) + " KB/s, speed-up x" +
+                String.format("%.2f", (double) sequentialMs / elapsedMs));
+        }
+    }
+
+
+    @Test
+    public void onlyFailedChunksAreRetried() throws Exception {
+        mServer.failOnce(2);
+        mServer.failOnce(5);
+
+        RemoteOperationResult result = newUpload(3).execute(mClient);
+
+        assertTrue(result.isSuccess());
+        assertTrue("Uploaded content differs", Arrays.equals(mContent, mServer.getAssembled()));
+        int chunkCount = (int) ((CONTENT_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        assertEquals(chunkCount + 2, mServer.getReceivedRequests());
+    }
+
+
+    private ParallelChunkedUploadRemoteOperation newUpload(int chunksInFlight) {
+        mServer.reset();
+        return new ParallelChunkedUploadRemoteOperation(
+            mLocalFile.getAbsolutePath(),
+            REMOTE_PATH,
+            "video/mp4",
+            null,
+            String.valueOf(mLocalFile.lastModified() / 1000),
+            CHUNK_SIZE,
+            chunksInFlight
+        );
+    }
+}
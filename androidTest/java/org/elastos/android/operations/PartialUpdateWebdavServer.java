@@ -0,0 +1,246 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Minimal WebDAV stand-in for the tests of delta uploads.
+ *
+ * Keeps a single file, replaced by PUTs and updated by the PATCH requests of the SabreDAV partial update
+ * extension, if enabled. Every change gives the file a new ETag; PATCHes with an If-Match header not
+ * matching it fail as the real server does.
+ */
+class PartialUpdateWebdavServer extends Thread {
+
+    private final ServerSocket mServerSocket;
+    private final boolean mPartialUpdates;
+
+    private final Map<String, Integer> mRequests = new HashMap<>();
+    private final Set<Integer> mFailingPatches = new HashSet<>();
+    private byte[] mContent;
+    private int mVersion = 1;
+    private int mPatches = 0;
+    private long mReceivedBytes = 0;
+
+    /**
+     * @param content           Initial content of the file.
+     * @param partialUpdates    When 'true', partial updates are announced and accepted.
+     */
+    PartialUpdateWebdavServer(byte[] content, boolean partialUpdates) throws IOException {
+        mServerSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        mContent = content.clone();
+        mPartialUpdates = partialUpdates;
+        setDaemon(true);
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    synchronized String getEtag() {
+        return "etag-" + mVersion;
+    }
+
+    synchronized byte[] getContent() {
+        return mContent.clone();
+    }
+
+    /**
+     * Changes the file as another client would, giving it a new ETag.
+     */
+    synchronized void touch() {
+        mVersion++;
+    }
+
+    /**
+     * Makes a PATCH request fail with a server error.
+     *
+     * @param patchIndex    Position of the request among all the PATCH requests received, from 0.
+     */
+    synchronized void failPatch(int patchIndex) {
+        mFailingPatches.add(patchIndex);
+    }
+
+    /**
+     * @return  Number of requests received with the given method.
+     */
+    synchronized int getRequests(String method) {
+        Integer count = mRequests.get(method);
+        return (count == null) ? 0 : count;
+    }
+
+    /**
+     * @return  Bytes of PUT and PATCH bodies received.
+     */
+    synchronized long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    void shutdown() throws IOException {
+        mServerSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }).start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            int contentLength = 0;
+            String updateRange = null;
+            String ifMatch = null;
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                String lowerCase = line.toLowerCase(Locale.US);
+                if (lowerCase.startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                } else if (lowerCase.startsWith("x-update-range:")) {
+                    updateRange = line.substring(15).trim();
+                } else if (lowerCase.startsWith("if-match:")) {
+                    ifMatch = line.substring(9).trim().replace("\"", "");
+                }
+            }
+            byte[] body = readBody(in, contentLength);
+            if (body == null) {
+                return;
+            }
+
+            String method = requestLine.split(" ")[0];
+            OutputStream out = socket.getOutputStream();
+            synchronized (this) {
+                Integer count = mRequests.get(method);
+                mRequests.put(method, (count == null) ? 1 : count + 1);
+
+                if ("OPTIONS".equals(method)) {
+                    writeResponse(out, "200 OK", mPartialUpdates ?
+                        "Accept-Patch: application/x-sabredav-partialupdate\r\n" : "");
+
+                } else if ("PUT".equals(method)) {
+                    mReceivedBytes += body.length;
+                    mContent = body;
+                    mVersion++;
+                    writeResponse(out, "204 No Content", "ETag: \"" + getEtag() + "\"\r\n");
+
+                } else if ("PATCH".equals(method) && mPartialUpdates) {
+                    mReceivedBytes += body.length;
+                    if (mFailingPatches.remove(mPatches++)) {
+                        writeResponse(out, "500 Internal Server Error", "");
+                    } else if (ifMatch != null && !ifMatch.equals(getEtag())) {
+                        writeResponse(out, "412 Precondition Failed", "");
+                    } else {
+                        applyRange(updateRange, body);
+                        writeResponse(out, "204 No Content", "ETag: \"" + getEtag() + "\"\r\n");
+                    }
+
+                } else {
+                    writeResponse(out, "405 Method Not Allowed", "");
+                }
+            }
+
+        } catch (Exception e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Writes a range of the file, as "bytes=first-last".
+     */
+    private void applyRange(String updateRange, byte[] data) {
+        String[] limits = updateRange.substring("bytes=".length()).split("-");
+        int first = Integer.parseInt(limits[0]);
+        int last = Integer.parseInt(limits[1]);
+        if (last >= mContent.length) {
+            byte[] extended = new byte[last + 1];
+            System.arraycopy(mContent, 0, extended, 0, mContent.length);
+            mContent = extended;
+        }
+        System.arraycopy(data, 0, mContent, first, last - first + 1);
+        mVersion++;
+    }
+
+    private static byte[] readBody(InputStream in, int contentLength) throws IOException {
+        byte[] body = new byte[contentLength];
+        int received = 0;
+        while (received < contentLength) {
+            int read = in.read(body, received, contentLength - received);
+            if (read < 0) {
+                return null;
+            }
+            received += read;
+        }
+        return body;
+    }
+
+    private static void writeResponse(OutputStream out, String statusLine, String headers) throws IOException {
+        out.write(("HTTP/1.1 " + statusLine + "\r\n" +
+            headers +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return (c == -1 && line.length() == 0) ? null : line.toString();
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Instrumented tests interrupting chunked uploads with {@link ParallelChunkedUploadRemoteOperation}
+ * and resuming them from the chunks acknowledged by the server.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ResumableChunkedUploadTest {
+
+    private static final String TAG = ResumableChunkedUploadTest.class.getSimpleName();
+
+    private static final int CONTENT_SIZE = 5 * 1024 * 1024 + 12345;
+    private static final long CHUNK_SIZE = 512 * 1024;
+    private static final int CHUNKS_BEFORE_INTERRUPTION = 4;
+    private static final String REMOTE_PATH = "/video.mp4";
+
+    private byte[] mContent;
+    private File mLocalFile;
+    private ChunkedWebdavServer mServer;
+    private OwnCloudClient mClient;
+
+    private String mSavedTransferId;
+    private Set<Integer> mSavedChunks;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        mContent = new byte[CONTENT_SIZE];
+        new Random(42).nextBytes(mContent);
+        mLocalFile = new File(context.getCacheDir(), TAG + ".bin");
+        FileOutputStream out = new FileOutputStream(mLocalFile);
+        try {
+            out.write(mContent);
+        } finally {
+            out.close();
+        }
+
+        mServer = new ChunkedWebdavServer(0, 0);
+        mServer.start();
+
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+            Uri.parse("http://127.0.0.1:" + mServer.getPort()),
+            context,
+            false
+        );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        mLocalFile.delete();
+    }
+
+
+    @Test
+    public void resumedUploadSendsOnlyRemainingBytes() throws Exception {
+        for (int chunksInFlight = 1; chunksInFlight <= 3; chunksInFlight++) {
+            mServer.reset();
+            interruptUpload(chunksInFlight);
+            long acknowledgedBytes = acknowledgedBytes(mSavedChunks);
+            assertTrue(acknowledgedBytes > 0);
+            assertTrue(acknowledgedBytes < CONTENT_SIZE);
+
+            mServer.clearCounters();
+            ParallelChunkedUploadRemoteOperation resumed = newUpload(chunksInFlight);
+            resumed.setResumeState(mSavedTransferId, mSavedChunks);
+            RemoteOperationResult result = resumed.execute(mClient);
+
+            assertTrue("Resumed upload failed: " + result.getLogMessage(), result.isSuccess());
+            assertTrue("Uploaded content differs", Arrays.equals(mContent, mServer.getAssembled()));
+            assertEquals(acknowledgedBytes, resumed.getResumedBytes());
+            assertEquals(CONTENT_SIZE - acknowledgedBytes, mServer.getReceivedBytes());
+        }
+    }
+
+
+    @Test
+    public void uploadRestartsWhenServerDiscardedChunks() throws Exception {
+        interruptUpload(1);
+        long acknowledgedBytes = acknowledgedBytes(mSavedChunks);
+
+        // the server drops the chunks it kept, as when they expire
+        mServer.reset();
+
+        ParallelChunkedUploadRemoteOperation resumed = newUpload(2);
+        resumed.setResumeState(mSavedTransferId, mSavedChunks);
+        final Set<String> transferIds = new HashSet<>();
+        resumed.setOnChunkAcknowledgedListener(
+            new ParallelChunkedUploadRemoteOperation.OnChunkAcknowledgedListener() {
+                @Override
+                public void onChunkAcknowledged(String transferId, Set<Integer> acknowledgedChunks) {
+                    transferIds.add(transferId);
+                }
+            }
+        );
+        RemoteOperationResult result = resumed.execute(mClient);
+
+        assertTrue("Restarted upload failed: " + result.getLogMessage(), result.isSuccess());
+        assertTrue("Uploaded content differs", Arrays.equals(mContent, mServer.getAssembled()));
+        assertEquals("A new transfer was expected", 2, transferIds.size());
+        // remaining chunks of the lost transfer, and then the full file again
+        assertEquals(2 * CONTENT_SIZE - acknowledgedBytes, mServer.getReceivedBytes());
+    }
+
+
+    /**
+     * Starts an upload and cancels it once the server acknowledged some chunks, saving the state of the
+     * transfer as {@link UploadFileOperation} does.
+     */
+    private void interruptUpload(int chunksInFlight) {
+        final ParallelChunkedUploadRemoteOperation operation = newUpload(chunksInFlight);
+        operation.setOnChunkAcknowledgedListener(
+            new ParallelChunkedUploadRemoteOperation.OnChunkAcknowledgedListener() {
+                @Override
+                public void onChunkAcknowledged(String transferId, Set<Integer> acknowledgedChunks) {
+                    mSavedTransferId = transferId;
+                    mSavedChunks = acknowledgedChunks;
+                    if (acknowledgedChunks.size() == CHUNKS_BEFORE_INTERRUPTION) {
+                        operation.cancel();
+                    }
+                }
+            }
+        );
+
+        RemoteOperationResult result = operation.execute(mClient);
+
+        assertEquals(ResultCode.CANCELLED, result.getCode());
+        assertTrue(mSavedChunks.size() >= CHUNKS_BEFORE_INTERRUPTION);
+        mSavedChunks = new HashSet<>(mSavedChunks);
+    }
+
+    private long acknowledgedBytes(Set<Integer> chunks) {
+        long bytes = 0;
+        for (int chunkIndex : chunks) {
+            bytes += Math.min(CHUNK_SIZE, CONTENT_SIZE - chunkIndex * CHUNK_SIZE);
+        }
+        return bytes;
+    }
+
+    private ParallelChunkedUploadRemoteOperation newUpload(int chunksInFlight) {
+        return new ParallelChunkedUploadRemoteOperation(
+            mLocalFile.getAbsolutePath(),
+            REMOTE_PATH,
+            "video/mp4",
+            null,
+            String.valueOf(mLocalFile.lastModified() / 1000),
+            CHUNK_SIZE,
+            chunksInFlight
+        );
+    }
+}
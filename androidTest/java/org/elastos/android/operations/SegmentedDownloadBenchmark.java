@@ -0,0 +1,288 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Instrumented benchmark comparing a single-request download against segmented downloads with
+ * {@link ResumableDownloadRemoteOperation}.
+ *
+ * The server is a local stand-in that serves a fixed content with support for byte ranges and
+ * caps the throughput of every connection, as a tunnelled stream does.
+ *
+ * Results are written to logcat with tag {@link #TAG}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SegmentedDownloadBenchmark {
+
+    private static final String TAG = SegmentedDownloadBenchmark.class.getSimpleName();
+
+    private static final int[] SEGMENT_COUNTS = {1, 2, 3, 4};
+    private static final int CONTENT_SIZE = 16 * 1024 * 1024;
+    private static final int BYTES_PER_SECOND_PER_CONNECTION = 4 * 1024 * 1024;
+    private static final String ETAG = "5a1b2c3d4e5f";
+    private static final String REMOTE_PATH = "/video.mp4";
+
+    private byte[] mContent;
+    private ThrottledHttpServer mServer;
+    private OwnCloudClient mClient;
+    private File mTmpFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        mContent = new byte[CONTENT_SIZE];
+        new Random(42).nextBytes(mContent);
+
+        mServer = new ThrottledHttpServer(mContent);
+        mServer.start();
+
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+            Uri.parse("http://127.0.0.1:" + mServer.getPort()),
+            context,
+            false
+        );
+        mTmpFile = new File(context.getCacheDir(), TAG + ".tmp");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        ResumableDownloadRemoteOperation.discardPartialDownload(mTmpFile);
+    }
+
+
+    @Test
+    public void segmentsSpeedUpBigDownloads() throws Exception {
+        long singleRequestMs = 0;
+        for (int segments : SEGMENT_COUNTS) {
+            ResumableDownloadRemoteOperation.discardPartialDownload(mTmpFile);
+            ResumableDownloadRemoteOperation operation =
+                new ResumableDownloadRemoteOperation(REMOTE_PATH, mTmpFile, ETAG);
+            operation.setSegments(segments, CONTENT_SIZE);
+
+            long start = System.nanoTime();
+            RemoteOperationResult result = operation.execute(mClient);
+            long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+            assertTrue("Download with " + segments + " segments failed: " + result.getLogMessage(),
+                result.isSuccess());
+            assertTrue("Downloaded content differs", Arrays.equals(mContent, readFile(mTmpFile)));
+
+            if (segments == 1) {
+                singleRequestMs = elapsedMs;
+            }
+            Log.i(TAG, segments + " segments: " + CONTENT_SIZE + " bytes in " + elapsedMs + " ms, " +
+                (CONTENT_SIZE / 1024 * 1000L / elapsedMs) + " KB/s, speed-up x" +
+                String.format("%.2f", (double) singleRequestMs / elapsedMs));
+        }
+    }
+
+
+    @Test
+    public void interruptedSegmentedDownloadIsResumed() throws Exception {
+        mServer.setMaxBytesPerConnection(CONTENT_SIZE / 8);
+
+        ResumableDownloadRemoteOperation firstAttempt =
+            new ResumableDownloadRemoteOperation(REMOTE_PATH, mTmpFile, ETAG);
+        firstAttempt.setSegments(4, CONTENT_SIZE);
+        assertTrue(!firstAttempt.execute(mClient).isSuccess());
+        long kept = mTmpFile.length();
+        assertTrue("Nothing kept from interrupted download", kept > 0);
+
+        mServer.setMaxBytesPerConnection(Integer.MAX_VALUE);
+        ResumableDownloadRemoteOperation secondAttempt =
+            new ResumableDownloadRemoteOperation(REMOTE_PATH, mTmpFile, ETAG);
+        secondAttempt.setSegments(4, CONTENT_SIZE);
+        assertTrue(secondAttempt.execute(mClient).isSuccess());
+        assertEquals(kept, secondAttempt.getResumedBytes());
+        assertTrue("Resumed content differs", Arrays.equals(mContent, readFile(mTmpFile)));
+    }
+
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+
+    /**
+     * Minimal HTTP server for GET requests, serving the same content for any path, with support
+     * for single byte ranges and a throughput cap per connection.
+     */
+    private static class ThrottledHttpServer extends Thread {
+
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        private final byte[] mContent;
+        private final ServerSocket mServerSocket;
+        private volatile int mMaxBytesPerConnection = Integer.MAX_VALUE;
+
+        ThrottledHttpServer(byte[] content) throws IOException {
+            mContent = content;
+            mServerSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        /**
+         * Makes every response stop after the given number of body bytes, as a broken tunnel does.
+         */
+        void setMaxBytesPerConnection(int maxBytes) {
+            mMaxBytesPerConnection = maxBytes;
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    final Socket socket = mServerSocket.accept();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                String line;
+                String range = null;
+                String ifRange = null;
+                while ((line = reader.readLine()) != null && line.length() > 0) {
+                    String lower = line.toLowerCase();
+                    if (lower.startsWith("range:")) {
+                        range = line.substring(6).trim();
+                    } else if (lower.startsWith("if-range:")) {
+                        ifRange = line.substring(9).trim();
+                    }
+                }
+
+                int start = 0;
+                int end = mContent.length - 1;
+                boolean partial = false;
+                if (range != null && range.startsWith("bytes=") &&
+                        (ifRange == null || ifRange.equals("\"" + ETAG + "\""))) {
+                    String[] bounds = range.substring(6).split("-", -1);
+                    start = Integer.parseInt(bounds[0]);
+                    if (bounds[1].length() > 0) {
+                        end = Math.min(end, Integer.parseInt(bounds[1]));
+                    }
+                    partial = true;
+                }
+                int length = end - start + 1;
+
+                OutputStream out = socket.getOutputStream();
+                StringBuilder headers = new StringBuilder();
+                headers.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+                headers.append("Content-Length: ").append(length).append("\r\n");
+                if (partial) {
+                    headers.append("Content-Range: bytes ").append(start).append("-").append(end)
+                        .append("/").append(mContent.length).append("\r\n");
+                }
+                headers.append("ETag: \"").append(ETAG).append("\"\r\n");
+                headers.append("Connection: close\r\n\r\n");
+                out.write(headers.toString().getBytes("US-ASCII"));
+
+                int sent = 0;
+                int limit = Math.min(length, mMaxBytesPerConnection);
+                long startTime = System.nanoTime();
+                while (sent < limit) {
+                    int chunk = Math.min(CHUNK_SIZE, limit - sent);
+                    out.write(mContent, start + sent, chunk);
+                    sent += chunk;
+                    // keep under the throughput cap of the connection
+                    long expectedMs = sent * 1000L / BYTES_PER_SECOND_PER_CONNECTION;
+                    long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+                    if (expectedMs > elapsedMs) {
+                        Thread.sleep(expectedMs - elapsedMs);
+                    }
+                }
+                out.flush();
+
+            } catch (Exception e) {
+                // client went away
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+}
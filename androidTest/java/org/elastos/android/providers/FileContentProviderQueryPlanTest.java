@@ -0,0 +1,194 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.providers;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Pair;
+
+import org.elastos.android.MainApp;
+import org.elastos.android.datamodel.FileDataStorageManager;
+import org.elastos.android.datamodel.OCFile;
+import org.elastos.android.datamodel.UploadsStorageManager;
+import org.elastos.android.db.ProviderMeta;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+
+/**
+ * Instrumented test checking that the most frequent queries on the database of
+ * {@link FileContentProvider} are resolved with indexes, and not scanning whole tables.
+ *
+ * The queries are the ones built by {@link FileContentProvider} from the selections of
+ * {@link FileDataStorageManager} and {@link UploadsStorageManager}, captured while calling them.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FileContentProviderQueryPlanTest {
+
+    private static final String ACCOUNT_NAME = "user@server";
+    private static final String FILE_PATH = "/path/to/a/file.txt";
+
+    private SQLiteDatabase mDb;
+    private FileDataStorageManager mStorageManager;
+    private UploadsStorageManager mUploadsStorageManager;
+
+    private final List<Pair<String, String[]>> mQueries =
+        Collections.synchronizedList(new ArrayList<Pair<String, String[]>>());
+
+    @Before
+    public void openDatabase() {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        // any access through the provider creates or upgrades the database
+        Cursor c = context.getContentResolver().query(
+            ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
+            null,
+            null,
+            null,
+            null
+        );
+        assertNotNull(c);
+        c.close();
+
+        mDb = SQLiteDatabase.openDatabase(
+            context.getDatabasePath(ProviderMeta.DB_NAME).getPath(),
+            null,
+            SQLiteDatabase.OPEN_READONLY
+        );
+
+        mStorageManager = new FileDataStorageManager(
+            new Account(ACCOUNT_NAME, MainApp.getAccountType()),
+            context.getContentResolver()
+        );
+        mUploadsStorageManager = new UploadsStorageManager(context.getContentResolver());
+
+        FileContentProvider.sQueryObserver = new FileContentProvider.QueryObserver() {
+            @Override
+            public void onQuery(String sql, String[] selectionArgs) {
+                mQueries.add(new Pair<>(sql, selectionArgs));
+            }
+        };
+    }
+
+    @After
+    public void closeDatabase() {
+        FileContentProvider.sQueryObserver = null;
+        if (mDb != null) {
+            mDb.close();
+        }
+    }
+
+
+    @Test
+    public void fileByPathUsesIndex() {
+        mStorageManager.getFileByPath(FILE_PATH);
+        assertNoFullScan();
+    }
+
+    @Test
+    public void filesInAccountUseIndex() {
+        mStorageManager.getFileByLocalPath("/sdcard/owncloud/file.txt");
+        assertNoFullScan();
+    }
+
+    @Test
+    public void folderContentUsesIndex() {
+        OCFile folder = new OCFile("/path/to/");
+        folder.setMimetype("DIR");
+        folder.setFileId(1);
+
+        mStorageManager.getFolderContent(folder);
+        mStorageManager.getFolderContentWindow(folder, false).close();
+        mStorageManager.getFolderChildren(folder, Collections.singletonList(FILE_PATH));
+        assertNoFullScan();
+    }
+
+    @Test
+    public void availableOfflineFilesUseIndex() {
+        mStorageManager.getAvailableOfflineFilesFromEveryAccount();
+        assertNoFullScan();
+    }
+
+    @Test
+    public void sharesByPathUseIndex() {
+        mStorageManager.getPrivateSharesForAFile(FILE_PATH, ACCOUNT_NAME);
+        mStorageManager.getPublicSharesForAFile(FILE_PATH, ACCOUNT_NAME);
+        assertNoFullScan();
+    }
+
+    @Test
+    public void uploadsByStatusUseIndex() {
+        mUploadsStorageManager.getCurrentAndPendingUploads();
+        mUploadsStorageManager.getFailedUploads();
+        mUploadsStorageManager.getFinishedUploads();
+        assertNoFullScan();
+    }
+
+    @Test
+    public void uploadsByAccountUseIndex() {
+        mUploadsStorageManager.getLastUploadFor(new OCFile(FILE_PATH), ACCOUNT_NAME);
+        assertNoFullScan();
+    }
+
+
+    /**
+     * Asserts that queries were run through the provider, and that no step in their query plans walks
+     * a full table.
+     */
+    private void assertNoFullScan() {
+        List<Pair<String, String[]>> queries;
+        synchronized (mQueries) {
+            queries = new ArrayList<>(mQueries);
+        }
+        assertFalse("No query run through the provider", queries.isEmpty());
+
+        for (Pair<String, String[]> query : queries) {
+            Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + query.first, query.second);
+            try {
+                int detailIndex = plan.getColumnIndexOrThrow("detail");
+                while (plan.moveToNext()) {
+                    String detail = plan.getString(detailIndex);
+                    assertFalse(
+                        "Full scan in query plan for '" + query.first + "': " + detail,
+                        detail.startsWith("SCAN")
+                    );
+                }
+            } finally {
+                plan.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.services.observer;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Instrumented test of the watches kept by {@link FolderWatchRegistry} while a folder tree changes.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FolderWatchRegistryTest {
+
+    private static final long EVENT_TIMEOUT_MS = 5000;
+
+    private HandlerThread mThread;
+    private FolderWatchRegistry mRegistry;
+    private File mRoot;
+
+    private final List<String> mModifiedPaths = new ArrayList<>();
+
+    private final FolderWatchRegistry.OnWatchEventListener mListener =
+        new FolderWatchRegistry.OnWatchEventListener() {
+            @Override
+            public void onWatchEvent(int event, String path) {
+                if ((event & FileObserver.CLOSE_WRITE) != 0) {
+                    synchronized (mModifiedPaths) {
+                        mModifiedPaths.add(path);
+                        mModifiedPaths.notifyAll();
+                    }
+                }
+            }
+        };
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("FolderWatchRegistryTest");
+        mThread.start();
+        mRegistry = new FolderWatchRegistry(new Handler(mThread.getLooper()));
+
+        mRoot = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "watched");
+        delete(mRoot);
+        assertTrue(new File(mRoot, "a/b").mkdirs());
+        assertTrue(new File(mRoot, "c").mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+        delete(mRoot);
+    }
+
+
+    @Test
+    public void treeIsWatchedOncePerFolder() throws Exception {
+        FolderWatchRegistry.Subscription tree =
+            mRegistry.watch(mRoot.getAbsolutePath(), FileObserver.CLOSE_WRITE, true, mListener);
+        FolderWatchRegistry.Subscription single =
+            mRegistry.watch(new File(mRoot, "a").getAbsolutePath(), FileObserver.CLOSE_WRITE, false, mListener);
+
+        assertEquals(4, mRegistry.getWatchedFoldersCount());
+
+        mRegistry.unwatch(tree);
+        assertEquals(1, mRegistry.getWatchedFoldersCount());
+        mRegistry.unwatch(single);
+        assertEquals(0, mRegistry.getWatchedFoldersCount());
+    }
+
+    @Test
+    public void newFoldersAreWatched() throws Exception {
+        mRegistry.watch(mRoot.getAbsolutePath(), FileObserver.CLOSE_WRITE, true, mListener);
+
+        File newFolder = new File(mRoot, "c/d");
+        assertTrue(newFolder.mkdirs());
+        waitForWatchedFolders(5);
+        write(new File(newFolder, "notes.txt"));
+
+        waitForModifiedPath("c/d/notes.txt");
+    }
+
+    @Test
+    public void deletedFoldersAreReleased() throws Exception {
+        mRegistry.watch(mRoot.getAbsolutePath(), FileObserver.CLOSE_WRITE, true, mListener);
+        assertEquals(4, mRegistry.getWatchedFoldersCount());
+
+        delete(new File(mRoot, "a"));
+
+        waitForWatchedFolders(2);
+    }
+
+
+    private void waitForWatchedFolders(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + EVENT_TIMEOUT_MS;
+        while (mRegistry.getWatchedFoldersCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, mRegistry.getWatchedFoldersCount());
+    }
+
+    private void waitForModifiedPath(String path) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + EVENT_TIMEOUT_MS;
+        synchronized (mModifiedPaths) {
+            while (!mModifiedPaths.contains(path) && System.currentTimeMillis() < deadline) {
+                mModifiedPaths.wait(EVENT_TIMEOUT_MS);
+            }
+            assertTrue("No event received about " + path, mModifiedPaths.contains(path));
+        }
+    }
+
+    private static void write(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{1, 2, 3});
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
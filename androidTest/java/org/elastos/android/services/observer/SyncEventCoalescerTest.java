@@ -0,0 +1,173 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.services.observer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Instrumented unit test of the release of synchronizations by {@link SyncEventCoalescer}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SyncEventCoalescerTest {
+
+    private static final long QUIET_PERIOD_MS = 300;
+
+    private HandlerThread mThread;
+    private SyncEventCoalescer mCoalescer;
+
+    /**
+     * Batches released, by folder.
+     */
+    private final Map<String, List<List<String>>> mBatches = new TreeMap<>();
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("SyncEventCoalescerTest");
+        mThread.start();
+        mCoalescer = new SyncEventCoalescer(
+            QUIET_PERIOD_MS,
+            new Handler(mThread.getLooper()),
+            new SyncEventCoalescer.OnSyncBatchReadyListener() {
+                @Override
+                public void onSyncBatchReady(String folderPath, List<String> paths) {
+                    synchronized (mBatches) {
+                        if (!mBatches.containsKey(folderPath)) {
+                            mBatches.put(folderPath, new ArrayList<List<String>>());
+                        }
+                        mBatches.get(folderPath).add(new ArrayList<>(paths));
+                    }
+                }
+            }
+        );
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+
+    @Test
+    public void repeatedSavesAreReleasedOnce() throws Exception {
+        long collapsedBefore = SyncEventCoalescer.getCollapsedEventsCount();
+
+        for (int i = 0; i < 10; i++) {
+            mCoalescer.requestSync("notes.txt");
+            Thread.sleep(QUIET_PERIOD_MS / 10);
+        }
+        waitUntilIdle();
+
+        assertEquals(1, mBatches.size());
+        assertEquals(Collections.singletonList(Collections.singletonList("notes.txt")), mBatches.get(""));
+        assertEquals(9, SyncEventCoalescer.getCollapsedEventsCount() - collapsedBefore);
+    }
+
+    @Test
+    public void filesAreBatchedPerFolder() throws Exception {
+        mCoalescer.requestSync("a.txt");
+        mCoalescer.requestSync("Photos/1.jpg");
+        mCoalescer.requestSync("b.txt");
+        mCoalescer.requestSync("Photos/2.jpg");
+        waitUntilIdle();
+
+        assertEquals(2, mBatches.size());
+        assertEquals(Collections.singletonList(Arrays.asList("a.txt", "b.txt")), mBatches.get(""));
+        assertEquals(
+            Collections.singletonList(Arrays.asList("Photos/1.jpg", "Photos/2.jpg")),
+            mBatches.get("Photos")
+        );
+    }
+
+    @Test
+    public void activityPostponesRelease() throws Exception {
+        long start = System.currentTimeMillis();
+        mCoalescer.requestSync("video.mp4");
+        for (int i = 0; i < 6; i++) {
+            Thread.sleep(QUIET_PERIOD_MS / 3);
+            mCoalescer.onActivity("video.mp4");
+        }
+        waitUntilIdle();
+
+        assertTrue(System.currentTimeMillis() - start >= 3 * QUIET_PERIOD_MS);
+        assertEquals(1, mBatches.get("").size());
+    }
+
+    @Test
+    public void discardedFilesAreNotReleased() throws Exception {
+        mCoalescer.requestSync("a.txt");
+        mCoalescer.requestSync("b.txt");
+        mCoalescer.discard("a.txt");
+        waitUntilIdle();
+
+        assertEquals(Collections.singletonList(Collections.singletonList("b.txt")), mBatches.get(""));
+    }
+
+    @Test
+    public void discardedFoldersAreNotReleased() throws Exception {
+        mCoalescer.requestSync("Photos/1.jpg");
+        mCoalescer.requestSync("Photos/Old/2.jpg");
+        mCoalescer.requestSync("Photos.txt");
+        mCoalescer.discard("Photos");
+        waitUntilIdle();
+
+        assertEquals(1, mBatches.size());
+        assertEquals(Collections.singletonList(Collections.singletonList("Photos.txt")), mBatches.get(""));
+    }
+
+    @Test
+    public void nothingIsReleasedAfterDiscardingAll() throws Exception {
+        mCoalescer.requestSync("a.txt");
+        mCoalescer.requestSync("Photos/1.jpg");
+        mCoalescer.discardAll();
+        assertTrue(mCoalescer.isIdle());
+
+        Thread.sleep(2 * QUIET_PERIOD_MS);
+        assertTrue(mBatches.isEmpty());
+    }
+
+
+    private void waitUntilIdle() throws InterruptedException {
+        while (!mCoalescer.isIdle()) {
+            Thread.sleep(QUIET_PERIOD_MS / 10);
+        }
+        // let the listener run
+        Thread.sleep(QUIET_PERIOD_MS / 2);
+    }
+}
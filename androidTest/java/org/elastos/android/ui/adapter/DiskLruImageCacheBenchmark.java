@@ -0,0 +1,143 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.ui.adapter;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Color;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Instrumented benchmark measuring the throughput of {@link DiskLruImageCache} with a growing
+ * number of threads writing and reading thumbnails at the same time.
+ *
+ * Results are written to logcat with tag {@link #TAG}; throughput is expected to grow with the
+ * number of workers, up to the number of cores of the device.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class DiskLruImageCacheBenchmark {
+
+    private static final String TAG = DiskLruImageCacheBenchmark.class.getSimpleName();
+
+    private static final int[] WORKER_COUNTS = {1, 2, 4, 8};
+    private static final int OPERATIONS_PER_RUN = 400;
+    private static final int THUMBNAIL_SIZE = 192;
+    private static final int CACHE_SIZE = 1024 * 1024 * 50;
+
+    private File mCacheDir;
+    private DiskLruImageCache mCache;
+    private Bitmap mBitmap;
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), TAG);
+        mCache = new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.JPEG, 70);
+
+        mBitmap = Bitmap.createBitmap(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Bitmap.Config.ARGB_8888);
+        for (int x = 0; x < THUMBNAIL_SIZE; x++) {
+            for (int y = 0; y < THUMBNAIL_SIZE; y++) {
+                mBitmap.setPixel(x, y, Color.rgb(x, y, (x * y) % 256));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mCache.clearCache();
+    }
+
+
+    @Test
+    public void throughputScalesWithWorkers() throws Exception {
+        // warm up, so the first measured run doesn't pay for class loading and JIT
+        runWorkers(1, "warmup");
+
+        for (int workers : WORKER_COUNTS) {
+            long start = System.nanoTime();
+            int done = runWorkers(workers, "w" + workers);
+            long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+            assertEquals(OPERATIONS_PER_RUN, done);
+            Log.i(TAG, workers + " workers: " + OPERATIONS_PER_RUN + " put+get in " + elapsedMs + " ms, " +
+                (OPERATIONS_PER_RUN * 1000L / elapsedMs) + " ops/s");
+        }
+    }
+
+
+    /**
+     * Splits {@link #OPERATIONS_PER_RUN} put + get pairs among the given number of threads.
+     *
+     * @return  Number of bitmaps read back successfully.
+     */
+    private int runWorkers(int workers, final String keyPrefix) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final int perWorker = OPERATIONS_PER_RUN / workers;
+        List<Future<Integer>> results = new ArrayList<>();
+
+        for (int w = 0; w < workers; w++) {
+            final int worker = w;
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    startSignal.await();
+                    int read = 0;
+                    for (int i = 0; i < perWorker; i++) {
+                        String key = keyPrefix + "_" + worker + "_" + i;
+                        mCache.put(key, mBitmap);
+                        if (mCache.getBitmap(key) != null) {
+                            read++;
+                        }
+                    }
+                    return read;
+                }
+            }));
+        }
+        startSignal.countDown();
+
+        int done = 0;
+        for (Future<Integer> result : results) {
+            done += result.get();
+        }
+        executor.shutdown();
+        return done;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.ui.adapter;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.elastos.android.datamodel.OCFile;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * Instrumented unit test of the differences found by {@link FolderContentLoader} between two versions of a list.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FolderContentLoaderTest {
+
+    private static final int FILES_COUNT = 10;
+
+    private List<OCFile> mShown;
+
+    @Before
+    public void setUp() {
+        mShown = createFiles();
+    }
+
+
+    @Test
+    public void unchangedListHasNoChangedRows() {
+        assertArrayEquals(new int[0], FolderContentLoader.computeChangedPositions(mShown, createFiles()));
+    }
+
+    @Test
+    public void updatedFilesAreReportedByPosition() {
+        List<OCFile> loaded = createFiles();
+        loaded.get(2).setFileLength(4096);
+        loaded.get(7).setEtag("new-etag");
+
+        assertArrayEquals(new int[]{2, 7}, FolderContentLoader.computeChangedPositions(mShown, loaded));
+    }
+
+    @Test
+    public void addedFileReplacesList() {
+        List<OCFile> loaded = createFiles();
+        loaded.add(createFile(FILES_COUNT));
+
+        assertNull(FolderContentLoader.computeChangedPositions(mShown, loaded));
+    }
+
+    @Test
+    public void movedFileReplacesList() {
+        List<OCFile> loaded = createFiles();
+        Collections.swap(loaded, 0, 1);
+
+        assertNull(FolderContentLoader.computeChangedPositions(mShown, loaded));
+    }
+
+
+    private static List<OCFile> createFiles() {
+        List<OCFile> files = new ArrayList<>(FILES_COUNT);
+        for (int i = 0; i < FILES_COUNT; i++) {
+            files.add(createFile(i));
+        }
+        return files;
+    }
+
+    private static OCFile createFile(int index) {
+        OCFile file = new OCFile("/Photos/photo_" + index + ".jpg");
+        file.setFileId(100 + index);
+        file.setMimetype("image/jpeg");
+        file.setFileLength(1024);
+        file.setEtag("etag-" + index);
+        return file;
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.ui.adapter;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.Printer;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+import android.widget.ListView;
+
+import org.elastos.android.MainApp;
+import org.elastos.android.R;
+import org.elastos.android.datamodel.FileDataStorageManager;
+import org.elastos.android.datamodel.OCFile;
+import org.elastos.android.files.services.FileDownloader.FileDownloaderBinder;
+import org.elastos.android.files.services.FileUploader.FileUploaderBinder;
+import org.elastos.android.services.OperationsService.OperationsServiceBinder;
+import org.elastos.android.ui.activity.ComponentsGetter;
+import org.elastos.android.ui.helpers.FileOperationsHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Instrumented benchmark of the refreshes of the list of files during a bulk upload, served by
+ * {@link FolderContentLoader}.
+ *
+ * Measures how many loads of the folder, out of the main thread, serve a burst of refresh requests, and the
+ * time the main thread spends per refresh in a real {@link FileListListAdapter} bound to a {@link ListView},
+ * compared with reloading the folder synchronously as before. Results are written to logcat with tag
+ * {@link #TAG}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class FolderListingBenchmark {
+
+    private static final String TAG = FolderListingBenchmark.class.getSimpleName();
+
+    private static final int REFRESHES_COUNT = 500;
+
+    private static final long COALESCE_DELAY_MS = 150;
+    private static final long REQUESTS_INTERVAL_MS = 2;
+
+    private static final String ACCOUNT_NAME = "benchmark@cloud.example.com";
+    private static final String FOLDER_PATH = "/FolderListingBenchmark/";
+    private static final int FILES_COUNT = 500;
+    private static final int TIMED_REFRESHES_COUNT = 200;
+    private static final long TIMED_REQUESTS_INTERVAL_MS = 10;
+
+    private static final int LIST_WIDTH_PX = 1080;
+    private static final int LIST_HEIGHT_PX = 1920;
+
+    /**
+     * No transfers are running in the benchmark.
+     */
+    private static final ComponentsGetter NO_COMPONENTS = new ComponentsGetter() {
+        @Override
+        public FileDownloaderBinder getFileDownloaderBinder() {
+            return null;
+        }
+
+        @Override
+        public FileUploaderBinder getFileUploaderBinder() {
+            return null;
+        }
+
+        @Override
+        public OperationsServiceBinder getOperationsServiceBinder() {
+            return null;
+        }
+
+        @Override
+        public FileDataStorageManager getStorageManager() {
+            return null;
+        }
+
+        @Override
+        public FileOperationsHelper getFileOperationsHelper() {
+            return null;
+        }
+    };
+
+    private HandlerThread mThread;
+
+    private FileListListAdapter mAdapter;
+    private ListView mListView;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+
+    @Test
+    public void refreshesInABurstAreCoalesced() throws Exception {
+        final AtomicInteger deliveries = new AtomicInteger(0);
+        FolderContentLoader loader = new FolderContentLoader(
+            COALESCE_DELAY_MS,
+            new Handler(mThread.getLooper()),
+            new FolderContentLoader.OnFolderContentLoadedListener() {
+                @Override
+                public void onFolderContentLoaded(FolderContentLoader.Result result) {
+                    deliveries.incrementAndGet();
+                }
+            }
+        );
+        FileDataStorageManager storageManager = new FileDataStorageManager(
+            new Account(ACCOUNT_NAME, MainApp.getAccountType()),
+            InstrumentationRegistry.getTargetContext().getContentResolver()
+        );
+        OCFile folder = new OCFile("/Uploads/");
+        folder.setMimetype("DIR");
+
+        long loadsBefore = FolderContentLoader.getLoadsCount();
+        for (int i = 0; i < REFRESHES_COUNT; i++) {
+            loader.requestLoad(folder, storageManager, false, Collections.<OCFile>emptyList(), 0);
+            Thread.sleep(REQUESTS_INTERVAL_MS);
+        }
+        Thread.sleep(COALESCE_DELAY_MS * 4);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        long loads = FolderContentLoader.getLoadsCount() - loadsBefore;
+        Log.i(TAG, REFRESHES_COUNT + " refreshes requested every " + REQUESTS_INTERVAL_MS + " ms served by " +
+            loads + " loads");
+        assertEquals(loads, deliveries.get());
+        assertTrue(loads * 10 < REFRESHES_COUNT);
+    }
+
+
+    @Test
+    public void refreshesInABurstSpendLessMainThreadTime() throws Exception {
+        FileDataStorageManager storageManager = new FileDataStorageManager(
+            new Account(ACCOUNT_NAME, MainApp.getAccountType()),
+            InstrumentationRegistry.getTargetContext().getContentResolver()
+        );
+        OCFile root = new OCFile(OCFile.ROOT_PATH);
+        root.setMimetype("DIR");
+        root.setParentId(FileDataStorageManager.ROOT_PARENT_ID);
+        storageManager.saveFile(root);
+        try {
+            OCFile folder = new OCFile(FOLDER_PATH);
+            folder.setMimetype("DIR");
+            folder.setParentId(root.getFileId());
+            storageManager.saveFile(folder);
+            List<OCFile> files = new ArrayList<>(FILES_COUNT);
+            for (int i = 0; i < FILES_COUNT; i++) {
+                OCFile file = new OCFile(FOLDER_PATH + "upload_" + i + ".txt");
+                file.setMimetype("text/plain");
+                file.setParentId(folder.getFileId());
+                file.setFileLength(1024 + i);
+                file.setModificationTimestamp(1500000000000L + i);
+                file.setEtag("etag-" + i);
+                files.add(file);
+            }
+            storageManager.saveFolderChildren(folder, files);
+
+            // warm up, so the first measured burst doesn't pay for class loading and JIT
+            runTimedBurst(storageManager, folder, files, false);
+
+            long syncNanos = runTimedBurst(storageManager, folder, files, false);
+            long asyncNanos = runTimedBurst(storageManager, folder, files, true);
+
+            Log.i(TAG, TIMED_REFRESHES_COUNT + " refreshes of " + FILES_COUNT + " files, one file changed " +
+                "before each: " + (syncNanos / TIMED_REFRESHES_COUNT / 1000) + " us of main thread per " +
+                "refresh reloading in the main thread, " + (asyncNanos / TIMED_REFRESHES_COUNT / 1000) +
+                " us loading out of it");
+            assertTrue(asyncNanos < syncNanos);
+
+        } finally {
+            storageManager.removeFolder(root, true, false);
+        }
+    }
+
+
+    /**
+     * Refreshes the list of a folder in a burst, changing a file in the database before each refresh as
+     * uploads finishing do, and measures the time spent in the main thread until the list is up to date.
+     *
+     * @param coalesced     When 'true', refreshes go through {@link FileListListAdapter#refreshDirectory};
+     *                      else the folder is reloaded in the main thread for every refresh, with
+     *                      {@link FileListListAdapter#swapDirectory}, and the list laid out again.
+     * @return              Time spent by the main thread handling messages during the burst, in nanoseconds.
+     */
+    private long runTimedBurst(final FileDataStorageManager storageManager, final OCFile folder,
+                               List<OCFile> files, final boolean coalesced) throws Exception {
+        final Context context = new ContextThemeWrapper(
+            InstrumentationRegistry.getTargetContext(),
+            R.style.Theme_ownCloud
+        );
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mListView = new ListView(context);
+                mAdapter = new FileListListAdapter(false, context, NO_COMPONENTS);
+                mAdapter.setOnFolderRefreshedListener(new FileListListAdapter.OnFolderRefreshedListener() {
+                    @Override
+                    public void onFolderRefreshed(int[] changedPositions) {
+                        if (changedPositions == null) {
+                            layout(mListView);
+                        } else {
+                            mAdapter.bindVisibleRows(mListView);
+                        }
+                    }
+                });
+                mListView.setAdapter(mAdapter);
+                mAdapter.swapDirectory(folder, storageManager);
+                layout(mListView);
+            }
+        });
+
+        MainThreadTimer timer = new MainThreadTimer();
+        Looper.getMainLooper().setMessageLogging(timer);
+        try {
+            for (int i = 0; i < TIMED_REFRESHES_COUNT; i++) {
+                OCFile changed = files.get(i % files.size());
+                changed.setEtag("etag-" + i + "-" + coalesced);
+                storageManager.saveFile(changed);
+
+                InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (coalesced) {
+                            mAdapter.refreshDirectory(folder, storageManager);
+                        } else {
+                            mAdapter.swapDirectory(folder, storageManager);
+                            layout(mListView);
+                        }
+                    }
+                });
+                Thread.sleep(TIMED_REQUESTS_INTERVAL_MS);
+            }
+            Thread.sleep(COALESCE_DELAY_MS * 4);
+            InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        } finally {
+            Looper.getMainLooper().setMessageLogging(null);
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mAdapter.close();
+                }
+            });
+        }
+        return timer.getBusyNanos();
+    }
+
+    /**
+     * Measures and lays out the list as a frame would.
+     */
+    private static void layout(View view) {
+        view.measure(
+            View.MeasureSpec.makeMeasureSpec(LIST_WIDTH_PX, View.MeasureSpec.EXACTLY),
+            View.MeasureSpec.makeMeasureSpec(LIST_HEIGHT_PX, View.MeasureSpec.EXACTLY)
+        );
+        view.layout(0, 0, LIST_WIDTH_PX, LIST_HEIGHT_PX);
+    }
+
+
+    /**
+     * Adds up the time spent dispatching messages in a {@link Looper}, from the lines it logs before and
+     * after every message.
+     */
+    private static class MainThreadTimer implements Printer {
+
+        private final AtomicLong mBusyNanos = new AtomicLong(0);
+        private long mDispatchStart = 0;
+
+        @Override
+        public void println(String x) {
+            if (x.startsWith(">>>>> Dispatching")) {
+                mDispatchStart = System.nanoTime();
+            } else if (x.startsWith("<<<<< Finished") && mDispatchStart > 0) {
+                mBusyNanos.addAndGet(System.nanoTime() - mDispatchStart);
+                mDispatchStart = 0;
+            }
+        }
+
+        long getBusyNanos() {
+            return mBusyNanos.get();
+        }
+    }
+}
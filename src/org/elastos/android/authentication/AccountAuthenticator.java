@@ -23,6 +23,7 @@ package org.elastos.android.authentication;
 
 import org.elastos.android.MainApp;
 import org.elastos.android.R;
+import org.elastos.android.datamodel.BlockIndex;
 
 import android.accounts.*;
 import android.content.Context;
@@ -256,7 +257,12 @@ public class AccountAuthenticator extends AbstractAccountAuthenticator {
     public Bundle getAccountRemovalAllowed(
             AccountAuthenticatorResponse response, Account account)
             throws NetworkErrorException {
-        return super.getAccountRemovalAllowed(response, account);
+        Bundle result = super.getAccountRemovalAllowed(response, account);
+        if (result != null && result.getBoolean(AccountManager.KEY_BOOLEAN_RESULT, false)) {
+            // private data of the account not kept by the AccountManager nor the database
+            BlockIndex.deleteAll(account.name);
+        }
+        return result;
     }
 
     private void setIntentFlags(Intent intent) {
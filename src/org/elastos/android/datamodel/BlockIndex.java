@@ -0,0 +1,396 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.datamodel;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import org.elastos.android.MainApp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checksums of the blocks of the local copy of a file, as it was when the server had a given ETag.
+ *
+ * Kept for available offline files, so that a local edit can be compared block by block with the version
+ * in the server and only the modified ranges sent, see {@link #computeDelta(File)}.
+ *
+ * Every block has a SHA-1 checksum. Blocks are compared at the same offset only, since ranges sent to the
+ * server can't reuse its content from other offsets; a weak rolling checksum, as rsync uses to find blocks
+ * at any offset, would not save any read.
+ *
+ * Indexes are stored in the private storage of the app, in a folder per account that mirrors the remote
+ * paths, so that the indexes of a folder or an account can be removed together.
+ */
+public class BlockIndex {
+
+    private static final String TAG = BlockIndex.class.getSimpleName();
+
+    private static final String INDEX_FOLDER = "block_index";
+    private static final String TMP_FILE_PREFIX = "index";
+    private static final int FORMAT_VERSION = 1;
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final String CHECKSUM_ALGORITHM = "SHA-1";
+    private static final int CHECKSUM_LENGTH = 20;
+
+    private final String mEtag;
+    private final long mLength;
+    private final int mBlockSize;
+    private final byte[][] mChecksums;
+
+    private BlockIndex(String etag, long length, int blockSize, byte[][] checksums) {
+        mEtag = etag;
+        mLength = length;
+        mBlockSize = blockSize;
+        mChecksums = checksums;
+    }
+
+    /**
+     * @return  ETag of the file in the server when its content was the indexed one.
+     */
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * @return  Same index, for the version of the file with the given ETag.
+     */
+    public BlockIndex withEtag(String etag) {
+        return new BlockIndex(etag, mLength, mBlockSize, mChecksums);
+    }
+
+
+    /**
+     * Indexes the blocks of a local file.
+     *
+     * @param file      Local file to index.
+     * @param etag      ETag of the file in the server with the same content.
+     */
+    public static BlockIndex build(File file, String etag) throws IOException {
+        long length = file.length();
+        int blockCount = blockCount(length, DEFAULT_BLOCK_SIZE);
+        byte[][] checksums = new byte[blockCount][];
+
+        MessageDigest digest = newDigest();
+        byte[] block = new byte[DEFAULT_BLOCK_SIZE];
+        InputStream in = new BufferedInputStream(new FileInputStream(file), DEFAULT_BLOCK_SIZE);
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                int blockLength = readBlock(in, block);
+                digest.update(block, 0, blockLength);
+                checksums[i] = digest.digest();
+            }
+        } finally {
+            in.close();
+        }
+        return new BlockIndex(etag, length, DEFAULT_BLOCK_SIZE, checksums);
+    }
+
+
+    /**
+     * Compares the blocks of a local file with the indexed ones.
+     *
+     * Ranges are expressed as the first and the last byte of every range, both included, and adjacent
+     * modified blocks are merged in a single range. Content appended after the indexed length is a
+     * range too.
+     *
+     * @param file      New version of the indexed file.
+     * @return          Modified ranges, and the index of the new version; null if the file is shorter
+     *                  than the indexed one, what ranges can't express.
+     */
+    public Delta computeDelta(File file) throws IOException {
+        long length = file.length();
+        if (length < mLength) {
+            return null;
+        }
+
+        int blockCount = blockCount(length, mBlockSize);
+        byte[][] checksums = new byte[blockCount][];
+        List<long[]> ranges = new ArrayList<>();
+        long changedBytes = 0;
+
+        MessageDigest digest = newDigest();
+        byte[] block = new byte[mBlockSize];
+        long[] openRange = null;
+        InputStream in = new BufferedInputStream(new FileInputStream(file), mBlockSize);
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                int blockLength = readBlock(in, block);
+                long offset = (long) i * mBlockSize;
+                digest.update(block, 0, blockLength);
+                checksums[i] = digest.digest();
+
+                boolean unchanged = i < mChecksums.length &&
+                        blockLength == indexedBlockLength(i) &&
+                        Arrays.equals(checksums[i], mChecksums[i]);
+
+                if (unchanged) {
+                    openRange = null;
+                } else {
+                    changedBytes += blockLength;
+                    if (openRange == null) {
+                        openRange = new long[]{offset, offset + blockLength - 1};
+                        ranges.add(openRange);
+                    } else {
+                        openRange[1] = offset + blockLength - 1;
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        return new Delta(
+                ranges,
+                changedBytes,
+                new BlockIndex(null, length, mBlockSize, checksums)
+        );
+    }
+
+
+    /**
+     * Loads the index of a file.
+     *
+     * @return  Index stored for the file, or null if none or unreadable.
+     */
+    public static BlockIndex load(String accountName, String remotePath) {
+        File indexFile = getIndexFile(accountName, remotePath);
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            String etag = in.readUTF();
+            long length = in.readLong();
+            int blockSize = in.readInt();
+            int blockCount = in.readInt();
+            if (blockSize <= 0 || blockCount != blockCount(length, blockSize)) {
+                return null;
+            }
+            byte[][] checksums = new byte[blockCount][CHECKSUM_LENGTH];
+            for (int i = 0; i < blockCount; i++) {
+                in.readFully(checksums[i]);
+            }
+            return new BlockIndex(etag, length, blockSize, checksums);
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not read block index of " + remotePath + ": " + e.getMessage());
+            return null;
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing block index of " + remotePath, e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Stores the index of a file, replacing any previous one.
+     */
+    public void save(String accountName, String remotePath) throws IOException {
+        File indexFile = getIndexFile(accountName, remotePath);
+        File parent = indexFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent.getAbsolutePath());
+        }
+
+        // written aside and renamed, so that a failure never leaves a half written index; aside means in
+        // the root folder, where no remote path can collide with it
+        File tmpFile = File.createTempFile(TMP_FILE_PREFIX, null, getRootFolder());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(mEtag == null ? "" : mEtag);
+            out.writeLong(mLength);
+            out.writeInt(mBlockSize);
+            out.writeInt(mChecksums.length);
+            for (byte[] checksum : mChecksums) {
+                out.write(checksum);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Could not save block index of " + remotePath);
+        }
+    }
+
+
+    /**
+     * Removes the index of a file, or the indexes of all the files in a folder, if any.
+     */
+    public static void delete(String accountName, String remotePath) {
+        File indexFile = getIndexFile(accountName, remotePath);
+        if (indexFile.exists() && !deleteRecursive(indexFile)) {
+            Log_OC.w(TAG, "Could not delete block index of " + remotePath);
+        }
+    }
+
+
+    /**
+     * Removes the indexes of all the files of an account.
+     */
+    public static void deleteAll(String accountName) {
+        File accountFolder = getAccountFolder(accountName);
+        if (accountFolder.exists() && !deleteRecursive(accountFolder)) {
+            Log_OC.w(TAG, "Could not delete block indexes of " + accountName);
+        }
+    }
+
+
+    private int indexedBlockLength(int blockIndex) {
+        return (int) Math.min(mBlockSize, mLength - (long) blockIndex * mBlockSize);
+    }
+
+    private static int blockCount(long length, int blockSize) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Fills 'block' as much as the stream allows.
+     *
+     * @return  Number of bytes read.
+     */
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int read = 0;
+        int count;
+        while (read < block.length && (count = in.read(block, read, block.length - read)) > 0) {
+            read += count;
+        }
+        return read;
+    }
+
+    private static boolean deleteRecursive(File file) {
+        boolean success = true;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                success &= deleteRecursive(child);
+            }
+        }
+        return file.delete() && success;
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(CHECKSUM_ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * @return  Index of a file in the folder of its account, at its remote path; the index of a folder
+     *          path is the folder with the indexes of its files.
+     */
+    private static File getIndexFile(String accountName, String remotePath) {
+        return new File(getAccountFolder(accountName), remotePath);
+    }
+
+    private static File getAccountFolder(String accountName) {
+        // account names have characters not allowed in some file systems
+        String key;
+        try {
+            byte[] hash = newDigest().digest(accountName.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            key = hex.toString();
+
+        } catch (IOException e) {
+            // not expected; still unique enough to keep working
+            key = String.valueOf(accountName.hashCode());
+        }
+        return new File(getRootFolder(), key);
+    }
+
+    private static File getRootFolder() {
+        return new File(MainApp.getAppContext().getFilesDir(), INDEX_FOLDER);
+    }
+
+
+    /**
+     * Result of comparing a file with an index.
+     */
+    public static class Delta {
+
+        private final List<long[]> mRanges;
+        private final long mChangedBytes;
+        private final BlockIndex mUpdatedIndex;
+
+        private Delta(List<long[]> ranges, long changedBytes, BlockIndex updatedIndex) {
+            mRanges = ranges;
+            mChangedBytes = changedBytes;
+            mUpdatedIndex = updatedIndex;
+        }
+
+        /**
+         * @return  First and last byte of every modified range, in order.
+         */
+        public List<long[]> getRanges() {
+            return mRanges;
+        }
+
+        public long getChangedBytes() {
+            return mChangedBytes;
+        }
+
+        /**
+         * @return  Index of the new version of the file, without ETag.
+         */
+        public BlockIndex getUpdatedIndex() {
+            return mUpdatedIndex;
+        }
+    }
+}
@@ -23,7 +23,6 @@ package org.elastos.android.datamodel;
 import android.accounts.Account;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -31,6 +30,7 @@ import android.content.Intent;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.provider.MediaStore;
 import android.support.v4.util.Pair;
@@ -54,9 +54,11 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
@@ -64,6 +66,19 @@ public class FileDataStorageManager {
 
     public static final int ROOT_PARENT_ID = 0;
 
+    static final String FOLDER_MIME_TYPE = "DIR";
+
+    /**
+     * Largest folder whose content is sorted in memory, with {@link FileStorageUtils#sortFolder(Vector)};
+     * larger folders are kept in a {@link FolderContentWindow}, in the order of the database.
+     */
+    public static final int MAX_SORTED_FOLDER_SIZE = 1000;
+
+    /**
+     * Maximum number of arguments bound in a single statement; SQLite allows 999 by default.
+     */
+    private static final int MAX_SELECTION_ARGS = 500;
+
     private ContentResolver mContentResolver;
     private ContentProviderClient mContentProviderClient;
     private Account mAccount;
@@ -176,6 +191,133 @@ public class FileDataStorageManager {
         return ret;
     }
 
+    /**
+     * Opens a window over the content of a folder, sorted by the database as set in
+     * {@link FileStorageUtils#mSortOrder} and {@link FileStorageUtils#mSortAscending}.
+     *
+     * Use instead of {@link #getFolderContent(OCFile)} when the folder may be large; the returned window
+     * must be closed when not needed anymore.
+     *
+     * @param folder        Folder to list.
+     * @param justFolders   When 'true', files are left out.
+     * @return              Window over the content of the folder; empty if the folder is not valid.
+     */
+    public FolderContentWindow getFolderContentWindow(OCFile folder, boolean justFolders) {
+        return getFolderContentWindow(
+            folder,
+            justFolders ? ProviderMeta.ProviderTableMeta.FILE_CONTENT_TYPE + "=?" : null,
+            justFolders ? new String[]{FOLDER_MIME_TYPE} : null
+        );
+    }
+
+    /**
+     * Opens a window over the images in a folder, sorted as {@link #getFolderContentWindow(OCFile, boolean)}.
+     *
+     * Images are found by their MIME type, the file name is not checked.
+     *
+     * @param folder        Folder to list.
+     * @return              Window over the images in the folder; empty if the folder is not valid.
+     */
+    public FolderContentWindow getFolderImagesWindow(OCFile folder) {
+        return getFolderContentWindow(
+            folder,
+            ProviderMeta.ProviderTableMeta.FILE_CONTENT_TYPE + " LIKE ?",
+            new String[]{"image/%"}
+        );
+    }
+
+    /**
+     * Gets the images in a folder in the same order as the list of the folder: sorted in memory if the
+     * folder has up to {@link #MAX_SORTED_FOLDER_SIZE} entries, in the order of the database otherwise.
+     *
+     * Names with numbers are ordered by their value only in memory, so the rule depends on the size of the
+     * whole folder, not on the number of images.
+     *
+     * @param folder        Folder to list.
+     * @return              Images in the folder; a {@link FolderContentWindow} for large folders, that must
+     *                      be closed when not needed anymore.
+     */
+    public List<OCFile> getSortedFolderImages(OCFile folder) {
+        FolderContentWindow window = getFolderImagesWindow(folder);
+        if (window.size() > MAX_SORTED_FOLDER_SIZE || getFolderSize(folder) > MAX_SORTED_FOLDER_SIZE) {
+            return window;
+        }
+        Vector<OCFile> images = new Vector<>(window);
+        window.close();
+        return FileStorageUtils.sortFolder(images);
+    }
+
+    /**
+     * Counts the entries in a folder reading only their ids.
+     */
+    private int getFolderSize(OCFile folder) {
+        int size = 0;
+        if (folder != null && folder.isFolder() && folder.getFileId() != -1) {
+            Cursor c = queryFiles(
+                Uri.withAppendedPath(
+                    ProviderMeta.ProviderTableMeta.CONTENT_URI_DIR,
+                    String.valueOf(folder.getFileId())
+                ),
+                new String[]{ProviderMeta.ProviderTableMeta._ID},
+                ProviderMeta.ProviderTableMeta.FILE_PARENT + "=?",
+                new String[]{String.valueOf(folder.getFileId())}
+            );
+            if (c != null) {
+                size = c.getCount();
+                c.close();
+            }
+        }
+        return size;
+    }
+
+    private FolderContentWindow getFolderContentWindow(OCFile folder, String filter, String[] filterArgs) {
+        Cursor c = null;
+        if (folder != null && folder.isFolder() && folder.getFileId() != -1) {
+            String selection = ProviderMeta.ProviderTableMeta.FILE_PARENT + "=?";
+            String[] selectionArgs = new String[]{String.valueOf(folder.getFileId())};
+            if (filter != null) {
+                selection += " AND " + filter;
+                String[] args = new String[selectionArgs.length + filterArgs.length];
+                System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+                System.arraycopy(filterArgs, 0, args, selectionArgs.length, filterArgs.length);
+                selectionArgs = args;
+            }
+            c = queryFiles(
+                Uri.withAppendedPath(
+                    ProviderMeta.ProviderTableMeta.CONTENT_URI_DIR,
+                    String.valueOf(folder.getFileId())
+                ),
+                null,
+                selection,
+                selectionArgs,
+                getFolderSortOrder(FileStorageUtils.mSortOrder, FileStorageUtils.mSortAscending)
+            );
+        }
+        return new FolderContentWindow(this, c, FolderContentWindow.DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Translates the sort orders of {@link FileStorageUtils#sortFolder(Vector)} to SQL: folders first, then
+     * by the chosen column; name and id break the ties, so positions are stable.
+     *
+     * Names are compared ignoring case, but character by character: numbers in names are not ordered by
+     * their value, as {@link FileStorageUtils#sortByName(Vector)} does.
+     */
+    static String getFolderSortOrder(Integer sortOrder, boolean ascending) {
+        String direction = ascending ? " ASC" : " DESC";
+        String byName = ProviderMeta.ProviderTableMeta.FILE_NAME + " COLLATE NOCASE";
+        String order = "CASE WHEN " + ProviderMeta.ProviderTableMeta.FILE_CONTENT_TYPE + "='" +
+            FOLDER_MIME_TYPE + "' THEN 0 ELSE 1 END, ";
+        if (FileStorageUtils.SORT_DATE.equals(sortOrder)) {
+            order += ProviderMeta.ProviderTableMeta.FILE_MODIFIED + direction + ", " + byName + direction;
+        } else if (FileStorageUtils.SORT_SIZE.equals(sortOrder)) {
+            order += ProviderMeta.ProviderTableMeta.FILE_CONTENT_LENGTH + direction + ", " + byName + direction;
+        } else {
+            order += byName + direction;
+        }
+        return order + ", " + ProviderMeta.ProviderTableMeta._ID + direction;
+    }
+
     public boolean saveFile(OCFile file) {
         boolean overriden = false;
         ContentValues cv = new ContentValues();
@@ -282,9 +424,160 @@ public class FileDataStorageManager {
                 + " children and " + filesToRemove.size() + " files to remove");
 
         ArrayList<ContentProviderOperation> operations =
-                new ArrayList<ContentProviderOperation>(updatedFiles.size());
+                new ArrayList<ContentProviderOperation>(filesToRemove.size() + 1);
+
+        // resolve in bulk which files are already known, instead of querying them one by one
+        Map<String, Long> knownIdsByPath = getFileIdsInFolder(folder);
+        Set<Long> knownIds = getExistingFileIds(updatedFiles, knownIdsByPath);
 
         // prepare operations to insert or update files to save in the given folder
+        ArrayList<ContentValues> filesToMerge = prepareFilesToMerge(folder, updatedFiles, knownIdsByPath, knownIds);
+
+        // prepare operations to remove files in the given folder
+        prepareRemovals(folder, filesToRemove, operations);
+
+        // update metadata of folder
+        operations.add(prepareFolderUpdate(folder));
+
+        // insert or update the children and apply the rest of operations in a single transaction
+        long[] mergedIds = mergeFiles(filesToMerge, operations);
+
+        // update new id in file objects for insertions
+        setMergedIds(updatedFiles, mergedIds);
+    }
+
+    /**
+     * Gets the children of a folder with the given remote paths, in chunks of a bounded number of paths.
+     *
+     * @param folder        Folder which children will be retrieved.
+     * @param remotePaths   Remote paths of the children to retrieve.
+     * @return              Map of remote paths to the children found in the database.
+     */
+    public Map<String, OCFile> getFolderChildren(OCFile folder, List<String> remotePaths) {
+        Map<String, OCFile> children = new HashMap<>(remotePaths.size());
+        if (folder == null || folder.getFileId() < 0) {
+            return children;
+        }
+
+        // SQLite limits the number of arguments in a statement; query in chunks
+        for (int start = 0; start < remotePaths.size(); start += MAX_SELECTION_ARGS) {
+            List<String> chunk = remotePaths.subList(start, Math.min(start + MAX_SELECTION_ARGS, remotePaths.size()));
+            StringBuilder where = new StringBuilder(ProviderMeta.ProviderTableMeta.FILE_PARENT + "=? AND ");
+            where.append(ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER).append("=? AND ");
+            where.append(ProviderMeta.ProviderTableMeta.FILE_PATH).append(" IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                where.append(i == 0 ? "?" : ",?");
+            }
+            where.append(")");
+            String[] whereArgs = new String[chunk.size() + 2];
+            whereArgs[0] = String.valueOf(folder.getFileId());
+            whereArgs[1] = mAccount.name;
+            for (int i = 0; i < chunk.size(); i++) {
+                whereArgs[i + 2] = chunk.get(i);
+            }
+            Cursor c = queryFiles(
+                ProviderMeta.ProviderTableMeta.CONTENT_URI,
+                null,
+                where.toString(),
+                whereArgs,
+                ProviderMeta.ProviderTableMeta.FILE_PATH
+            );
+            if (c != null) {
+                while (c.moveToNext()) {
+                    OCFile child = createFileInstance(c);
+                    children.put(child.getRemotePath(), child);
+                }
+                c.close();
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Inserts or updates a part of the files contained in a given folder, without touching the folder itself
+     * nor removing anything; see {@link #saveFolderRemovingChildrenSyncedBefore(OCFile, long)}.
+     * <p/>
+     * Files already known in the folder are expected to carry their ids, as returned by
+     * {@link #getFolderChildren(OCFile, List)}; ids of new files are set after the call.
+     *
+     * @param folder        Folder containing the files; must be in the database.
+     * @param updatedFiles  Files to insert or update.
+     */
+    public void saveFolderChildren(OCFile folder, List<OCFile> updatedFiles) {
+        Set<Long> knownIds = new HashSet<>();
+        for (OCFile file : updatedFiles) {
+            if (file.getFileId() >= 0) {
+                knownIds.add(file.getFileId());
+            }
+        }
+        ArrayList<ContentValues> filesToMerge = prepareFilesToMerge(
+            folder,
+            updatedFiles,
+            Collections.<String, Long>emptyMap(),
+            knownIds
+        );
+        setMergedIds(updatedFiles, mergeFiles(filesToMerge, null));
+    }
+
+    /**
+     * Updates the metadata of a folder, and removes its children not synchronized since the given time,
+     * together with their local copies.
+     * <p/>
+     * Used to complete a merge of the folder saved in parts with {@link #saveFolderChildren(OCFile, List)}; the
+     * children are removed in chunks of a bounded size, and the folder is updated after all of them, so that an
+     * interrupted merge does not store the ETag of the folder.
+     *
+     * @param folder            Folder to update.
+     * @param lastSyncDate      Children with a last synchronization of properties previous to this are removed.
+     */
+    public void saveFolderRemovingChildrenSyncedBefore(OCFile folder, long lastSyncDate) {
+        List<OCFile> filesToRemove = new ArrayList<>();
+        Cursor c = queryFiles(
+            ProviderMeta.ProviderTableMeta.CONTENT_URI,
+            null,
+            ProviderMeta.ProviderTableMeta.FILE_PARENT + "=? AND " +
+                ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " +
+                ProviderMeta.ProviderTableMeta.FILE_LAST_SYNC_DATE + "<?",
+            new String[]{String.valueOf(folder.getFileId()), mAccount.name, String.valueOf(lastSyncDate)},
+            ProviderMeta.ProviderTableMeta.FILE_PATH
+        );
+        if (c != null) {
+            while (c.moveToNext()) {
+                filesToRemove.add(createFileInstance(c));
+            }
+            c.close();
+        }
+
+        Log_OC.d(TAG, "Saving folder " + folder.getRemotePath() + ", " + filesToRemove.size() +
+            " files to remove");
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int start = 0; start < filesToRemove.size(); start += MAX_SELECTION_ARGS) {
+            operations.clear();
+            prepareRemovals(
+                folder,
+                filesToRemove.subList(start, Math.min(start + MAX_SELECTION_ARGS, filesToRemove.size())),
+                operations
+            );
+            applyBatch(operations);
+        }
+
+        operations.clear();
+        operations.add(prepareFolderUpdate(folder));
+        applyBatch(operations);
+    }
+
+    /**
+     * Builds the values to insert or update files in a folder with {@link #mergeFiles(ArrayList, ArrayList)}.
+     *
+     * @param knownIdsByPath    Ids of the files known in the folder, by remote path.
+     * @param knownIds          Ids of the files known in the database.
+     */
+    private ArrayList<ContentValues> prepareFilesToMerge(
+            OCFile folder, Collection<OCFile> updatedFiles, Map<String, Long> knownIdsByPath, Set<Long> knownIds
+    ) {
+        ArrayList<ContentValues> filesToMerge = new ArrayList<ContentValues>(updatedFiles.size());
+        Boolean inFolderAvailableOffline = null;
         for (OCFile file : updatedFiles) {
             ContentValues cv = new ContentValues();
             cv.put(ProviderMeta.ProviderTableMeta.FILE_MODIFIED, file.getModificationTimestamp());
@@ -315,24 +608,39 @@ public class FileDataStorageManager {
             cv.put(ProviderMeta.ProviderTableMeta.FILE_ETAG_IN_CONFLICT, file.getEtagInConflict());
             cv.put(ProviderMeta.ProviderTableMeta.FILE_PRIVATE_LINK, file.getPrivateLink());
 
-            boolean existsByPath = fileExists(file.getRemotePath());
-            if (existsByPath || fileExists(file.getFileId())) {
+            Long idByPath = knownIdsByPath.get(file.getRemotePath());
+            if (idByPath != null || knownIds.contains(file.getFileId())) {
+                if (idByPath != null) {
+                    file.setFileId(idByPath);
+                }
                 // updating an existing file
-                operations.add(ContentProviderOperation.newUpdate(ProviderMeta.ProviderTableMeta.CONTENT_URI).
-                        withValues(cv).
-                        withSelection(ProviderMeta.ProviderTableMeta._ID + "=?",
-                                new String[]{String.valueOf(file.getFileId())})
-                        .build());
+                cv.put(ProviderMeta.ProviderTableMeta._ID, file.getFileId());
 
             } else {
-                // adding a new file
-                setInitialAvailableOfflineStatus(file, cv);
-                operations.add(ContentProviderOperation.newInsert(ProviderMeta.ProviderTableMeta.CONTENT_URI).
-                        withValues(cv).build());
+                // adding a new file; all of them share the same ancestors, check them only once
+                if (inFolderAvailableOffline == null) {
+                    inFolderAvailableOffline =
+                        folder.getAvailableOfflineStatus() == OCFile.AvailableOfflineStatus.AVAILABLE_OFFLINE ||
+                        isAnyAncestorAvailableOfflineFolder(folder);
+                }
+                cv.put(
+                    ProviderMeta.ProviderTableMeta.FILE_KEEP_IN_SYNC,
+                    inFolderAvailableOffline ?
+                        OCFile.AvailableOfflineStatus.AVAILABLE_OFFLINE_PARENT.getValue() :
+                        OCFile.AvailableOfflineStatus.NOT_AVAILABLE_OFFLINE.getValue()
+                );
             }
+            filesToMerge.add(cv);
         }
+        return filesToMerge;
+    }
 
-        // prepare operations to remove files in the given folder
+    /**
+     * Adds to operations the removal of the given children of a folder; removes their local copies too.
+     */
+    private void prepareRemovals(
+            OCFile folder, Collection<OCFile> filesToRemove, ArrayList<ContentProviderOperation> operations
+    ) {
         String where = ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?" + " AND " +
                 ProviderMeta.ProviderTableMeta.FILE_PATH + "=?";
         String [] whereArgs = null;
@@ -366,8 +674,12 @@ public class FileDataStorageManager {
                 }
             }
         }
+    }
 
-        // update metadata of folder
+    /**
+     * @return  Operation updating the metadata of a folder.
+     */
+    private ContentProviderOperation prepareFolderUpdate(OCFile folder) {
         ContentValues cv = new ContentValues();
         cv.put(ProviderMeta.ProviderTableMeta.FILE_MODIFIED, folder.getModificationTimestamp());
         cv.put(
@@ -391,21 +703,24 @@ public class FileDataStorageManager {
         cv.put(ProviderMeta.ProviderTableMeta.FILE_REMOTE_ID, folder.getRemoteId());
         cv.put(ProviderMeta.ProviderTableMeta.FILE_PRIVATE_LINK, folder.getPrivateLink());
 
-        operations.add(ContentProviderOperation.newUpdate(ProviderMeta.ProviderTableMeta.CONTENT_URI).
+        return ContentProviderOperation.newUpdate(ProviderMeta.ProviderTableMeta.CONTENT_URI).
                 withValues(cv).
                 withSelection(ProviderMeta.ProviderTableMeta._ID + "=?",
                         new String[]{String.valueOf(folder.getFileId())})
-                .build());
+                .build();
+    }
 
-        // apply operations in batch
-        ContentProviderResult[] results = null;
+    private void applyBatch(ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
         Log_OC.d(TAG, "Sending " + operations.size() + " operations to FileContentProvider");
         try {
             if (getContentResolver() != null) {
-                results = getContentResolver().applyBatch(MainApp.getAuthority(), operations);
+                getContentResolver().applyBatch(MainApp.getAuthority(), operations);
 
             } else {
-                results = getContentProviderClient().applyBatch(operations);
+                getContentProviderClient().applyBatch(operations);
             }
 
         } catch (OperationApplicationException e) {
@@ -414,28 +729,169 @@ public class FileDataStorageManager {
         } catch (RemoteException e) {
             Log_OC.e(TAG, "Exception in batch of operations  " + e.getMessage());
         }
+    }
 
-        // update new id in file objects for insertions
-        if (results != null) {
-            long newId;
-            Iterator<OCFile> filesIt = updatedFiles.iterator();
-            OCFile file = null;
-            for (int i = 0; i < results.length; i++) {
-                if (filesIt.hasNext()) {
-                    file = filesIt.next();
-                } else {
-                    file = null;
-                }
-                if (results[i].uri != null) {
-                    newId = Long.parseLong(results[i].uri.getPathSegments().get(1));
-                    //updatedFiles.get(i).setFileId(newId);
-                    if (file != null) {
-                        file.setFileId(newId);
-                    }
+    /**
+     * Updates the ids of the files after inserting them with {@link #mergeFiles(ArrayList, ArrayList)}.
+     */
+    private void setMergedIds(Collection<OCFile> files, long[] mergedIds) {
+        if (mergedIds != null) {
+            Iterator<OCFile> filesIt = files.iterator();
+            for (int i = 0; i < mergedIds.length && filesIt.hasNext(); i++) {
+                filesIt.next().setFileId(mergedIds[i]);
+            }
+        }
+    }
+
+    /**
+     * Inserts or updates rows of the files table in a single call to the FileContentProvider,
+     * see {@link ProviderMeta.ProviderTableMeta#METHOD_MERGE_FILES}.
+     *
+     * @param filesToMerge  Values of the files to insert or update; ids of existing files, when
+     *                      known, in {@link ProviderMeta.ProviderTableMeta#_ID}.
+     * @param operations    Operations to apply after the merge, in the same transaction; may be null.
+     * @return              Ids of the files in the database, in the same order as filesToMerge;
+     *                      null if the call failed.
+     */
+    private long[] mergeFiles(ArrayList<ContentValues> filesToMerge,
+                              ArrayList<ContentProviderOperation> operations) {
+        if (filesToMerge.isEmpty() && (operations == null || operations.isEmpty())) {
+            return new long[0];
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(ProviderMeta.ProviderTableMeta.MERGE_FILES_EXTRA_VALUES, filesToMerge);
+        if (operations != null) {
+            extras.putParcelableArrayList(ProviderMeta.ProviderTableMeta.MERGE_FILES_EXTRA_OPERATIONS, operations);
+        }
+        Bundle result = null;
+        Log_OC.d(TAG, "Merging " + filesToMerge.size() + " files in FileContentProvider");
+        try {
+            if (getContentResolver() != null) {
+                result = getContentResolver().call(
+                    ProviderMeta.ProviderTableMeta.CONTENT_URI,
+                    ProviderMeta.ProviderTableMeta.METHOD_MERGE_FILES,
+                    null,
+                    extras
+                );
+            } else {
+                result = getContentProviderClient().call(
+                    ProviderMeta.ProviderTableMeta.METHOD_MERGE_FILES,
+                    null,
+                    extras
+                );
+            }
+        } catch (RemoteException e) {
+            Log_OC.e(TAG, "Exception merging files " + e.getMessage());
+
+        } catch (IllegalStateException e) {
+            // operations after the merge failed; nothing was committed
+            Log_OC.e(TAG, "Exception in batch of operations " + e.getMessage());
+        }
+        return (result == null) ? null : result.getLongArray(ProviderMeta.ProviderTableMeta.MERGE_FILES_EXTRA_IDS);
+    }
+
+    /**
+     * Gets the ids of all the files known in the database as direct children of a folder,
+     * with a single query.
+     *
+     * @param folder    Folder which children will be retrieved.
+     * @return          Map of remote paths of the children to their ids in the database.
+     */
+    private Map<String, Long> getFileIdsInFolder(OCFile folder) {
+        Map<String, Long> ids = new HashMap<>();
+        if (folder == null || folder.getFileId() < 0) {
+            return ids;
+        }
+        Cursor c = queryFiles(
+            ProviderMeta.ProviderTableMeta.CONTENT_URI,
+            new String[]{ProviderMeta.ProviderTableMeta._ID, ProviderMeta.ProviderTableMeta.FILE_PATH},
+            ProviderMeta.ProviderTableMeta.FILE_PARENT + "=? AND " +
+                ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
+            new String[]{String.valueOf(folder.getFileId()), mAccount.name}
+        );
+        if (c != null) {
+            int idIndex = c.getColumnIndex(ProviderMeta.ProviderTableMeta._ID);
+            int pathIndex = c.getColumnIndex(ProviderMeta.ProviderTableMeta.FILE_PATH);
+            while (c.moveToNext()) {
+                ids.put(c.getString(pathIndex), c.getLong(idIndex));
+            }
+            c.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Checks in bulk which of the ids of the given files exist in the database, for files
+     * not already resolved by path, as renamed files.
+     *
+     * @param files             Files which ids will be checked.
+     * @param knownIdsByPath    Ids already resolved by remote path.
+     * @return                  Set of the ids that exist in the database.
+     */
+    private Set<Long> getExistingFileIds(Collection<OCFile> files, Map<String, Long> knownIdsByPath) {
+        Set<Long> existing = new HashSet<>(knownIdsByPath.values());
+        List<String> pending = new ArrayList<>();
+        for (OCFile file : files) {
+            if (file.getFileId() >= 0 &&
+                    !knownIdsByPath.containsKey(file.getRemotePath()) &&
+                    !existing.contains(file.getFileId())) {
+                pending.add(String.valueOf(file.getFileId()));
+            }
+        }
+
+        // SQLite limits the number of arguments in a statement; query in chunks
+        for (int start = 0; start < pending.size(); start += MAX_SELECTION_ARGS) {
+            List<String> chunk = pending.subList(start, Math.min(start + MAX_SELECTION_ARGS, pending.size()));
+            StringBuilder where = new StringBuilder(ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND ");
+            where.append(ProviderMeta.ProviderTableMeta._ID).append(" IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                where.append(i == 0 ? "?" : ",?");
+            }
+            where.append(")");
+            String[] whereArgs = new String[chunk.size() + 1];
+            whereArgs[0] = mAccount.name;
+            for (int i = 0; i < chunk.size(); i++) {
+                whereArgs[i + 1] = chunk.get(i);
+            }
+            Cursor c = queryFiles(
+                ProviderMeta.ProviderTableMeta.CONTENT_URI,
+                new String[]{ProviderMeta.ProviderTableMeta._ID},
+                where.toString(),
+                whereArgs
+            );
+            if (c != null) {
+                int idIndex = c.getColumnIndex(ProviderMeta.ProviderTableMeta._ID);
+                while (c.moveToNext()) {
+                    existing.add(c.getLong(idIndex));
                 }
+                c.close();
             }
         }
+        return existing;
+    }
 
+    /**
+     * Queries the files table through the available access to the provider.
+     *
+     * @return Cursor with the results, or null if the query failed.
+     */
+    private Cursor queryFiles(Uri uri, String[] projection, String selection, String[] selectionArgs) {
+        return queryFiles(uri, projection, selection, selectionArgs, null);
+    }
+
+    private Cursor queryFiles(
+            Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder
+    ) {
+        if (getContentResolver() != null) {
+            return getContentResolver().query(uri, projection, selection, selectionArgs, sortOrder);
+        } else {
+            try {
+                return getContentProviderClient().query(uri, projection, selection, selectionArgs, sortOrder);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Could not query files: " + e.getMessage());
+                return null;
+            }
+        }
     }
 
     /**
@@ -1042,7 +1498,7 @@ public class FileDataStorageManager {
     }
 
 
-    private OCFile createFileInstance(Cursor c) {
+    OCFile createFileInstance(Cursor c) {
         OCFile file = null;
         if (c != null) {
             file = new OCFile(c.getString(c
@@ -0,0 +1,204 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.datamodel;
+
+import android.database.Cursor;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import org.elastos.android.db.ProviderMeta;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only view of the content of a folder, sorted by the database, that creates the {@link OCFile}s
+ * only when they are requested.
+ *
+ * The rows stay in the cursor; only the last files requested are kept as {@link OCFile}s, so the memory
+ * used depends on the number of files shown, not on the number of files in the folder.
+ *
+ * Not thread safe; accesses after the creation must not be concurrent, usually they are done in the main
+ * thread, where reading far from the last rows read may run the query again, see {@link #get(int)}. Must be
+ * closed when not needed anymore.
+ */
+public class FolderContentWindow extends AbstractList<OCFile> implements RandomAccess {
+
+    /**
+     * Number of files kept by default; enough for a screen of rows in a grid, and the rows around it.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 128;
+
+    private final FileDataStorageManager mStorageManager;
+    private final Cursor mCursor;
+    private final int mCount;
+    private final LruCache<Integer, OCFile> mFiles;
+
+    /**
+     * Files replaced with {@link #set(int, OCFile)}; not evicted, they are not in the cursor.
+     */
+    private final SparseArray<OCFile> mReplacedFiles = new SparseArray<>();
+
+    private int mFoldersCount = -1;
+    private int mHiddenFilesCount = -1;
+
+
+    /**
+     * @param storageManager    Creates the {@link OCFile}s from the rows.
+     * @param cursor            Rows of the files, in the order of the list; NULL means no files. The window
+     *                          takes care of closing it.
+     * @param cacheSize         Number of {@link OCFile}s kept.
+     */
+    FolderContentWindow(FileDataStorageManager storageManager, Cursor cursor, int cacheSize) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("NULL storage manager argument received");
+        mStorageManager = storageManager;
+        mCursor = cursor;
+        // counting the rows runs the query; done here, in the thread creating the window
+        mCount = (cursor != null) ? cursor.getCount() : 0;
+        mFiles = new LruCache<>(cacheSize);
+    }
+
+
+    @Override
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Creates the file in a position from its row, if not kept.
+     *
+     * The cursor holds a window of rows, about 2 MB, filled when the window is created. Moving past it
+     * makes the cursor run the query again, in the calling thread, to fill the next window; when the list
+     * is scrolled in the main thread, that happens there, once every few thousands of rows. The files kept
+     * avoid it when scrolling back and forth around the same positions.
+     */
+    @Override
+    public OCFile get(int position) {
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException("Position " + position + " out of a window of " + mCount);
+        }
+        OCFile file = mReplacedFiles.get(position);
+        if (file == null) {
+            file = mFiles.get(position);
+        }
+        if (file == null) {
+            mCursor.moveToPosition(position);
+            file = mStorageManager.createFileInstance(mCursor);
+            mFiles.put(position, file);
+        }
+        return file;
+    }
+
+    /**
+     * Replaces the file in a position, for instance with a version updated after the window was
+     * created. The order of the window is not changed.
+     */
+    @Override
+    public OCFile set(int position, OCFile file) {
+        OCFile previous = get(position);
+        mReplacedFiles.put(position, file);
+        mFiles.remove(position);
+        return previous;
+    }
+
+    /**
+     * Finds the position of a file reading only the ids in the cursor, without creating any {@link OCFile}.
+     */
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof OCFile) || mCount == 0) {
+            return -1;
+        }
+        long fileId = ((OCFile) o).getFileId();
+        int idColumn = mCursor.getColumnIndex(ProviderMeta.ProviderTableMeta._ID);
+        for (int position = 0; mCursor.moveToPosition(position); position++) {
+            if (mCursor.getLong(idColumn) == fileId) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        // ids are unique
+        return indexOf(o);
+    }
+
+    /**
+     * @return  Number of folders in the window.
+     */
+    public int getFoldersCount() {
+        countEntries();
+        return mFoldersCount;
+    }
+
+    /**
+     * @return  Number of files in the window that are not folders, and are not hidden.
+     */
+    public int getFilesCount() {
+        countEntries();
+        return mCount - mFoldersCount - mHiddenFilesCount;
+    }
+
+    /**
+     * Closes the cursor; the window can't be used anymore.
+     */
+    public void close() {
+        if (mCursor != null) {
+            mCursor.close();
+        }
+        mFiles.evictAll();
+        mReplacedFiles.clear();
+    }
+
+    public boolean isClosed() {
+        return mCursor == null || mCursor.isClosed();
+    }
+
+
+    /**
+     * Counts folders and hidden files reading only their columns in the cursor; done once.
+     */
+    private void countEntries() {
+        if (mFoldersCount >= 0) {
+            return;
+        }
+        int folders = 0;
+        int hiddenFiles = 0;
+        if (mCount > 0) {
+            int typeColumn = mCursor.getColumnIndex(ProviderMeta.ProviderTableMeta.FILE_CONTENT_TYPE);
+            int nameColumn = mCursor.getColumnIndex(ProviderMeta.ProviderTableMeta.FILE_NAME);
+            for (int position = 0; mCursor.moveToPosition(position); position++) {
+                if (FileDataStorageManager.FOLDER_MIME_TYPE.equals(mCursor.getString(typeColumn))) {
+                    folders++;
+                } else {
+                    String name = mCursor.getString(nameColumn);
+                    if (name != null && name.startsWith(".")) {
+                        hiddenFiles++;
+                    }
+                }
+            }
+        }
+        mFoldersCount = folders;
+        mHiddenFilesCount = hiddenFiles;
+    }
+}
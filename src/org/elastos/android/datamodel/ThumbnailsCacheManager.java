@@ -32,7 +32,9 @@ import android.graphics.drawable.Drawable;
 import android.media.ThumbnailUtils;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
 import android.support.v4.content.ContextCompat;
+import android.util.LruCache;
 import android.view.MenuItem;
 import android.widget.ImageView;
 
@@ -52,6 +54,7 @@ import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 
@@ -65,10 +68,21 @@ public class ThumbnailsCacheManager {
     private static final String CACHE_FOLDER = "thumbnailCache";
 
     private static final Object mThumbnailsDiskCacheLock = new Object();
-    private static DiskLruImageCache mThumbnailCache = null;
+    private static volatile DiskLruImageCache mThumbnailCache = null;
     private static boolean mThumbnailCacheStarting = true;
     
     private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
+
+    // 1/8 of the heap available to the app, in KB
+    private static final int MEMORY_CACHE_SIZE = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+    private static final LruCache<String, Bitmap> mThumbnailsMemoryCache =
+            new LruCache<String, Bitmap>(MEMORY_CACHE_SIZE) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getByteCount() / 1024;
+                }
+            };
+
     private static final CompressFormat mCompressFormat = CompressFormat.JPEG;
     private static final int mCompressQuality = 70;
     private static OwnCloudClient mClient = null;
@@ -116,23 +130,47 @@ public class ThumbnailsCacheManager {
     
     
     public static void addBitmapToCache(String key, Bitmap bitmap) {
-        synchronized (mThumbnailsDiskCacheLock) {
-            if (mThumbnailCache != null) {
-                mThumbnailCache.put(key, bitmap);
-            }
+        mThumbnailsMemoryCache.put(key, bitmap);
+        // DiskLruImageCache is thread safe, no need to serialize accesses
+        DiskLruImageCache diskCache = mThumbnailCache;
+        if (diskCache != null) {
+            diskCache.put(key, bitmap);
         }
     }
 
     public static void removeBitmapFromCache(String key) {
-        synchronized (mThumbnailsDiskCacheLock) {
-            if (mThumbnailCache != null) {
-                mThumbnailCache.removeKey(key);
-            }
+        mThumbnailsMemoryCache.remove(key);
+        DiskLruImageCache diskCache = mThumbnailCache;
+        if (diskCache != null) {
+            diskCache.removeKey(key);
         }
     }
 
 
+    /**
+     * Gets a thumbnail from the memory cache, without accessing the disk. Fast enough to be
+     * called from the UI thread before starting a {@link ThumbnailGenerationTask}.
+     *
+     * @param key       Key of the thumbnail.
+     * @return          Cached thumbnail, or null if not in memory.
+     */
+    public static Bitmap getBitmapFromMemoryCache(String key) {
+        return mThumbnailsMemoryCache.get(key);
+    }
+
+
+    /**
+     * Gets a thumbnail from the memory cache or, if not there, from the disk cache. Thumbnails
+     * found in disk are kept in memory for the next request.
+     *
+     * @param key       Key of the thumbnail.
+     * @return          Cached thumbnail, or null if not cached.
+     */
     public static Bitmap getBitmapFromDiskCache(String key) {
+        Bitmap bitmap = mThumbnailsMemoryCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
         synchronized (mThumbnailsDiskCacheLock) {
             // Wait while disk cache is started from background thread
             while (mThumbnailCacheStarting) {
@@ -142,11 +180,41 @@ public class ThumbnailsCacheManager {
                     Log_OC.e(TAG, "Wait in mThumbnailsDiskCacheLock was interrupted", e);
                 }
             }
-            if (mThumbnailCache != null) {
-                return mThumbnailCache.getBitmap(key);
-            }
         }
-        return null;
+        // read and decode out of the lock
+        DiskLruImageCache diskCache = mThumbnailCache;
+        if (diskCache != null) {
+            bitmap = diskCache.getBitmap(key);
+        }
+        if (bitmap != null) {
+            mThumbnailsMemoryCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * @return      Number of lookups served from the memory cache since the app started.
+     */
+    public static int getMemoryCacheHitCount() {
+        return mThumbnailsMemoryCache.hitCount();
+    }
+
+
+    /**
+     * @return      Number of lookups not found in the memory cache since the app started.
+     */
+    public static int getMemoryCacheMissCount() {
+        return mThumbnailsMemoryCache.missCount();
+    }
+
+
+    /**
+     * Logs the hit ratio of the memory cache; handy to measure scrolling through big folders.
+     */
+    public static void logMemoryCacheStats() {
+        Log_OC.d(TAG, "Thumbnails memory cache: " + mThumbnailsMemoryCache.toString() +
+                ", size " + mThumbnailsMemoryCache.size() + "KB of " + mThumbnailsMemoryCache.maxSize() + "KB");
     }
 
     public static class ThumbnailGenerationTask extends AsyncTask<Object, Void, Bitmap> {
@@ -191,6 +259,8 @@ public class ThumbnailsCacheManager {
                     thumbnail = doOCFileInBackground();
                 }  else if (mFile instanceof File) {
                     thumbnail = doFileInBackground();
+                }  else if (mFile instanceof Uri) {
+                    thumbnail = doUriInBackground();
                 //} else {  do nothing
                 }
 
@@ -213,7 +283,7 @@ public class ThumbnailsCacheManager {
                     String tagId = "";
                     if (mFile instanceof OCFile){
                         tagId = String.valueOf(((OCFile)mFile).getFileId());
-                    } else if (mFile instanceof File){
+                    } else if (mFile instanceof File || mFile instanceof Uri){
                         tagId = String.valueOf(mFile.hashCode());
                     }
                     if (String.valueOf(imageView.getTag()).equals(tagId)) {
@@ -231,7 +301,7 @@ public class ThumbnailsCacheManager {
          * @param px:       thumbnail dp
          * @return Bitmap
          */
-        private Bitmap addThumbnailToCache(String imageKey, Bitmap bitmap, String path, int px){
+        private static Bitmap addThumbnailToCache(String imageKey, Bitmap bitmap, String path, int px){
 
             Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, px, px);
 
@@ -248,15 +318,30 @@ public class ThumbnailsCacheManager {
          * Converts size of file icon from dp to pixel
          * @return int
          */
-        private int getThumbnailDimension(){
+        private static int getThumbnailDimension(){
             // Converts dp to pixel
             Resources r = MainApp.getAppContext().getResources();
             return Math.round(r.getDimension(R.dimen.file_icon_size_grid));
         }
 
         private Bitmap doOCFileInBackground() {
-            OCFile file = (OCFile)mFile;
+            return generateThumbnail((OCFile) mFile, mStorageManager, mAccount, mClient);
+        }
 
+        /**
+         * Gets the thumbnail of a file from the cache or, if not cached or outdated, generates it
+         * from the local copy of the file or downloads it from the server.
+         *
+         * Must be called out of the UI thread.
+         *
+         * @param file              File to get the thumbnail for.
+         * @param storageManager    Storage manager where the file is saved when its thumbnail is updated.
+         * @param account           Account the file belongs to.
+         * @param client            Client to download the thumbnail from the server; can be NULL.
+         * @return                  Thumbnail of the file, or NULL if could not be got.
+         */
+        static Bitmap generateThumbnail(OCFile file, FileDataStorageManager storageManager,
+                                        Account account, OwnCloudClient client) {
             final String imageKey = String.valueOf(file.getRemoteId());
 
             // Check disk cache in background thread
@@ -281,22 +366,22 @@ public class ThumbnailsCacheManager {
                         thumbnail = addThumbnailToCache(imageKey, bitmap, file.getStoragePath(), px);
 
                         file.setNeedsUpdateThumbnail(false);
-                        mStorageManager.saveFile(file);
+                        storageManager.saveFile(file);
                     }
 
                 } else {
                     // Download thumbnail from server
-                    OwnCloudVersion serverOCVersion = AccountUtils.getServerVersion(mAccount);
-                    if (mClient != null && serverOCVersion != null) {
+                    OwnCloudVersion serverOCVersion = AccountUtils.getServerVersion(account);
+                    if (client != null && serverOCVersion != null) {
                         if (serverOCVersion.supportsRemoteThumbnails()) {
                             GetMethod get = null;
                             try {
-                                String uri = mClient.getBaseUri() + "" +
+                                String uri = client.getBaseUri() + "" +
                                         "/index.php/apps/files/api/v1/thumbnail/" +
                                         px + "/" + px + Uri.encode(file.getRemotePath(), "/");
                                 Log_OC.d("Thumbnail", "URI: " + uri);
                                 get = new GetMethod(uri);
-                                int status = mClient.executeMethod(get);
+                                int status = client.executeMethod(get);
                                 if (status == HttpStatus.SC_OK) {
                                     InputStream inputStream = get.getResponseBodyAsStream();
                                     Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
@@ -312,7 +397,7 @@ public class ThumbnailsCacheManager {
                                         addBitmapToCache(imageKey, thumbnail);
                                     }
                                 } else {
-                                    mClient.exhaustResponse(get.getResponseBodyAsStream());
+                                    client.exhaustResponse(get.getResponseBodyAsStream());
                                 }
                             } catch (Exception e) {
                                 e.printStackTrace();
@@ -332,7 +417,7 @@ public class ThumbnailsCacheManager {
 
         }
 
-        private Bitmap handlePNG(Bitmap bitmap, int px){
+        private static Bitmap handlePNG(Bitmap bitmap, int px){
             Bitmap resultBitmap = Bitmap.createBitmap(px,
                     px,
                     Bitmap.Config.ARGB_8888);
@@ -367,6 +452,50 @@ public class ThumbnailsCacheManager {
             return thumbnail;
         }
 
+        /**
+         * Generates the thumbnail of a content:// URI, as the shared contents uploaded without a
+         * local copy. EXIF orientation is not obeyed, there is no path to read it from.
+         */
+        private Bitmap doUriInBackground() {
+            Uri uri = (Uri) mFile;
+
+            final String imageKey = String.valueOf(uri.hashCode());
+
+            // Check disk cache in background thread
+            Bitmap thumbnail = getBitmapFromDiskCache(imageKey);
+
+            // Not found in disk cache
+            if (thumbnail == null) {
+                int px = getThumbnailDimension();
+
+                ParcelFileDescriptor descriptor = null;
+                try {
+                    descriptor = MainApp.getAppContext().getContentResolver().openFileDescriptor(uri, "r");
+                    if (descriptor != null) {
+                        Bitmap bitmap = BitmapUtils.decodeSampledBitmapFromDescriptor(
+                                descriptor.getFileDescriptor(), px, px);
+                        if (bitmap != null) {
+                            thumbnail = ThumbnailUtils.extractThumbnail(bitmap, px, px);
+                            addBitmapToCache(imageKey, thumbnail);
+                        }
+                    }
+
+                } catch (IOException | SecurityException e) {
+                    Log_OC.d(TAG, "Could not read " + uri + " for thumbnail: " + e.getMessage());
+
+                } finally {
+                    if (descriptor != null) {
+                        try {
+                            descriptor.close();
+                        } catch (IOException e) {
+                            // nothing to do
+                        }
+                    }
+                }
+            }
+            return thumbnail;
+        }
+
     }
 
     /**
@@ -0,0 +1,255 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.datamodel;
+
+import android.accounts.Account;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.widget.ImageView;
+
+import org.elastos.android.MainApp;
+import com.owncloud.android.lib.common.OwnCloudAccount;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads thumbnails of remote files into {@link ImageView}s with a small, fixed pool of worker threads.
+ *
+ * Pending requests are served in LIFO order, so the rows that became visible last are loaded first
+ * while the user scrolls. A request is dropped when all the views waiting for it are recycled to
+ * show a different file, and requests for a thumbnail already pending are merged into a single one.
+ *
+ * Methods {@link #load(OCFile, ImageView, FileDataStorageManager, Account)} and {@link #cancel(ImageView)}
+ * must be called from the UI thread.
+ */
+public class ThumbnailsLoader {
+
+    private static final String TAG = ThumbnailsLoader.class.getSimpleName();
+
+    private static final int WORKER_THREADS = 3;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(
+        WORKER_THREADS,
+        WORKER_THREADS,
+        KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS,
+        new LifoBlockingDeque<Runnable>(),
+        new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ThumbnailsLoader-" + mCount.getAndIncrement());
+            }
+        }
+    );
+
+    static {
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Pending requests, by thumbnail key. Accessed only from the UI thread.
+     */
+    private static final Map<String, Request> mRequests = new HashMap<>();
+
+    /**
+     * Request every view is waiting for. Accessed only from the UI thread.
+     */
+    private static final Map<ImageView, Request> mViews = new WeakHashMap<>();
+
+
+    /**
+     * Requests the thumbnail of a file to be shown in an {@link ImageView}. The current content of the
+     * view is kept until the thumbnail is ready.
+     *
+     * If the view was waiting for a thumbnail of a different file, that wait is cancelled.
+     *
+     * @param file              File to show the thumbnail of.
+     * @param imageView         View where the thumbnail will be shown.
+     * @param storageManager    Storage manager where the file is saved when its thumbnail is updated.
+     * @param account           Account the file belongs to.
+     */
+    public static void load(OCFile file, ImageView imageView, FileDataStorageManager storageManager,
+                            Account account) {
+        String key = String.valueOf(file.getRemoteId());
+
+        Request previous = mViews.get(imageView);
+        if (previous != null) {
+            if (previous.mKey.equals(key)) {
+                // the same work is already in progress
+                return;
+            }
+            detach(imageView, previous);
+        }
+
+        Request request = mRequests.get(key);
+        if (request == null) {
+            request = new Request(key, file, storageManager, account);
+            mRequests.put(key, request);
+            mExecutor.execute(request);
+
+        } else if (mExecutor.remove(request)) {
+            // still waiting; visible again, so move it to the head of the queue
+            Log_OC.v(TAG, "Merged request for thumbnail " + key);
+            mExecutor.execute(request);
+        }
+        request.mTargets.add(imageView);
+        mViews.put(imageView, request);
+    }
+
+
+    /**
+     * Stops waiting for any thumbnail to show in the view, usually because it was recycled
+     * to show something else.
+     *
+     * @param imageView         View that will not show the requested thumbnail.
+     */
+    public static void cancel(ImageView imageView) {
+        Request request = mViews.get(imageView);
+        if (request != null) {
+            detach(imageView, request);
+        }
+    }
+
+
+    private static void detach(ImageView imageView, Request request) {
+        mViews.remove(imageView);
+        request.mTargets.remove(imageView);
+        if (request.mTargets.isEmpty()) {
+            // nobody else waiting for it
+            request.mCancelled = true;
+            mExecutor.remove(request);
+            mRequests.remove(request.mKey);
+            Log_OC.v(TAG, "Cancelled request for thumbnail " + request.mKey);
+        }
+    }
+
+
+    /**
+     * Called in the UI thread when a request is done.
+     */
+    private static void deliver(Request request, Bitmap thumbnail) {
+        if (mRequests.get(request.mKey) == request) {
+            mRequests.remove(request.mKey);
+        }
+        for (ImageView target : request.mTargets) {
+            if (mViews.get(target) == request) {
+                mViews.remove(target);
+                if (thumbnail != null) {
+                    target.setImageBitmap(thumbnail);
+                }
+            }
+        }
+        request.mTargets.clear();
+    }
+
+
+    private static class Request implements Runnable {
+
+        private final String mKey;
+        private final OCFile mFile;
+        private final FileDataStorageManager mStorageManager;
+        private final Account mAccount;
+
+        /**
+         * Views waiting for the thumbnail. Accessed only from the UI thread.
+         */
+        private final List<ImageView> mTargets = new ArrayList<>();
+
+        private volatile boolean mCancelled = false;
+
+        Request(String key, OCFile file, FileDataStorageManager storageManager, Account account) {
+            mKey = key;
+            mFile = file;
+            mStorageManager = storageManager;
+            mAccount = account;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            Bitmap thumbnail = null;
+            try {
+                OwnCloudClient client = null;
+                if (mAccount != null) {
+                    OwnCloudAccount ocAccount = new OwnCloudAccount(mAccount, MainApp.getAppContext());
+                    client = OwnCloudClientManagerFactory.getDefaultSingleton().
+                        getClientFor(ocAccount, MainApp.getAppContext());
+                }
+                thumbnail = ThumbnailsCacheManager.ThumbnailGenerationTask.generateThumbnail(
+                    mFile,
+                    mStorageManager,
+                    mAccount,
+                    client
+                );
+
+            } catch (Throwable t) {
+                // the app should never break due to a problem with thumbnails
+                Log_OC.e(TAG, "Generation of thumbnail for " + mFile.getRemotePath() + " failed", t);
+                if (t instanceof OutOfMemoryError) {
+                    System.gc();
+                }
+            }
+
+            final Bitmap result = thumbnail;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(Request.this, result);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Queue handing out the most recently added element first.
+     */
+    private static class LifoBlockingDeque<E> extends LinkedBlockingDeque<E> {
+
+        @Override
+        public boolean offer(E e) {
+            return offerFirst(e);
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.text.TextUtils;
 
 import org.elastos.android.db.OCUpload;
 import org.elastos.android.db.UploadResult;
@@ -34,9 +35,12 @@ import com.owncloud.android.lib.common.utils.Log_OC;
 import org.elastos.android.operations.UploadFileOperation;
 
 import org.elastos.android.db.ProviderMeta;
+import org.elastos.android.utils.UriUtils;
 
 import java.util.Calendar;
+import java.util.HashSet;
 import java.util.Observable;
+import java.util.Set;
 
 /**
  * Database helper for storing list of files to be uploaded, including status
@@ -164,6 +168,78 @@ public class UploadsStorageManager extends Observable {
         return result;
     }
 
+    /**
+     * Saves the state of the chunked transfer of an upload, so that it can be resumed if interrupted.
+     *
+     * Observers are not notified, since the state is updated with every chunk sent and doesn't change
+     * anything visible.
+     *
+     * @param uploadId              Identifier of the upload.
+     * @param transferId            Identifier of the transfer in the server; null to forget the transfer.
+     * @param chunkSize             Size of the chunks the file is split in.
+     * @param acknowledgedChunks    Indexes of the chunks already received by the server; can be null when
+     *                              'transferId' is null.
+     * @param sourceLastModified    Last modification time of the local file when the transfer started.
+     * @return num of updated uploads.
+     */
+    public int updateChunkedTransfer(long uploadId, String transferId, long chunkSize,
+                                     Set<Integer> acknowledgedChunks, long sourceLastModified) {
+        ContentValues cv = new ContentValues();
+        if (transferId == null) {
+            cv.putNull(ProviderMeta.ProviderTableMeta.UPLOADS_TRANSFER_ID);
+            cv.put(ProviderMeta.ProviderTableMeta.UPLOADS_CHUNK_SIZE, 0);
+            cv.putNull(ProviderMeta.ProviderTableMeta.UPLOADS_ACKNOWLEDGED_CHUNKS);
+            cv.put(ProviderMeta.ProviderTableMeta.UPLOADS_SOURCE_LAST_MODIFIED, 0);
+        } else {
+            cv.put(ProviderMeta.ProviderTableMeta.UPLOADS_TRANSFER_ID, transferId);
+            cv.put(ProviderMeta.ProviderTableMeta.UPLOADS_CHUNK_SIZE, chunkSize);
+            cv.put(ProviderMeta.ProviderTableMeta.UPLOADS_ACKNOWLEDGED_CHUNKS, encodeChunks(acknowledgedChunks));
+            cv.put(ProviderMeta.ProviderTableMeta.UPLOADS_SOURCE_LAST_MODIFIED, sourceLastModified);
+        }
+
+        return getDB().update(ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
+                cv,
+                ProviderMeta.ProviderTableMeta._ID + "=?",
+                new String[]{String.valueOf(uploadId)}
+        );
+    }
+
+    /**
+     * Saves the content of a file uploaded, so that later uploads of the same content can reuse it.
+     *
+     * @param uploadId      Identifier of the upload.
+     * @param contentHash   SHA-256 of the content uploaded, in hexadecimal; NULL if it was not computed.
+     * @param contentLength Length of the content uploaded, checked by {@link #hasUploadOfLength(String, long)}.
+     * @param remoteEtag    ETag the server assigned to the file uploaded.
+     * @return num of updated uploads.
+     */
+    public int updateUploadedContent(long uploadId, String contentHash, long contentLength, String remoteEtag) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderMeta.ProviderTableMeta.UPLOADS_CONTENT_HASH, contentHash);
+        cv.put(ProviderMeta.ProviderTableMeta.UPLOADS_FILE_SIZE, contentLength);
+        cv.put(ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_ETAG, remoteEtag);
+
+        return getDB().update(ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
+                cv,
+                ProviderMeta.ProviderTableMeta._ID + "=?",
+                new String[]{String.valueOf(uploadId)}
+        );
+    }
+
+    private static String encodeChunks(Set<Integer> chunks) {
+        return TextUtils.join(",", chunks);
+    }
+
+    private static Set<Integer> decodeChunks(String encodedChunks) {
+        Set<Integer> chunks = new HashSet<>();
+        if (encodedChunks != null && encodedChunks.length() > 0) {
+            for (String chunk : encodedChunks.split(",")) {
+                chunks.add(Integer.valueOf(chunk));
+            }
+        }
+        return chunks;
+    }
+
     private int updateUploadInternal(Cursor c, UploadStatus status, UploadResult result, String remotePath,
                                      String localPath) {
 
@@ -253,6 +329,12 @@ public class UploadsStorageManager extends Observable {
                 ProviderMeta.ProviderTableMeta._ID + "=?",
                 new String[]{Long.toString(upload.getUploadId())}
         );
+        if (result > 0 && upload.getLocalPath() != null &&
+                upload.getLocalPath().startsWith(UriUtils.URI_CONTENT_SCHEME)) {
+            Set<String> contentUris = new HashSet<>();
+            contentUris.add(upload.getLocalPath());
+            releaseContentUris(contentUris);
+        }
         Log_OC.d(TAG, "delete returns " + result + " for upload " + upload);
         if (result > 0) {
             notifyObserversNow();
@@ -269,11 +351,16 @@ public class UploadsStorageManager extends Observable {
      * @return true when one or more upload entries were removed
      */
     public int removeUpload(String accountName, String remotePath) {
+        Set<String> contentUris = getContentUris(
+                ProviderMeta.ProviderTableMeta.UPLOADS_ACCOUNT_NAME + "=? AND " + ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_PATH + "=?",
+                new String[]{accountName, remotePath}
+        );
         int result = getDB().delete(
                 ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
                 ProviderMeta.ProviderTableMeta.UPLOADS_ACCOUNT_NAME + "=? AND " + ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_PATH + "=?",
                 new String[]{accountName, remotePath}
         );
+        releaseContentUris(contentUris);
         Log_OC.d(TAG, "delete returns " + result + " for file " + remotePath + " in " + accountName);
         if (result > 0) {
             notifyObserversNow();
@@ -289,11 +376,16 @@ public class UploadsStorageManager extends Observable {
      * @return true when one or more upload entries were removed
      */
     public int removeUploads(String accountName) {
+        Set<String> contentUris = getContentUris(
+                ProviderMeta.ProviderTableMeta.UPLOADS_ACCOUNT_NAME + "=?",
+                new String[]{accountName}
+        );
         int result = getDB().delete(
                 ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
                 ProviderMeta.ProviderTableMeta.UPLOADS_ACCOUNT_NAME + "=?",
                 new String[]{accountName}
         );
+        releaseContentUris(contentUris);
         Log_OC.d(TAG, "delete returns " + result + " for uploads in " + accountName);
         if (result > 0) {
             notifyObserversNow();
@@ -305,6 +397,71 @@ public class UploadsStorageManager extends Observable {
         return getUploads(null, null, null);
     }
 
+    /**
+     * @param id    Identifier of an upload.
+     * @return      Upload stored with the given id, or null if none.
+     */
+    public OCUpload getUploadById(long id) {
+        OCUpload[] uploads = getUploads(
+                ProviderMeta.ProviderTableMeta._ID + "=?",
+                new String[]{String.valueOf(id)},
+                null
+        );
+        return (uploads.length > 0 ? uploads[0] : null);
+    }
+
+    /**
+     * Gets the successful uploads of a given content, most recent first.
+     *
+     * @param accountName   Name of the account the content was uploaded to.
+     * @param contentHash   SHA-256 of the content, in hexadecimal.
+     * @return              Uploads of the content; the files uploaded could have changed in the server since.
+     */
+    public OCUpload[] getUploadsOfContent(String accountName, String contentHash) {
+        return getUploads(
+                ProviderMeta.ProviderTableMeta.UPLOADS_ACCOUNT_NAME + "== ? AND " +
+                        ProviderMeta.ProviderTableMeta.UPLOADS_CONTENT_HASH + "== ? AND " +
+                        ProviderMeta.ProviderTableMeta.UPLOADS_STATUS + "== ?",
+                new String[]{
+                        accountName,
+                        contentHash,
+                        String.valueOf(UploadStatus.UPLOAD_SUCCEEDED.value)
+                },
+                ProviderMeta.ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP + " desc"
+        );
+    }
+
+    /**
+     * Checks if any content of a given length was uploaded to an account; a cheap check before reading
+     * a whole content to hash it.
+     *
+     * Uploads without a content hash count too, as uploads of older versions of the app may have none.
+     *
+     * @param accountName   Name of the account the content would have been uploaded to.
+     * @param length        Length of the content, in bytes.
+     * @return              'true' if a successful upload has the same length.
+     */
+    public boolean hasUploadOfLength(String accountName, long length) {
+        Cursor c = getDB().query(
+                ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
+                new String[]{ProviderMeta.ProviderTableMeta._ID},
+                ProviderMeta.ProviderTableMeta.UPLOADS_ACCOUNT_NAME + "== ? AND " +
+                        ProviderMeta.ProviderTableMeta.UPLOADS_FILE_SIZE + "== ? AND " +
+                        ProviderMeta.ProviderTableMeta.UPLOADS_STATUS + "== ?",
+                new String[]{
+                        accountName,
+                        String.valueOf(length),
+                        String.valueOf(UploadStatus.UPLOAD_SUCCEEDED.value)
+                },
+                null
+        );
+        boolean found = (c != null && c.getCount() > 0);
+        if (c != null) {
+            c.close();
+        }
+        return found;
+    }
+
     public OCUpload getLastUploadFor(OCFile file, String accountName) {
         OCUpload[] uploads = getUploads(
                 ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_PATH + "== ? AND " +
@@ -318,6 +475,25 @@ public class UploadsStorageManager extends Observable {
         return (uploads.length > 0 ? uploads[0] : null);
     }
 
+    /**
+     * Checks if the upload of a local file to an account was already requested, whatever its result.
+     *
+     * @param accountName   Name of the OC account target of the upload.
+     * @param localPath     Path to the local file.
+     * @return              'true' if the uploads list has an upload of the file to the account.
+     */
+    public boolean isUploadRequested(String accountName, String localPath) {
+        return getUploads(
+                ProviderMeta.ProviderTableMeta.UPLOADS_ACCOUNT_NAME + "== ? AND " +
+                        ProviderMeta.ProviderTableMeta.UPLOADS_LOCAL_PATH + "== ?",
+                new String[]{
+                        accountName,
+                        localPath
+                },
+                null
+        ).length > 0;
+    }
+
     private OCUpload[] getUploads(String selection, String[] selectionArgs, String sortOrder) {
         Cursor c = getDB().query(
                 ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
@@ -365,6 +541,20 @@ public class UploadsStorageManager extends Observable {
             upload.setLastResult(UploadResult.fromValue(
                     c.getInt(c.getColumnIndex(ProviderMeta.ProviderTableMeta.UPLOADS_LAST_RESULT))));
             upload.setCreatedBy(c.getInt(c.getColumnIndex(ProviderMeta.ProviderTableMeta.UPLOADS_CREATED_BY)));
+            String transferId = c.getString(c.getColumnIndex(ProviderMeta.ProviderTableMeta.UPLOADS_TRANSFER_ID));
+            if (transferId != null) {
+                upload.setChunkedTransfer(
+                        transferId,
+                        c.getLong(c.getColumnIndex(ProviderMeta.ProviderTableMeta.UPLOADS_CHUNK_SIZE)),
+                        decodeChunks(c.getString(
+                                c.getColumnIndex(ProviderMeta.ProviderTableMeta.UPLOADS_ACKNOWLEDGED_CHUNKS))),
+                        c.getLong(c.getColumnIndex(ProviderMeta.ProviderTableMeta.UPLOADS_SOURCE_LAST_MODIFIED))
+                );
+            }
+            upload.setUploadedContent(
+                    c.getString(c.getColumnIndex(ProviderMeta.ProviderTableMeta.UPLOADS_CONTENT_HASH)),
+                    c.getString(c.getColumnIndex(ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_ETAG))
+            );
         }
         return upload;
     }
@@ -431,13 +621,63 @@ public class UploadsStorageManager extends Observable {
         return mContentResolver;
     }
 
+    /**
+     * Gets the content:// URIs read by the uploads matching a selection; called before removing them.
+     */
+    private Set<String> getContentUris(String selection, String[] selectionArgs) {
+        Set<String> contentUris = new HashSet<>();
+        Cursor c = getDB().query(
+                ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
+                new String[]{ProviderMeta.ProviderTableMeta.UPLOADS_LOCAL_PATH},
+                selection,
+                selectionArgs,
+                null
+        );
+        if (c != null) {
+            while (c.moveToNext()) {
+                String localPath = c.getString(0);
+                if (localPath != null && localPath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
+                    contentUris.add(localPath);
+                }
+            }
+            c.close();
+        }
+        return contentUris;
+    }
+
+    /**
+     * Gives up the persisted read permissions on content:// URIs of removed uploads, unless other
+     * uploads still read them; failed and cancelled uploads keep them while they can be retried.
+     */
+    private void releaseContentUris(Set<String> contentUris) {
+        for (String contentUri : contentUris) {
+            Cursor c = getDB().query(
+                    ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
+                    new String[]{ProviderMeta.ProviderTableMeta._ID},
+                    ProviderMeta.ProviderTableMeta.UPLOADS_LOCAL_PATH + "=?",
+                    new String[]{contentUri},
+                    null
+            );
+            boolean stillUsed = (c != null && c.getCount() > 0);
+            if (c != null) {
+                c.close();
+            }
+            if (!stillUsed) {
+                UriUtils.releaseReadAccess(Uri.parse(contentUri), getDB());
+            }
+        }
+    }
+
     public long clearFailedButNotDelayedForWifiUploads() {
+        String where = ProviderMeta.ProviderTableMeta.UPLOADS_STATUS + "==" + UploadStatus.UPLOAD_FAILED.value + " AND " +
+                ProviderMeta.ProviderTableMeta.UPLOADS_LAST_RESULT + "<>" + UploadResult.DELAYED_FOR_WIFI.getValue();
+        Set<String> contentUris = getContentUris(where, new String[0]);
         long result = getDB().delete(
                 ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
-                ProviderMeta.ProviderTableMeta.UPLOADS_STATUS + "==" + UploadStatus.UPLOAD_FAILED.value + " AND " +
-                        ProviderMeta.ProviderTableMeta.UPLOADS_LAST_RESULT + "<>" + UploadResult.DELAYED_FOR_WIFI.getValue(),
+                where,
                 null
         );
+        releaseContentUris(contentUris);
         Log_OC.d(TAG, "delete all failed uploads but those delayed for Wifi");
         if (result > 0) {
             notifyObserversNow();
@@ -461,12 +701,15 @@ public class UploadsStorageManager extends Observable {
         String[] whereArgs = new String[2];
         whereArgs[0] = String.valueOf(UploadStatus.UPLOAD_SUCCEEDED.value);
         whereArgs[1] = String.valueOf(UploadStatus.UPLOAD_FAILED.value);
+        String where = ProviderMeta.ProviderTableMeta.UPLOADS_STATUS + "=? OR " + ProviderMeta.ProviderTableMeta.UPLOADS_STATUS + "=? AND " +
+                ProviderMeta.ProviderTableMeta.UPLOADS_LAST_RESULT + "<>" + UploadResult.DELAYED_FOR_WIFI.getValue();
+        Set<String> contentUris = getContentUris(where, whereArgs);
         long result = getDB().delete(
                 ProviderMeta.ProviderTableMeta.CONTENT_URI_UPLOADS,
-                ProviderMeta.ProviderTableMeta.UPLOADS_STATUS + "=? OR " + ProviderMeta.ProviderTableMeta.UPLOADS_STATUS + "=? AND " +
-                        ProviderMeta.ProviderTableMeta.UPLOADS_LAST_RESULT + "<>" + UploadResult.DELAYED_FOR_WIFI.getValue(),
+                where,
                 whereArgs
         );
+        releaseContentUris(contentUris);
         Log_OC.d(TAG, "delete all finished uploads");
         if (result > 0) {
             notifyObserversNow();
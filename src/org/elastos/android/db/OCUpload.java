@@ -35,8 +35,11 @@ import org.elastos.android.files.services.FileUploader;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import org.elastos.android.operations.UploadFileOperation;
 import org.elastos.android.utils.MimetypeIconUtil;
+import org.elastos.android.utils.UriUtils;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Stores all information in order to start upload operations. PersistentUploadObject can
@@ -49,7 +52,7 @@ public class OCUpload implements Parcelable {
     private long mId;
 
     /**
-     * Absolute path in the local file system to the file to be uploaded
+     * Absolute path in the local file system to the file to be uploaded, or content:// URI to read it from
      */
     private String mLocalPath;
 
@@ -100,17 +103,51 @@ public class OCUpload implements Parcelable {
      */
     private long mUploadEndTimeStamp;
 
+    /**
+     * Identifier of the chunked transfer in progress in the server; null if none.
+     */
+    private String mTransferId;
+
+    /**
+     * Size of the chunks of the transfer in progress.
+     */
+    private long mChunkSize;
+
+    /**
+     * Indexes of the chunks of the transfer in progress already received by the server.
+     */
+    private Set<Integer> mAcknowledgedChunks;
+
+    /**
+     * Last modification time of the local file when the transfer in progress started, in milliseconds.
+     */
+    private long mSourceLastModified;
+
+    /**
+     * SHA-256 of the content uploaded, in hexadecimal; null until the upload succeeds.
+     */
+    private String mContentHash;
+
+    /**
+     * ETag the server assigned to the file uploaded; null until the upload succeeds.
+     */
+    private String mRemoteEtag;
+
 
     /**
      * Main constructor
      *
-     * @param localPath         Absolute path in the local file system to the file to be uploaded.
+     * @param localPath         Absolute path in the local file system to the file to be uploaded, or
+     *                          content:// URI to upload straight from.
      * @param remotePath        Absolute path in the remote account to set to the uploaded file.
      * @param accountName       Name of an ownCloud account to update the file to.
      */
     public OCUpload(String localPath, String remotePath, String accountName) {
-        if (localPath == null || !localPath.startsWith(File.separator)) {
-            throw new IllegalArgumentException("Local path must be an absolute path in the local file system");
+        if (localPath == null ||
+                !(localPath.startsWith(File.separator) || localPath.startsWith(UriUtils.URI_CONTENT_SCHEME))) {
+            throw new IllegalArgumentException(
+                "Local path must be an absolute path in the local file system, or a content:// URI"
+            );
         }
         if (remotePath == null || !remotePath.startsWith(OCFile.PATH_SEPARATOR)) {
             throw new IllegalArgumentException("Remote path must be an absolute path in the local file system");
@@ -151,6 +188,9 @@ public class OCUpload implements Parcelable {
         mUploadStatus = UploadStatus.UPLOAD_IN_PROGRESS;
         mLastResult = UploadResult.UNKNOWN;
         mCreatedBy = UploadFileOperation.CREATED_BY_USER;
+        resetChunkedTransfer();
+        mContentHash = null;
+        mRemoteEtag = null;
     }
 
     // Getters & Setters
@@ -309,6 +349,67 @@ public class OCUpload implements Parcelable {
         return mUploadEndTimeStamp;
     }
 
+    public String getTransferId() {
+        return mTransferId;
+    }
+
+    public long getChunkSize() {
+        return mChunkSize;
+    }
+
+    public Set<Integer> getAcknowledgedChunks() {
+        return mAcknowledgedChunks;
+    }
+
+    public long getSourceLastModified() {
+        return mSourceLastModified;
+    }
+
+    /**
+     * Sets the state of a chunked transfer in progress, so it can be resumed later.
+     *
+     * @param transferId            Identifier of the transfer in the server.
+     * @param chunkSize             Size of the chunks the file is split in.
+     * @param acknowledgedChunks    Indexes of the chunks already received by the server.
+     * @param sourceLastModified    Last modification time of the local file when the transfer started.
+     */
+    public void setChunkedTransfer(String transferId, long chunkSize, Set<Integer> acknowledgedChunks,
+                                   long sourceLastModified) {
+        mTransferId = transferId;
+        mChunkSize = chunkSize;
+        mAcknowledgedChunks = new HashSet<>(acknowledgedChunks);
+        mSourceLastModified = sourceLastModified;
+    }
+
+    /**
+     * Forgets any chunked transfer in progress; next attempt will upload the file from the start.
+     */
+    public void resetChunkedTransfer() {
+        mTransferId = null;
+        mChunkSize = 0;
+        mAcknowledgedChunks = new HashSet<>();
+        mSourceLastModified = 0;
+    }
+
+    public String getContentHash() {
+        return mContentHash;
+    }
+
+    public String getRemoteEtag() {
+        return mRemoteEtag;
+    }
+
+    /**
+     * Sets the content of the file uploaded, so that uploads of the same content can reuse it.
+     *
+     * @param contentHash   SHA-256 of the content uploaded, in hexadecimal.
+     * @param remoteEtag    ETag the server assigned to the file uploaded.
+     */
+    public void setUploadedContent(String contentHash, String remoteEtag) {
+        mContentHash = contentHash;
+        mRemoteEtag = remoteEtag;
+    }
+
     /**
      * For debugging purposes only.
      */
@@ -368,6 +469,16 @@ public class OCUpload implements Parcelable {
             mLastResult = UploadResult.UNKNOWN;
         }
         mCreatedBy = source.readInt();
+        mTransferId = source.readString();
+        mChunkSize = source.readLong();
+        mAcknowledgedChunks = new HashSet<>();
+        int[] acknowledgedChunks = source.createIntArray();
+        for (int chunk : acknowledgedChunks) {
+            mAcknowledgedChunks.add(chunk);
+        }
+        mSourceLastModified = source.readLong();
+        mContentHash = source.readString();
+        mRemoteEtag = source.readString();
     }
 
 
@@ -389,6 +500,17 @@ public class OCUpload implements Parcelable {
         dest.writeLong(mUploadEndTimeStamp);
         dest.writeString(((mLastResult == null) ? "" : mLastResult.name()));
         dest.writeInt(mCreatedBy);
+        dest.writeString(mTransferId);
+        dest.writeLong(mChunkSize);
+        int[] acknowledgedChunks = new int[mAcknowledgedChunks.size()];
+        int i = 0;
+        for (Integer chunk : mAcknowledgedChunks) {
+            acknowledgedChunks[i++] = chunk;
+        }
+        dest.writeIntArray(acknowledgedChunks);
+        dest.writeLong(mSourceLastModified);
+        dest.writeString(mContentHash);
+        dest.writeString(mRemoteEtag);
     }
 
     enum CanUploadFileNowStatus {NOW, LATER, FILE_GONE, ERROR};
@@ -54,6 +54,37 @@ public abstract class PreferenceManager {
     private static final String PREF__CAMERA_VIDEO_UPLOADS_PATH = "camera_video_uploads_path";
     private static final String PREF__CAMERA_UPLOADS_BEHAVIOUR = "camera_uploads_behaviour";
     private static final String PREF__CAMERA_UPLOADS_SOURCE = "camera_uploads_source_path";
+    private static final String PREF__TRANSFER_CONCURRENCY = "transfer_concurrency";
+
+    /**
+     * Number of transfers run in parallel per account, when not set by the user.
+     */
+    public static final int DEFAULT_TRANSFER_CONCURRENCY = 3;
+
+    private static final String PREF__DOWNLOAD_SEGMENTS = "download_segments";
+
+    /**
+     * Number of parallel byte ranges big files are downloaded in, when not set by the user.
+     */
+    public static final int DEFAULT_DOWNLOAD_SEGMENTS = 3;
+
+    private static final String PREF__UPLOAD_CHUNK_SIZE = "upload_chunk_size";
+
+    /**
+     * Size in bytes of the chunks big files are uploaded in, when not set by the user.
+     */
+    public static final long DEFAULT_UPLOAD_CHUNK_SIZE = 1024000;
+
+    private static final String PREF__UPLOAD_CHUNKS_IN_FLIGHT = "upload_chunks_in_flight";
+
+    /**
+     * Number of chunks of a big file uploaded at the same time, when not set by the user.
+     */
+    public static final int DEFAULT_UPLOAD_CHUNKS_IN_FLIGHT = 3;
+
+    private static final String AUTO_PREF__LAST_CAPABILITIES_SYNC = "last_capabilities_sync_";
+    private static final String AUTO_PREF__LAST_USER_PROFILE_SYNC = "last_user_profile_sync_";
+    private static final String AUTO_PREF__CAMERA_FOLDER_SCANNED_MODIFIED = "camera_folder_scanned_modified_";
 
     public static boolean cameraPictureUploadEnabled(Context context) {
         return getDefaultSharedPreferences(context).getBoolean(PREF__CAMERA_PICTURE_UPLOADS_ENABLED, false);
@@ -183,6 +214,176 @@ public abstract class PreferenceManager {
         saveBooleanPreference(AUTO_PREF__SORT_ASCENDING, ascending, context);
     }
 
+    /**
+     * Gets the maximum number of downloads or uploads of an account that can run at the same time.
+     *
+     * A value set for the concrete account has precedence over the one set for all of them.
+     *
+     * @param accountName Name of the account the transfers belong to.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     * @return Maximum number of parallel transfers, default is {@link #DEFAULT_TRANSFER_CONCURRENCY}
+     */
+    public static int getTransferConcurrency(String accountName, Context context) {
+        SharedPreferences prefs = getDefaultSharedPreferences(context);
+        int concurrency = prefs.getInt(PREF__TRANSFER_CONCURRENCY, DEFAULT_TRANSFER_CONCURRENCY);
+        if (accountName != null) {
+            concurrency = prefs.getInt(PREF__TRANSFER_CONCURRENCY + "_" + accountName, concurrency);
+        }
+        return Math.max(1, concurrency);
+    }
+
+    /**
+     * Saves the maximum number of downloads or uploads of an account that can run at the same time.
+     *
+     * @param accountName Name of the account the value applies to, or null to set it for all of them.
+     * @param concurrency Maximum number of parallel transfers.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     */
+    public static void setTransferConcurrency(String accountName, int concurrency, Context context) {
+        String key = (accountName == null) ?
+            PREF__TRANSFER_CONCURRENCY :
+            PREF__TRANSFER_CONCURRENCY + "_" + accountName;
+        saveIntPreference(key, concurrency, context);
+    }
+
+    /**
+     * Gets the number of byte ranges that are requested in parallel when downloading a big file.
+     *
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     * @return Number of parallel segments, default is {@link #DEFAULT_DOWNLOAD_SEGMENTS}; 1 means
+     *         the file is downloaded in a single request.
+     */
+    public static int getDownloadSegments(Context context) {
+        return Math.max(
+            1,
+            getDefaultSharedPreferences(context).getInt(PREF__DOWNLOAD_SEGMENTS, DEFAULT_DOWNLOAD_SEGMENTS)
+        );
+    }
+
+    /**
+     * Saves the number of byte ranges that are requested in parallel when downloading a big file.
+     *
+     * @param segments    Number of parallel segments; 1 disables segmented downloads.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     */
+    public static void setDownloadSegments(int segments, Context context) {
+        saveIntPreference(PREF__DOWNLOAD_SEGMENTS, segments, context);
+    }
+
+    /**
+     * Gets the size of the chunks big files are uploaded in.
+     *
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     * @return Size of every chunk in bytes, default is {@link #DEFAULT_UPLOAD_CHUNK_SIZE}.
+     */
+    public static long getUploadChunkSize(Context context) {
+        long chunkSize = getDefaultSharedPreferences(context).getLong(
+            PREF__UPLOAD_CHUNK_SIZE,
+            DEFAULT_UPLOAD_CHUNK_SIZE
+        );
+        return (chunkSize > 0) ? chunkSize : DEFAULT_UPLOAD_CHUNK_SIZE;
+    }
+
+    /**
+     * Saves the size of the chunks big files are uploaded in.
+     *
+     * @param chunkSize   Size of every chunk in bytes.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     */
+    public static void setUploadChunkSize(long chunkSize, Context context) {
+        saveLongPreference(PREF__UPLOAD_CHUNK_SIZE, chunkSize, context);
+    }
+
+    /**
+     * Gets the number of chunks of a big file that are uploaded at the same time.
+     *
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     * @return Number of chunks in flight, default is {@link #DEFAULT_UPLOAD_CHUNKS_IN_FLIGHT}; 1 means
+     *         the chunks are uploaded one after another.
+     */
+    public static int getUploadChunksInFlight(Context context) {
+        return Math.max(
+            1,
+            getDefaultSharedPreferences(context).getInt(PREF__UPLOAD_CHUNKS_IN_FLIGHT, DEFAULT_UPLOAD_CHUNKS_IN_FLIGHT)
+        );
+    }
+
+    /**
+     * Saves the number of chunks of a big file that are uploaded at the same time.
+     *
+     * @param chunksInFlight  Number of chunks in flight; 1 uploads them one after another.
+     * @param context         Caller {@link Context}, used to access to shared preferences manager.
+     */
+    public static void setUploadChunksInFlight(int chunksInFlight, Context context) {
+        saveIntPreference(PREF__UPLOAD_CHUNKS_IN_FLIGHT, chunksInFlight, context);
+    }
+
+    /**
+     * Gets the time when the capabilities of the server of an account were fetched for the last time.
+     *
+     * @param accountName Name of the account.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     * @return Time in milliseconds since the epoch; 0 if never fetched.
+     */
+    public static long getLastCapabilitiesSync(String accountName, Context context) {
+        return getDefaultSharedPreferences(context).getLong(AUTO_PREF__LAST_CAPABILITIES_SYNC + accountName, 0);
+    }
+
+    /**
+     * Saves the time when the capabilities of the server of an account were fetched for the last time.
+     *
+     * @param accountName Name of the account.
+     * @param time        Time in milliseconds since the epoch.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     */
+    public static void setLastCapabilitiesSync(String accountName, long time, Context context) {
+        saveLongPreference(AUTO_PREF__LAST_CAPABILITIES_SYNC + accountName, time, context);
+    }
+
+    /**
+     * Gets the time when the profile of the user of an account was fetched for the last time.
+     *
+     * @param accountName Name of the account.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     * @return Time in milliseconds since the epoch; 0 if never fetched.
+     */
+    public static long getLastUserProfileSync(String accountName, Context context) {
+        return getDefaultSharedPreferences(context).getLong(AUTO_PREF__LAST_USER_PROFILE_SYNC + accountName, 0);
+    }
+
+    /**
+     * Saves the time when the profile of the user of an account was fetched for the last time.
+     *
+     * @param accountName Name of the account.
+     * @param time        Time in milliseconds since the epoch.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     */
+    public static void setLastUserProfileSync(String accountName, long time, Context context) {
+        saveLongPreference(AUTO_PREF__LAST_USER_PROFILE_SYNC + accountName, time, context);
+    }
+
+    /**
+     * Gets the modification time a camera folder had when all its files were listed for the last time.
+     *
+     * @param folderPath  Absolute path to the camera folder.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     * @return Time in milliseconds since the epoch; 0 if never listed.
+     */
+    public static long getCameraFolderScannedModified(String folderPath, Context context) {
+        return getDefaultSharedPreferences(context).getLong(AUTO_PREF__CAMERA_FOLDER_SCANNED_MODIFIED + folderPath, 0);
+    }
+
+    /**
+     * Saves the modification time a camera folder had when all its files were listed for the last time.
+     *
+     * @param folderPath  Absolute path to the camera folder.
+     * @param time        Time in milliseconds since the epoch.
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     */
+    public static void setCameraFolderScannedModified(String folderPath, long time, Context context) {
+        saveLongPreference(AUTO_PREF__CAMERA_FOLDER_SCANNED_MODIFIED + folderPath, time, context);
+    }
+
     private static void saveBooleanPreference(String key, boolean value, Context context) {
         SharedPreferences.Editor appPreferences = getDefaultSharedPreferences(context.getApplicationContext()).edit();
         appPreferences.putBoolean(key, value);
@@ -201,6 +402,12 @@ public abstract class PreferenceManager {
         appPreferences.apply();
     }
 
+    private static void saveLongPreference(String key, long value, Context context) {
+        SharedPreferences.Editor appPreferences = getDefaultSharedPreferences(context.getApplicationContext()).edit();
+        appPreferences.putLong(key, value);
+        appPreferences.apply();
+    }
+
     private static SharedPreferences getDefaultSharedPreferences(Context context) {
         return android.preference.PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
     }
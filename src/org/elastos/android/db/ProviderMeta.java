@@ -36,7 +36,7 @@ import org.elastos.android.MainApp;
 public class ProviderMeta {
 
     public static final String DB_NAME = "filelist";
-    public static final int DB_VERSION = 22;
+    public static final int DB_VERSION = 26;
 
     private ProviderMeta() {
     }
@@ -67,6 +67,12 @@ public class ProviderMeta {
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.owncloud.file";
         public static final String CONTENT_TYPE_ITEM = "vnd.android.cursor.item/vnd.owncloud.file";
 
+        // Methods available through ContentResolver#call
+        public static final String METHOD_MERGE_FILES = "mergeFiles";
+        public static final String MERGE_FILES_EXTRA_VALUES = "filesToMerge";
+        public static final String MERGE_FILES_EXTRA_IDS = "mergedFileIds";
+        public static final String MERGE_FILES_EXTRA_OPERATIONS = "operationsAfterMerge";
+
         // Columns of filelist table
         public static final String FILE_PARENT = "parent";
         public static final String FILE_NAME = "filename";
@@ -164,6 +170,12 @@ public class ProviderMeta {
         public static final String UPLOADS_UPLOAD_END_TIMESTAMP = "upload_end_timestamp";
         public static final String UPLOADS_LAST_RESULT = "last_result";
         public static final String UPLOADS_CREATED_BY = "created_by";
+        public static final String UPLOADS_TRANSFER_ID = "transfer_id";
+        public static final String UPLOADS_CHUNK_SIZE = "chunk_size";
+        public static final String UPLOADS_ACKNOWLEDGED_CHUNKS = "acknowledged_chunks";
+        public static final String UPLOADS_SOURCE_LAST_MODIFIED = "source_last_modified";
+        public static final String UPLOADS_CONTENT_HASH = "content_hash";
+        public static final String UPLOADS_REMOTE_ETAG = "remote_etag";
 
         public static final String UPLOADS_DEFAULT_SORT_ORDER =
                 ProviderTableMeta._ID  + " collate nocase desc";
@@ -24,12 +24,17 @@ import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.app.job.JobService;
 import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Environment;
+import android.provider.MediaStore;
 import android.support.annotation.RequiresApi;
 
 import org.elastos.android.authentication.AccountUtils;
 import org.elastos.android.datamodel.CameraUploadsSyncStorageManager;
+import org.elastos.android.datamodel.UploadsStorageManager;
 import org.elastos.android.db.OCCameraUploadSync;
 import org.elastos.android.db.PreferenceManager;
 
@@ -39,14 +44,26 @@ import org.elastos.android.utils.Extras;
 import org.elastos.android.utils.MimetypeIconUtil;
 
 import java.io.File;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class CameraUploadsSyncJobService extends JobService {
 
     private static final String TAG = CameraUploadsSyncJobService.class.getName();
 
+    /**
+     * Files modified up to this time before the last sync are checked again, and uploaded if they were
+     * not requested yet; covers files written out of order, or indexed late by the media store.
+     */
+    private static final long LOOKBACK_MARGIN_MS = 10 * 60 * 1000;
+
+    private static final String NO_MEDIA_FILE_NAME = ".nomedia";
+
+    private static final char LIKE_ESCAPE = '\\';
+
     @Override
     public boolean onStartJob(JobParameters jobParameters) {
 
@@ -64,6 +81,7 @@ public class CameraUploadsSyncJobService extends JobService {
 
         private Account mAccount;
         private CameraUploadsSyncStorageManager mCameraUploadsSyncStorageManager;
+        private UploadsStorageManager mUploadsStorageManager;
         private OCCameraUploadSync mOCCameraUploadSync;
         private String mCameraUploadsPicturesPath;
         private String mCameraUploadsVideosPath;
@@ -93,6 +111,8 @@ public class CameraUploadsSyncJobService extends JobService {
             mAccount = AccountUtils.getOwnCloudAccountByName(mCameraUploadsSyncJobService, accountName);
             mCameraUploadsSyncStorageManager = new CameraUploadsSyncStorageManager(
                     mCameraUploadsSyncJobService.getContentResolver());
+            mUploadsStorageManager = new UploadsStorageManager(
+                    mCameraUploadsSyncJobService.getContentResolver());
 
             mCameraUploadsPicturesPath = jobParams[0].getExtras().getString(Extras.EXTRA_CAMERA_UPLOADS_PICTURES_PATH);
             mCameraUploadsVideosPath = jobParams[0].getExtras().getString(Extras.EXTRA_CAMERA_UPLOADS_VIDEOS_PATH);
@@ -111,52 +131,244 @@ public class CameraUploadsSyncJobService extends JobService {
         }
 
         /**
-         * Get local images and videos and start handling them
+         * Get local images and videos taken since the last sync and start handling them
          */
         private void syncFiles() {
 
-            //Get local images and videos
-            String localCameraPath = mCameraUploadsSourcePath;
+            if (mCameraUploadsSourcePath == null) {
+                Log_OC.d(TAG, "No camera folder to sync, finishing job");
+                return;
+            }
 
-            File localFiles[] = new File[0];
+            // Loaded once per run, kept up to date in memory by updateTimestamps
+            mOCCameraUploadSync = mCameraUploadsSyncStorageManager.getCameraUploadSync(null, null,
+                    null);
 
-            if (localCameraPath != null) {
-                File cameraFolder = new File(localCameraPath);
-                localFiles = cameraFolder.listFiles();
+            if (mOCCameraUploadSync == null) {
+                Log_OC.d(TAG, "There's no timestamp to compare with in database yet, not continue");
+                return;
             }
 
-            if (localFiles != null) {
+            List<CandidateFile> candidates = null;
+            if (isIndexedByMediaStore()) {
+                candidates = getCandidatesFromMediaStore();
+                if (candidates != null && candidates.isEmpty() && hasFolderChanged()) {
+                    // files added but not indexed yet
+                    candidates = null;
+                }
+            }
+            if (candidates == null) {
+                candidates = getCandidatesFromCameraFolder();
+            }
+
+            Collections.sort(candidates, new Comparator<CandidateFile>() {
+                public int compare(CandidateFile file1, CandidateFile file2) {
+                    return Long.compare(file1.mLastModified, file2.mLastModified);
+                }
+            });
 
-                localFiles = orderFilesByCreationTimestamp(localFiles);
+            for (CandidateFile candidate : candidates) {
+                handleFile(candidate.mFile, candidate.mLastModified);
+            }
 
-                for (File localFile : localFiles) {
+            Log_OC.d(TAG, "All files synced, finishing job");
+
+        }
 
-                    handleFile(localFile);
+        /**
+         * Checks if the media store is expected to know the files in the camera folder.
+         *
+         * It does not index folders with a {@link #NO_MEDIA_FILE_NAME} file, nor the private folders of
+         * apps in Android/data; custom folders may not be indexed either, so at least one entry of the
+         * folder must be in the media store.
+         */
+        private boolean isIndexedByMediaStore() {
+            File cameraFolder = new File(mCameraUploadsSourcePath);
+            if (new File(cameraFolder, NO_MEDIA_FILE_NAME).exists()) {
+                return false;
+            }
+            String appsDataPath = new File(
+                    Environment.getExternalStorageDirectory(), "Android" + File.separator + "data"
+            ).getAbsolutePath();
+            if (cameraFolder.getAbsolutePath().startsWith(appsDataPath)) {
+                return false;
+            }
+            try {
+                return hasMediaStoreEntries(MediaStore.Images.Media.EXTERNAL_CONTENT_URI) ||
+                        hasMediaStoreEntries(MediaStore.Video.Media.EXTERNAL_CONTENT_URI);
+
+            } catch (RuntimeException e) {
+                Log_OC.w(TAG, "Media store could not be queried, listing camera folder", e);
+                return false;
+            }
+        }
+
+        private boolean hasMediaStoreEntries(Uri mediaUri) {
+            Cursor cursor = mCameraUploadsSyncJobService.getContentResolver().query(
+                    mediaUri,
+                    new String[]{MediaStore.MediaColumns._ID},
+                    MediaStore.MediaColumns.DATA + " LIKE ? ESCAPE '" + LIKE_ESCAPE + "'",
+                    new String[]{getCameraFolderPattern()},
+                    null
+            );
+            if (cursor == null) {
+                return false;
+            }
+            try {
+                return cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * The modification time of a folder changes when files are added to it, renamed or removed.
+         *
+         * Changes already seen by the last listing of the whole folder are not counted, so that a file
+         * removed or renamed doesn't make every run list the folder until the next capture.
+         *
+         * @return  'true' if the camera folder changed after the period checked in the media store, and
+         *          since it was listed for the last time.
+         */
+        private boolean hasFolderChanged() {
+            File cameraFolder = new File(mCameraUploadsSourcePath);
+            long folderLastModified = cameraFolder.lastModified();
+            if (folderLastModified == PreferenceManager.getCameraFolderScannedModified(
+                    cameraFolder.getAbsolutePath(), mCameraUploadsSyncJobService)) {
+                return false;
+            }
+            long lastSync = Math.min(
+                    mCameraUploadsPicturesPath != null ? mOCCameraUploadSync.getPicturesLastSync() : Long.MAX_VALUE,
+                    mCameraUploadsVideosPath != null ? mOCCameraUploadSync.getVideosLastSync() : Long.MAX_VALUE
+            );
+            return folderLastModified > lastSync - LOOKBACK_MARGIN_MS;
+        }
+
+        /**
+         * Gets the pictures and videos in the camera folder modified since the last sync from the
+         * media store, instead of listing the full folder.
+         *
+         * The media store keeps modification times in seconds, so the query is a coarse filter;
+         * every result is checked later against the timestamps of the last sync.
+         *
+         * @return  Files to handle, or null if the media store could not be queried.
+         */
+        private List<CandidateFile> getCandidatesFromMediaStore() {
+            List<CandidateFile> candidates = new ArrayList<>();
+            try {
+                if (mCameraUploadsPicturesPath != null &&
+                        !queryMediaStore(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                                mOCCameraUploadSync.getPicturesLastSync(), candidates)) {
+                    return null;
+                }
+                if (mCameraUploadsVideosPath != null &&
+                        !queryMediaStore(MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
+                                mOCCameraUploadSync.getVideosLastSync(), candidates)) {
+                    return null;
                 }
+
+            } catch (RuntimeException e) {
+                Log_OC.w(TAG, "Media store could not be queried, listing camera folder", e);
+                return null;
             }
 
-            Log_OC.d(TAG, "All files synced, finishing job");
+            Log_OC.d(TAG, candidates.size() + " new files found in media store");
+            return candidates;
+        }
 
+        /**
+         * Adds to 'candidates' the files directly in the camera folder that the media store at 'mediaUri'
+         * has modified since 'lastSync'.
+         *
+         * @return  'false' if the media store could not be queried.
+         */
+        private boolean queryMediaStore(Uri mediaUri, long lastSync, List<CandidateFile> candidates) {
+            String cameraFolderPath = new File(mCameraUploadsSourcePath).getAbsolutePath();
+
+            Cursor cursor = mCameraUploadsSyncJobService.getContentResolver().query(
+                    mediaUri,
+                    new String[]{MediaStore.MediaColumns.DATA},
+                    MediaStore.MediaColumns.DATA + " LIKE ? ESCAPE '" + LIKE_ESCAPE + "' AND " +
+                            MediaStore.MediaColumns.DATE_MODIFIED + " >= ?",
+                    new String[]{
+                            getCameraFolderPattern(),
+                            String.valueOf((lastSync - LOOKBACK_MARGIN_MS) / 1000)
+                    },
+                    null
+            );
+
+            if (cursor == null) {
+                return false;
+            }
+
+            try {
+                while (cursor.moveToNext()) {
+                    File file = new File(cursor.getString(0));
+                    // the camera folder is not synced recursively
+                    if (cameraFolderPath.equals(file.getParent())) {
+                        addCandidate(file, candidates);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return true;
+        }
+
+        /**
+         * @return  Pattern for LIKE matching any path in the camera folder; wildcards in the path of the
+         *          folder are escaped with {@link #LIKE_ESCAPE}.
+         */
+        private String getCameraFolderPattern() {
+            String cameraFolderPath = new File(mCameraUploadsSourcePath).getAbsolutePath() + File.separator;
+            StringBuilder pattern = new StringBuilder(cameraFolderPath.length() + 1);
+            for (char c : cameraFolderPath.toCharArray()) {
+                if (c == '%' || c == '_' || c == LIKE_ESCAPE) {
+                    pattern.append(LIKE_ESCAPE);
+                }
+                pattern.append(c);
+            }
+            return pattern.append('%').toString();
         }
 
-        private File[] orderFilesByCreationTimestamp(File[] localFiles) {
+        /**
+         * Gets all the files in the camera folder, when the media store can't tell which ones changed.
+         */
+        private List<CandidateFile> getCandidatesFromCameraFolder() {
+            List<CandidateFile> candidates = new ArrayList<>();
+
+            // read before listing, so that changes during the listing are seen by the next run
+            File cameraFolder = new File(mCameraUploadsSourcePath);
+            long folderLastModified = cameraFolder.lastModified();
+            File[] localFiles = cameraFolder.listFiles();
 
-            Arrays.sort(localFiles, new Comparator<File>() {
-                public int compare(File file1, File file2) {
-                    return Long.compare(file1.lastModified(), file2.lastModified());
+            if (localFiles != null) {
+                for (File localFile : localFiles) {
+                    addCandidate(localFile, candidates);
                 }
-            });
+                PreferenceManager.setCameraFolderScannedModified(
+                        cameraFolder.getAbsolutePath(), folderLastModified, mCameraUploadsSyncJobService);
+            }
 
-            return localFiles;
-        };
+            return candidates;
+        }
+
+        private void addCandidate(File file, List<CandidateFile> candidates) {
+            // a file removed meanwhile reports 0
+            long lastModified = file.lastModified();
+            if (lastModified > 0) {
+                candidates.add(new CandidateFile(file, lastModified));
+            }
+        }
 
         /**
          * Request the upload of a file just created if matches the criteria of the current
          * configuration for camera uploads.
          *
          * @param localFile image or video to upload to the server
+         * @param lastModified last modification time of the file, in milliseconds
          */
-        private synchronized void handleFile(File localFile) {
+        private synchronized void handleFile(File localFile, long lastModified) {
 
             String fileName = localFile.getName();
 
@@ -186,19 +398,18 @@ public class CameraUploadsSyncJobService extends JobService {
 
             String localPath = mCameraUploadsSourcePath + File.separator + fileName;
 
-            mOCCameraUploadSync = mCameraUploadsSyncStorageManager.getCameraUploadSync(null, null,
-                    null);
-
-            if (mOCCameraUploadSync == null) {
-                Log_OC.d(TAG, "There's no timestamp to compare with in database yet, not continue");
-            }
-
-            // Check file timestamp
-            if (isImage && localFile.lastModified() <= mOCCameraUploadSync.getPicturesLastSync() ||
-                    isVideo && localFile.lastModified() <= mOCCameraUploadSync.getVideosLastSync()) {
+            // Check file timestamp; files a bit older than the last sync are uploaded if not requested yet
+            long lastSync = isImage ? mOCCameraUploadSync.getPicturesLastSync() :
+                    mOCCameraUploadSync.getVideosLastSync();
+            if (lastModified <= lastSync - LOOKBACK_MARGIN_MS) {
                 Log_OC.i(TAG, "File " + localPath + " created before period to check, ignoring");
                 return;
             }
+            if (lastModified <= lastSync &&
+                    mUploadsStorageManager.isUploadRequested(mAccount.name, localPath)) {
+                Log_OC.d(TAG, "File " + localPath + " already requested to upload, ignoring");
+                return;
+            }
 
             TransferRequester requester = new TransferRequester();
             requester.uploadNewFile(
@@ -213,7 +424,7 @@ public class CameraUploadsSyncJobService extends JobService {
             );
 
             // Update timestamps once the first picture/video has been enqueued
-            updateTimestamps(isImage, isVideo, localFile.lastModified());
+            updateTimestamps(isImage, isVideo, lastModified);
 
             Log_OC.i(
                     TAG,
@@ -237,14 +448,15 @@ public class CameraUploadsSyncJobService extends JobService {
             long picturesTimestamp = mOCCameraUploadSync.getPicturesLastSync();
             long videosTimestamp = mOCCameraUploadSync.getVideosLastSync();
 
-            if (isImage) {
+            // files in the lookback margin never move the timestamps back
+            if (isImage && fileTimestamp > picturesTimestamp) {
 
                 Log_OC.d(TAG, "Updating timestamp for pictures");
 
                 picturesTimestamp = fileTimestamp;
             }
 
-            if (isVideo) {
+            if (isVideo && fileTimestamp > videosTimestamp) {
 
                 Log_OC.d(TAG, "Updating timestamp for videos");
 
@@ -257,6 +469,8 @@ public class CameraUploadsSyncJobService extends JobService {
             newOCCameraUploadSync.setId(mOCCameraUploadSync.getId());
 
             mCameraUploadsSyncStorageManager.updateCameraUploadSync(newOCCameraUploadSync);
+
+            mOCCameraUploadSync = newOCCameraUploadSync;
         }
 
         /**
@@ -274,6 +488,20 @@ public class CameraUploadsSyncJobService extends JobService {
         };
     }
 
+    /**
+     * File found in the camera folder, with its modification time read only once.
+     */
+    private static class CandidateFile {
+
+        private final File mFile;
+        private final long mLastModified;
+
+        CandidateFile(File file, long lastModified) {
+            mFile = file;
+            mLastModified = lastModified;
+        }
+    }
+
     @Override
     /**
      * Called by the system if the job is cancelled before being finished
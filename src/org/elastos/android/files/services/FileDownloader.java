@@ -30,11 +30,8 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
-import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Pair;
@@ -44,6 +41,7 @@ import org.elastos.android.authentication.AccountUtils;
 import org.elastos.android.authentication.AuthenticatorActivity;
 import org.elastos.android.datamodel.FileDataStorageManager;
 import org.elastos.android.datamodel.OCFile;
+import org.elastos.android.db.PreferenceManager;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
@@ -64,13 +62,12 @@ import org.elastos.android.utils.Extras;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.AbstractList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-public class FileDownloader extends Service
-        implements OnDatatransferProgressListener, OnAccountsUpdateListener {
+public class FileDownloader extends Service implements OnAccountsUpdateListener {
 
     public static final String EXTRA_ACCOUNT = "ACCOUNT";
     public static final String EXTRA_FILE = "FILE";
@@ -82,20 +79,44 @@ public class FileDownloader extends Service
 
     private static final String TAG = FileDownloader.class.getSimpleName();
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    private TransferWorkerPool mTransferPool;
     private IBinder mBinder;
-    private OwnCloudClient mDownloadClient = null;
-    private Account mCurrentAccount = null;
-    private FileDataStorageManager mStorageManager;
 
     private IndexedForest<DownloadFileOperation> mPendingDownloads = new IndexedForest<>();
 
-    private DownloadFileOperation mCurrentDownload = null;
+    /**
+     * Downloads being run by the workers in {@link #mTransferPool}, indexed by download key.
+     */
+    private ConcurrentMap<String, DownloadFileOperation> mCurrentDownloads = new ConcurrentHashMap<>();
+
+    /**
+     * Id of the last command received; only accessed in the main thread.
+     */
+    private int mLastStartId;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Stops the service if no download was queued since the workers got idle; run in the main thread, so
+     * it can't race with {@link #onStartCommand(Intent, int, int)}.
+     */
+    private final Runnable mStopIfIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (mTransferPool.isIdle()) {
+                Log_OC.d(TAG, "Stopping after command with id " + mLastStartId);
+                stopSelf(mLastStartId);
+            }
+        }
+    };
 
     private NotificationManager mNotificationManager;
-    private NotificationCompat.Builder mNotificationBuilder;
-    private int mLastPercent;
+
+    /**
+     * Status notifications of the downloads being run by the workers in {@link #mTransferPool}.
+     */
+    private ConcurrentMap<DownloadFileOperation, TransferNotification> mNotifications =
+        new ConcurrentHashMap<>();
 
     private LocalBroadcastManager mLocalBroadcastManager;
 
@@ -132,11 +153,22 @@ public class FileDownloader extends Service
             mNotificationManager.createNotificationChannel(mNotificationChannel);
         }
 
-        HandlerThread thread = new HandlerThread("FileDownloaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        mTransferPool = new TransferWorkerPool(
+            "FileDownloaderWorker",
+            new TransferWorkerPool.ConcurrencyPolicy() {
+                @Override
+                public int getMaxConcurrentTransfers(String accountName) {
+                    return PreferenceManager.getTransferConcurrency(accountName, FileDownloader.this);
+                }
+            },
+            new TransferWorkerPool.OnIdleListener() {
+                @Override
+                public void onTransfersIdle() {
+                    // checked again in the main thread, where new commands are received
+                    mMainHandler.post(mStopIfIdle);
+                }
+            }
+        );
         mBinder = new FileDownloaderBinder();
 
         // add AccountsUpdatedListener
@@ -155,10 +187,11 @@ public class FileDownloader extends Service
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service");
         mBinder = null;
-        mServiceHandler = null;
-        mServiceLooper.quit();
-        mServiceLooper = null;
-        mNotificationManager = null;
+        mMainHandler.removeCallbacks(mStopIfIdle);
+        mTransferPool.shutdown();
+        for (DownloadFileOperation download : mCurrentDownloads.values()) {
+            download.cancel();
+        }
 
         // remove AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -177,6 +210,7 @@ public class FileDownloader extends Service
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log_OC.d(TAG, "Starting command with id " + startId);
+        mLastStartId = startId;
 
         if (!intent.hasExtra(EXTRA_ACCOUNT) ||
                 !intent.hasExtra(EXTRA_FILE)
@@ -189,8 +223,9 @@ public class FileDownloader extends Service
             AbstractList<String> requestedDownloads = new Vector<>();
             try {
                 DownloadFileOperation newDownload = new DownloadFileOperation(account, file);
-                newDownload.addDatatransferProgressListener(this);
-                newDownload.addDatatransferProgressListener((FileDownloaderBinder) mBinder);
+                newDownload.addDatatransferProgressListener(
+                    new DownloadProgressForwarder(newDownload)
+                );
                 Pair<String, String> putResult = mPendingDownloads.putIfAbsent(
                         account.name, file.getRemotePath(), newDownload);
                 if (putResult != null) {
@@ -205,10 +240,16 @@ public class FileDownloader extends Service
             }
 
             if (requestedDownloads.size() > 0) {
-                Message msg = mServiceHandler.obtainMessage();
-                msg.arg1 = startId;
-                msg.obj = requestedDownloads;
-                mServiceHandler.sendMessage(msg);
+                for (final String downloadKey : requestedDownloads) {
+                    mTransferPool.submit(account.name, new Runnable() {
+                        @Override
+                        public void run() {
+                            downloadFile(downloadKey);
+                        }
+                    });
+                }
+            } else if (mTransferPool.isIdle()) {
+                stopSelf(startId);
             }
         }
 
@@ -239,10 +280,11 @@ public class FileDownloader extends Service
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-         //review the current download and cancel it if its account doesn't exist
-        if (mCurrentDownload != null &&
-                !AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-            mCurrentDownload.cancel();
+        // review the current downloads and cancel those whose account doesn't exist
+        for (DownloadFileOperation download : mCurrentDownloads.values()) {
+            if (!AccountUtils.exists(download.getAccount(), getApplicationContext())) {
+                download.cancel();
+            }
         }
         // The rest of downloads are cancelled when they try to start
     }
@@ -261,7 +303,7 @@ public class FileDownloader extends Service
          * instance.
          */
         private Map<Long, WeakReference<OnDatatransferProgressListener>> mBoundListeners =
-                new HashMap<>();
+                new ConcurrentHashMap<>();
 
 
         /**
@@ -277,10 +319,12 @@ public class FileDownloader extends Service
             if (download != null) {
                 download.cancel();
             } else {
-                if (mCurrentDownload != null && mCurrentAccount != null &&
-                        mCurrentDownload.getRemotePath().startsWith(file.getRemotePath()) &&
-                        account.name.equals(mCurrentAccount.name)) {
-                    mCurrentDownload.cancel();
+                // a folder; cancel the descendants being downloaded right now
+                for (DownloadFileOperation current : mCurrentDownloads.values()) {
+                    if (current.getRemotePath().startsWith(file.getRemotePath()) &&
+                            account.name.equals(current.getAccount().name)) {
+                        current.cancel();
+                    }
                 }
             }
         }
@@ -293,10 +337,10 @@ public class FileDownloader extends Service
         public void cancel(Account account) {
             Log_OC.d(TAG, "Account= " + account.name);
 
-            if (mCurrentDownload != null) {
-                Log_OC.d(TAG, "Current Download Account= " + mCurrentDownload.getAccount().name);
-                if (mCurrentDownload.getAccount().name.equals(account.name)) {
-                    mCurrentDownload.cancel();
+            for (DownloadFileOperation current : mCurrentDownloads.values()) {
+                Log_OC.d(TAG, "Current Download Account= " + current.getAccount().name);
+                if (current.getAccount().name.equals(account.name)) {
+                    current.cancel();
                 }
             }
             // Cancel pending downloads
@@ -351,16 +395,29 @@ public class FileDownloader extends Service
         ) {
             if (account == null || file == null || listener == null) return;
             Long fileId = file.getFileId();
-            if (mBoundListeners.get(fileId) == listener) {
+            WeakReference<OnDatatransferProgressListener> boundListenerRef = mBoundListeners.get(fileId);
+            if (boundListenerRef != null && boundListenerRef.get() == listener) {
                 mBoundListeners.remove(fileId);
             }
         }
 
+        /**
+         * Not used; progress is reported per download through
+         * {@link #onTransferProgress(DownloadFileOperation, long, long, long, String)}, since
+         * several downloads may be running at the same time.
+         */
         @Override
         public void onTransferProgress(long progressRate, long totalTransferredSoFar,
                                        long totalToTransfer, String fileName) {
+        }
+
+        /**
+         * Reports progress of a concrete download to the listener bound for its file, if any.
+         */
+        void onTransferProgress(DownloadFileOperation download, long progressRate,
+                                long totalTransferredSoFar, long totalToTransfer, String fileName) {
             WeakReference<OnDatatransferProgressListener> boundListenerRef =
-                    mBoundListeners.get(mCurrentDownload.getFile().getFileId());
+                    mBoundListeners.get(download.getFile().getFileId());
             if (boundListenerRef != null && boundListenerRef.get() != null) {
                 boundListenerRef.get().onTransferProgress(
                     progressRate,
@@ -374,35 +431,30 @@ public class FileDownloader extends Service
     }
 
     /**
-     * Download worker. Performs the pending downloads in the order they were requested.
-
-     * Created with the Looper of a new thread, started in {@link FileUploader#onCreate()}.
+     * Forwards the progress of a single download to the status notification and to the
+     * listener bound for its file.
+     *
+     * Several downloads may be running at the same time, so progress can't be matched against
+     * a single current download anymore.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a
-        // possible memory leak
-        FileDownloader mService;
-
-        public ServiceHandler(Looper looper, FileDownloader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+    private class DownloadProgressForwarder implements OnDatatransferProgressListener {
+
+        private final DownloadFileOperation mDownload;
+
+        DownloadProgressForwarder(DownloadFileOperation download) {
+            mDownload = download;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedDownloads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedDownloads.iterator();
-                while (it.hasNext()) {
-                    String next = it.next();
-                    mService.downloadFile(next);
-                }
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                       long totalToTransfer, String fileName) {
+            notifyDownloadProgress(mDownload, totalTransferredSoFar, totalToTransfer, fileName);
+            FileDownloaderBinder binder = (FileDownloaderBinder) mBinder;
+            if (binder != null) {
+                binder.onTransferProgress(
+                    mDownload, progressRate, totalTransferredSoFar, totalToTransfer, fileName
+                );
             }
-            Log_OC.d(TAG, "Stopping after command with id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
         }
     }
 
@@ -410,52 +462,55 @@ public class FileDownloader extends Service
     /**
      * Core download method: requests a file to download and stores it.
      *
+     * Run by the workers of {@link #mTransferPool}, so it may be running for several files at
+     * the same time; no state is shared among calls except the thread-safe queues.
+     *
      * @param downloadKey Key to access the download to perform, contained in mPendingDownloads
      */
     private void downloadFile(String downloadKey) {
 
-        mCurrentDownload = mPendingDownloads.get(downloadKey);
+        DownloadFileOperation download = mPendingDownloads.get(downloadKey);
 
-        if (mCurrentDownload != null) {
+        if (download != null) {
+
+            Account account = download.getAccount();
 
             /// Check account existence
-            if (!AccountUtils.exists(mCurrentDownload.getAccount(), this)) {
+            if (!AccountUtils.exists(account, this)) {
                 Log_OC.w(
                     TAG,
-                    "Account " + mCurrentDownload.getAccount().name +
+                    "Account " + account.name +
                     " does not exist anymore -> cancelling all its downloads"
                 );
-                cancelDownloadsForAccount(mCurrentDownload.getAccount());
+                cancelDownloadsForAccount(account);
                 return;
             }
 
-            notifyDownloadStart(mCurrentDownload);
+            mCurrentDownloads.put(downloadKey, download);
+
+            notifyDownloadStart(download);
 
             RemoteOperationResult downloadResult = null;
 
             try {
                 /// prepare client object to send the request to the ownCloud server
-                if (mCurrentAccount == null ||
-                        !mCurrentAccount.equals(mCurrentDownload.getAccount())) {
-                    mCurrentAccount = mCurrentDownload.getAccount();
-                    mStorageManager = new FileDataStorageManager(
-                            mCurrentAccount,
-                            getContentResolver()
-                    );
-                }   // else, reuse storage manager from previous operation
+                FileDataStorageManager storageManager = new FileDataStorageManager(
+                        account,
+                        getContentResolver()
+                );
 
                 // always get client from client manager to get fresh credentials in case of update
                 OwnCloudAccount ocAccount = new OwnCloudAccount(
-                        mCurrentAccount,
+                        account,
                         this
                 );
-                mDownloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                OwnCloudClient downloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
                         getClientFor(ocAccount, this);
 
                 /// perform the download
-                downloadResult = mCurrentDownload.execute(mDownloadClient);
+                downloadResult = download.execute(downloadClient);
                 if (downloadResult.isSuccess()) {
-                    saveDownloadedFile();
+                    saveDownloadedFile(download, storageManager);
                 }
 
             } catch (Exception e) {
@@ -463,10 +518,12 @@ public class FileDownloader extends Service
                 downloadResult = new RemoteOperationResult(e);
 
             } finally {
+                mCurrentDownloads.remove(downloadKey);
+
                 Pair<DownloadFileOperation, String> removeResult =
                     mPendingDownloads.removePayload(
-                            mCurrentAccount.name,
-                            mCurrentDownload.getRemotePath()
+                            account.name,
+                            download.getRemotePath()
                     );
 
                 if (!downloadResult.isSuccess() && downloadResult.getException() != null) {
@@ -475,14 +532,14 @@ public class FileDownloader extends Service
                     TransferRequester requester = new TransferRequester();
                     if (requester.shouldScheduleRetry(this, downloadResult.getException())) {
                         int jobId = mPendingDownloads.buildKey(
-                            mCurrentAccount.name,
-                            mCurrentDownload.getRemotePath()
+                            account.name,
+                            download.getRemotePath()
                         ).hashCode();
                         requester.scheduleDownload(
                             this,
                             jobId,
-                            mCurrentAccount.name,
-                            mCurrentDownload.getRemotePath()
+                            account.name,
+                            download.getRemotePath()
                         );
                         downloadResult = new RemoteOperationResult(
                             ResultCode.NO_NETWORK_CONNECTION
@@ -492,8 +549,8 @@ public class FileDownloader extends Service
                             TAG,
                             String.format(
                                 "Exception in download, network is OK, no retry scheduled for %1s in %2s",
-                                mCurrentDownload.getRemotePath(),
-                                mCurrentAccount.name
+                                download.getRemotePath(),
+                                account.name
                             )
                         );
                     }
@@ -502,16 +559,16 @@ public class FileDownloader extends Service
                         TAG,
                         String.format(
                             "Success OR fail without exception for %1s in %2s",
-                            mCurrentDownload.getRemotePath(),
-                            mCurrentAccount.name
+                            download.getRemotePath(),
+                            account.name
                         )
                     );
                 }
 
                 /// notify result
-                notifyDownloadResult(mCurrentDownload, downloadResult);
+                notifyDownloadResult(download, downloadResult);
 
-                sendBroadcastDownloadFinished(mCurrentDownload, downloadResult, removeResult.second);
+                sendBroadcastDownloadFinished(download, downloadResult, removeResult.second);
             }
 
         }
@@ -522,22 +579,22 @@ public class FileDownloader extends Service
      *
      * TODO move to DownloadFileOperation
      */
-    private void saveDownloadedFile() {
-        OCFile file = mStorageManager.getFileById(mCurrentDownload.getFile().getFileId());
+    private void saveDownloadedFile(DownloadFileOperation download, FileDataStorageManager storageManager) {
+        OCFile file = storageManager.getFileById(download.getFile().getFileId());
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForProperties(syncDate);
         file.setLastSyncDateForData(syncDate);
         file.setNeedsUpdateThumbnail(true);
-        file.setModificationTimestamp(mCurrentDownload.getModificationTimestamp());
-        file.setModificationTimestampAtLastSyncForData(mCurrentDownload.getModificationTimestamp());
-        file.setEtag(mCurrentDownload.getEtag());
-        file.setMimetype(mCurrentDownload.getMimeType());
-        file.setStoragePath(mCurrentDownload.getSavePath());
-        file.setFileLength((new File(mCurrentDownload.getSavePath()).length()));
-        file.setRemoteId(mCurrentDownload.getFile().getRemoteId());
-        mStorageManager.saveFile(file);
-        mStorageManager.triggerMediaScan(file.getStoragePath());
-        mStorageManager.saveConflict(file, null);
+        file.setModificationTimestamp(download.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(download.getModificationTimestamp());
+        file.setEtag(download.getEtag());
+        file.setMimetype(download.getMimeType());
+        file.setStoragePath(download.getSavePath());
+        file.setFileLength((new File(download.getSavePath()).length()));
+        file.setRemoteId(download.getFile().getRemoteId());
+        storageManager.saveFile(file);
+        storageManager.triggerMediaScan(file.getStoragePath());
+        storageManager.saveConflict(file, null);
     }
 
     /**
@@ -548,9 +605,15 @@ public class FileDownloader extends Service
     private void notifyDownloadStart(DownloadFileOperation download) {
 
         /// create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder = NotificationUtils.newNotificationBuilder(this);
-        mNotificationBuilder
+        NotificationCompat.Builder builder = NotificationUtils.newNotificationBuilder(this);
+        TransferNotification notification = new TransferNotification(
+            TransferNotification.getId(
+                mPendingDownloads.buildKey(download.getAccount().name, download.getRemotePath())
+            ),
+            builder
+        );
+        mNotifications.put(download, notification);
+        builder
                 .setSmallIcon(R.drawable.notification_icon)
                 .setTicker(getString(R.string.downloader_download_in_progress_ticker))
                 .setContentTitle(getString(R.string.downloader_download_in_progress_ticker))
@@ -573,30 +636,35 @@ public class FileDownloader extends Service
         showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, download.getAccount());
         showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
 
-        mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+        builder.setContentIntent(PendingIntent.getActivity(
                 this, (int) System.currentTimeMillis(), showDetailsIntent, 0
         ));
 
-        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
+        mNotificationManager.notify(notification.getId(), builder.build());
     }
 
 
     /**
-     * Callback method to update the progress bar in the status notification.
+     * Updates the progress bar in the status notification of a download.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                   long totalToTransfer, String filePath) {
+    private void notifyDownloadProgress(DownloadFileOperation download, long totalTransferredSoFar,
+                                        long totalToTransfer, String filePath) {
+        TransferNotification notification = mNotifications.get(download);
+        if (notification == null) {
+            return;
+        }
         int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, totalToTransfer < 0);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationBuilder.setChannelId(DOWNLOAD_NOTIFICATION_CHANNEL_ID);
-            mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
+        synchronized (notification) {
+            if (notification.updatePercent(percent)) {
+                NotificationCompat.Builder builder = notification.getBuilder();
+                builder.setProgress(100, percent, totalToTransfer < 0);
+                String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
+                String text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
+                builder.setContentText(text);
+                builder.setChannelId(DOWNLOAD_NOTIFICATION_CHANNEL_ID);
+                mNotificationManager.notify(notification.getId(), builder.build());
+            }
         }
-        mLastPercent = percent;
     }
 
 
@@ -608,7 +676,12 @@ public class FileDownloader extends Service
      */
     private void notifyDownloadResult(DownloadFileOperation download,
                                       RemoteOperationResult downloadResult) {
-        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+        TransferNotification notification = mNotifications.remove(download);
+        if (notification == null) {
+            return;
+        }
+        mNotificationManager.cancel(notification.getId());
+        NotificationCompat.Builder builder = notification.getBuilder();
         if (!downloadResult.isCancelled()) {
             int tickerId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_ticker :
                     R.string.downloader_download_failed_ticker;
@@ -617,7 +690,7 @@ public class FileDownloader extends Service
             tickerId = (needsToUpdateCredentials) ?
                     R.string.downloader_download_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            builder
                     .setTicker(getString(tickerId))
                     .setContentTitle(getString(tickerId))
                     .setAutoCancel(true)
@@ -637,7 +710,7 @@ public class FileDownloader extends Service
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder
+                builder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), updateAccountCredentials,
                                 PendingIntent.FLAG_ONE_SHOT));
@@ -645,24 +718,25 @@ public class FileDownloader extends Service
             } else {
                 // TODO put something smart in showDetailsIntent
                 Intent showDetailsIntent = new Intent();
-                mNotificationBuilder
+                builder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), showDetailsIntent, 0));
             }
 
-            mNotificationBuilder.setContentText(
+            builder.setContentText(
                     ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download,
                             getResources())
             );
-            mNotificationBuilder.setChannelId(DOWNLOAD_NOTIFICATION_CHANNEL_ID);
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            builder.setChannelId(DOWNLOAD_NOTIFICATION_CHANNEL_ID);
+            // replaces the progress of this download, not the result of others
+            mNotificationManager.notify(notification.getId(), builder.build());
 
             // Remove success notification
             if (downloadResult.isSuccess()) {
                 // Sleep 2 seconds, so show the notification before remove it
                 NotificationUtils.cancelWithDelay(
                         mNotificationManager,
-                        R.string.downloader_download_succeeded_ticker,
+                        notification.getId(),
                         2000);
             }
 
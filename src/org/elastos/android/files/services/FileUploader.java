@@ -34,12 +34,9 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
 import android.os.Parcelable;
-import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Pair;
@@ -52,6 +49,7 @@ import org.elastos.android.datamodel.OCFile;
 import org.elastos.android.datamodel.UploadsStorageManager;
 import org.elastos.android.datamodel.UploadsStorageManager.UploadStatus;
 import org.elastos.android.db.OCUpload;
+import org.elastos.android.db.PreferenceManager;
 import org.elastos.android.db.UploadResult;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
@@ -71,10 +69,10 @@ import org.elastos.android.utils.Extras;
 
 import java.lang.ref.WeakReference;
 import java.util.AbstractList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Service for uploading files. Invoke using context.startService(...).
@@ -89,8 +87,7 @@ import java.util.Vector;
  * However, Intent keys (e.g., KEY_WIFI_ONLY) are obeyed.
  */
 public class FileUploader extends Service
-        implements OnDatatransferProgressListener, OnAccountsUpdateListener,
-        UploadFileOperation.OnRenameListener {
+        implements OnAccountsUpdateListener, UploadFileOperation.OnRenameListener {
 
     private static final String TAG = FileUploader.class.getSimpleName();
 
@@ -146,12 +143,8 @@ public class FileUploader extends Service
     public static final int LOCAL_BEHAVIOUR_MOVE = 1;
     public static final int LOCAL_BEHAVIOUR_FORGET = 2;
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    private TransferWorkerPool mTransferPool;
     private IBinder mBinder;
-    private OwnCloudClient mUploadClient = null;
-    private Account mCurrentAccount = null;
-    private FileDataStorageManager mStorageManager;
     //since there can be only one instance of an Android service, there also just one db connection.
     private UploadsStorageManager mUploadsStorageManager = null;
 
@@ -160,13 +153,39 @@ public class FileUploader extends Service
     private LocalBroadcastManager mLocalBroadcastManager;
 
     /**
-     * {@link UploadFileOperation} object of ongoing upload. Can be null. Note: There can only be one concurrent upload!
+     * {@link UploadFileOperation} objects of ongoing uploads, indexed by upload key. Several uploads
+     * may run at the same time, up to the concurrency allowed per account by {@link #mTransferPool}.
      */
-    private UploadFileOperation mCurrentUpload = null;
+    private ConcurrentMap<String, UploadFileOperation> mCurrentUploads = new ConcurrentHashMap<>();
+
+    /**
+     * Id of the last command received; only accessed in the main thread.
+     */
+    private int mLastStartId;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Stops the service if no upload was queued since the workers got idle; run in the main thread, so
+     * it can't race with {@link #onStartCommand(Intent, int, int)}.
+     */
+    private final Runnable mStopIfIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (mTransferPool.isIdle()) {
+                Log_OC.d(TAG, "Stopping command after id " + mLastStartId);
+                stopSelf(mLastStartId);
+            }
+        }
+    };
 
     private NotificationManager mNotificationManager;
-    private NotificationCompat.Builder mNotificationBuilder;
-    private int mLastPercent;
+
+    /**
+     * Status notifications of the uploads being run by the workers in {@link #mTransferPool}.
+     */
+    private ConcurrentMap<UploadFileOperation, TransferNotification> mNotifications =
+        new ConcurrentHashMap<>();
 
     public static String getUploadsAddedMessage() {
         return FileUploader.class.getName() + UPLOADS_ADDED_MESSAGE;
@@ -181,9 +200,9 @@ public class FileUploader extends Service
     }
 
     @Override
-    public void onRenameUpload() {
-        mUploadsStorageManager.updateDatabaseUploadStart(mCurrentUpload);
-        sendBroadcastUploadStarted(mCurrentUpload);
+    public void onRenameUpload(UploadFileOperation upload) {
+        mUploadsStorageManager.updateDatabaseUploadStart(upload);
+        sendBroadcastUploadStarted(upload);
     }
 
     public static class UploadRequester {
@@ -200,8 +219,6 @@ public class FileUploader extends Service
 
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
-        mNotificationBuilder = NotificationUtils.newNotificationBuilder(this);
-
         // Configure notification channel
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
 
@@ -222,14 +239,25 @@ public class FileUploader extends Service
              * After calling startForegroundService method from {@link TransferRequester} we have
              * to call this within five seconds after the service is created to avoid an error
              */
-            startForeground(1, mNotificationBuilder.build());
+            startForeground(1, NotificationUtils.newNotificationBuilder(this).build());
         }
 
-        HandlerThread thread = new HandlerThread("FileUploaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        mTransferPool = new TransferWorkerPool(
+            "FileUploaderWorker",
+            new TransferWorkerPool.ConcurrencyPolicy() {
+                @Override
+                public int getMaxConcurrentTransfers(String accountName) {
+                    return PreferenceManager.getTransferConcurrency(accountName, FileUploader.this);
+                }
+            },
+            new TransferWorkerPool.OnIdleListener() {
+                @Override
+                public void onTransfersIdle() {
+                    // checked again in the main thread, where new commands are received
+                    mMainHandler.post(mStopIfIdle);
+                }
+            }
+        );
         mBinder = new FileUploaderBinder();
 
         mUploadsStorageManager = new UploadsStorageManager(getContentResolver());
@@ -254,8 +282,14 @@ public class FileUploader extends Service
      * Service clean-up when restarted after being killed
      */
     private void resurrection() {
-        // remove stucked notification
-        mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+        // remove stucked notifications
+        for (OCUpload upload : mUploadsStorageManager.getFailedUploads()) {
+            if (UploadResult.SERVICE_INTERRUPTED.equals(upload.getLastResult())) {
+                mNotificationManager.cancel(TransferNotification.getId(
+                    mPendingUploads.buildKey(upload.getAccountName(), upload.getRemotePath())
+                ));
+            }
+        }
     }
 
 
@@ -266,10 +300,11 @@ public class FileUploader extends Service
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service");
         mBinder = null;
-        mServiceHandler = null;
-        mServiceLooper.quit();
-        mServiceLooper = null;
-        mNotificationManager = null;
+        mMainHandler.removeCallbacks(mStopIfIdle);
+        mTransferPool.shutdown();
+        for (UploadFileOperation upload : mCurrentUploads.values()) {
+            upload.cancel();
+        }
 
         // remove AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -289,6 +324,7 @@ public class FileUploader extends Service
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log_OC.d(TAG, "Starting command with id " + startId);
+        mLastStartId = startId;
 
         boolean retry = intent.getBooleanExtra(KEY_RETRY, false);
         AbstractList<String> requestedUploads = new Vector<String>();
@@ -395,8 +431,7 @@ public class FileUploader extends Service
                     if (isCreateRemoteFolder) {
                         newUpload.setRemoteFolderToBeCreated();
                     }
-                    newUpload.addDatatransferProgressListener(this);
-                    newUpload.addDatatransferProgressListener((FileUploaderBinder) mBinder);
+                    newUpload.addDatatransferProgressListener(new UploadProgressForwarder(newUpload));
 
                     newUpload.addRenameUploadListener(this);
 
@@ -446,8 +481,7 @@ public class FileUploader extends Service
                     this
             );
 
-            newUpload.addDatatransferProgressListener(this);
-            newUpload.addDatatransferProgressListener((FileUploaderBinder) mBinder);
+            newUpload.addDatatransferProgressListener(new UploadProgressForwarder(newUpload));
 
             newUpload.addRenameUploadListener(this);
 
@@ -468,11 +502,17 @@ public class FileUploader extends Service
         // *** TODO REWRITE END ***/
 
         if (requestedUploads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedUploads;
-            mServiceHandler.sendMessage(msg);
+            for (final String uploadKey : requestedUploads) {
+                mTransferPool.submit(account.name, new Runnable() {
+                    @Override
+                    public void run() {
+                        uploadFile(uploadKey);
+                    }
+                });
+            }
             sendBroadcastUploadsAdded();
+        } else if (mTransferPool.isIdle()) {
+            stopSelf(startId);
         }
         return Service.START_NOT_STICKY;
     }
@@ -500,10 +540,11 @@ public class FileUploader extends Service
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-        // Review current upload, and cancel it if its account doen't exist
-        if (mCurrentUpload != null &&
-                !AccountUtils.exists(mCurrentUpload.getAccount(), getApplicationContext())) {
-            mCurrentUpload.cancel();
+        // Review current uploads, and cancel those whose account doesn't exist
+        for (UploadFileOperation upload : mCurrentUploads.values()) {
+            if (!AccountUtils.exists(upload.getAccount(), getApplicationContext())) {
+                upload.cancel();
+            }
         }
         // The rest of uploads are cancelled when they try to start
     }
@@ -521,7 +562,7 @@ public class FileUploader extends Service
          * {@link FileUploaderBinder} instance
          */
         private Map<String, WeakReference<OnDatatransferProgressListener>> mBoundListeners =
-                new HashMap<String, WeakReference<OnDatatransferProgressListener>>();
+                new ConcurrentHashMap<String, WeakReference<OnDatatransferProgressListener>>();
 
 
         /**
@@ -554,12 +595,14 @@ public class FileUploader extends Service
             Pair<UploadFileOperation, String> removeResult =
                     mPendingUploads.remove(accountName, remotePath);
             UploadFileOperation upload = removeResult.first;
-            if (upload == null &&
-                    mCurrentUpload != null && mCurrentAccount != null &&
-                    mCurrentUpload.getRemotePath().startsWith(remotePath) &&
-                    accountName.equals(mCurrentAccount.name)) {
-
-                upload = mCurrentUpload;
+            if (upload == null) {
+                for (UploadFileOperation current : mCurrentUploads.values()) {
+                    if (current.getRemotePath().startsWith(remotePath) &&
+                            accountName.equals(current.getAccount().name)) {
+                        upload = current;
+                        break;
+                    }
+                }
             }
             if (upload != null) {
                 boolean pending = !upload.isUploadInProgress();
@@ -581,10 +624,10 @@ public class FileUploader extends Service
         public void cancel(Account account) {
             Log_OC.d(TAG, "Account= " + account.name);
 
-            if (mCurrentUpload != null) {
-                Log_OC.d(TAG, "Current Upload Account= " + mCurrentUpload.getAccount().name);
-                if (mCurrentUpload.getAccount().name.equals(account.name)) {
-                    mCurrentUpload.cancel();
+            for (UploadFileOperation current : mCurrentUploads.values()) {
+                Log_OC.d(TAG, "Current Upload Account= " + current.getAccount().name);
+                if (current.getAccount().name.equals(account.name)) {
+                    current.cancel();
                 }
             }
             // Cancel pending uploads
@@ -617,13 +660,16 @@ public class FileUploader extends Service
 
 
         public boolean isUploadingNow(OCUpload upload) {
-            return (
-                upload != null  &&
-                mCurrentAccount != null &&
-                mCurrentUpload != null &&
-                upload.getAccountName().equals(mCurrentAccount.name) &&
-                upload.getRemotePath().equals(mCurrentUpload.getRemotePath())
-            );
+            if (upload == null) {
+                return false;
+            }
+            for (UploadFileOperation current : mCurrentUploads.values()) {
+                if (upload.getAccountName().equals(current.getAccount().name) &&
+                        upload.getRemotePath().equals(current.getRemotePath())) {
+                    return true;
+                }
+            }
+            return false;
         }
 
 
@@ -675,7 +721,8 @@ public class FileUploader extends Service
         ) {
             if (account == null || file == null || listener == null) return;
             String targetKey = buildRemoteName(account.name, file.getRemotePath());
-            if (mBoundListeners.get(targetKey) == listener) {
+            WeakReference<OnDatatransferProgressListener> boundListenerRef = mBoundListeners.get(targetKey);
+            if (boundListenerRef != null && boundListenerRef.get() == listener) {
                 mBoundListeners.remove(targetKey);
             }
         }
@@ -693,16 +740,29 @@ public class FileUploader extends Service
         ) {
             if (ocUpload == null || listener == null) return;
             String targetKey = buildRemoteName(ocUpload.getAccountName(), ocUpload.getRemotePath());
-            if (mBoundListeners.get(targetKey) == listener) {
+            WeakReference<OnDatatransferProgressListener> boundListenerRef = mBoundListeners.get(targetKey);
+            if (boundListenerRef != null && boundListenerRef.get() == listener) {
                 mBoundListeners.remove(targetKey);
             }
         }
 
 
+        /**
+         * Not used; progress is reported per upload through
+         * {@link #onTransferProgress(UploadFileOperation, long, long, long, String)}, since
+         * several uploads may be running at the same time.
+         */
         @Override
         public void onTransferProgress(long progressRate, long totalTransferredSoFar,
                                        long totalToTransfer, String fileName) {
-            String key = buildRemoteName(mCurrentUpload.getAccount().name, mCurrentUpload.getFile().getRemotePath());
+        }
+
+        /**
+         * Reports progress of a concrete upload to the listener bound for its file, if any.
+         */
+        void onTransferProgress(UploadFileOperation upload, long progressRate,
+                                long totalTransferredSoFar, long totalToTransfer, String fileName) {
+            String key = buildRemoteName(upload.getAccount().name, upload.getFile().getRemotePath());
             WeakReference<OnDatatransferProgressListener> boundListenerRef = mBoundListeners.get(key);
             if (boundListenerRef != null && boundListenerRef.get() != null) {
                 boundListenerRef.get().onTransferProgress(progressRate, totalTransferredSoFar,
@@ -727,109 +787,108 @@ public class FileUploader extends Service
     }
 
     /**
-     * Upload worker. Performs the pending uploads in the order they were
-     * requested.
+     * Forwards the progress of a single upload to the status notification and to the
+     * listener bound for its file.
      *
-     * Created with the Looper of a new thread, started in
-     * {@link FileUploader#onCreate()}.
+     * Several uploads may be running at the same time, so progress can't be matched against
+     * a single current upload anymore.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will
-        // warn about a possible memory leak
-        FileUploader mService;
-
-        public ServiceHandler(Looper looper, FileUploader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+    private class UploadProgressForwarder implements OnDatatransferProgressListener {
+
+        private final UploadFileOperation mUpload;
+
+        UploadProgressForwarder(UploadFileOperation upload) {
+            mUpload = upload;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedUploads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedUploads.iterator();
-                while (it.hasNext()) {
-                    mService.uploadFile(it.next());
-                }
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                       long totalToTransfer, String fileName) {
+            notifyUploadProgress(mUpload, totalTransferredSoFar, totalToTransfer, fileName);
+            FileUploaderBinder binder = (FileUploaderBinder) mBinder;
+            if (binder != null) {
+                binder.onTransferProgress(
+                    mUpload, progressRate, totalTransferredSoFar, totalToTransfer, fileName
+                );
             }
-            Log_OC.d(TAG, "Stopping command after id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
         }
     }
 
     /**
      * Core upload method: sends the file(s) to upload
      *
+     * Run by the workers of {@link #mTransferPool}, so it may be running for several files at
+     * the same time; no state is shared among calls except the thread-safe queues.
+     *
      * @param uploadKey Key to access the upload to perform, contained in mPendingUploads
      */
     public void uploadFile(String uploadKey) {
 
-        mCurrentUpload = mPendingUploads.get(uploadKey);
+        UploadFileOperation upload = mPendingUploads.get(uploadKey);
+
+        if (upload != null) {
 
-        if (mCurrentUpload != null) {
+            Account account = upload.getAccount();
 
             /// Check account existence
-            if (!AccountUtils.exists(mCurrentUpload.getAccount(), this)) {
+            if (!AccountUtils.exists(account, this)) {
                 Log_OC.w(
                     TAG,
-                    "Account " + mCurrentUpload.getAccount().name +
+                    "Account " + account.name +
                     " does not exist anymore -> cancelling all its uploads"
                 );
-                cancelUploadsForAccount(mCurrentUpload.getAccount());
+                cancelUploadsForAccount(account);
                 return;
             }
 
+            mCurrentUploads.put(uploadKey, upload);
+
             /// OK, let's upload
-            mUploadsStorageManager.updateDatabaseUploadStart(mCurrentUpload);
+            mUploadsStorageManager.updateDatabaseUploadStart(upload);
 
-            notifyUploadStart(mCurrentUpload);
+            notifyUploadStart(upload);
 
-            sendBroadcastUploadStarted(mCurrentUpload);
+            sendBroadcastUploadStarted(upload);
 
             RemoteOperationResult uploadResult = null;
 
             try {
                 /// prepare client object to send the request to the ownCloud server
-                if (mCurrentAccount == null ||
-                        !mCurrentAccount.equals(mCurrentUpload.getAccount())) {
-                    mCurrentAccount = mCurrentUpload.getAccount();
-                    mStorageManager = new FileDataStorageManager(
-                            mCurrentAccount,
-                            getContentResolver()
-                    );
-                }   // else, reuse storage manager from previous operation
+                FileDataStorageManager storageManager = new FileDataStorageManager(
+                        account,
+                        getContentResolver()
+                );
 
                 // always get client from client manager to get fresh credentials in case of update
                 OwnCloudAccount ocAccount = new OwnCloudAccount(
-                        mCurrentAccount,
+                        account,
                         this
                 );
-                mUploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                OwnCloudClient uploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
                         getClientFor(ocAccount, this);
 
                 /// perform the upload
-                uploadResult = mCurrentUpload.execute(mUploadClient, mStorageManager);
+                uploadResult = upload.execute(uploadClient, storageManager);
 
             } catch (Exception e) {
                 Log_OC.e(TAG, "Error uploading", e);
                 uploadResult = new RemoteOperationResult(e);
 
             } finally {
+                mCurrentUploads.remove(uploadKey);
+
                 Pair<UploadFileOperation, String> removeResult;
-                if (mCurrentUpload.wasRenamed()) {
+                if (upload.wasRenamed()) {
                     removeResult = mPendingUploads.removePayload(
-                            mCurrentAccount.name,
-                            mCurrentUpload.getOldFile().getRemotePath()
+                            account.name,
+                            upload.getOldFile().getRemotePath()
                     );
-                    /** TODO: grant that name is also updated for mCurrentUpload.getOCUploadId */
+                    /** TODO: grant that name is also updated for upload.getOCUploadId */
 
                 } else {
                     removeResult = mPendingUploads.removePayload(
-                            mCurrentAccount.name,
-                            mCurrentUpload.getRemotePath()
+                            account.name,
+                            upload.getRemotePath()
                     );
                 }
 
@@ -839,14 +898,14 @@ public class FileUploader extends Service
                     TransferRequester requester = new TransferRequester();
                     if (requester.shouldScheduleRetry(this, uploadResult.getException())) {
                         int jobId = mPendingUploads.buildKey(
-                            mCurrentAccount.name,
-                            mCurrentUpload.getRemotePath()
+                            account.name,
+                            upload.getRemotePath()
                         ).hashCode();
                         requester.scheduleUpload(
                             this,
                             jobId,
-                            mCurrentAccount.name,
-                            mCurrentUpload.getRemotePath()
+                            account.name,
+                            upload.getRemotePath()
                         );
                         uploadResult = new RemoteOperationResult(
                             ResultCode.NO_NETWORK_CONNECTION
@@ -856,8 +915,8 @@ public class FileUploader extends Service
                             TAG,
                             String.format(
                                 "Exception in upload, network is OK, no retry scheduled for %1s in %2s",
-                                mCurrentUpload.getRemotePath(),
-                                mCurrentAccount.name
+                                upload.getRemotePath(),
+                                account.name
                             )
                         );
                     }
@@ -866,18 +925,18 @@ public class FileUploader extends Service
                         TAG,
                         String.format(
                             "Success OR fail without exception for %1s in %2s",
-                            mCurrentUpload.getRemotePath(),
-                            mCurrentAccount.name
+                            upload.getRemotePath(),
+                            account.name
                         )
                     );
                 }
 
-                mUploadsStorageManager.updateDatabaseUploadResult(uploadResult, mCurrentUpload);
+                mUploadsStorageManager.updateDatabaseUploadResult(uploadResult, upload);
 
                 /// notify result
-                notifyUploadResult(mCurrentUpload, uploadResult);
+                notifyUploadResult(upload, uploadResult);
 
-                sendBroadcastUploadFinished(mCurrentUpload, uploadResult, removeResult.second);
+                sendBroadcastUploadFinished(upload, uploadResult, removeResult.second);
 
             }
 
@@ -892,8 +951,15 @@ public class FileUploader extends Service
      */
     private void notifyUploadStart(UploadFileOperation upload) {
         // / create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder
+        NotificationCompat.Builder builder = NotificationUtils.newNotificationBuilder(this);
+        TransferNotification notification = new TransferNotification(
+            TransferNotification.getId(
+                mPendingUploads.buildKey(upload.getAccount().name, upload.getRemotePath())
+            ),
+            builder
+        );
+        mNotifications.put(upload, notification);
+        builder
                 .setOngoing(true)
                 .setSmallIcon(R.drawable.notification_icon)
                 .setTicker(getString(R.string.uploader_upload_in_progress_ticker))
@@ -908,34 +974,38 @@ public class FileUploader extends Service
         showUploadListIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
         showUploadListIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
         showUploadListIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        mNotificationBuilder.setContentIntent(PendingIntent.getActivity(this, (int) System.currentTimeMillis(),
+        builder.setContentIntent(PendingIntent.getActivity(this, (int) System.currentTimeMillis(),
             showUploadListIntent, 0));
 
         if (!upload.isCameraUploadsPicture() && !upload.isCameraUploadsVideo()) {
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker,
-                    mNotificationBuilder.build());
+            mNotificationManager.notify(notification.getId(), builder.build());
         }// else wait until the upload really start (onTransferProgress is called), so that if it's discarded
         // due to lack of Wifi, no notification is shown
         // TODO generalize for automated uploads
     }
 
     /**
-     * Callback method to update the progress bar in the status notification
+     * Updates the progress bar in the status notification of an upload
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                   long totalToTransfer, String filePath) {
+    private void notifyUploadProgress(UploadFileOperation upload, long totalTransferredSoFar,
+                                      long totalToTransfer, String filePath) {
+        TransferNotification notification = mNotifications.get(upload);
+        if (notification == null) {
+            return;
+        }
         int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, false);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationBuilder.setChannelId(UPLOAD_NOTIFICATION_CHANNEL_ID);
-
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
+        synchronized (notification) {
+            if (notification.updatePercent(percent)) {
+                NotificationCompat.Builder builder = notification.getBuilder();
+                builder.setProgress(100, percent, false);
+                String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
+                String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
+                builder.setContentText(text);
+                builder.setChannelId(UPLOAD_NOTIFICATION_CHANNEL_ID);
+
+                mNotificationManager.notify(notification.getId(), builder.build());
+            }
         }
-        mLastPercent = percent;
     }
 
     /**
@@ -947,8 +1017,13 @@ public class FileUploader extends Service
     private void notifyUploadResult(UploadFileOperation upload,
                                     RemoteOperationResult uploadResult) {
         Log_OC.d(TAG, "NotifyUploadResult with resultCode: " + uploadResult.getCode());
+        TransferNotification notification = mNotifications.remove(upload);
+        if (notification == null) {
+            return;
+        }
         // / cancelled operation or success -> silent removal of progress notification
-        mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+        mNotificationManager.cancel(notification.getId());
+        NotificationCompat.Builder builder = notification.getBuilder();
 
         // Show the result: success or fail notification
         if (!uploadResult.isCancelled() &&
@@ -964,7 +1039,7 @@ public class FileUploader extends Service
             tickerId = (needsToUpdateCredentials) ?
                     R.string.uploader_upload_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            builder
                     .setTicker(getString(tickerId))
                     .setContentTitle(getString(tickerId))
                     .setAutoCancel(true)
@@ -989,7 +1064,7 @@ public class FileUploader extends Service
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                builder.setContentIntent(PendingIntent.getActivity(
                         this,
                         (int) System.currentTimeMillis(),
                         updateAccountCredentials,
@@ -997,7 +1072,7 @@ public class FileUploader extends Service
                 ));
 
             } else {
-                mNotificationBuilder.setContentText(content);
+                builder.setContentText(content);
             }
 
             if (!uploadResult.isSuccess() && !needsToUpdateCredentials ) {
@@ -1006,21 +1081,22 @@ public class FileUploader extends Service
                 showUploadListIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
                 showUploadListIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
                 showUploadListIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-                mNotificationBuilder.setContentIntent(PendingIntent.getActivity(this, (int) System.currentTimeMillis(),
+                builder.setContentIntent(PendingIntent.getActivity(this, (int) System.currentTimeMillis(),
                         showUploadListIntent, 0));
             }
 
-            mNotificationBuilder.setContentText(content);
-            mNotificationBuilder.setChannelId(UPLOAD_NOTIFICATION_CHANNEL_ID);
+            builder.setContentText(content);
+            builder.setChannelId(UPLOAD_NOTIFICATION_CHANNEL_ID);
 
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            // replaces the progress of this upload, not the result of others
+            mNotificationManager.notify(notification.getId(), builder.build());
 
             if (uploadResult.isSuccess()) {
                 mPendingUploads.remove(upload.getAccount().name, upload.getFile().getRemotePath());
                 // remove success notification, with a delay of 2 seconds
                 NotificationUtils.cancelWithDelay(
                         mNotificationManager,
-                        R.string.uploader_upload_succeeded_ticker,
+                        notification.getId(),
                         2000);
             }
         }
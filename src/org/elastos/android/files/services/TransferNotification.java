@@ -0,0 +1,74 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.files.services;
+
+import android.support.v4.app.NotificationCompat;
+
+/**
+ * Status notification of a single transfer.
+ *
+ * Several transfers run at the same time in {@link TransferWorkerPool}; each one gets its own builder,
+ * progress and notification id, so they don't overwrite nor cancel the notifications of others.
+ */
+class TransferNotification {
+
+    /**
+     * Ids of the notifications of transfers are taken from [FIRST_ID, FIRST_ID + ID_RANGE), away from the fixed
+     * ids of other notifications, as the foreground notification of the uploads service and the resource ids
+     * used by the synchronization and media notifications.
+     */
+    private static final int FIRST_ID = 0x10000000;
+    private static final int ID_RANGE = 0x01000000;
+
+    private final int mId;
+    private final NotificationCompat.Builder mBuilder;
+    private int mLastPercent = 0;
+
+    TransferNotification(int id, NotificationCompat.Builder builder) {
+        mId = id;
+        mBuilder = builder;
+    }
+
+    /**
+     * @return  Id of the notification of a transfer; the same for its progress and its result.
+     */
+    static int getId(String transferKey) {
+        return FIRST_ID + (transferKey.hashCode() & (ID_RANGE - 1));
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    NotificationCompat.Builder getBuilder() {
+        return mBuilder;
+    }
+
+    /**
+     * @return  'True' if the percent changed since the last call, and the notification must be updated.
+     */
+    boolean updatePercent(int percent) {
+        if (percent == mLastPercent) {
+            return false;
+        }
+        mLastPercent = percent;
+        return true;
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.files.services;
+
+import android.os.Process;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of worker threads running transfers (downloads or uploads) in parallel.
+ *
+ * Transfers are grouped by account; every account gets its own FIFO queue, and no more than
+ * {@link ConcurrencyPolicy#getMaxConcurrentTransfers(String)} transfers of the same account are
+ * handed to the worker threads at the same time. The total number of threads is bounded too,
+ * so several accounts syncing at once can't flood the Carrier tunnel.
+ *
+ * When the last queued transfer finishes, {@link OnIdleListener#onTransfersIdle()} is called
+ * from the worker thread that ran it.
+ */
+public class TransferWorkerPool {
+
+    private static final String TAG = TransferWorkerPool.class.getSimpleName();
+
+    /**
+     * Maximum number of worker threads, whatever the number of accounts.
+     */
+    public static final int MAX_WORKER_THREADS = 8;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Decides how many transfers of an account may run at the same time.
+     */
+    public interface ConcurrencyPolicy {
+        int getMaxConcurrentTransfers(String accountName);
+    }
+
+    /**
+     * Notified when there are no transfers running nor waiting.
+     */
+    public interface OnIdleListener {
+        void onTransfersIdle();
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ConcurrencyPolicy mPolicy;
+    private final OnIdleListener mIdleListener;
+
+    private final Map<String, Deque<Runnable>> mWaiting = new HashMap<>();
+    private final Map<String, Integer> mRunning = new HashMap<>();
+    private int mTotalQueued = 0;
+
+
+    public TransferWorkerPool(final String name, ConcurrencyPolicy policy, OnIdleListener idleListener) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Received invalid NULL in parameter 'policy'");
+        }
+        mPolicy = policy;
+        mIdleListener = idleListener;
+        mExecutor = new ThreadPoolExecutor(
+            MAX_WORKER_THREADS,
+            MAX_WORKER_THREADS,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, name + "-" + mCount.getAndIncrement());
+                }
+            }
+        );
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Queues a transfer of the given account. It will start as soon as the account has a free slot.
+     *
+     * @param accountName   Name of the account the transfer belongs to.
+     * @param transfer      Work to run in a worker thread.
+     */
+    public synchronized void submit(String accountName, Runnable transfer) {
+        Deque<Runnable> waiting = mWaiting.get(accountName);
+        if (waiting == null) {
+            waiting = new ArrayDeque<>();
+            mWaiting.put(accountName, waiting);
+        }
+        waiting.addLast(transfer);
+        mTotalQueued++;
+        dispatch(accountName);
+    }
+
+
+    /**
+     * Stops the worker threads. Transfers still waiting are dropped; running ones are left
+     * to finish, they are expected to be cancelled by the owner of the pool.
+     */
+    public synchronized void shutdown() {
+        for (Deque<Runnable> waiting : mWaiting.values()) {
+            mTotalQueued -= waiting.size();
+        }
+        mWaiting.clear();
+        mExecutor.shutdown();
+    }
+
+
+    /**
+     * @return Number of transfers currently running in the worker threads, for all the accounts.
+     */
+    public synchronized int getRunningCount() {
+        int count = 0;
+        for (Integer running : mRunning.values()) {
+            count += running;
+        }
+        return count;
+    }
+
+
+    /**
+     * @return 'True' if no transfer is running nor waiting, for any account.
+     */
+    public synchronized boolean isIdle() {
+        return mTotalQueued <= 0;
+    }
+
+
+    /**
+     * Hands to the executor as many waiting transfers of the account as its limit allows.
+     *
+     * Must be called with the lock held.
+     */
+    private void dispatch(final String accountName) {
+        Deque<Runnable> waiting = mWaiting.get(accountName);
+        int limit = Math.max(1, mPolicy.getMaxConcurrentTransfers(accountName));
+        Integer running = mRunning.get(accountName);
+        int count = (running == null) ? 0 : running;
+
+        while (waiting != null && !waiting.isEmpty() && count < limit && !mExecutor.isShutdown()) {
+            final Runnable transfer = waiting.pollFirst();
+            count++;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transfer.run();
+                    } catch (RuntimeException e) {
+                        Log_OC.e(TAG, "Unexpected exception in transfer of " + accountName, e);
+                    } finally {
+                        onTransferFinished(accountName);
+                    }
+                }
+            });
+        }
+        mRunning.put(accountName, count);
+        if (waiting != null && waiting.isEmpty()) {
+            mWaiting.remove(accountName);
+        }
+    }
+
+
+    private void onTransferFinished(String accountName) {
+        boolean idle;
+        synchronized (this) {
+            Integer running = mRunning.get(accountName);
+            int count = (running == null) ? 0 : running - 1;
+            if (count > 0) {
+                mRunning.put(accountName, count);
+            } else {
+                mRunning.remove(accountName);
+            }
+            mTotalQueued--;
+            dispatch(accountName);
+            idle = (mTotalQueued <= 0);
+        }
+        if (idle && mIdleListener != null) {
+            mIdleListener.onTransfersIdle();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import org.elastos.android.datamodel.BlockIndex;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.OptionsMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remote operation uploading a modified file sending only the ranges changed since the version indexed
+ * in a {@link BlockIndex}.
+ *
+ * Ranges are sent with the partial update extension of SabreDAV: a PATCH request per range, with header
+ * X-Update-Range. Servers announce it in the Accept-Patch header of OPTIONS responses, checked once per
+ * server with {@link #supportsPartialUpdate(OwnCloudClient, String)}.
+ *
+ * Callers must check the support of the server and {@link #isWorthSending(BlockIndex.Delta, long)} before
+ * creating the operation, and upload the file in any other way otherwise. The full file is only uploaded
+ * here, with a single PUT, when a range fails, since the server could keep the ranges applied before.
+ */
+public class DeltaUploadRemoteOperation extends UploadRemoteFileOperation {
+
+    private static final String TAG = DeltaUploadRemoteOperation.class.getSimpleName();
+
+    private static final String PARTIAL_UPDATE_CONTENT_TYPE = "application/x-sabredav-partialupdate";
+    private static final String ACCEPT_PATCH_HEADER = "Accept-Patch";
+    private static final String UPDATE_RANGE_HEADER = "X-Update-Range";
+    private static final String IF_MATCH_HEADER = "If-Match";
+    private static final String ETAG_HEADER = "ETag";
+
+    /**
+     * Maximum part of the file that can be modified to send a delta; above it, a single PUT is cheaper.
+     */
+    private static final double MAX_CHANGED_RATIO = 0.5;
+
+    /**
+     * Maximum number of ranges to send; above it, a single PUT is cheaper.
+     */
+    private static final int MAX_RANGES = 64;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Support of partial updates, per base URI of server; checked once per process.
+     */
+    private static final ConcurrentMap<String, Boolean> sPartialUpdateSupport = new ConcurrentHashMap<>();
+
+    private final File mFile;
+    private final String mDeltaRemotePath;
+    private final BlockIndex mIndex;
+    private final BlockIndex.Delta mDelta;
+
+    private final AtomicBoolean mCancelled = new AtomicBoolean(false);
+    private EntityEnclosingMethod mCurrentPatch;
+
+    private BlockIndex mUpdatedIndex;
+    private long mSentBytes = 0;
+
+    /**
+     * @param localPath         Path to the local file to upload.
+     * @param remotePath        Path in the server of the file to update.
+     * @param mimeType          MIME type of the file.
+     * @param requiredEtag      ETag the file in the server must have to be overwritten by a full upload;
+     *                          null if none.
+     * @param timestamp         Last modification time of the file, in seconds.
+     * @param index             Index of the version of the file in the server.
+     * @param delta             Changes of the local file since the indexed version, worth sending.
+     */
+    public DeltaUploadRemoteOperation(String localPath, String remotePath, String mimeType, String requiredEtag,
+                                      String timestamp, BlockIndex index, BlockIndex.Delta delta) {
+        super(localPath, remotePath, mimeType, requiredEtag, timestamp);
+        mFile = new File(localPath);
+        mDeltaRemotePath = remotePath;
+        mIndex = index;
+        mDelta = delta;
+    }
+
+
+    /**
+     * Checks if the changes of a file are cheaper to send as ranges than as a full upload.
+     *
+     * @param delta         Changes of the file; null if they can't be expressed as ranges.
+     * @param fileLength    Length of the modified file.
+     */
+    public static boolean isWorthSending(BlockIndex.Delta delta, long fileLength) {
+        return delta != null && delta.getRanges().size() <= MAX_RANGES &&
+                delta.getChangedBytes() <= fileLength * MAX_CHANGED_RATIO;
+    }
+
+
+    /**
+     * Checks if the server accepts partial updates with PATCH requests.
+     *
+     * The answer is kept for the rest of the process; only the first call for every server sends a
+     * request. Network failures are not kept, the next call asks again.
+     *
+     * @param remotePath    Path of a file in the server, to check with an OPTIONS request.
+     */
+    public static boolean supportsPartialUpdate(OwnCloudClient client, String remotePath) {
+        String serverKey = client.getBaseUri().toString();
+        Boolean supported = sPartialUpdateSupport.get(serverKey);
+        if (supported != null) {
+            return supported;
+        }
+
+        OptionsMethod options = new OptionsMethod(client.getWebdavUri() + WebdavUtils.encodePath(remotePath));
+        try {
+            int status = client.executeMethod(options);
+            client.exhaustResponse(options.getResponseBodyAsStream());
+            if (status != HttpStatus.SC_OK && status != HttpStatus.SC_NO_CONTENT) {
+                return false;
+            }
+            Header acceptPatch = options.getResponseHeader(ACCEPT_PATCH_HEADER);
+            supported = acceptPatch != null && acceptPatch.getValue().contains(PARTIAL_UPDATE_CONTENT_TYPE);
+            sPartialUpdateSupport.put(serverKey, supported);
+            return supported;
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "OPTIONS on " + remotePath + " failed: " + e.getMessage());
+            return false;
+
+        } finally {
+            options.releaseConnection();
+        }
+    }
+
+
+    /**
+     * @return  Index of the version uploaded, without ETag, if it was uploaded as a delta; null otherwise.
+     */
+    public BlockIndex getUpdatedIndex() {
+        return mUpdatedIndex;
+    }
+
+    /**
+     * @return  Bytes of the file sent in ranges, if it was uploaded as a delta.
+     */
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+
+    @Override
+    protected RemoteOperationResult uploadFile(OwnCloudClient client) throws IOException {
+        BlockIndex.Delta delta = mDelta;
+        if (delta.getRanges().isEmpty()) {
+            Log_OC.d(TAG, "No changes in " + mFile.getName() + " since the version in the server");
+            mUpdatedIndex = delta.getUpdatedIndex();
+            return new RemoteOperationResult(ResultCode.OK);
+        }
+
+        String uri = client.getWebdavUri() + WebdavUtils.encodePath(mDeltaRemotePath);
+        String etag = mIndex.getEtag();
+        List<long[]> ranges = delta.getRanges();
+        RemoteOperationResult result = null;
+        long sent = 0;
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                if (mCancelled.get()) {
+                    return new RemoteOperationResult(new OperationCancelledException());
+                }
+                long[] range = ranges.get(i);
+                PatchMethod patch = new PatchMethod(uri);
+                try {
+                    patch.addRequestHeader(UPDATE_RANGE_HEADER, "bytes=" + range[0] + "-" + range[1]);
+                    if (etag != null && etag.length() > 0) {
+                        patch.addRequestHeader(IF_MATCH_HEADER, "\"" + etag + "\"");
+                    }
+                    patch.setRequestEntity(
+                        new RangeRequestEntity(raf, range[0], range[1] - range[0] + 1, sent, delta.getChangedBytes())
+                    );
+                    mCurrentPatch = patch;
+
+                    int status = client.executeMethod(patch);
+                    result = new RemoteOperationResult(isSuccess(status), patch);
+                    Header etagHeader = patch.getResponseHeader(ETAG_HEADER);
+                    client.exhaustResponse(patch.getResponseBodyAsStream());
+
+                    if (!result.isSuccess()) {
+                        if (i == 0 && status == HttpStatus.SC_PRECONDITION_FAILED) {
+                            // changed in the server; nothing was applied
+                            return result;
+                        }
+                        Log_OC.w(TAG, "Range " + (i + 1) + " of " + ranges.size() + " of " + mFile.getName() +
+                            " failed, uploading full file: " + result.getLogMessage());
+                        return super.uploadFile(client);
+                    }
+
+                    sent += range[1] - range[0] + 1;
+                    // every range changes the ETag; later ranges are checked against the new one, if known
+                    etag = (etagHeader != null) ? normalizeEtag(etagHeader.getValue()) : null;
+
+                } catch (IOException e) {
+                    if (mCancelled.get()) {
+                        return new RemoteOperationResult(new OperationCancelledException());
+                    }
+                    throw e;
+
+                } finally {
+                    mCurrentPatch = null;
+                    patch.releaseConnection();
+                }
+            }
+        } finally {
+            raf.close();
+        }
+
+        mSentBytes = sent;
+        mUpdatedIndex = delta.getUpdatedIndex();
+        Log_OC.d(TAG, "Uploaded " + sent + " bytes of " + mFile.length() + " of " + mFile.getName() +
+            " in " + ranges.size() + " ranges");
+        return result;
+    }
+
+
+    private static String normalizeEtag(String etag) {
+        if (etag.startsWith("W/")) {
+            etag = etag.substring(2);
+        }
+        return etag.replace("\"", "");
+    }
+
+
+    private boolean isSuccess(int status) {
+        return status == HttpStatus.SC_OK || status == HttpStatus.SC_NO_CONTENT;
+    }
+
+
+    @Override
+    public void cancel() {
+        mCancelled.set(true);
+        EntityEnclosingMethod patch = mCurrentPatch;
+        if (patch != null) {
+            patch.abort();
+        }
+        super.cancel();
+    }
+
+
+    /**
+     * PATCH method; not provided by HttpClient 3.
+     */
+    private static class PatchMethod extends EntityEnclosingMethod {
+
+        PatchMethod(String uri) {
+            super(uri);
+        }
+
+        @Override
+        public String getName() {
+            return "PATCH";
+        }
+    }
+
+
+    /**
+     * Body of a range request, reporting the progress of the full delta.
+     */
+    private class RangeRequestEntity implements RequestEntity {
+
+        private final RandomAccessFile mRaf;
+        private final long mOffset;
+        private final long mLength;
+        private final long mPreviouslySent;
+        private final long mTotalLength;
+
+        RangeRequestEntity(RandomAccessFile raf, long offset, long length, long previouslySent, long totalLength) {
+            mRaf = raf;
+            mOffset = offset;
+            mLength = length;
+            mPreviouslySent = previouslySent;
+            mTotalLength = totalLength;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public String getContentType() {
+            return PARTIAL_UPDATE_CONTENT_TYPE;
+        }
+
+        @Override
+        public void writeRequest(OutputStream out) throws IOException {
+            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+            long written = 0;
+            mRaf.seek(mOffset);
+            while (written < mLength) {
+                int read = mRaf.read(buffer, 0, (int) Math.min(buffer.length, mLength - written));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + mFile.getAbsolutePath());
+                }
+                out.write(buffer, 0, read);
+                written += read;
+                synchronized (mDataTransferListeners) {
+                    Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+                    while (it.hasNext()) {
+                        it.next().onTransferProgress(read, mPreviouslySent + written, mTotalLength,
+                            mFile.getName());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -22,19 +22,22 @@
 package org.elastos.android.operations;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.elastos.android.MainApp;
+import org.elastos.android.datamodel.BlockIndex;
 import org.elastos.android.datamodel.OCFile;
+import org.elastos.android.db.PreferenceManager;
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.DownloadRemoteFileOperation;
 import org.elastos.android.utils.FileStorageUtils;
 
 import android.accounts.Account;
@@ -47,6 +50,11 @@ public class DownloadFileOperation extends RemoteOperation {
     
     private static final String TAG = DownloadFileOperation.class.getSimpleName();
 
+    /**
+     * Files of this size or bigger are downloaded in several byte ranges in parallel.
+     */
+    private static final long SEGMENTED_DOWNLOAD_THRESHOLD = 16 * 1024 * 1024;
+
     private Account mAccount;
     private OCFile mFile;
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
@@ -54,7 +62,7 @@ public class DownloadFileOperation extends RemoteOperation {
     private String mEtag = "";
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     
-    private DownloadRemoteFileOperation mDownloadOperation;
+    private ResumableDownloadRemoteOperation mDownloadOperation;
 
     
     public DownloadFileOperation(Account account, OCFile file) {
@@ -131,17 +139,23 @@ public class DownloadFileOperation extends RemoteOperation {
         return mEtag;
     }
 
+    /**
+     * @return Number of bytes reused from a previous, interrupted download of the same file.
+     */
+    public long getResumedBytes() {
+        return (mDownloadOperation != null) ? mDownloadOperation.getResumedBytes() : 0;
+    }
+
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
         RemoteOperationResult result;
         File newFile;
         boolean moved;
         
-        /// download will be performed to a temporal file, then moved to the final location
+        /// download will be performed to a temporal file, then moved to the final location;
+        /// the temporal file is kept after a failure, to resume the download in the next attempt
         File tmpFile = new File(getTmpPath());
         
-        String tmpFolder =  getTmpFolder();
-        
         /// perform the download
         synchronized(mCancellationRequested) {
             if (mCancellationRequested.get()) {
@@ -149,7 +163,17 @@ public class DownloadFileOperation extends RemoteOperation {
             }
         }
         
-        mDownloadOperation = new DownloadRemoteFileOperation(mFile.getRemotePath(), tmpFolder);
+        mDownloadOperation = new ResumableDownloadRemoteOperation(
+            mFile.getRemotePath(),
+            tmpFile,
+            mFile.getEtag()
+        );
+        if (mFile.getFileLength() >= SEGMENTED_DOWNLOAD_THRESHOLD) {
+            mDownloadOperation.setSegments(
+                PreferenceManager.getDownloadSegments(MainApp.getAppContext()),
+                mFile.getFileLength()
+            );
+        }
         Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
         while (listener.hasNext()) {
             mDownloadOperation.addDatatransferProgressListener(listener.next());
@@ -176,14 +200,34 @@ public class DownloadFileOperation extends RemoteOperation {
                 result = new RemoteOperationResult(
                     RemoteOperationResult.ResultCode.LOCAL_STORAGE_NOT_MOVED
                 );
+            } else {
+                saveBlockIndex(newFile);
             }
         }
         Log_OC.i(TAG, "Download of " + mFile.getRemotePath() + " to " + getSavePath() + ": " +
-                result.getLogMessage());
+                result.getLogMessage() + " (" + getResumedBytes() + " bytes resumed)");
         
         return result;
     }
 
+    /**
+     * Indexes the blocks of an available offline file just downloaded, so that its local changes can be
+     * uploaded as a delta.
+     *
+     * @param localFile     Local copy of the file downloaded.
+     */
+    private void saveBlockIndex(File localFile) {
+        if (mFile.getAvailableOfflineStatus() == OCFile.AvailableOfflineStatus.NOT_AVAILABLE_OFFLINE) {
+            return;
+        }
+        try {
+            BlockIndex.build(localFile, mEtag).save(mAccount.name, mFile.getRemotePath());
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not save block index of " + mFile.getRemotePath() + ": " + e.getMessage());
+            BlockIndex.delete(mAccount.name, mFile.getRemotePath());
+        }
+    }
+
     public void cancel() {
         mCancellationRequested.set(true);   // atomic set; there is no need of synchronizing it
         if (mDownloadOperation != null) {
@@ -21,6 +21,7 @@
 package org.elastos.android.operations;
 
 import org.elastos.android.MainApp;
+import org.elastos.android.datamodel.BlockIndex;
 import org.elastos.android.datamodel.OCFile;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
@@ -96,6 +97,9 @@ public class MoveFileOperation extends SyncOperation {
         
         /// 3. local move
         if (result.isSuccess()) {
+            // indexes are kept by remote path; the next upload indexes the file again
+            BlockIndex.delete(getStorageManager().getAccount().name, mSrcPath);
+
             // stop observing changes if available offline
             boolean isAvailableOffline = mFile.getAvailableOfflineStatus().equals(
                 OCFile.AvailableOfflineStatus.AVAILABLE_OFFLINE
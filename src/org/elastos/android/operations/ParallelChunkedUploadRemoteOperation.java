@@ -0,0 +1,446 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
+import com.owncloud.android.lib.resources.files.RemoteFile;
+import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remote operation uploading a big local file in chunks, keeping several chunks in flight at the same
+ * time.
+ *
+ * Chunks are uploaded with the same protocol as {@link com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation};
+ * the server assembles the file when all of them are received, whatever the order they arrived in.
+ *
+ * Every worker reads its chunk from the file with a positional read, so the next chunks are read
+ * while the previous ones are still being sent. A chunk that fails due to a network error or a server
+ * error is retried alone, a few times, without sending again the chunks already received.
+ *
+ * An interrupted transfer can be resumed by a new instance, see {@link #setResumeState(String, Set)},
+ * sending only the chunks not acknowledged before. The chunking protocol provides no way to list the
+ * chunks kept by the server, so the file is checked once all the chunks are sent, and uploaded again
+ * from the start if the server had discarded them in the meantime.
+ */
+public class ParallelChunkedUploadRemoteOperation extends UploadRemoteFileOperation {
+
+    private static final String TAG = ParallelChunkedUploadRemoteOperation.class.getSimpleName();
+
+    private static final String IF_MATCH_HEADER = "If-Match";
+    private static final String OC_TOTAL_LENGTH_HEADER = "OC-Total-Length";
+    private static final String OC_X_OC_MTIME_HEADER = "X-OC-Mtime";
+    private static final String OC_CHUNKED_HEADER = "OC-Chunked";
+    private static final String OC_CHUNK_SIZE_HEADER = "OC-Chunk-Size";
+
+    private static final int MAX_ATTEMPTS_PER_CHUNK = 3;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private final String mChunkedRemotePath;
+    private final String mChunkMimeType;
+    private final String mRequiredEtagForUpload;
+    private final String mLastModifiedTimestamp;
+    private final long mChunkSize;
+    private final int mChunksInFlight;
+
+    private final AtomicBoolean mCancelled = new AtomicBoolean(false);
+    private final AtomicLong mTransferred = new AtomicLong(0);
+
+    private String mTransferId;
+
+    /**
+     * Chunks received by the server. Accessed with its own lock.
+     */
+    private final Set<Integer> mAcknowledgedChunks = new HashSet<>();
+
+    private OnChunkAcknowledgedListener mChunkAcknowledgedListener;
+
+    private long mResumedBytes = 0;
+
+    /**
+     * Requests being sent. Accessed with its own lock.
+     */
+    private final Set<PutMethod> mInFlight = new HashSet<>();
+
+    /**
+     * @param localPath         Path to the local file to upload.
+     * @param remotePath        Path in the server where the file will be uploaded.
+     * @param mimeType          MIME type of the file.
+     * @param requiredEtag      ETag the file in the server must have to be overwritten; null if none.
+     * @param timestamp         Last modification time of the file, in seconds.
+     * @param chunkSize         Size in bytes of every chunk but the last one.
+     * @param chunksInFlight    Maximum number of chunks sent at the same time.
+     */
+    public ParallelChunkedUploadRemoteOperation(String localPath, String remotePath, String mimeType,
+                                                String requiredEtag, String timestamp, long chunkSize,
+                                                int chunksInFlight) {
+        super(localPath, remotePath, mimeType, requiredEtag, timestamp);
+        mFile = new File(localPath);
+        mChunkedRemotePath = remotePath;
+        mChunkMimeType = mimeType;
+        mRequiredEtagForUpload = requiredEtag;
+        mLastModifiedTimestamp = timestamp;
+        mChunkSize = chunkSize;
+        mChunksInFlight = Math.max(1, chunksInFlight);
+        mTransferId = newTransferId();
+    }
+
+
+    /**
+     * Continues a previous transfer of the same file, with the same chunk size.
+     *
+     * @param transferId            Identifier of the interrupted transfer.
+     * @param acknowledgedChunks    Indexes of the chunks the server acknowledged in that transfer.
+     */
+    public void setResumeState(String transferId, Set<Integer> acknowledgedChunks) {
+        mTransferId = transferId;
+        synchronized (mAcknowledgedChunks) {
+            mAcknowledgedChunks.clear();
+            mAcknowledgedChunks.addAll(acknowledgedChunks);
+        }
+    }
+
+    public void setOnChunkAcknowledgedListener(OnChunkAcknowledgedListener listener) {
+        mChunkAcknowledgedListener = listener;
+    }
+
+    /**
+     * @return  Bytes of the file not sent because the server acknowledged them in a previous transfer.
+     */
+    public long getResumedBytes() {
+        return mResumedBytes;
+    }
+
+    @Override
+    protected RemoteOperationResult uploadFile(OwnCloudClient client) throws IOException {
+        RemoteOperationResult result = uploadPendingChunks(client);
+
+        if (result.isSuccess() && mResumedBytes > 0 && !isAssembled(client)) {
+            Log_OC.w(TAG, "Chunks of transfer " + mTransferId + " were discarded by the server, " +
+                "uploading " + mFile.getName() + " from the start");
+            synchronized (mAcknowledgedChunks) {
+                mTransferId = newTransferId();
+                mAcknowledgedChunks.clear();
+                notifyChunkAcknowledged();
+            }
+            result = uploadPendingChunks(client);
+        }
+        return result;
+    }
+
+
+    private RemoteOperationResult uploadPendingChunks(final OwnCloudClient client) throws IOException {
+        final long totalLength = mFile.length();
+        final int chunkCount = (int) ((totalLength + mChunkSize - 1) / mChunkSize);
+        final String uriPrefix = client.getWebdavUri() + WebdavUtils.encodePath(mChunkedRemotePath) +
+            "-chunking-" + mTransferId + "-" + chunkCount + "-";
+
+        List<Integer> pendingChunks = new ArrayList<>();
+        mResumedBytes = 0;
+        synchronized (mAcknowledgedChunks) {
+            for (int i = 0; i < chunkCount; i++) {
+                if (mAcknowledgedChunks.contains(i)) {
+                    mResumedBytes += Math.min(mChunkSize, totalLength - i * mChunkSize);
+                } else {
+                    pendingChunks.add(i);
+                }
+            }
+        }
+        if (pendingChunks.isEmpty()) {
+            return new RemoteOperationResult(ResultCode.OK);
+        }
+        if (mResumedBytes > 0) {
+            Log_OC.d(TAG, "Resuming transfer " + mTransferId + " of " + mFile.getName() + ", " +
+                mResumedBytes + " bytes already in the server");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        final FileChannel channel = raf.getChannel();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mChunksInFlight, pendingChunks.size()));
+        CompletionService<RemoteOperationResult> completion = new ExecutorCompletionService<>(executor);
+        mTransferred.set(mResumedBytes);
+
+        RemoteOperationResult result = null;
+        try {
+            for (final int chunkIndex : pendingChunks) {
+                completion.submit(new Callable<RemoteOperationResult>() {
+                    @Override
+                    public RemoteOperationResult call() throws Exception {
+                        return uploadChunk(client, channel, uriPrefix, chunkIndex, chunkCount, totalLength);
+                    }
+                });
+            }
+
+            for (int i = 0; i < pendingChunks.size(); i++) {
+                RemoteOperationResult chunkResult;
+                try {
+                    chunkResult = completion.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    chunkResult = new RemoteOperationResult(cause instanceof Exception ? (Exception) cause : e);
+                }
+                result = chunkResult;
+                if (!chunkResult.isSuccess()) {
+                    // stop the rest, the upload failed
+                    abortAll();
+                    break;
+                }
+            }
+
+        } catch (InterruptedException e) {
+            abortAll();
+            result = new RemoteOperationResult(new OperationCancelledException());
+
+        } finally {
+            executor.shutdownNow();
+            raf.close();
+        }
+
+        if (mCancelled.get()) {
+            result = new RemoteOperationResult(new OperationCancelledException());
+        }
+        return result;
+    }
+
+
+    /**
+     * Sends a chunk, retrying it when the failure is not caused by the request itself.
+     */
+    private RemoteOperationResult uploadChunk(OwnCloudClient client, FileChannel channel, String uriPrefix,
+                                              int chunkIndex, int chunkCount, long totalLength)
+            throws IOException, InterruptedException {
+
+        long offset = chunkIndex * mChunkSize;
+        byte[] data = new byte[(int) Math.min(mChunkSize, totalLength - offset)];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + mFile.getAbsolutePath());
+            }
+        }
+
+        RemoteOperationResult result = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS_PER_CHUNK; attempt++) {
+            if (mCancelled.get()) {
+                return new RemoteOperationResult(new OperationCancelledException());
+            }
+            PutMethod putMethod = new PutMethod(uriPrefix + chunkIndex);
+            ChunkRequestEntity entity = new ChunkRequestEntity(data, totalLength);
+            try {
+                if (mRequiredEtagForUpload != null && mRequiredEtagForUpload.length() > 0) {
+                    putMethod.addRequestHeader(IF_MATCH_HEADER, "\"" + mRequiredEtagForUpload + "\"");
+                }
+                putMethod.addRequestHeader(OC_CHUNKED_HEADER, OC_CHUNKED_HEADER);
+                putMethod.addRequestHeader(OC_CHUNK_SIZE_HEADER, String.valueOf(data.length));
+                putMethod.addRequestHeader(OC_TOTAL_LENGTH_HEADER, String.valueOf(totalLength));
+                putMethod.addRequestHeader(OC_X_OC_MTIME_HEADER, mLastModifiedTimestamp);
+                putMethod.setRequestEntity(entity);
+
+                synchronized (mInFlight) {
+                    mInFlight.add(putMethod);
+                }
+                int status = client.executeMethod(putMethod);
+                result = new RemoteOperationResult(isSuccessfulChunk(status), putMethod);
+                client.exhaustResponse(putMethod.getResponseBodyAsStream());
+
+                if (result.isSuccess()) {
+                    synchronized (mAcknowledgedChunks) {
+                        mAcknowledgedChunks.add(chunkIndex);
+                        notifyChunkAcknowledged();
+                    }
+                }
+                if (result.isSuccess() || status < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                    // done, or a failure that will not be solved retrying
+                    return result;
+                }
+
+            } catch (IOException e) {
+                if (mCancelled.get()) {
+                    return new RemoteOperationResult(new OperationCancelledException());
+                }
+                result = new RemoteOperationResult(e);
+
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(putMethod);
+                }
+                putMethod.releaseConnection();
+            }
+
+            // bytes of a failed attempt will be sent again
+            mTransferred.addAndGet(-entity.mSent);
+            Log_OC.w(TAG, "Chunk " + chunkIndex + " of " + chunkCount + " failed, attempt " + attempt +
+                ": " + result.getLogMessage());
+            if (attempt < MAX_ATTEMPTS_PER_CHUNK) {
+                Thread.sleep(RETRY_DELAY_MS * attempt);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Called with the lock of {@link #mAcknowledgedChunks}, so that listeners receive the changes in order.
+     */
+    private void notifyChunkAcknowledged() {
+        if (mChunkAcknowledgedListener != null) {
+            mChunkAcknowledgedListener.onChunkAcknowledged(mTransferId, new HashSet<>(mAcknowledgedChunks));
+        }
+    }
+
+
+    /**
+     * Checks that the server assembled the file uploaded, comparing its length and modification time.
+     */
+    private boolean isAssembled(OwnCloudClient client) {
+        RemoteOperationResult result = new ReadRemoteFileOperation(mChunkedRemotePath).execute(client);
+        if (!result.isSuccess()) {
+            return false;
+        }
+        RemoteFile remoteFile = (RemoteFile) result.getData().get(0);
+        return remoteFile.getLength() == mFile.length() &&
+            String.valueOf(remoteFile.getModifiedTimestamp() / 1000).equals(mLastModifiedTimestamp);
+    }
+
+
+    private static String newTransferId() {
+        return String.valueOf(1000 + new Random().nextInt(Integer.MAX_VALUE - 1000));
+    }
+
+
+    private boolean isSuccessfulChunk(int status) {
+        return status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED ||
+            status == HttpStatus.SC_NO_CONTENT;
+    }
+
+
+    private void abortAll() {
+        synchronized (mInFlight) {
+            for (PutMethod putMethod : mInFlight) {
+                putMethod.abort();
+            }
+        }
+    }
+
+
+    @Override
+    public void cancel() {
+        mCancelled.set(true);
+        abortAll();
+        super.cancel();
+    }
+
+
+    /**
+     * Receives the state of the transfer every time the server acknowledges a chunk, so that it can be
+     * saved to resume the transfer if interrupted.
+     *
+     * Called from the worker threads, one call at a time.
+     */
+    public interface OnChunkAcknowledgedListener {
+        void onChunkAcknowledged(String transferId, Set<Integer> acknowledgedChunks);
+    }
+
+
+    /**
+     * Body of a chunk request, reporting the progress of the full upload.
+     */
+    private class ChunkRequestEntity implements RequestEntity {
+
+        private final byte[] mData;
+        private final long mTotalLength;
+        private long mSent = 0;
+
+        ChunkRequestEntity(byte[] data, long totalLength) {
+            mData = data;
+            mTotalLength = totalLength;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mData.length;
+        }
+
+        @Override
+        public String getContentType() {
+            return mChunkMimeType;
+        }
+
+        @Override
+        public void writeRequest(OutputStream out) throws IOException {
+            // a repeated write, for instance after an authentication challenge, starts over
+            mTransferred.addAndGet(-mSent);
+            mSent = 0;
+
+            int offset = 0;
+            while (offset < mData.length) {
+                int length = Math.min(WRITE_BUFFER_SIZE, mData.length - offset);
+                out.write(mData, offset, length);
+                offset += length;
+                mSent += length;
+                long transferred = mTransferred.addAndGet(length);
+                synchronized (mDataTransferListeners) {
+                    Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+                    while (it.hasNext()) {
+                        it.next().onTransferProgress(length, transferred, mTotalLength, mFile.getName());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -21,14 +21,26 @@
 package org.elastos.android.operations;
 
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.accounts.Account;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 
 import org.elastos.android.authentication.AccountUtils;
+import org.elastos.android.datamodel.FileDataStorageManager;
 import org.elastos.android.datamodel.OCFile;
+import org.elastos.android.db.PreferenceManager;
 
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.resources.shares.OCShare;
@@ -51,7 +63,8 @@ import org.elastos.android.syncadapter.FileSyncAdapter;
  *
  *  Synchronizes the CONTENTS of any file or folder set locally as AVAILABLE OFFLINE.
  *
- *  If the folder is ROOT, it also retrieves the VERSION of the server, and the USER PROFILE info.
+ *  If the folder is ROOT, it also retrieves the VERSION of the server, and the USER PROFILE info, in parallel
+ *  to the list of files; both are reused for a while in later refreshes, unless the ETag is ignored.
  *
  *  Does NOT travel subfolders to refresh their contents also, UNLESS they are
  *  set as AVAILABLE OFFLINE FOLDERS.
@@ -64,6 +77,40 @@ public class RefreshFolderOperation extends SyncOperation {
             RefreshFolderOperation.class.getName() + ".EVENT_SINGLE_FOLDER_CONTENTS_SYNCED";
     public static final String EVENT_SINGLE_FOLDER_SHARES_SYNCED    = 
             RefreshFolderOperation.class.getName() + ".EVENT_SINGLE_FOLDER_SHARES_SYNCED";
+
+    /** Time the capabilities and the user profile fetched in a refresh of the root folder are reused */
+    private static final long ROOT_DATA_TTL_MS = 15 * 60 * 1000;
+
+    /** Maximum number of requests run in parallel to the synchronization of lists of files, in all refreshes */
+    private static final int REQUESTS_THREADS = 3;
+
+    private static final long REQUESTS_KEEP_ALIVE_SECONDS = 30;
+
+    /** Runs the requests done in parallel to the synchronization of the list of files; more wait in queue */
+    private static final ThreadPoolExecutor sRequestsExecutor = new ThreadPoolExecutor(
+        REQUESTS_THREADS,
+        REQUESTS_THREADS,
+        REQUESTS_KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RefreshFolderRequests-" + mCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }
+    );
+
+    static {
+        sRequestsExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final AtomicLong sCachedCapabilitiesCount = new AtomicLong(0);
+    private static final AtomicLong sCachedUserProfileCount = new AtomicLong(0);
     
     /** Locally cached information about folder to synchronize */
     private OCFile mLocalFolder;
@@ -80,12 +127,20 @@ public class RefreshFolderOperation extends SyncOperation {
     /**
      * 'True' means that the list of files in the remote folder should
      *  be fetched and merged locally even though the 'eTag' did not change.
+     *
+     *  Otherwise, the ETag of the folder is fetched first; two PROPFINDS when the folder changed,
+     *  but much better performance with (big) unchanged folders.
      */
-    private boolean mIgnoreETag;    // TODO - use it prefetching ETag of folder; two PROPFINDS, but better
-                                    // TODO -   performance with (big) unchanged folders
+    private boolean mIgnoreETag;
 
     private LocalBroadcastManager mLocalBroadcastManager;
 
+    /** Time spent in every request of the last execution, in milliseconds; -1 if not requested */
+    private volatile long mCapabilitiesTimeMs = -1;
+    private volatile long mUserProfileTimeMs = -1;
+    private volatile long mFilesTimeMs = -1;
+    private volatile long mSharesTimeMs = -1;
+
     /**
      * Creates a new instance of {@link RefreshFolderOperation}.
      * 
@@ -113,24 +168,52 @@ public class RefreshFolderOperation extends SyncOperation {
     
     /**
      * Performs the synchronization.
+     *
+     * In the root folder, the capabilities and the user profile are requested at the same time as the list
+     * of files. The shares in the folder are requested at the same time too, but saved after the files.
      * 
      * {@inheritDoc}
      */
     @Override
-    protected RemoteOperationResult run(OwnCloudClient client) {
+    protected RemoteOperationResult run(final OwnCloudClient client) {
         RemoteOperationResult result;
+        long startTime = SystemClock.elapsedRealtime();
 
         // get 'fresh data' from the database
         mLocalFolder = getStorageManager().getFileByPath(mLocalFolder.getRemotePath());
+        boolean isRoot = OCFile.ROOT_PATH.equals(mLocalFolder.getRemotePath());
 
-        // only in root folder: sync server version and user profile
-        if (OCFile.ROOT_PATH.equals(mLocalFolder.getRemotePath())) {
-            OwnCloudVersion serverVersion = syncCapabilitiesAndGetServerVersion();
-            mIsShareSupported = serverVersion.isSharedSupported();
-            syncUserProfile();
+        // only in root folder: sync server version and user profile, while the list of files is synchronized
+        Future<OwnCloudVersion> serverVersionFuture = null;
+        Future<?> userProfileFuture = null;
+        if (isRoot) {
+            serverVersionFuture = sRequestsExecutor.submit(new Callable<OwnCloudVersion>() {
+                @Override
+                public OwnCloudVersion call() {
+                    return syncCapabilitiesAndGetServerVersion();
+                }
+            });
+            userProfileFuture = sRequestsExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    syncUserProfile();
+                }
+            });
+        }
+
+        // request the list of shares with the list of files, if already known to be supported
+        Future<RemoteOperationResult> sharesFuture = null;
+        if (mIsShareSupported) {
+            sharesFuture = sRequestsExecutor.submit(new Callable<RemoteOperationResult>() {
+                @Override
+                public RemoteOperationResult call() {
+                    return fetchSharesForFolder(client);
+                }
+            });
         }
 
         // sync list of files, and contents of available offline files & folders
+        long filesStartTime = SystemClock.elapsedRealtime();
         SynchronizeFolderOperation syncOp = new SynchronizeFolderOperation(
             mContext,
             mLocalFolder.getRemotePath(),
@@ -138,9 +221,20 @@ public class RefreshFolderOperation extends SyncOperation {
             System.currentTimeMillis(),
             false,
             false,
-            false
+            false,
+            mIgnoreETag
         );
         result = syncOp.execute(client, getStorageManager());
+        mFilesTimeMs = SystemClock.elapsedRealtime() - filesStartTime;
+
+        if (isRoot) {
+            OwnCloudVersion serverVersion = join(serverVersionFuture);
+            if (serverVersion == null) {
+                serverVersion = AccountUtils.getServerVersion(mAccount);
+            }
+            mIsShareSupported = (serverVersion != null && serverVersion.isSharedSupported());
+            join(userProfileFuture);
+        }
 
         sendLocalBroadcast(
                 EVENT_SINGLE_FOLDER_CONTENTS_SYNCED, mLocalFolder.getRemotePath(), result
@@ -148,56 +242,111 @@ public class RefreshFolderOperation extends SyncOperation {
 
         // sync list of shares
         if (result.isSuccess() && mIsShareSupported) {
-            refreshSharesForFolder(client); // share result is ignored 
+            RemoteOperationResult sharesResult = (sharesFuture != null) ?
+                join(sharesFuture) :
+                fetchSharesForFolder(client);
+            if (sharesResult != null) {
+                saveSharesForFolder(sharesResult); // share result is ignored
+            }
+
+        } else if (sharesFuture != null) {
+            // not needed anymore; a request already sent can't be stopped, its result is dropped
+            sharesFuture.cancel(true);
         }
         
         sendLocalBroadcast(
                 EVENT_SINGLE_FOLDER_SHARES_SYNCED, mLocalFolder.getRemotePath(), result
         );
 
+        if (isRoot) {
+            Log_OC.i(TAG, "Refreshed root folder of " + mAccount.name + " in " +
+                (SystemClock.elapsedRealtime() - startTime) + " ms; capabilities: " +
+                timing(mCapabilitiesTimeMs) + ", user profile: " + timing(mUserProfileTimeMs) +
+                ", files: " + mFilesTimeMs + " ms, shares: " + timing(mSharesTimeMs));
+        }
+
         return result;
         
     }
 
     private void syncUserProfile() {
+        if (!mIgnoreETag && isFresh(PreferenceManager.getLastUserProfileSync(mAccount.name, mContext))) {
+            sCachedUserProfileCount.incrementAndGet();
+            Log_OC.d(TAG, "User profile fetched recently, not requested");
+            return;
+        }
+        long startTime = SystemClock.elapsedRealtime();
         GetUserProfileOperation update = new GetUserProfileOperation();
-        RemoteOperationResult result = update.execute(getStorageManager(), mContext);
+        RemoteOperationResult result = update.execute(newStorageManager(), mContext);
         if (!result.isSuccess()) {
             Log_OC.w(TAG, "Couldn't update user profile from server");
         } else {
             Log_OC.i(TAG, "Got user profile");
+            PreferenceManager.setLastUserProfileSync(mAccount.name, System.currentTimeMillis(), mContext);
         }
+        mUserProfileTimeMs = SystemClock.elapsedRealtime() - startTime;
     }
 
     private OwnCloudVersion syncCapabilitiesAndGetServerVersion() {
         OwnCloudVersion serverVersion;
+        if (!mIgnoreETag && isFresh(PreferenceManager.getLastCapabilitiesSync(mAccount.name, mContext))) {
+            serverVersion = AccountUtils.getServerVersion(mAccount);
+            if (serverVersion != null) {
+                sCachedCapabilitiesCount.incrementAndGet();
+                Log_OC.d(TAG, "Capabilities fetched recently, not requested");
+                return serverVersion;
+            }
+        }
+        long startTime = SystemClock.elapsedRealtime();
         SyncCapabilitiesOperation getCapabilities = new SyncCapabilitiesOperation();
-        RemoteOperationResult result = getCapabilities.execute(getStorageManager(), mContext);
+        RemoteOperationResult result = getCapabilities.execute(newStorageManager(), mContext);
         if (result.isSuccess()) {
             OCCapability capability = (OCCapability) result.getData().get(0);
             serverVersion = new OwnCloudVersion(capability.getVersionString());
+            PreferenceManager.setLastCapabilitiesSync(mAccount.name, System.currentTimeMillis(), mContext);
         } else {
             // get whatever was stored before for the version
             serverVersion = AccountUtils.getServerVersion(mAccount);
         }
+        mCapabilitiesTimeMs = SystemClock.elapsedRealtime() - startTime;
         return serverVersion;
     }
 
     /**
-     * Syncs the Share resources for the files contained in the folder refreshed (children, not deeper descendants).
+     * Creates a storage manager for the requests run in {@link #sRequestsExecutor}.
+     *
+     * The one of the operation may wrap a {@link android.content.ContentProviderClient}, not safe to use
+     * from several threads; a {@link android.content.ContentResolver} is.
+     */
+    private FileDataStorageManager newStorageManager() {
+        return new FileDataStorageManager(mAccount, mContext.getContentResolver());
+    }
+
+    /**
+     * Gets the Share resources for the files contained in the folder refreshed (children, not deeper descendants).
      *
      * @param client    Handler of a session with an OC server.
      * @return          The result of the remote operation retrieving the Share resources in the folder refreshed by
      *                  the operation.
      */
-    private RemoteOperationResult refreshSharesForFolder(OwnCloudClient client) {
-        RemoteOperationResult result;
-        
+    private RemoteOperationResult fetchSharesForFolder(OwnCloudClient client) {
+        long startTime = SystemClock.elapsedRealtime();
+
         // remote request 
         GetRemoteSharesForFileOperation operation = 
                 new GetRemoteSharesForFileOperation(mLocalFolder.getRemotePath(), true, true);
-        result = operation.execute(client);
-        
+        RemoteOperationResult result = operation.execute(client);
+
+        mSharesTimeMs = SystemClock.elapsedRealtime() - startTime;
+        return result;
+    }
+
+    /**
+     * Saves the Share resources for the files contained in the folder refreshed; the files must be saved before.
+     *
+     * @param result    Result of {@link #fetchSharesForFolder(OwnCloudClient)}.
+     */
+    private void saveSharesForFolder(RemoteOperationResult result) {
         if (result.isSuccess()) {
             // update local database
             ArrayList<OCShare> shares = new ArrayList<>();
@@ -206,8 +355,55 @@ public class RefreshFolderOperation extends SyncOperation {
             }
             getStorageManager().saveSharesInFolder(shares, mLocalFolder);
         }
+    }
 
-        return result;
+    /**
+     * Waits for a request run in parallel to the synchronization of the list of files.
+     *
+     * @return      Result of the request, or null if it failed.
+     */
+    private <T> T join(Future<T> future) {
+        try {
+            return future.get();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+
+        } catch (ExecutionException e) {
+            Log_OC.e(TAG, "Parallel request in refresh of " + mLocalFolder.getRemotePath() + " failed",
+                e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * @param lastSyncTime      Time when some data was fetched from the server, in milliseconds since the epoch.
+     * @return                  'True' if the data can still be used instead of fetching it again.
+     */
+    private static boolean isFresh(long lastSyncTime) {
+        long age = System.currentTimeMillis() - lastSyncTime;
+        return lastSyncTime > 0 && age >= 0 && age < ROOT_DATA_TTL_MS;
+    }
+
+    private static String timing(long timeMs) {
+        return (timeMs < 0) ? "not requested" : timeMs + " ms";
+    }
+
+    /**
+     * @return  Number of refreshes of the root folder that reused the capabilities fetched in a previous one,
+     *          since the app started.
+     */
+    public static long getCachedCapabilitiesCount() {
+        return sCachedCapabilitiesCount.get();
+    }
+
+    /**
+     * @return  Number of refreshes of the root folder that reused the user profile fetched in a previous one,
+     *          since the app started.
+     */
+    public static long getCachedUserProfileCount() {
+        return sCachedUserProfileCount.get();
     }
     
 
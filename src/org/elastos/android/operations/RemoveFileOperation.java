@@ -21,6 +21,7 @@
 
 package org.elastos.android.operations;
 
+import org.elastos.android.datamodel.BlockIndex;
 import org.elastos.android.datamodel.OCFile;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
@@ -92,6 +93,10 @@ public class RemoveFileOperation extends SyncOperation {
         
         if (localRemovalFailed) {
             result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_REMOVED);
+
+        } else if (result != null && (result.isSuccess() || result.getCode() == ResultCode.FILE_NOT_FOUND)) {
+            // no local copy left to upload as a delta
+            BlockIndex.delete(getStorageManager().getAccount().name, mRemotePath);
         }
         
         return result;
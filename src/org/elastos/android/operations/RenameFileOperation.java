@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 
 import org.elastos.android.MainApp;
+import org.elastos.android.datamodel.BlockIndex;
 import org.elastos.android.datamodel.OCFile;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
@@ -103,6 +104,9 @@ public class RenameFileOperation extends SyncOperation {
             result = operation.execute(client);
 
             if (result.isSuccess()) {
+                // indexes are kept by remote path; the next upload indexes the file again
+                BlockIndex.delete(getStorageManager().getAccount().name, mFile.getRemotePath());
+
                 if (mFile.isFolder()) {
                     saveLocalDirectory(parent);
 
@@ -0,0 +1,623 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remote operation downloading a file into a temporary file, resuming a previous partial download
+ * when possible.
+ *
+ * A download that fails keeps the received bytes in the temporary file, together with the ETag of
+ * the file in the server at that moment. Next attempt sends an HTTP Range request for the missing
+ * bytes, conditioned with If-Range to that ETag; if the file changed in the server in the meantime,
+ * the server answers with the full content and the download starts again from the beginning.
+ *
+ * Optionally, see {@link #setSegments(int, long)}, big files are split into several byte ranges
+ * requested in parallel and written in place into a preallocated temporary file.
+ */
+public class ResumableDownloadRemoteOperation extends RemoteOperation {
+
+    private static final String TAG = ResumableDownloadRemoteOperation.class.getSimpleName();
+
+    /**
+     * Suffix of the file storing the ETag the partial content of a temporary file belongs to.
+     */
+    static final String ETAG_FILE_SUFFIX = ".etag";
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Minimum size of every segment in a segmented download; smaller ranges are not worth a request.
+     */
+    public static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final String mRemotePath;
+    private final File mTmpFile;
+    private final String mKnownEtag;
+    private final Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<>();
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+
+    private volatile GetMethod mGet;
+    private final Set<GetMethod> mSegmentGets = new HashSet<>();
+    private final AtomicBoolean mStopSegments = new AtomicBoolean(false);
+    private int mSegments = 1;
+    private long mKnownLength = -1;
+    private long mResumedBytes = 0;
+    private long mModificationTimestamp = 0;
+    private String mEtag = "";
+
+
+    /**
+     * @param remotePath    Path of the file in the server.
+     * @param tmpFile       Temporary file where the content is written; if it contains a partial
+     *                      download of the same file, the download is resumed.
+     * @param knownEtag     Last ETag of the file known by the app; a partial download for a different
+     *                      ETag is discarded without asking the server. Can be NULL or empty.
+     */
+    public ResumableDownloadRemoteOperation(String remotePath, File tmpFile, String knownEtag) {
+        mRemotePath = remotePath;
+        mTmpFile = tmpFile;
+        mKnownEtag = knownEtag;
+    }
+
+
+    /**
+     * @return Number of bytes of the temporary file reused from a previous attempt.
+     */
+    public long getResumedBytes() {
+        return mResumedBytes;
+    }
+
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+    /**
+     * Enables downloading the file in several byte ranges in parallel. Only applied when the ETag of
+     * the file is known, and when the pending content is big enough to fill at least two segments
+     * of {@link #MIN_SEGMENT_SIZE}.
+     *
+     * @param segments      Maximum number of ranges requested at the same time.
+     * @param knownLength   Size of the file, as known by the app.
+     */
+    public void setSegments(int segments, long knownLength) {
+        mSegments = Math.max(1, segments);
+        mKnownLength = knownLength;
+    }
+
+    public void cancel() {
+        mCancellationRequested.set(true);
+        GetMethod get = mGet;
+        if (get != null) {
+            get.abort();
+        }
+        abortSegments();
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        File parent = mTmpFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        long offset = 0;
+        String partialEtag = readPartialEtag(mTmpFile);
+        boolean sameVersion = (mKnownEtag == null || mKnownEtag.length() == 0 || mKnownEtag.equals(partialEtag));
+        if (partialEtag != null && sameVersion && mTmpFile.isFile() && mTmpFile.length() > 0) {
+            offset = mTmpFile.length();
+        } else {
+            discardPartialDownload(mTmpFile);
+        }
+
+        if (canDownloadInSegments(offset)) {
+            RemoteOperationResult result = runSegmented(client, offset);
+            if (result != null) {
+                return result;
+            }
+            // ranges not supported by the server; go on with a single request from what was got
+            partialEtag = readPartialEtag(mTmpFile);
+            offset = (partialEtag != null && mTmpFile.isFile()) ? mTmpFile.length() : 0;
+        }
+
+        GetMethod get = null;
+        try {
+            get = new GetMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+            if (offset > 0) {
+                get.addRequestHeader("Range", "bytes=" + offset + "-");
+                get.addRequestHeader("If-Range", "\"" + partialEtag + "\"");
+            }
+            mGet = get;
+            if (mCancellationRequested.get()) {
+                return new RemoteOperationResult(new OperationCancelledException());
+            }
+
+            int status = client.executeMethod(get);
+
+            if (status == HttpStatus.SC_PARTIAL_CONTENT && offset > 0 && isRangeFrom(get, offset)) {
+                Log_OC.d(TAG, "Resuming download of " + mRemotePath + " from byte " + offset);
+
+            } else if (status == HttpStatus.SC_OK) {
+                if (offset > 0) {
+                    Log_OC.d(TAG, "File " + mRemotePath + " changed in server, downloading again from scratch");
+                }
+                offset = 0;
+
+            } else {
+                client.exhaustResponse(get.getResponseBodyAsStream());
+                if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE ||
+                        status == HttpStatus.SC_PARTIAL_CONTENT) {
+                    // partial content is useless; next attempt will start from scratch
+                    discardPartialDownload(mTmpFile);
+                }
+                return new RemoteOperationResult(false, get);
+            }
+            mResumedBytes = offset;
+
+            mEtag = WebdavUtils.getEtagFromResponse(get);
+            if (mEtag == null) {
+                mEtag = "";
+            }
+            Header modificationTime = get.getResponseHeader("Last-Modified");
+            if (modificationTime != null) {
+                Date d = WebdavUtils.parseResponseDate(modificationTime.getValue());
+                mModificationTimestamp = (d != null) ? d.getTime() : 0;
+            }
+            // without ETag, partial content could not be safely resumed later
+            writePartialEtag(mTmpFile, mEtag);
+
+            return receiveBody(get, offset);
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                discardPartialDownload(mTmpFile);
+                return new RemoteOperationResult(new OperationCancelledException());
+            }
+            // partial content is kept for a later retry
+            Log_OC.w(TAG, "Download of " + mRemotePath + " interrupted at " + mTmpFile.length() + " bytes");
+            return new RemoteOperationResult(e);
+
+        } finally {
+            mGet = null;
+            if (get != null) {
+                get.releaseConnection();
+            }
+        }
+    }
+
+
+    private boolean canDownloadInSegments(long offset) {
+        return mSegments > 1 &&
+                mKnownEtag != null && mKnownEtag.length() > 0 &&
+                mKnownLength - offset >= 2 * MIN_SEGMENT_SIZE;
+    }
+
+
+    /**
+     * Downloads the content of the file from 'offset' to the end in several byte ranges in parallel,
+     * written in place into the temporary file.
+     *
+     * If the download fails, the temporary file is truncated to the longest prefix fully received,
+     * so that it can be resumed later.
+     *
+     * @return  Result of the download, or NULL if the server doesn't support byte ranges.
+     */
+    private RemoteOperationResult runSegmented(OwnCloudClient client, long offset) {
+        long remaining = mKnownLength - offset;
+        int count = (int) Math.min(mSegments, remaining / MIN_SEGMENT_SIZE);
+        long segmentSize = (remaining + count - 1) / count;
+        String uri = client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath);
+        AtomicLong transferred = new AtomicLong(offset);
+
+        Log_OC.d(TAG, "Downloading " + mRemotePath + " from byte " + offset + " in " + count + " segments");
+
+        // while segments are written the file has holes; if the app dies, it must not be resumed
+        new File(mTmpFile.getPath() + ETAG_FILE_SUFFIX).delete();
+        mStopSegments.set(false);
+        mResumedBytes = offset;
+
+        Segment[] segments = new Segment[count];
+        RemoteOperationResult failure = null;
+        boolean rangesUnsupported = false;
+        RandomAccessFile file = null;
+        ExecutorService executor = null;
+        try {
+            file = new RandomAccessFile(mTmpFile, "rw");
+            file.setLength(mKnownLength);
+            FileChannel channel = file.getChannel();
+
+            if (offset > 0) {
+                notifyProgress(offset, offset, mKnownLength);
+            }
+
+            executor = Executors.newFixedThreadPool(count);
+            CompletionService<RemoteOperationResult> completion = new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < count; i++) {
+                long start = offset + i * segmentSize;
+                long end = Math.min(start + segmentSize, mKnownLength) - 1;
+                segments[i] = new Segment(start, end);
+                completion.submit(new SegmentDownload(client, uri, segments[i], channel, transferred));
+            }
+
+            for (int i = 0; i < count; i++) {
+                RemoteOperationResult segmentResult = completion.take().get();
+                if (segmentResult == null) {
+                    rangesUnsupported = true;
+                    abortSegments();
+                } else if (!segmentResult.isSuccess() && failure == null) {
+                    failure = segmentResult;
+                    // no point in going on, the download will be retried
+                    abortSegments();
+                }
+            }
+
+        } catch (Exception e) {
+            if (failure == null) {
+                failure = new RemoteOperationResult(e);
+            }
+
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        if (mCancellationRequested.get()) {
+            closeQuietly(file);
+            discardPartialDownload(mTmpFile);
+            return new RemoteOperationResult(new OperationCancelledException());
+        }
+
+        if (failure == null && !rangesUnsupported) {
+            closeQuietly(file);
+            mEtag = mKnownEtag;
+            return new RemoteOperationResult(ResultCode.OK);
+        }
+
+        // keep what can be resumed: everything up to the first segment not complete
+        long prefix = offset;
+        for (Segment segment : segments) {
+            if (segment == null) {
+                break;
+            }
+            prefix = segment.mStart + segment.mDone.get();
+            if (!segment.isComplete()) {
+                break;
+            }
+        }
+        try {
+            if (file != null) {
+                file.setLength(prefix);
+            }
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not truncate " + mTmpFile.getPath());
+            prefix = 0;
+        } finally {
+            closeQuietly(file);
+        }
+
+        if (failure != null && failure.getHttpCode() == HttpStatus.SC_PRECONDITION_FAILED) {
+            // file changed in the server, partial content is useless
+            prefix = 0;
+        }
+        if (prefix > 0) {
+            writePartialEtag(mTmpFile, mKnownEtag);
+        } else {
+            discardPartialDownload(mTmpFile);
+        }
+        Log_OC.w(TAG, "Segmented download of " + mRemotePath + " stopped, " + prefix + " bytes kept");
+
+        return rangesUnsupported && failure == null ? null : failure;
+    }
+
+
+    private void abortSegments() {
+        mStopSegments.set(true);
+        synchronized (mSegmentGets) {
+            for (GetMethod get : mSegmentGets) {
+                get.abort();
+            }
+        }
+    }
+
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+
+    /**
+     * Byte range of the file downloaded by a single request.
+     */
+    private static class Segment {
+        final long mStart;
+        final long mEnd;    // inclusive
+        final AtomicLong mDone = new AtomicLong(0);
+
+        Segment(long start, long end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        long getLength() {
+            return mEnd - mStart + 1;
+        }
+
+        boolean isComplete() {
+            return mDone.get() >= getLength();
+        }
+    }
+
+
+    /**
+     * Downloads a {@link Segment} and writes it in its position of the temporary file.
+     *
+     * Returns the result of the request, or NULL if the server answered with the full content
+     * instead of the range.
+     */
+    private class SegmentDownload implements Callable<RemoteOperationResult> {
+
+        private final OwnCloudClient mClient;
+        private final String mUri;
+        private final Segment mSegment;
+        private final FileChannel mChannel;
+        private final AtomicLong mTransferred;
+
+        SegmentDownload(OwnCloudClient client, String uri, Segment segment, FileChannel channel,
+                        AtomicLong transferred) {
+            mClient = client;
+            mUri = uri;
+            mSegment = segment;
+            mChannel = channel;
+            mTransferred = transferred;
+        }
+
+        @Override
+        public RemoteOperationResult call() {
+            GetMethod get = new GetMethod(mUri);
+            get.addRequestHeader("Range", "bytes=" + mSegment.mStart + "-" + mSegment.mEnd);
+            get.addRequestHeader("If-Match", "\"" + mKnownEtag + "\"");
+            synchronized (mSegmentGets) {
+                if (mStopSegments.get() || mCancellationRequested.get()) {
+                    return new RemoteOperationResult(new OperationCancelledException());
+                }
+                mSegmentGets.add(get);
+            }
+            try {
+                int status = mClient.executeMethod(get);
+                if (status == HttpStatus.SC_OK) {
+                    get.abort();
+                    return null;
+                }
+                if (status != HttpStatus.SC_PARTIAL_CONTENT || !isRangeFrom(get, mSegment.mStart)) {
+                    mClient.exhaustResponse(get.getResponseBodyAsStream());
+                    return new RemoteOperationResult(false, get);
+                }
+                if (mSegment.mStart == mResumedBytes) {
+                    Header modificationTime = get.getResponseHeader("Last-Modified");
+                    if (modificationTime != null) {
+                        Date d = WebdavUtils.parseResponseDate(modificationTime.getValue());
+                        mModificationTimestamp = (d != null) ? d.getTime() : 0;
+                    }
+                }
+
+                InputStream in = get.getResponseBodyAsStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long position = mSegment.mStart;
+                int read;
+                while (!mSegment.isComplete() && (read = in.read(buffer)) != -1) {
+                    if (mStopSegments.get() || mCancellationRequested.get()) {
+                        throw new OperationCancelledException();
+                    }
+                    int toWrite = (int) Math.min(read, mSegment.getLength() - mSegment.mDone.get());
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, toWrite);
+                    while (data.hasRemaining()) {
+                        position += mChannel.write(data, position);
+                    }
+                    mSegment.mDone.addAndGet(toWrite);
+                    notifyProgress(toWrite, mTransferred.addAndGet(toWrite), mKnownLength);
+                }
+
+                if (!mSegment.isComplete()) {
+                    return new RemoteOperationResult(ResultCode.WRONG_CONNECTION);
+                }
+                return new RemoteOperationResult(ResultCode.OK);
+
+            } catch (Exception e) {
+                return new RemoteOperationResult(e);
+
+            } finally {
+                synchronized (mSegmentGets) {
+                    mSegmentGets.remove(get);
+                }
+                get.releaseConnection();
+            }
+        }
+    }
+
+
+    private RemoteOperationResult receiveBody(GetMethod get, long offset) throws IOException {
+        long contentLength = get.getResponseContentLength();
+        long totalToTransfer = (contentLength >= 0) ? offset + contentLength : -1;
+        long transferred = offset;
+
+        if (offset > 0) {
+            // resumed bytes are reported at once, so the progress starts where the last attempt stopped
+            notifyProgress(offset, transferred, totalToTransfer);
+        }
+
+        InputStream in = get.getResponseBodyAsStream();
+        FileOutputStream out = new FileOutputStream(mTmpFile, offset > 0);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (mCancellationRequested.get()) {
+                    get.abort();
+                    throw new OperationCancelledException();
+                }
+                out.write(buffer, 0, read);
+                transferred += read;
+                notifyProgress(read, transferred, totalToTransfer);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (totalToTransfer >= 0 && transferred != totalToTransfer) {
+            Log_OC.w(TAG, "Download of " + mRemotePath + " stopped at " + transferred + " of " +
+                    totalToTransfer + " bytes");
+            return new RemoteOperationResult(ResultCode.WRONG_CONNECTION);
+        }
+
+        // complete; nothing to resume anymore
+        new File(mTmpFile.getPath() + ETAG_FILE_SUFFIX).delete();
+        return new RemoteOperationResult(ResultCode.OK);
+    }
+
+
+    private void notifyProgress(long progressRate, long transferred, long totalToTransfer) {
+        synchronized (mDataTransferListeners) {
+            Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+            while (it.hasNext()) {
+                it.next().onTransferProgress(progressRate, transferred, totalToTransfer, mTmpFile.getName());
+            }
+        }
+    }
+
+
+    private static boolean isRangeFrom(GetMethod get, long offset) {
+        Header contentRange = get.getResponseHeader("Content-Range");
+        return contentRange != null && contentRange.getValue().trim().startsWith("bytes " + offset + "-");
+    }
+
+
+    /**
+     * @return  ETag of the file the partial content of 'tmpFile' belongs to, or NULL if unknown.
+     */
+    static String readPartialEtag(File tmpFile) {
+        File etagFile = new File(tmpFile.getPath() + ETAG_FILE_SUFFIX);
+        if (!etagFile.isFile()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(etagFile));
+            String etag = reader.readLine();
+            return (etag != null && etag.length() > 0) ? etag : null;
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not read " + etagFile.getPath());
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+
+    static void writePartialEtag(File tmpFile, String etag) {
+        File etagFile = new File(tmpFile.getPath() + ETAG_FILE_SUFFIX);
+        if (etag == null || etag.length() == 0) {
+            etagFile.delete();
+            return;
+        }
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(etagFile);
+            writer.write(etag);
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not write " + etagFile.getPath());
+            etagFile.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Removes the temporary file and the ETag of its partial content.
+     */
+    static void discardPartialDownload(File tmpFile) {
+        tmpFile.delete();
+        new File(tmpFile.getPath() + ETAG_FILE_SUFFIX).delete();
+    }
+}
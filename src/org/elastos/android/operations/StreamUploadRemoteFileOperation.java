@@ -0,0 +1,147 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import android.os.ParcelFileDescriptor;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Remote operation uploading the content behind a {@link ParcelFileDescriptor}, usually opened on a
+ * content:// URI, without copying it to a local file first.
+ *
+ * The descriptor must be seekable and its length known, so that the request can be repeated if the
+ * server requires authentication, and its length announced to the server. The descriptor is not
+ * closed by the operation.
+ */
+public class StreamUploadRemoteFileOperation extends UploadRemoteFileOperation {
+
+    private static final String IF_MATCH_HEADER = "If-Match";
+    private static final String OC_TOTAL_LENGTH_HEADER = "OC-Total-Length";
+    private static final String OC_X_OC_MTIME_HEADER = "X-OC-Mtime";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ParcelFileDescriptor mSourceDescriptor;
+    private final long mLength;
+    private final String mSourceMimeType;
+    private final String mRequiredEtagForUpload;
+    private final String mLastModifiedTimestamp;
+    private final String mFileName;
+
+    /**
+     * @param sourceDescriptor  Seekable descriptor of the content to upload.
+     * @param sourceUri         URI the descriptor was opened from; only used as a name in progress reports.
+     * @param remotePath        Path in the server where the content will be uploaded.
+     * @param mimeType          MIME type of the content.
+     * @param requiredEtag      ETag the file in the server must have to be overwritten; null if none.
+     * @param timestamp         Last modification time of the content, in seconds.
+     */
+    public StreamUploadRemoteFileOperation(ParcelFileDescriptor sourceDescriptor, String sourceUri,
+                                           String remotePath, String mimeType, String requiredEtag,
+                                           String timestamp) {
+        super(sourceUri, remotePath, mimeType, requiredEtag, timestamp);
+        mSourceDescriptor = sourceDescriptor;
+        mLength = sourceDescriptor.getStatSize();
+        mSourceMimeType = mimeType;
+        mRequiredEtagForUpload = requiredEtag;
+        mLastModifiedTimestamp = timestamp;
+        mFileName = sourceUri;
+    }
+
+    @Override
+    protected RemoteOperationResult uploadFile(OwnCloudClient client) throws IOException {
+        mEntity = new DescriptorRequestEntity();
+
+        if (mRequiredEtagForUpload != null && mRequiredEtagForUpload.length() > 0) {
+            mPutMethod.addRequestHeader(IF_MATCH_HEADER, "\"" + mRequiredEtagForUpload + "\"");
+        }
+        mPutMethod.addRequestHeader(OC_TOTAL_LENGTH_HEADER, String.valueOf(mLength));
+        mPutMethod.addRequestHeader(OC_X_OC_MTIME_HEADER, mLastModifiedTimestamp);
+        mPutMethod.setRequestEntity(mEntity);
+
+        int status = client.executeMethod(mPutMethod);
+        RemoteOperationResult result = new RemoteOperationResult(
+            status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED || status == HttpStatus.SC_NO_CONTENT,
+            mPutMethod
+        );
+        client.exhaustResponse(mPutMethod.getResponseBodyAsStream());
+        return result;
+    }
+
+
+    /**
+     * Request body read from the source descriptor, from the beginning every time it is written.
+     */
+    private class DescriptorRequestEntity implements RequestEntity {
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public String getContentType() {
+            return mSourceMimeType;
+        }
+
+        @Override
+        public void writeRequest(OutputStream out) throws IOException {
+            // not closed, it would close the descriptor too
+            FileInputStream in = new FileInputStream(mSourceDescriptor.getFileDescriptor());
+            in.getChannel().position(0);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long transferred = 0;
+            int read;
+            while (transferred < mLength &&
+                    (read = in.read(buffer, 0, (int) Math.min(BUFFER_SIZE, mLength - transferred))) != -1) {
+                out.write(buffer, 0, read);
+                transferred += read;
+                synchronized (mDataTransferListeners) {
+                    Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+                    while (it.hasNext()) {
+                        it.next().onTransferProgress(read, transferred, mLength, mFileName);
+                    }
+                }
+            }
+            if (transferred < mLength) {
+                throw new IOException("Source content shrank while uploading: " + transferred +
+                    " of " + mLength + " bytes");
+            }
+        }
+    }
+}
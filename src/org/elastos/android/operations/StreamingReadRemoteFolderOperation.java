@@ -0,0 +1,366 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.operations;
+
+import android.net.Uri;
+import android.util.Xml;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.RemoteFile;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remote operation reading the properties of a folder and its children with a PROPFIND request, handing
+ * every entry to a listener as soon as it is parsed.
+ *
+ * Unlike {@link com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation}, the multistatus response
+ * is never kept in memory, as a DOM or as a list of files; the memory used does not depend on the number of
+ * children in the folder, as long as the server sends the folder before them, as ownCloud does.
+ */
+public class StreamingReadRemoteFolderOperation extends RemoteOperation {
+
+    private static final String TAG = StreamingReadRemoteFolderOperation.class.getSimpleName();
+
+    private static final String DAV_NAMESPACE = "DAV:";
+    private static final String OC_NAMESPACE = "http://owncloud.org/ns";
+
+    private static final String PROPFIND_BODY =
+        "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+        "<d:propfind xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\">" +
+        "<d:prop>" +
+        "<d:creationdate/><d:getlastmodified/><d:getcontenttype/><d:resourcetype/>" +
+        "<d:getcontentlength/><d:getetag/>" +
+        "<oc:permissions/><oc:id/><oc:size/><oc:privatelink/>" +
+        "</d:prop>" +
+        "</d:propfind>";
+
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private static final String FOLDER_MIME_TYPE = "DIR";
+
+    /**
+     * Receives the entries of the folder while the response is parsed.
+     */
+    public interface OnRemoteFileReadListener {
+
+        /**
+         * Called once, before any child, with the properties of the folder itself.
+         */
+        void onRemoteFolderRead(RemoteFile folder) throws OperationCancelledException;
+
+        /**
+         * Called for every child of the folder, in the order the server sends them.
+         */
+        void onRemoteFileRead(RemoteFile file) throws OperationCancelledException;
+    }
+
+    private final String mRemotePath;
+    private final OnRemoteFileReadListener mListener;
+
+    private int mEntriesCount;
+
+
+    /**
+     * @param remotePath    Remote path of the folder to read.
+     * @param listener      Receiver of the entries of the folder; called in the thread running the operation.
+     */
+    public StreamingReadRemoteFolderOperation(String remotePath, OnRemoteFileReadListener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("NULL listener argument received");
+        mRemotePath = remotePath;
+        mListener = listener;
+    }
+
+    /**
+     * @return  Number of children of the folder handed to the listener in the last execution.
+     */
+    public int getEntriesCount() {
+        return mEntriesCount;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        mEntriesCount = 0;
+        PropFindMethod propfind = new PropFindMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+        try {
+            propfind.setRequestEntity(new StringRequestEntity(PROPFIND_BODY, "application/xml", "UTF-8"));
+
+            int status = client.executeMethod(propfind);
+            if (status != HttpStatus.SC_MULTI_STATUS) {
+                client.exhaustResponse(propfind.getResponseBodyAsStream());
+                return new RemoteOperationResult(false, propfind);
+            }
+
+            InputStream in = propfind.getResponseBodyAsStream();
+            try {
+                parseMultiStatus(in, Uri.decode(client.getWebdavUri().getPath()));
+            } finally {
+                in.close();
+            }
+            Log_OC.d(TAG, "Read " + mEntriesCount + " entries in " + mRemotePath);
+            return new RemoteOperationResult(true, propfind);
+
+        } catch (OperationCancelledException e) {
+            // the rest of the response is not needed
+            propfind.abort();
+            return new RemoteOperationResult(e);
+
+        } catch (Exception e) {
+            Log_OC.e(TAG, "Read of " + mRemotePath + " failed: " + e.getMessage(), e);
+            return new RemoteOperationResult(e);
+
+        } finally {
+            propfind.releaseConnection();
+        }
+    }
+
+
+    /**
+     * Parses the multistatus response, handing every 'response' element to the listener as soon as it ends.
+     *
+     * Only the properties in 'propstat' elements with a 200 status are taken.
+     *
+     * The folder is the response whose 'href' is its remote path; servers usually send it first, but
+     * WebDAV doesn't require it. Children received before it are kept until it arrives, so that the listener
+     * still gets the folder first.
+     *
+     * @throws IOException  If no response corresponds to the folder.
+     */
+    private void parseMultiStatus(InputStream in, String webdavPath)
+        throws XmlPullParserException, IOException, OperationCancelledException {
+
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(in, null);
+
+        Map<String, String> properties = null;
+        Map<String, String> propstatProperties = null;
+        String href = null;
+        String status = null;
+        boolean collection = false;
+        boolean propstatCollection = false;
+        int propDepth = -1;
+        boolean folderRead = false;
+        List<RemoteFile> childrenBeforeFolder = new ArrayList<>();
+        String folderPath = normalizePath(mRemotePath);
+        StringBuilder text = new StringBuilder();
+
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            String name = parser.getName();
+            boolean inDav = DAV_NAMESPACE.equals(parser.getNamespace());
+
+            switch (event) {
+                case XmlPullParser.START_TAG:
+                    text.setLength(0);
+                    if (inDav && "response".equals(name)) {
+                        properties = new HashMap<>();
+                        href = null;
+                        collection = false;
+
+                    } else if (inDav && "propstat".equals(name) && properties != null) {
+                        propstatProperties = new HashMap<>();
+                        propstatCollection = false;
+                        status = null;
+
+                    } else if (inDav && "prop".equals(name) && propstatProperties != null) {
+                        propDepth = parser.getDepth();
+
+                    } else if (inDav && "collection".equals(name) && propstatProperties != null) {
+                        propstatCollection = true;
+                    }
+                    break;
+
+                case XmlPullParser.TEXT:
+                    text.append(parser.getText());
+                    break;
+
+                case XmlPullParser.END_TAG:
+                    if (propDepth >= 0 && parser.getDepth() == propDepth + 1) {
+                        // a property
+                        propstatProperties.put(parser.getNamespace() + name, text.toString().trim());
+
+                    } else if (inDav && "prop".equals(name)) {
+                        propDepth = -1;
+
+                    } else if (inDav && "status".equals(name) && propstatProperties != null) {
+                        status = text.toString().trim();
+
+                    } else if (inDav && "propstat".equals(name) && propstatProperties != null) {
+                        if (status != null && status.contains(" " + HttpStatus.SC_OK + " ")) {
+                            properties.putAll(propstatProperties);
+                            collection |= propstatCollection;
+                        }
+                        propstatProperties = null;
+
+                    } else if (inDav && "href".equals(name) && properties != null) {
+                        href = text.toString().trim();
+
+                    } else if (inDav && "response".equals(name) && properties != null) {
+                        RemoteFile file = createRemoteFile(href, webdavPath, properties, collection);
+                        if (!folderRead && folderPath.equals(normalizePath(file.getRemotePath()))) {
+                            folderRead = true;
+                            mListener.onRemoteFolderRead(file);
+                            for (RemoteFile child : childrenBeforeFolder) {
+                                mEntriesCount++;
+                                mListener.onRemoteFileRead(child);
+                            }
+                            childrenBeforeFolder.clear();
+                        } else if (!folderRead) {
+                            childrenBeforeFolder.add(file);
+                        } else {
+                            mEntriesCount++;
+                            mListener.onRemoteFileRead(file);
+                        }
+                        properties = null;
+                    }
+                    text.setLength(0);
+                    break;
+            }
+            event = parser.next();
+        }
+
+        if (!folderRead) {
+            throw new IOException("No response for " + mRemotePath + " in the multistatus");
+        }
+    }
+
+    /**
+     * @return  Remote path without the trailing separator, to compare paths of folders with and without it.
+     */
+    private static String normalizePath(String remotePath) {
+        String path = remotePath.startsWith("/") ? remotePath : "/" + remotePath;
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+
+    private RemoteFile createRemoteFile(
+        String href,
+        String webdavPath,
+        Map<String, String> properties,
+        boolean collection
+    ) {
+        RemoteFile file = new RemoteFile(getRemotePath(href, webdavPath, collection));
+
+        file.setMimeType(collection ?
+            FOLDER_MIME_TYPE :
+            getProperty(properties, DAV_NAMESPACE, "getcontenttype", DEFAULT_MIME_TYPE)
+        );
+        file.setLength(parseLong(getProperty(properties, DAV_NAMESPACE, "getcontentlength", null)));
+        file.setCreationTimestamp(parseDate(getProperty(properties, DAV_NAMESPACE, "creationdate", null)));
+        file.setModifiedTimestamp(parseDate(getProperty(properties, DAV_NAMESPACE, "getlastmodified", null)));
+        file.setEtag(normalizeEtag(getProperty(properties, DAV_NAMESPACE, "getetag", "")));
+        file.setPermissions(getProperty(properties, OC_NAMESPACE, "permissions", null));
+        file.setRemoteId(getProperty(properties, OC_NAMESPACE, "id", null));
+        file.setSize(parseLong(getProperty(properties, OC_NAMESPACE, "size", null)));
+        file.setPrivateLink(getProperty(properties, OC_NAMESPACE, "privatelink", null));
+        return file;
+    }
+
+    /**
+     * @return  Remote path of the file referred by an href in the response; paths of folders end with
+     *          a separator.
+     */
+    private static String getRemotePath(String href, String webdavPath, boolean collection) {
+        String path = (href.startsWith("http://") || href.startsWith("https://")) ?
+            Uri.parse(href).getPath() :
+            Uri.decode(href);
+        if (path.startsWith(webdavPath)) {
+            path = path.substring(webdavPath.length());
+        }
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+        if (collection && !path.endsWith("/")) {
+            path = path + "/";
+        }
+        return path;
+    }
+
+    private static String getProperty(Map<String, String> properties, String namespace, String name,
+                                      String defaultValue) {
+        String value = properties.get(namespace + name);
+        return (value == null || value.length() == 0) ? defaultValue : value;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) {
+            return 0;
+        }
+        Date date = WebdavUtils.parseResponseDate(value);
+        return (date == null) ? 0 : date.getTime();
+    }
+
+    private static String normalizeEtag(String etag) {
+        if (etag.startsWith("W/")) {
+            etag = etag.substring(2);
+        }
+        return etag.replace("\"", "");
+    }
+
+
+    /**
+     * PROPFIND method of depth 1 with a request body; the response is read by the operation, not by the method.
+     */
+    private static class PropFindMethod extends EntityEnclosingMethod {
+
+        PropFindMethod(String uri) {
+            super(uri);
+            addRequestHeader("Depth", "1");
+        }
+
+        @Override
+        public String getName() {
+            return "PROPFIND";
+        }
+    }
+}
@@ -42,13 +42,14 @@ import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation;
+import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 import org.elastos.android.operations.common.SyncOperation;
 import org.elastos.android.services.OperationsService;
 import org.elastos.android.utils.FileStorageUtils;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -60,11 +61,22 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *  
  *  Does NOT enter in the child folders to synchronize their contents also, BUT requests for a new operation instance
  *  doing so.
+ *
+ *  Unless the ETag is ignored, the properties of the folder are fetched first, and the list of files is only fetched
+ *  if its ETag changed since the last synchronization.
  */
 public class SynchronizeFolderOperation extends SyncOperation {
 
     private static final String TAG = SynchronizeFolderOperation.class.getSimpleName();
 
+    /** Maximum number of files in the listing merged in the local database at once */
+    private static final int MERGE_BATCH_SIZE = 200;
+
+    /** Counters of the listings not fetched thanks to unchanged ETags, since the app started */
+    private static final AtomicLong sEtagChecksCount = new AtomicLong(0);
+    private static final AtomicLong sSkippedListingsCount = new AtomicLong(0);
+    private static final AtomicLong sSkippedListingEntriesCount = new AtomicLong(0);
+
     /** Time stamp for the synchronization process in progress */
     private long mCurrentSyncTime;
 
@@ -114,6 +126,12 @@ public class SynchronizeFolderOperation extends SyncOperation {
      * otherwise, only contents of available offline files will be synchronized. */
     private final boolean mSyncContentOfRegularFiles;
 
+    /**
+     * 'True' means that the list of files in the remote folder should be fetched and merged locally
+     * even though the ETag of the folder did not change.
+     */
+    private final boolean mIgnoreETag;
+
     /**
      * Creates a new instance of {@link SynchronizeFolderOperation}.
      *
@@ -128,6 +146,9 @@ public class SynchronizeFolderOperation extends SyncOperation {
      * @param   syncContentOfRegularFiles   When 'true', the contents of all the files in the folder will
      *                                      be synchronized; otherwise, only contents of available offline files
      *                                      will be synchronized.
+     * @param   ignoreETag                  When 'true', the list of files in the folder is fetched even though
+     *                                      its ETag did not change; when 'false', the ETag is checked first, at
+     *                                      the cost of an extra request when the folder changed.
      */
     public SynchronizeFolderOperation(
         Context context,
@@ -136,7 +157,8 @@ public class SynchronizeFolderOperation extends SyncOperation {
         long currentSyncTime,
         boolean pushOnly,
         boolean syncFullAccount,
-        boolean syncContentOfRegularFiles
+        boolean syncContentOfRegularFiles,
+        boolean ignoreETag
     ) {
         mRemotePath = remotePath;
         mCurrentSyncTime = currentSyncTime;
@@ -149,6 +171,7 @@ public class SynchronizeFolderOperation extends SyncOperation {
         mPushOnly = pushOnly;
         mSyncFullAccount = syncFullAccount;
         mSyncContentOfRegularFiles = syncContentOfRegularFiles;
+        mIgnoreETag = ignoreETag;
     }
 
 
@@ -164,6 +187,30 @@ public class SynchronizeFolderOperation extends SyncOperation {
         return mForgottenLocalFiles;
     }
 
+    /**
+     * @return  Number of requests checking the ETag of a folder before fetching its list of files, since the
+     *          app started. Every one of them costs an extra round trip when the folder changed.
+     */
+    public static long getEtagChecksCount() {
+        return sEtagChecksCount.get();
+    }
+
+    /**
+     * @return  Number of requests fetching the list of files of a folder saved because the ETag of the folder
+     *          did not change, since the app started.
+     */
+    public static long getSkippedListingsCount() {
+        return sSkippedListingsCount.get();
+    }
+
+    /**
+     * @return  Number of entries, one per file, in the listings saved because the ETag of the folder did not
+     *          change, since the app started.
+     */
+    public static long getSkippedListingEntriesCount() {
+        return sSkippedListingEntriesCount.get();
+    }
+
 
 
     /**
@@ -202,25 +249,39 @@ public class SynchronizeFolderOperation extends SyncOperation {
                 result = new RemoteOperationResult(ResultCode.OK);
 
             } else {
-                // get list of files in folder from remote server
-                result = fetchRemoteFolder(client);
+                // check the ETag of the folder before fetching the full list of files
+                boolean changed = true;
+                result = null;
+                if (!mIgnoreETag) {
+                    result = fetchRemoteFolderProperties(client);
+                    if (result.isSuccess()) {
+                        changed = folderChanged((RemoteFile) result.getData().get(0));
+                    }
+                }
+
+                if (result != null && !result.isSuccess()) {
+                    handleFetchFailure(result);
 
-                if (result.isSuccess()) {
-                    // success - merge updates in server with local state
-                    mergeRemoteFolder(result.getData());
+                } else if (!changed) {
+                    // no update in the server side, still need to handle local changes
+                    Log_OC.i(TAG, "ETag of " + mAccount.name + mRemotePath + " unchanged, skipping listing");
+                    int entries = preparePushOfLocalChanges();
+                    registerSkippedListing(entries);
                     syncContents();
+                    result = new RemoteOperationResult(ResultCode.OK);
 
                 } else {
-                    // fail fetching the server
-                    if (result.getCode() == ResultCode.FILE_NOT_FOUND) {
-                        removeLocalFolder();
-                    }
-                    if (result.isException()) {
-                        Log_OC.e(TAG, "Checked " + mAccount.name + mRemotePath  + " : " +
-                            result.getLogMessage(), result.getException());
+                    // get list of files in folder from remote server, merging it with local state as it arrives
+                    result = fetchAndMergeRemoteFolder(client);
+
+                    if (result.isSuccess()) {
+                        syncContents();
+
+                    } else if (result.getException() instanceof OperationCancelledException) {
+                        throw (OperationCancelledException) result.getException();
+
                     } else {
-                        Log_OC.e(TAG, "Checked " + mAccount.name + mRemotePath + " : " +
-                            result.getLogMessage());
+                        handleFetchFailure(result);
                     }
                 }
             }
@@ -235,21 +296,50 @@ public class SynchronizeFolderOperation extends SyncOperation {
 
 
     /**
-     * Get list of files in folder from remote server.
+     * Get list of files in folder from remote server, and merge it with the local state while it is received.
+     *
+     * Grants that mFoldersToVisit is updated with fresh data after a successful execution.
      *
      * @param client      {@link OwnCloudClient} instance used to access the server.
-     * @return            Result of the fetch, including list of remote files in the sync'ed folder.
+     * @return            Result of the fetch.
      * @throws OperationCancelledException
      */
     @NonNull
-    private RemoteOperationResult fetchRemoteFolder(OwnCloudClient client) throws OperationCancelledException {
+    private RemoteOperationResult fetchAndMergeRemoteFolder(OwnCloudClient client)
+        throws OperationCancelledException {
         Log_OC.d(TAG, "Fetching list of files in  " + mAccount.name + mRemotePath + ", if changed");
 
         if (mCancellationRequested.get()) {
             throw new OperationCancelledException();
         }
 
-        ReadRemoteFolderOperation readFolderOperation = new ReadRemoteFolderOperation(mRemotePath);
+        StreamingMerge merge = new StreamingMerge();
+        RemoteOperationResult result = new StreamingReadRemoteFolderOperation(mRemotePath, merge).execute(client);
+        if (result.isSuccess()) {
+            result = merge.finish();
+        }
+        return result;
+    }
+
+
+    /**
+     * Get properties of the folder from remote server, without its list of files.
+     *
+     * @param client      {@link OwnCloudClient} instance used to access the server.
+     * @return            Result of the fetch, including the remote folder.
+     * @throws OperationCancelledException
+     */
+    @NonNull
+    private RemoteOperationResult fetchRemoteFolderProperties(OwnCloudClient client)
+        throws OperationCancelledException {
+        Log_OC.d(TAG, "Checking ETag of " + mAccount.name + mRemotePath);
+
+        if (mCancellationRequested.get()) {
+            throw new OperationCancelledException();
+        }
+
+        sEtagChecksCount.incrementAndGet();
+        ReadRemoteFileOperation readFolderOperation = new ReadRemoteFileOperation(mRemotePath);
         return readFolderOperation.execute(client);
     }
 
@@ -258,11 +348,46 @@ public class SynchronizeFolderOperation extends SyncOperation {
      * Compares stored ETag of folder being synchronized to determine if there were changes in the server
      * from the last sync.
      *
+     * The ETag of the folder is stored when its list of files is merged, and the server changes it when
+     * anything below changes, so the list is unchanged when it matches. The tree ETag is only
+     * updated along with it.
+     *
      * @param remoteFolder      Properties of the remote copy of the folder
      * @return                  'true' if ETag of local and remote folder do not match.
      */
     private boolean folderChanged(RemoteFile remoteFolder) {
-        return (!mLocalFolder.getTreeEtag().equals(remoteFolder.getEtag()));
+        String remoteEtag = remoteFolder.getEtag();
+        if (mLocalFolder == null || remoteEtag == null || remoteEtag.length() == 0) {
+            return true;
+        }
+        return !remoteEtag.equals(mLocalFolder.getEtag()) && !remoteEtag.equals(mLocalFolder.getTreeEtag());
+    }
+
+
+    /**
+     * @param entries       Number of files in the folder, as listed in the last synchronization.
+     */
+    private void registerSkippedListing(int entries) {
+        sSkippedListingsCount.incrementAndGet();
+        sSkippedListingEntriesCount.addAndGet(entries);
+        Log_OC.d(TAG, "Listings skipped by unchanged ETags: " + sSkippedListingsCount.get() + ", with " +
+            sSkippedListingEntriesCount.get() + " entries, in exchange of " + sEtagChecksCount.get() +
+            " ETag checks");
+    }
+
+
+    private void handleFetchFailure(RemoteOperationResult result) {
+        // fail fetching the server
+        if (result.getCode() == ResultCode.FILE_NOT_FOUND) {
+            removeLocalFolder();
+        }
+        if (result.isException()) {
+            Log_OC.e(TAG, "Checked " + mAccount.name + mRemotePath  + " : " +
+                result.getLogMessage(), result.getException());
+        } else {
+            Log_OC.e(TAG, "Checked " + mAccount.name + mRemotePath + " : " +
+                result.getLogMessage());
+        }
     }
 
 
@@ -282,104 +407,9 @@ public class SynchronizeFolderOperation extends SyncOperation {
 
 
     /**
-     *  Synchronizes the data retrieved from the server about the contents of the target folder
-     *  with the current data in the local database.
-     *
-     *  Grants that mFoldersToVisit is updated with fresh data after execution.
-     *
-     *  @param folderAndFiles   Remote folder and children files in folder
+     * @return      Number of files in the folder, according to the local database.
      */
-    private void mergeRemoteFolder(ArrayList<Object> folderAndFiles)
-            throws OperationCancelledException {
-        Log_OC.d(TAG, "Synchronizing " + mAccount.name + mRemotePath);
-
-        FileDataStorageManager storageManager = getStorageManager();
-        
-        // parse data from remote folder
-        OCFile updatedFolder = FileStorageUtils.createOCFileFrom(
-            (RemoteFile) folderAndFiles.get(0)
-        );  // NOTE: updates ETag with remote value; that's INTENDED
-        updatedFolder.copyLocalPropertiesFrom(mLocalFolder);
-
-        Log_OC.d(TAG, "Remote folder " + mLocalFolder.getRemotePath()
-                + " changed - starting update of local data ");
-
-        List<OCFile> updatedFiles = new Vector<>(folderAndFiles.size() - 1);
-        mFoldersToVisit = new Vector<>(folderAndFiles.size() - 1);
-        mFilesToSyncContents.clear();
-
-        if (mCancellationRequested.get()) {
-            throw new OperationCancelledException();
-        }
-
-        // get current data about local contents of the folder to synchronize
-        List<OCFile> localFiles = storageManager.getFolderContent(mLocalFolder);
-        Map<String, OCFile> localFilesMap = new HashMap<>(localFiles.size());
-        for (OCFile file : localFiles) {
-            localFilesMap.put(file.getRemotePath(), file);
-        }
-
-        // loop to synchronize every child
-        OCFile remoteFile, localFile, updatedLocalFile;
-        RemoteFile r;
-        int foldersToExpand = 0;
-        for (int i=1; i<folderAndFiles.size(); i++) {
-            /// new OCFile instance with the data from the server
-            r = (RemoteFile) folderAndFiles.get(i);
-            remoteFile = FileStorageUtils.createOCFileFrom(r);
-
-            /// new OCFile instance to merge fresh data from server with local state
-            updatedLocalFile = FileStorageUtils.createOCFileFrom(r);
-
-            /// retrieve local data for the read file
-            localFile = localFilesMap.remove(remoteFile.getRemotePath());
-
-            /// add to updatedFile data about LOCAL STATE (not existing in server)
-            updatedLocalFile.setLastSyncDateForProperties(mCurrentSyncTime);
-            if (localFile != null) {
-                updatedLocalFile.copyLocalPropertiesFrom(localFile);
-                // remote eTag will not be set unless file CONTENTS are synchronized
-                updatedLocalFile.setEtag(localFile.getEtag());
-                if (!updatedLocalFile.isFolder() &&
-                    remoteFile.isImage() &&
-                    remoteFile.getModificationTimestamp() != localFile.getModificationTimestamp()) {
-                    updatedLocalFile.setNeedsUpdateThumbnail(true);
-                }
-
-            } else {
-                updatedLocalFile.setParentId(mLocalFolder.getFileId());
-                // remote eTag will not be set unless file CONTENTS are synchronized
-                updatedLocalFile.setEtag("");
-                // new files need to check av-off status of parent folder!
-                if (updatedFolder.isAvailableOffline()) {
-                    updatedLocalFile.setAvailableOfflineStatus(
-                        OCFile.AvailableOfflineStatus.AVAILABLE_OFFLINE_PARENT
-                    );
-                }
-            }
-
-            /// check and fix, if needed, local storage path
-            searchForLocalFileInDefaultPath(updatedLocalFile);
-
-            /// prepare content synchronizations
-            boolean serverUnchanged = addToSyncContents(updatedLocalFile, remoteFile);
-            if (updatedLocalFile.isFolder() && !serverUnchanged) {
-                foldersToExpand++;
-            }
-
-            updatedFiles.add(updatedLocalFile);
-        }
-
-        // save updated contents in local database
-        if (foldersToExpand == 0) {
-            updatedFolder.setTreeEtag(updatedFolder.getEtag());
-            // TODO - propagate up
-        }
-        storageManager.saveFolder(updatedFolder, updatedFiles, localFilesMap.values());
-    }
-
-
-    private void preparePushOfLocalChanges() throws OperationCancelledException {
+    private int preparePushOfLocalChanges() throws OperationCancelledException {
         List<OCFile> children = getStorageManager().getFolderContent(mLocalFolder);
         mFoldersToVisit = new Vector<>(children.size());
         for (OCFile child : children) {
@@ -388,6 +418,7 @@ public class SynchronizeFolderOperation extends SyncOperation {
                 null
             );
         }
+        return children.size();
     }
 
 
@@ -397,11 +428,11 @@ public class SynchronizeFolderOperation extends SyncOperation {
      * Stores the operations in mFoldersToSyncContents and mFilesToSyncContents.
      *
      * @param localFile         Local information about the file which contents might be sync'ed.
-     * @param remoteFile        Server information of the file.
+     * @param remoteFile        Server information of the file; null if not fetched.
      * @return                  'True' when the received file was not changed in the server side from the
      *                          last synchronization.
      */
-    private boolean addToSyncContents(OCFile localFile, OCFile remoteFile) {
+    private boolean addToSyncContents(OCFile localFile, RemoteFile remoteFile) {
 
         boolean shouldSyncContents = (mSyncContentOfRegularFiles || localFile.isAvailableOffline());
         boolean serverUnchanged;
@@ -439,7 +470,7 @@ public class SynchronizeFolderOperation extends SyncOperation {
                 /// synchronization for files
                 SynchronizeFileOperation operation = new SynchronizeFileOperation(
                     localFile,
-                    remoteFile,
+                    (remoteFile == null) ? null : FileStorageUtils.createOCFileFrom(remoteFile),
                     mAccount,
                     serverUnchanged,
                     mContext
@@ -564,4 +595,148 @@ public class SynchronizeFolderOperation extends SyncOperation {
         return mRemotePath;
     }
 
+
+    /**
+     * Synchronizes the entries received from the server about the contents of the target folder with the
+     * current data in the local database, while they are received.
+     *
+     * Entries are merged in batches of a bounded size: the local state of the files in every batch is
+     * queried at once, and the result written at once. The folder itself, with its new ETag, and the removal
+     * of the files not received, wait to the end of the listing; an interrupted listing will be fetched
+     * again in the next synchronization.
+     */
+    private class StreamingMerge implements StreamingReadRemoteFolderOperation.OnRemoteFileReadListener {
+
+        private final FileDataStorageManager mStorageManager = getStorageManager();
+
+        private final List<RemoteFile> mPendingFiles = new ArrayList<>(MERGE_BATCH_SIZE);
+
+        private OCFile mUpdatedFolder;
+
+        private int mFoldersToExpand = 0;
+        private int mMergedFilesCount = 0;
+        private int mBatchesCount = 0;
+
+        @Override
+        public void onRemoteFolderRead(RemoteFile folder) throws OperationCancelledException {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+
+            Log_OC.d(TAG, "Synchronizing " + mAccount.name + mRemotePath);
+
+            // parse data from remote folder
+            mUpdatedFolder = FileStorageUtils.createOCFileFrom(folder);
+            // NOTE: updates ETag with remote value; that's INTENDED
+            mUpdatedFolder.copyLocalPropertiesFrom(mLocalFolder);
+
+            Log_OC.d(TAG, "Remote folder " + mLocalFolder.getRemotePath()
+                    + " changed - starting update of local data ");
+
+            mFoldersToVisit = new Vector<>();
+            mFilesToSyncContents.clear();
+        }
+
+        @Override
+        public void onRemoteFileRead(RemoteFile file) throws OperationCancelledException {
+            mPendingFiles.add(file);
+            if (mPendingFiles.size() >= MERGE_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Merges the last entries received, and completes the update of the folder.
+         *
+         * @return      Result of the merge.
+         */
+        RemoteOperationResult finish() throws OperationCancelledException {
+            if (mUpdatedFolder == null) {
+                Log_OC.e(TAG, "No properties received about " + mAccount.name + mRemotePath);
+                return new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
+            }
+            flush();
+
+            // save updated folder and remove the files not received
+            if (mFoldersToExpand == 0) {
+                mUpdatedFolder.setTreeEtag(mUpdatedFolder.getEtag());
+                // TODO - propagate up
+            }
+            mStorageManager.saveFolderRemovingChildrenSyncedBefore(mUpdatedFolder, mCurrentSyncTime);
+
+            Log_OC.d(TAG, "Merged " + mMergedFilesCount + " files in " + mAccount.name + mRemotePath + " in " +
+                mBatchesCount + " batches");
+            return new RemoteOperationResult(ResultCode.OK);
+        }
+
+        private void flush() throws OperationCancelledException {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            if (mPendingFiles.isEmpty()) {
+                return;
+            }
+
+            // get current data about local contents of the files received
+            List<String> remotePaths = new ArrayList<>(mPendingFiles.size());
+            for (RemoteFile r : mPendingFiles) {
+                remotePaths.add(r.getRemotePath());
+            }
+            Map<String, OCFile> localFilesMap = mStorageManager.getFolderChildren(mLocalFolder, remotePaths);
+
+            // loop to synchronize every child
+            List<OCFile> updatedFiles = new ArrayList<>(mPendingFiles.size());
+            OCFile localFile, updatedLocalFile;
+            for (RemoteFile r : mPendingFiles) {
+                /// new OCFile instance to merge fresh data from server with local state
+                updatedLocalFile = FileStorageUtils.createOCFileFrom(r);
+
+                /// retrieve local data for the read file
+                localFile = localFilesMap.get(r.getRemotePath());
+
+                /// add to updatedFile data about LOCAL STATE (not existing in server)
+                updatedLocalFile.setLastSyncDateForProperties(mCurrentSyncTime);
+                if (localFile != null) {
+                    updatedLocalFile.copyLocalPropertiesFrom(localFile);
+                    // remote eTag will not be set unless file CONTENTS are synchronized
+                    updatedLocalFile.setEtag(localFile.getEtag());
+                    if (!updatedLocalFile.isFolder() &&
+                        updatedLocalFile.isImage() &&
+                        r.getModifiedTimestamp() != localFile.getModificationTimestamp()) {
+                        updatedLocalFile.setNeedsUpdateThumbnail(true);
+                    }
+
+                } else {
+                    updatedLocalFile.setParentId(mLocalFolder.getFileId());
+                    // remote eTag will not be set unless file CONTENTS are synchronized
+                    updatedLocalFile.setEtag("");
+                    // new files need to check av-off status of parent folder!
+                    if (mUpdatedFolder.isAvailableOffline()) {
+                        updatedLocalFile.setAvailableOfflineStatus(
+                            OCFile.AvailableOfflineStatus.AVAILABLE_OFFLINE_PARENT
+                        );
+                    }
+                }
+
+                /// check and fix, if needed, local storage path
+                searchForLocalFileInDefaultPath(updatedLocalFile);
+
+                /// prepare content synchronizations
+                boolean serverUnchanged = addToSyncContents(updatedLocalFile, r);
+                if (updatedLocalFile.isFolder() && !serverUnchanged) {
+                    mFoldersToExpand++;
+                }
+
+                updatedFiles.add(updatedLocalFile);
+            }
+
+            // save updated contents in local database
+            mStorageManager.saveFolderChildren(mLocalFolder, updatedFiles);
+
+            mMergedFilesCount += updatedFiles.size();
+            mBatchesCount++;
+            mPendingFiles.clear();
+        }
+    }
+
 }
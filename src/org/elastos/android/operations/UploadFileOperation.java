@@ -23,9 +23,13 @@ package org.elastos.android.operations;
 import android.accounts.Account;
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 
+import org.elastos.android.datamodel.BlockIndex;
 import org.elastos.android.datamodel.FileDataStorageManager;
 import org.elastos.android.datamodel.OCFile;
+import org.elastos.android.datamodel.UploadsStorageManager;
 import org.elastos.android.db.OCUpload;
 import org.elastos.android.db.PreferenceManager;
 import org.elastos.android.files.services.FileUploader;
@@ -37,13 +41,15 @@ import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
+import com.owncloud.android.lib.resources.files.CopyRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
 import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+import com.owncloud.android.lib.resources.status.OCCapability;
 import org.elastos.android.operations.common.SyncOperation;
 import org.elastos.android.utils.ConnectivityUtils;
+import org.elastos.android.utils.FileStagingUtils;
 import org.elastos.android.utils.FileStorageUtils;
 import org.elastos.android.utils.MimetypeIconUtil;
 import org.elastos.android.utils.UriUtils;
@@ -53,11 +59,8 @@ import org.apache.commons.httpclient.methods.RequestEntity;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -102,6 +105,17 @@ public class UploadFileOperation extends SyncOperation {
 
     private static final String TAG = UploadFileOperation.class.getSimpleName();
 
+    /**
+     * Maximum number of previous uploads of the same content checked in the server before uploading it.
+     */
+    private static final int MAX_UPLOADED_CONTENT_CHECKS = 3;
+
+    /**
+     * Minimum time between two saves of the state of a chunked transfer; chunks acknowledged meanwhile
+     * are saved with the next one, or when the transfer stops.
+     */
+    private static final long CHUNKED_TRANSFER_SAVE_INTERVAL_MS = 2000;
+
     private Account mAccount;
     /**
      * OCFile which is to be uploaded.
@@ -131,9 +145,29 @@ public class UploadFileOperation extends SyncOperation {
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     private final AtomicBoolean mUploadStarted = new AtomicBoolean(false);
 
+    /**
+     * Progress of local copies done before or after the upload; not mixed with the upload progress.
+     */
+    private final FileStagingUtils.OnStagingProgressListener mStagingProgressListener =
+        new FileStagingUtils.OnStagingProgressListener() {
+            @Override
+            public void onStagingProgress(long stagedBytes, long totalBytes) {
+                Log_OC.v(TAG, "Staged " + stagedBytes + " of " + totalBytes + " bytes of " +
+                    mOriginalStoragePath);
+            }
+        };
+
     private Context mContext;
 
     private UploadRemoteFileOperation mUploadOperation;
+    private ChunkedTransferSaver mChunkedTransferSaver;
+
+    private UploadsStorageManager mUploadsStorageManager;
+
+    /**
+     * SHA-256 of the content uploaded, in hexadecimal.
+     */
+    private String mContentHash;
 
     protected RequestEntity mEntity = null;
 
@@ -289,6 +323,8 @@ public class UploadFileOperation extends SyncOperation {
         mUploadStarted.set(true);
         RemoteOperationResult result = null;
         File temporalFile = null, originalFile = new File(mOriginalStoragePath), expectedFile = null;
+        boolean streamed = mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME);
+        ParcelFileDescriptor sourceDescriptor = null;
 
         try {
 
@@ -299,7 +335,16 @@ public class UploadFileOperation extends SyncOperation {
             }
 
             /// check if the file continues existing before schedule the operation
-            if (!originalFile.exists()) {
+            if (streamed) {
+                sourceDescriptor = openSourceDescriptor();
+                if (sourceDescriptor == null) {
+                    Log_OC.d(TAG, mOriginalStoragePath + " can't be read anymore");
+                    releaseSourceAccess();  // can't be retried
+                    return new RemoteOperationResult(ResultCode.LOCAL_FILE_NOT_FOUND);
+                }
+                mFile.setFileLength(sourceDescriptor.getStatSize());
+
+            } else if (!originalFile.exists()) {
                 Log_OC.d(TAG, mOriginalStoragePath.toString() + " not exists anymore");
                 return new RemoteOperationResult(ResultCode.LOCAL_FILE_NOT_FOUND);
             }
@@ -319,9 +364,22 @@ public class UploadFileOperation extends SyncOperation {
             OCFile parent = getStorageManager().getFileByPath(remoteParentPath);
             mFile.setParentId(parent.getFileId());
 
+            /// look for the same content uploaded before and still in the server; the content is only read
+            // upfront to hash it if an upload of the same length exists, else it's hashed when it's copied,
+            // or read again once uploaded
+            mContentHash = null;
+            String uploadedContentPath = null;
+            long contentLength = streamed ? mFile.getFileLength() : originalFile.length();
+            if (mFile.getEtagInConflict() == null &&
+                    getUploadsStorageManager().hasUploadOfLength(mAccount.name, contentLength)) {
+                mContentHash = computeContentHash(originalFile, sourceDescriptor);
+                uploadedContentPath = (mContentHash == null) ? null : findUploadedContent(client, mContentHash);
+            }
+            boolean alreadyUploaded = mRemotePath.equals(uploadedContentPath);
+
             /// automatic rename of file to upload in case of name collision in server
             Log_OC.d(TAG, "Checking name collision in server");
-            if (!mForceOverwrite) {
+            if (!mForceOverwrite && !alreadyUploaded) {
                 String remotePath = getAvailableRemotePath(client, mRemotePath);
                 mWasRenamed = !remotePath.equals(mRemotePath);
                 if (mWasRenamed) {
@@ -329,7 +387,7 @@ public class UploadFileOperation extends SyncOperation {
                     Log_OC.d(TAG, "File renamed as " + remotePath);
                 }
                 mRemotePath = remotePath;
-                mRenameUploadListener.onRenameUpload();
+                mRenameUploadListener.onRenameUpload(this);
             }
 
             if (mCancellationRequested.get()) {
@@ -339,8 +397,14 @@ public class UploadFileOperation extends SyncOperation {
             String expectedPath = FileStorageUtils.getDefaultSavePathFor(mAccount.name, mFile);
             expectedFile = new File(expectedPath);
 
-            /// copy the file locally before uploading
-            if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY &&
+            /// copy the file locally before uploading; content behind a content:// URI is uploaded
+            // straight from its descriptor, unless a local copy is kept or it needs a chunked upload
+            long chunkSize = PreferenceManager.getUploadChunkSize(mContext);
+            boolean copyStreamed = streamed && (
+                mLocalBehaviour != FileUploader.LOCAL_BEHAVIOUR_FORGET ||
+                (mChunked && mFile.getFileLength() > chunkSize)
+            );
+            if ((mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY || copyStreamed) &&
                     !mOriginalStoragePath.equals(expectedPath)) {
 
                 String temporalPath = FileStorageUtils.getTemporalPath(mAccount.name) + mFile.getRemotePath();
@@ -358,29 +422,52 @@ public class UploadFileOperation extends SyncOperation {
             }
 
             // Get the last modification date of the file from the file system
-            Long timeStampLong = originalFile.lastModified()/1000;
+            long sourceLastModified = streamed ?
+                UriUtils.getLastModified(Uri.parse(mOriginalStoragePath), mContext) :
+                originalFile.lastModified();
+            Long timeStampLong = sourceLastModified / 1000;
             String timeStamp = timeStampLong.toString();
 
-            /// perform the upload
-            if ( mChunked &&
-                    (new File(mFile.getStoragePath())).length() >
-                            ChunkedUploadRemoteFileOperation.CHUNK_SIZE ) {
-                mUploadOperation = new ChunkedUploadRemoteFileOperation(mFile.getStoragePath(),
-                        mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict(), timeStamp);
+            /// perform the upload, unless the content is already in the server
+            if (uploadedContentPath != null && reuseUploadedContent(client, uploadedContentPath)) {
+                result = new RemoteOperationResult(ResultCode.OK);
+
             } else {
-                mUploadOperation = new UploadRemoteFileOperation(mFile.getStoragePath(),
-                        mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict(), timeStamp);
-            }
-            Iterator <OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
-            while (listener.hasNext()) {
-                mUploadOperation.addDatatransferProgressListener(listener.next());
-            }
+                DeltaUploadRemoteOperation deltaUpload = streamed ? null : createDeltaUpload(client, timeStamp);
+                if (streamed && temporalFile == null) {
+                    mUploadOperation = new StreamUploadRemoteFileOperation(sourceDescriptor, mOriginalStoragePath,
+                            mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict(), timeStamp);
+                } else if (deltaUpload != null) {
+                    mUploadOperation = deltaUpload;
+                } else if ( mChunked &&
+                        (new File(mFile.getStoragePath())).length() > chunkSize ) {
+                    mUploadOperation = createChunkedUpload(timeStamp, sourceLastModified, chunkSize);
+                } else {
+                    mUploadOperation = new UploadRemoteFileOperation(mFile.getStoragePath(),
+                            mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict(), timeStamp);
+                }
+                Iterator <OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
+                while (listener.hasNext()) {
+                    mUploadOperation.addDatatransferProgressListener(listener.next());
+                }
 
-            if (mCancellationRequested.get()) {
-                throw new OperationCancelledException();
+                if (mCancellationRequested.get()) {
+                    throw new OperationCancelledException();
+                }
+
+                result = mUploadOperation.execute(client);
+                if (result.isSuccess() && mUploadOperation instanceof ParallelChunkedUploadRemoteOperation) {
+                    saveChunkedTransfer(null, 0, null, 0);
+                } else if (mChunkedTransferSaver != null) {
+                    // chunks acknowledged since the last save, to resume later
+                    mChunkedTransferSaver.flush();
+                }
             }
 
-            result = mUploadOperation.execute(client);
+            /// record the hash of every content uploaded, before the original file is moved
+            if (result.isSuccess() && mContentHash == null) {
+                hashUploadedContent(originalFile, sourceDescriptor, contentLength, sourceLastModified);
+            }
 
             /// move local temporal file or original file to its corresponding
             // location in the ownCloud local folder
@@ -392,6 +479,9 @@ public class UploadFileOperation extends SyncOperation {
                         temporalFile = new File(temporalPath);
                         temporalFile.delete();
                     }
+                    if (streamed) {
+                        releaseSourceAccess();
+                    }
                     mFile.setStoragePath("");
 
                 } else {
@@ -399,6 +489,9 @@ public class UploadFileOperation extends SyncOperation {
 
                     if (temporalFile != null) {         // FileUploader.LOCAL_BEHAVIOUR_COPY
                         move(temporalFile, expectedFile);
+                        if (streamed) {
+                            releaseSourceAccess();
+                        }
                     } else {                            // FileUploader.LOCAL_BEHAVIOUR_MOVE
                         move(originalFile, expectedFile);
                         getStorageManager().deleteFileInMediaScan(originalFile.getAbsolutePath());
@@ -415,6 +508,14 @@ public class UploadFileOperation extends SyncOperation {
 
         } finally {
             mUploadStarted.set(false);
+            if (sourceDescriptor != null) {
+                try {
+                    sourceDescriptor.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing descriptor of " + mOriginalStoragePath +
+                            " (ignoring)", e);
+                }
+            }
             if (temporalFile != null && !originalFile.equals(temporalFile)) {
                 temporalFile.delete();
             }
@@ -452,6 +553,364 @@ public class UploadFileOperation extends SyncOperation {
     }
 
 
+    /**
+     * Creates the upload of the file as a delta of the version in the server, if possible and worth it.
+     *
+     * That's possible for available offline files replacing their version in the server, when the index
+     * corresponds to the last version synchronized and the server is known to support partial updates.
+     *
+     * @return  Upload of the changed ranges, or null if the file must be uploaded in any other way.
+     */
+    private DeltaUploadRemoteOperation createDeltaUpload(OwnCloudClient client, String timeStamp) {
+        if (!mForceOverwrite) {
+            return null;
+        }
+        OCFile storedFile = getStorageManager().getFileByPath(mFile.getRemotePath());
+        if (storedFile == null || !isAvailableOffline(storedFile) || storedFile.getEtag() == null ||
+                !mOriginalStoragePath.equals(storedFile.getStoragePath())) {
+            return null;
+        }
+        BlockIndex index = BlockIndex.load(mAccount.name, mFile.getRemotePath());
+        if (index == null || !storedFile.getEtag().equals(index.getEtag()) ||
+                !DeltaUploadRemoteOperation.supportsPartialUpdate(client, mFile.getRemotePath())) {
+            return null;
+        }
+
+        File localFile = new File(mFile.getStoragePath());
+        BlockIndex.Delta delta;
+        try {
+            delta = index.computeDelta(localFile);
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not compare " + mFile.getStoragePath() + " with its block index: " +
+                    e.getMessage());
+            return null;
+        }
+        if (!DeltaUploadRemoteOperation.isWorthSending(delta, localFile.length())) {
+            Log_OC.d(TAG, "Changes in " + mFile.getFileName() + " can't be sent as a delta");
+            return null;
+        }
+        return new DeltaUploadRemoteOperation(mFile.getStoragePath(), mFile.getRemotePath(),
+                mFile.getMimetype(), mFile.getEtagInConflict(), timeStamp, index, delta);
+    }
+
+
+    /**
+     * Saves the block index of an available offline file just uploaded, so that the next local changes
+     * can be uploaded as a delta.
+     *
+     * @param file      File uploaded, with the ETag assigned by the server.
+     */
+    private void saveBlockIndex(OCFile file) {
+        if (!isAvailableOffline(file) || file.getEtag() == null || !file.isDown()) {
+            BlockIndex.delete(mAccount.name, file.getRemotePath());
+            return;
+        }
+        try {
+            BlockIndex index = (mUploadOperation instanceof DeltaUploadRemoteOperation) ?
+                    ((DeltaUploadRemoteOperation) mUploadOperation).getUpdatedIndex() : null;
+            index = (index != null) ?
+                    index.withEtag(file.getEtag()) :
+                    BlockIndex.build(new File(file.getStoragePath()), file.getEtag());
+            index.save(mAccount.name, file.getRemotePath());
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not save block index of " + file.getRemotePath() + ": " + e.getMessage());
+            BlockIndex.delete(mAccount.name, file.getRemotePath());
+        }
+    }
+
+
+    private static boolean isAvailableOffline(OCFile file) {
+        return file.getAvailableOfflineStatus() != OCFile.AvailableOfflineStatus.NOT_AVAILABLE_OFFLINE;
+    }
+
+
+    /**
+     * Computes the SHA-256 of the content to upload.
+     *
+     * @return  Hash of the content, or null if it could not be read; the upload goes on without it.
+     */
+    private String computeContentHash(File originalFile, ParcelFileDescriptor sourceDescriptor)
+            throws OperationCancelledException {
+        FileInputStream in = null;
+        try {
+            // a duplicate of the descriptor, so that closing the stream leaves it open for the upload
+            in = (sourceDescriptor != null) ?
+                    new ParcelFileDescriptor.AutoCloseInputStream(sourceDescriptor.dup()) :
+                    new FileInputStream(originalFile);
+            return FileStagingUtils.contentHash(in, mCancellationRequested);
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not compute hash of " + mOriginalStoragePath + ": " + e.getMessage());
+            return null;
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing input stream for " +
+                            mOriginalStoragePath + " (ignoring)", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Hashes the content just uploaded, when it was not hashed before nor while copied, so that the next
+     * upload of the same content finds it.
+     *
+     * The source is read again; the hash is left out if the source changed since the upload started.
+     *
+     * @param contentLength         Length of the source when the upload started.
+     * @param sourceLastModified    Last modification time of the source when the upload started.
+     */
+    private void hashUploadedContent(File originalFile, ParcelFileDescriptor sourceDescriptor,
+                                     long contentLength, long sourceLastModified) {
+        try {
+            String contentHash = computeContentHash(originalFile, sourceDescriptor);
+            boolean changed = (sourceDescriptor != null) ?
+                    sourceDescriptor.getStatSize() != contentLength ||
+                        UriUtils.getLastModified(Uri.parse(mOriginalStoragePath), mContext) != sourceLastModified :
+                    originalFile.length() != contentLength || originalFile.lastModified() != sourceLastModified;
+            if (changed) {
+                Log_OC.d(TAG, mOriginalStoragePath + " changed while uploaded, its hash is not recorded");
+            } else {
+                mContentHash = contentHash;
+            }
+
+        } catch (OperationCancelledException e) {
+            Log_OC.d(TAG, "Hash of " + mOriginalStoragePath + " cancelled, not recorded");
+        }
+    }
+
+
+    /**
+     * Looks for a previous upload of the same content to the same account, whose file was not modified
+     * in the server since then.
+     *
+     * Only the most recent uploads are checked, with a PROPFIND each, comparing the current ETag of the
+     * file with the one it got when uploaded.
+     *
+     * @param contentHash   SHA-256 of the content to upload.
+     * @return              Remote path of a file with the same content, or null if none was found.
+     */
+    private String findUploadedContent(OwnCloudClient client, String contentHash) {
+        if (mFile.getEtagInConflict() != null) {
+            // the upload must check the version in the server
+            return null;
+        }
+
+        OCUpload[] uploads = getUploadsStorageManager().getUploadsOfContent(mAccount.name, contentHash);
+        int checked = 0;
+        for (OCUpload upload : uploads) {
+            if (checked >= MAX_UPLOADED_CONTENT_CHECKS) {
+                break;
+            }
+            if (upload.getUploadId() == mOCUploadId || upload.getRemoteEtag() == null) {
+                continue;
+            }
+            checked++;
+            RemoteOperationResult result = new ReadRemoteFileOperation(upload.getRemotePath()).execute(client);
+            if (result.isSuccess() &&
+                    upload.getRemoteEtag().equals(((RemoteFile) result.getData().get(0)).getEtag())) {
+                Log_OC.d(TAG, "Content of " + mOriginalStoragePath + " already uploaded to " +
+                        upload.getRemotePath());
+                return upload.getRemotePath();
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Places in the remote path of the upload a file already in the server with the same content, copying
+     * it in the server if needed.
+     *
+     * @param uploadedContentPath   Remote path of the file with the same content.
+     * @return                      'true' if the content doesn't need to be uploaded.
+     */
+    private boolean reuseUploadedContent(OwnCloudClient client, String uploadedContentPath) {
+        if (uploadedContentPath.equals(mRemotePath)) {
+            Log_OC.i(TAG, "Skipping upload of " + mOriginalStoragePath + ", same content in " + mRemotePath);
+            return true;
+        }
+
+        RemoteOperationResult result = new CopyRemoteFileOperation(
+                uploadedContentPath,
+                mRemotePath,
+                mForceOverwrite
+        ).execute(client);
+
+        if (result.isSuccess()) {
+            Log_OC.i(TAG, "Copied " + uploadedContentPath + " to " + mRemotePath + " in the server instead of " +
+                    "uploading " + mOriginalStoragePath);
+        } else {
+            Log_OC.w(TAG, "Could not copy " + uploadedContentPath + " in the server, uploading " +
+                    mOriginalStoragePath + ": " + result.getLogMessage());
+        }
+        return result.isSuccess();
+    }
+
+
+    /**
+     * Creates the operation for a chunked upload, resuming the last transfer of the same upload if it was
+     * interrupted and the local file didn't change since then.
+     *
+     * The state of the transfer is saved in the uploads database while the server acknowledges chunks, at
+     * most once every {@link #CHUNKED_TRANSFER_SAVE_INTERVAL_MS}, and when the transfer stops.
+     *
+     * @param timeStamp             Last modification time of the file to upload, in seconds.
+     * @param sourceLastModified    Last modification time of the original file, in milliseconds.
+     * @param chunkSize             Size of the chunks, if a new transfer is started.
+     */
+    private ParallelChunkedUploadRemoteOperation createChunkedUpload(String timeStamp,
+                                                                     final long sourceLastModified,
+                                                                     long chunkSize) {
+        OCUpload storedUpload = getUploadsStorageManager().getUploadById(mOCUploadId);
+        boolean resume = storedUpload != null &&
+                storedUpload.getTransferId() != null &&
+                storedUpload.getSourceLastModified() == sourceLastModified &&
+                storedUpload.getChunkSize() > 0;
+        final long transferChunkSize = resume ? storedUpload.getChunkSize() : chunkSize;
+
+        ParallelChunkedUploadRemoteOperation operation = new ParallelChunkedUploadRemoteOperation(
+                mFile.getStoragePath(), mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict(),
+                timeStamp, transferChunkSize, getChunksInFlight());
+        if (resume) {
+            operation.setResumeState(storedUpload.getTransferId(), storedUpload.getAcknowledgedChunks());
+        }
+        mChunkedTransferSaver = new ChunkedTransferSaver(transferChunkSize, sourceLastModified);
+        operation.setOnChunkAcknowledgedListener(mChunkedTransferSaver);
+        return operation;
+    }
+
+
+    /**
+     * Saves the chunks acknowledged in a transfer, spacing the writes; every save rewrites the whole set
+     * of chunks, so saving per chunk would write a quadratic amount of data on big files.
+     */
+    private class ChunkedTransferSaver
+            implements ParallelChunkedUploadRemoteOperation.OnChunkAcknowledgedListener {
+
+        private final long mChunkSize;
+        private final long mSourceLastModified;
+
+        private String mTransferId;
+        private Set<Integer> mAcknowledgedChunks;
+        private boolean mPending = false;
+        private long mLastSaveTime;
+
+        ChunkedTransferSaver(long chunkSize, long sourceLastModified) {
+            mChunkSize = chunkSize;
+            mSourceLastModified = sourceLastModified;
+            // the first acknowledgement is saved right away, with the id of the transfer
+            mLastSaveTime = SystemClock.elapsedRealtime() - CHUNKED_TRANSFER_SAVE_INTERVAL_MS;
+        }
+
+        @Override
+        public synchronized void onChunkAcknowledged(String transferId, Set<Integer> acknowledgedChunks) {
+            mTransferId = transferId;
+            mAcknowledgedChunks = acknowledgedChunks;
+            mPending = true;
+            if (SystemClock.elapsedRealtime() - mLastSaveTime >= CHUNKED_TRANSFER_SAVE_INTERVAL_MS) {
+                save();
+            }
+        }
+
+        /**
+         * Saves the chunks acknowledged since the last save, if any.
+         */
+        synchronized void flush() {
+            if (mPending) {
+                save();
+            }
+        }
+
+        private void save() {
+            saveChunkedTransfer(mTransferId, mChunkSize, mAcknowledgedChunks, mSourceLastModified);
+            mPending = false;
+            mLastSaveTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+
+    /**
+     * Saves the state of the chunked transfer in progress in the uploads database.
+     *
+     * @param transferId    Identifier of the transfer, or null to forget any transfer in progress.
+     */
+    private void saveChunkedTransfer(String transferId, long chunkSize, Set<Integer> acknowledgedChunks,
+                                     long sourceLastModified) {
+        if (mOCUploadId < 0) {
+            return;
+        }
+        getUploadsStorageManager().updateChunkedTransfer(
+                mOCUploadId,
+                transferId,
+                chunkSize,
+                acknowledgedChunks,
+                sourceLastModified
+        );
+    }
+
+
+    private UploadsStorageManager getUploadsStorageManager() {
+        if (mUploadsStorageManager == null) {
+            mUploadsStorageManager = new UploadsStorageManager(mContext.getContentResolver());
+        }
+        return mUploadsStorageManager;
+    }
+
+
+    /**
+     * Gets the number of chunks to keep in flight for a chunked upload.
+     *
+     * @return      Value set in preferences, or 1 if the server reports not to support big file chunking.
+     */
+    private int getChunksInFlight() {
+        OCCapability capability = getStorageManager().getCapability(mAccount.name);
+        if (capability != null && capability.getFilesBigFileChuncking().isFalse()) {
+            return 1;
+        }
+        return PreferenceManager.getUploadChunksInFlight(mContext);
+    }
+
+
+    /**
+     * Opens the content:// URI to upload, checking that its content can be streamed as is.
+     *
+     * @return      Descriptor of the content, or null if the URI can't be read or its descriptor is not
+     *              seekable or has no known length.
+     */
+    private ParcelFileDescriptor openSourceDescriptor() {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = mContext.getContentResolver().openFileDescriptor(
+                Uri.parse(mOriginalStoragePath),
+                "r"
+            );
+            if (descriptor != null && !UriUtils.isSeekable(descriptor)) {
+                descriptor.close();
+                descriptor = null;
+            }
+
+        } catch (IOException | SecurityException e) {
+            Log_OC.w(TAG, "Could not open " + mOriginalStoragePath + ": " + e.getMessage());
+        }
+        return descriptor;
+    }
+
+
+    /**
+     * Gives up the permanent read permission on the content:// URI uploaded, once it is not needed anymore.
+     */
+    private void releaseSourceAccess() {
+        UriUtils.releaseReadAccess(Uri.parse(mOriginalStoragePath), mContext.getContentResolver());
+    }
+
+
     /**
      * Checks origin of current upload and network type to decide if should be delayed, according to
      * current user preferences.
@@ -636,7 +1095,9 @@ public class UploadFileOperation extends SyncOperation {
 
         RemoteOperationResult result = null;
 
-        if (FileStorageUtils.getUsableSpace(mAccount.name) < sourceFile.length()) {
+        long sourceLength = mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME) ?
+                mFile.getFileLength() : sourceFile.length();
+        if (FileStorageUtils.getUsableSpace(mAccount.name) < sourceLength) {
             result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_FULL);
             return result;  // error condition when the file should be copied
 
@@ -656,33 +1117,56 @@ public class UploadFileOperation extends SyncOperation {
             }
 
             Log_OC.d(TAG, "Copying file contents");
-            InputStream in = null;
-            OutputStream out = null;
+            ParcelFileDescriptor pfd = null;
+            FileInputStream in = null;
+
+            // hashed while copied if it was not hashed before, so that the content is read only once
+            MessageDigest digest = null;
+            if (mContentHash == null) {
+                try {
+                    digest = FileStagingUtils.newContentDigest();
+                } catch (IOException e) {
+                    Log_OC.w(TAG, "Could not hash " + mOriginalStoragePath + ": " + e.getMessage());
+                }
+            }
 
             try {
                 if (!mOriginalStoragePath.equals(targetFile.getAbsolutePath())) {
                     // In case document provider schema as 'content://'
                     if (mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
                         Uri uri = Uri.parse(mOriginalStoragePath);
-                        in = mContext.getContentResolver().openInputStream(uri);
+                        pfd = mContext.getContentResolver().openFileDescriptor(uri, "r");
+                        in = new FileInputStream(pfd.getFileDescriptor());
+                        FileStagingUtils.stage(
+                            in,
+                            pfd.getStatSize(),
+                            targetFile,
+                            digest,
+                            mCancellationRequested,
+                            mStagingProgressListener
+                        );
                     } else {
-                        in = new FileInputStream(sourceFile);
+                        boolean read = FileStagingUtils.stage(
+                            sourceFile,
+                            targetFile,
+                            false,
+                            digest,
+                            mCancellationRequested,
+                            mStagingProgressListener
+                        );
+                        if (!read) {
+                            digest = null;
+                        }
                     }
-                    out = new FileOutputStream(targetFile);
-                    int nRead;
-                    byte[] buf = new byte[4096];
-                    while (!mCancellationRequested.get() &&
-                            (nRead = in.read(buf)) > -1) {
-                        out.write(buf, 0, nRead);
+                    if (digest != null) {
+                        mContentHash = FileStagingUtils.toHex(digest);
                     }
-                    out.flush();
 
                 } // else: weird but possible situation, nothing to copy
 
-                if (mCancellationRequested.get()) {
-                    result = new RemoteOperationResult(new OperationCancelledException());
-                    return result;
-                }
+            } catch (OperationCancelledException e) {
+                result = new RemoteOperationResult(e);
+                return result;
 
             } catch (Exception e) {
                 result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_COPIED);
@@ -692,17 +1176,12 @@ public class UploadFileOperation extends SyncOperation {
                 try {
                     if (in != null)
                         in.close();
+                    if (pfd != null)
+                        pfd.close();
                 } catch (Exception e) {
                     Log_OC.d(TAG, "Weird exception while closing input stream for " +
                             mOriginalStoragePath + " (ignoring)", e);
                 }
-                try {
-                    if (out != null)
-                        out.close();
-                } catch (Exception e) {
-                    Log_OC.d(TAG, "Weird exception while closing output stream for " +
-                            targetFile.getAbsolutePath() + " (ignoring)", e);
-                }
             }
         }
         return result;
@@ -713,8 +1192,6 @@ public class UploadFileOperation extends SyncOperation {
      * TODO rewrite with homogeneous fail handling, remove dependency on {@link RemoteOperationResult},
      * TODO     use Exceptions instead
      *
-     * TODO refactor both this and 'copy' in a single method
-     *
      * @param   sourceFile      Source file to move.
      * @param   targetFile      Target location to move the file.
      * @return  {@link RemoteOperationResult}
@@ -727,23 +1204,14 @@ public class UploadFileOperation extends SyncOperation {
             expectedFolder.mkdirs();
 
             if (expectedFolder.isDirectory()){
-                if (!sourceFile.renameTo(targetFile)){
-                    // try to copy and then delete
-                    targetFile.createNewFile();
-                    FileChannel inChannel = new FileInputStream(sourceFile).getChannel();
-                    FileChannel outChannel = new FileOutputStream(targetFile).getChannel();
-                    try {
-                        inChannel.transferTo(0, inChannel.size(), outChannel);
-                        sourceFile.delete();
-                    } catch (Exception e){
-                        mFile.setStoragePath(""); // forget the local file
-                        // by now, treat this as a success; the file was uploaded
-                        // the best option could be show a warning message
-                    }
-                    finally {
-                        if (inChannel != null) inChannel.close();
-                        if (outChannel != null) outChannel.close();
-                    }
+                try {
+                    // renamed if possible, copied and deleted otherwise
+                    FileStagingUtils.stage(sourceFile, targetFile, true, null, mStagingProgressListener);
+
+                } catch (Exception e){
+                    mFile.setStoragePath(""); // forget the local file
+                    // by now, treat this as a success; the file was uploaded
+                    // the best option could be show a warning message
                 }
 
             } else {
@@ -777,6 +1245,10 @@ public class UploadFileOperation extends SyncOperation {
         if (result.isSuccess()) {
             updateOCFile(file, (RemoteFile) result.getData().get(0));
             file.setLastSyncDateForProperties(syncDate);
+            if (mOCUploadId >= 0) {
+                getUploadsStorageManager().updateUploadedContent(
+                        mOCUploadId, mContentHash, file.getFileLength(), file.getEtag());
+            }
         } else {
             Log_OC.e(TAG, "Error reading properties of file after successful upload; this is gonna hurt...");
         }
@@ -792,6 +1264,9 @@ public class UploadFileOperation extends SyncOperation {
             // coincidence; nothing else is needed, the storagePath is right
             // in the instance returned by mCurrentUpload.getFile()
         }
+        if (result.isSuccess()) {
+            saveBlockIndex(file);
+        }
         file.setNeedsUpdateThumbnail(true);
         getStorageManager().saveFile(file);
         getStorageManager().saveConflict(file, null);
@@ -811,7 +1286,7 @@ public class UploadFileOperation extends SyncOperation {
 
     public interface OnRenameListener {
 
-        void onRenameUpload();
+        void onRenameUpload(UploadFileOperation upload);
     }
 
 }
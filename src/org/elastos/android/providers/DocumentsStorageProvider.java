@@ -38,6 +38,7 @@ import org.elastos.android.datamodel.FileDataStorageManager;
 import org.elastos.android.datamodel.OCFile;
 import org.elastos.android.files.services.FileDownloader;
 import org.elastos.android.providers.cursors.FileCursor;
+import org.elastos.android.providers.cursors.FolderContentCursor;
 import org.elastos.android.providers.cursors.RootCursor;
 
 import org.elastos.android.datamodel.FileDataStorageManager;
@@ -87,13 +88,12 @@ public class DocumentsStorageProvider extends DocumentsProvider {
         final long folderId = Long.parseLong(parentDocumentId);
         updateCurrentStorageManagerIfNeeded(folderId);
 
-        final FileCursor result = new FileCursor(projection);
-
+        // rows are read from the database when the caller gets to them
         final OCFile browsedDir = mCurrentStorageManager.getFileById(folderId);
-        for (OCFile file : mCurrentStorageManager.getFolderContent(browsedDir))
-            result.addFile(file);
-
-        return result;
+        return new FolderContentCursor(
+            projection,
+            mCurrentStorageManager.getFolderContentWindow(browsedDir, false)
+        );
     }
 
     @Override
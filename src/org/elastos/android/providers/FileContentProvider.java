@@ -34,11 +34,15 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
@@ -54,7 +58,10 @@ import org.elastos.android.utils.FileStorageUtils;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The ContentProvider for the ownCloud App.
@@ -77,6 +84,18 @@ public class FileContentProvider extends ContentProvider {
 
     private UriMatcher mUriMatcher;
 
+    /**
+     * Receives the SQL of the queries run by the provider.
+     */
+    interface QueryObserver {
+        void onQuery(String sql, String[] selectionArgs);
+    }
+
+    /**
+     * Set only by tests checking the queries built from the selections of the storage managers.
+     */
+    static volatile QueryObserver sQueryObserver;
+
     private static HashMap<String, String> mFileProjectionMap = new HashMap<>();
 
     static {
@@ -209,6 +228,16 @@ public class FileContentProvider extends ContentProvider {
                 ProviderMeta.ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP);
         mUploadProjectionMap.put(ProviderMeta.ProviderTableMeta.UPLOADS_LAST_RESULT, ProviderMeta.ProviderTableMeta.UPLOADS_LAST_RESULT);
         mUploadProjectionMap.put(ProviderMeta.ProviderTableMeta.UPLOADS_CREATED_BY, ProviderMeta.ProviderTableMeta.UPLOADS_CREATED_BY);
+        mUploadProjectionMap.put(ProviderMeta.ProviderTableMeta.UPLOADS_TRANSFER_ID, ProviderMeta.ProviderTableMeta.UPLOADS_TRANSFER_ID);
+        mUploadProjectionMap.put(ProviderMeta.ProviderTableMeta.UPLOADS_CHUNK_SIZE, ProviderMeta.ProviderTableMeta.UPLOADS_CHUNK_SIZE);
+        mUploadProjectionMap.put(ProviderMeta.ProviderTableMeta.UPLOADS_ACKNOWLEDGED_CHUNKS,
+                ProviderMeta.ProviderTableMeta.UPLOADS_ACKNOWLEDGED_CHUNKS);
+        mUploadProjectionMap.put(ProviderMeta.ProviderTableMeta.UPLOADS_SOURCE_LAST_MODIFIED,
+                ProviderMeta.ProviderTableMeta.UPLOADS_SOURCE_LAST_MODIFIED);
+        mUploadProjectionMap.put(ProviderMeta.ProviderTableMeta.UPLOADS_CONTENT_HASH,
+                ProviderMeta.ProviderTableMeta.UPLOADS_CONTENT_HASH);
+        mUploadProjectionMap.put(ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_ETAG,
+                ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_ETAG);
     }
 
     @Override
@@ -249,57 +278,7 @@ public class FileContentProvider extends ContentProvider {
                 break;
             case DIRECTORY:
                 // deletion of folder is recursive
-            /*
-            Uri folderUri = ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, Long.parseLong(uri.getPathSegments().get(1)));
-            Cursor folder = query(db, folderUri, null, null, null, null);
-            String folderName = "(unknown)";
-            if (folder != null && folder.moveToFirst()) {
-                folderName = folder.getString(folder.getColumnIndex(ProviderTableMeta.FILE_PATH));
-            }
-            */
-                Cursor children = query(uri, null, null, null, null);
-                if (children != null && children.moveToFirst()) {
-                    long childId;
-                    boolean isDir;
-                    while (!children.isAfterLast()) {
-                        childId = children.getLong(children.getColumnIndex(ProviderMeta.ProviderTableMeta._ID));
-                        isDir = "DIR".equals(children.getString(
-                                children.getColumnIndex(ProviderMeta.ProviderTableMeta.FILE_CONTENT_TYPE)
-                        ));
-                        //remotePath = children.getString(children.getColumnIndex(ProviderTableMeta.FILE_PATH));
-                        if (isDir) {
-                            count += delete(
-                                    db,
-                                    ContentUris.withAppendedId(ProviderMeta.ProviderTableMeta.CONTENT_URI_DIR, childId),
-                                    null,
-                                    null
-                            );
-                        } else {
-                            count += delete(
-                                    db,
-                                    ContentUris.withAppendedId(ProviderMeta.ProviderTableMeta.CONTENT_URI_FILE, childId),
-                                    null,
-                                    null
-                            );
-                        }
-                        children.moveToNext();
-                    }
-                    children.close();
-                } /*else {
-                Log_OC.d(TAG, "No child to remove in DIRECTORY " + folderName);
-            }
-            Log_OC.d(TAG, "Removing DIRECTORY " + folderName + " (or maybe not) ");
-            */
-                count += db.delete(ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME,
-                        ProviderMeta.ProviderTableMeta._ID
-                                + "="
-                                + uri.getPathSegments().get(1)
-                                + (!TextUtils.isEmpty(where) ? " AND (" + where
-                                + ")" : ""), whereArgs);
-            /* Just for log
-             if (folder != null) {
-                folder.close();
-            }*/
+                count = deleteFolder(db, uri.getPathSegments().get(1), where, whereArgs);
                 break;
             case ROOT_DIRECTORY:
                 //Log_OC.d(TAG, "Removing ROOT!");
@@ -324,6 +303,71 @@ public class FileContentProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Removes a folder and all its descendants with a fixed number of statements, whatever
+     * the size of the subtree.
+     *
+     * Descendants are selected by account and path prefix, so only files of the same account
+     * as the folder are removed.
+     *
+     * @param db            Database where the files are stored.
+     * @param folderId      Id of the folder to remove.
+     * @param where         Additional selection the folder must match to be removed.
+     * @param whereArgs     Arguments for 'where'.
+     * @return              Number of rows removed, folder included.
+     */
+    private int deleteFolder(SQLiteDatabase db, String folderId, String where, String[] whereArgs) {
+        String folderSelection = ProviderMeta.ProviderTableMeta._ID + "=" + folderId
+                + (!TextUtils.isEmpty(where) ? " AND (" + where + ")" : "");
+
+        String folderPath = null;
+        String accountName = null;
+        Cursor folder = db.query(
+                ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME,
+                new String[]{
+                        ProviderMeta.ProviderTableMeta.FILE_PATH,
+                        ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER
+                },
+                folderSelection,
+                whereArgs,
+                null,
+                null,
+                null
+        );
+        try {
+            if (folder.moveToFirst()) {
+                folderPath = folder.getString(0);
+                accountName = folder.getString(1);
+            }
+        } finally {
+            folder.close();
+        }
+        if (folderPath == null || accountName == null) {
+            Log_OC.d(TAG, "No DIRECTORY to remove with id " + folderId);
+            return 0;
+        }
+
+        if (!folderPath.endsWith(OCFile.PATH_SEPARATOR)) {
+            folderPath += OCFile.PATH_SEPARATOR;
+        }
+        // every path starting with 'folderPath' sorts in [folderPath, upperBound); unlike LIKE,
+        // the comparison is case sensitive and is resolved with the index on (owner, path)
+        String upperBound = folderPath.substring(0, folderPath.length() - 1)
+                + (char) (folderPath.charAt(folderPath.length() - 1) + 1);
+
+        int count = db.delete(
+                ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME,
+                ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND "
+                        + ProviderMeta.ProviderTableMeta.FILE_PATH + ">? AND "
+                        + ProviderMeta.ProviderTableMeta.FILE_PATH + "<?",
+                new String[]{accountName, folderPath, upperBound}
+        );
+        count += db.delete(ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME, folderSelection, whereArgs);
+
+        Log_OC.d(TAG, "Removed DIRECTORY " + folderPath + " with " + (count - 1) + " descendants");
+        return count;
+    }
+
     @Override
     public String getType(@NonNull Uri uri) {
         switch (mUriMatcher.match(uri)) {
@@ -606,6 +650,14 @@ public class FileContentProvider extends ContentProvider {
             order = sortOrder;
         }
 
+        QueryObserver observer = sQueryObserver;
+        if (observer != null) {
+            observer.onQuery(
+                sqlQuery.buildQuery(projection, selection, null, null, order, null),
+                selectionArgs
+            );
+        }
+
         // DB case_sensitive
         db.execSQL("PRAGMA case_sensitive_like = true");
         Cursor c = sqlQuery.query(db, projection, selection, selectionArgs, null, null, order);
@@ -688,6 +740,196 @@ public class FileContentProvider extends ContentProvider {
         return results;
     }
 
+    /**
+     * Entry point for bulk operations not fitting in the CRUD methods.
+     *
+     * {@link ProviderMeta.ProviderTableMeta#METHOD_MERGE_FILES} inserts or updates a list of rows of
+     * the files table, passed as an ArrayList of {@link ContentValues} in
+     * {@link ProviderMeta.ProviderTableMeta#MERGE_FILES_EXTRA_VALUES}; the ids of the rows are returned,
+     * in the same order, as a long[] in {@link ProviderMeta.ProviderTableMeta#MERGE_FILES_EXTRA_IDS}.
+     * An optional ArrayList of {@link ContentProviderOperation}s in
+     * {@link ProviderMeta.ProviderTableMeta#MERGE_FILES_EXTRA_OPERATIONS} is applied after the merge, in
+     * the same transaction.
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (ProviderMeta.ProviderTableMeta.METHOD_MERGE_FILES.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("No files to merge");
+            }
+            ArrayList<ContentValues> values =
+                extras.getParcelableArrayList(ProviderMeta.ProviderTableMeta.MERGE_FILES_EXTRA_VALUES);
+            if (values == null) {
+                throw new IllegalArgumentException("No files to merge");
+            }
+            ArrayList<ContentProviderOperation> operations =
+                extras.getParcelableArrayList(ProviderMeta.ProviderTableMeta.MERGE_FILES_EXTRA_OPERATIONS);
+            long[] ids;
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            db.beginTransaction();  // nests the transactions of the merge and the batch
+            try {
+                ids = mergeFiles(values);
+                if (operations != null && !operations.isEmpty()) {
+                    applyBatch(operations);
+                }
+                db.setTransactionSuccessful();
+            } catch (OperationApplicationException e) {
+                throw new IllegalStateException("Operations after merge failed: " + e.getMessage(), e);
+            } finally {
+                db.endTransaction();
+            }
+            Bundle result = new Bundle();
+            result.putLongArray(ProviderMeta.ProviderTableMeta.MERGE_FILES_EXTRA_IDS, ids);
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Inserts or updates rows of the files table in a single transaction, as an UPSERT keyed by
+     * (path, account).
+     *
+     * A row is updated if it exists with the given {@link ProviderMeta.ProviderTableMeta#_ID} (renamed
+     * files) or with the same path and account; it's inserted otherwise.
+     * {@link ProviderMeta.ProviderTableMeta#FILE_KEEP_IN_SYNC} is only written when the row is inserted,
+     * so that the available offline status set by the user is never overwritten by a synchronization.
+     *
+     * Statements are compiled once per set of columns and reused for every row, so no SQL is parsed
+     * per row. Sent as separate UPDATE / INSERT statements instead of INSERT ... ON CONFLICT DO UPDATE,
+     * since the latter requires SQLite 3.24, not available in most of the supported Android versions,
+     * and a unique constraint the files table does not have.
+     *
+     * @param values    Rows to merge.
+     * @return          Ids of the merged rows, in the same order as values.
+     */
+    private long[] mergeFiles(List<ContentValues> values) {
+        long[] ids = new long[values.size()];
+        Map<String, SQLiteStatement> statements = new HashMap<>();
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement selectByPath = db.compileStatement(
+                "SELECT " + ProviderMeta.ProviderTableMeta._ID +
+                    " FROM " + ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME +
+                    " WHERE " + ProviderMeta.ProviderTableMeta.FILE_PATH + "=? AND " +
+                    ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?"
+            );
+            statements.put("", selectByPath);
+
+            for (int i = 0; i < values.size(); i++) {
+                ContentValues cv = new ContentValues(values.get(i));
+                Long id = cv.getAsLong(ProviderMeta.ProviderTableMeta._ID);
+                cv.remove(ProviderMeta.ProviderTableMeta._ID);
+
+                String[] columns = cv.keySet().toArray(new String[cv.size()]);
+                Arrays.sort(columns);
+                for (String column : columns) {
+                    if (!mFileProjectionMap.containsKey(column)) {
+                        throw new IllegalArgumentException("Unknown column in files to merge: " + column);
+                    }
+                }
+
+                boolean merged = (id != null && id >= 0 && updateFile(db, statements, columns, cv, id));
+                if (!merged) {
+                    id = findFileIdByPath(selectByPath, cv);
+                    merged = (id != null && updateFile(db, statements, columns, cv, id));
+                }
+                if (!merged) {
+                    id = insertFile(db, statements, columns, cv);
+                }
+                ids[i] = id;
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+        getContext().getContentResolver().notifyChange(ProviderMeta.ProviderTableMeta.CONTENT_URI, null);
+        return ids;
+    }
+
+    private Long findFileIdByPath(SQLiteStatement selectByPath, ContentValues cv) {
+        String path = cv.getAsString(ProviderMeta.ProviderTableMeta.FILE_PATH);
+        String account = cv.getAsString(ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER);
+        if (path == null || account == null) {
+            return null;
+        }
+        selectByPath.clearBindings();
+        selectByPath.bindString(1, path);
+        selectByPath.bindString(2, account);
+        try {
+            return selectByPath.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return null;    // no row
+        }
+    }
+
+    private boolean updateFile(
+        SQLiteDatabase db, Map<String, SQLiteStatement> statements, String[] columns, ContentValues cv, long id
+    ) {
+        String key = "UPDATE " + TextUtils.join(",", columns);
+        SQLiteStatement update = statements.get(key);
+        if (update == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ")
+                .append(ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME).append(" SET ");
+            boolean first = true;
+            for (String column : columns) {
+                if (!ProviderMeta.ProviderTableMeta.FILE_KEEP_IN_SYNC.equals(column)) {
+                    sql.append(first ? "" : ",").append(column).append("=?");
+                    first = false;
+                }
+            }
+            if (first) {
+                // nothing to update, but the row must exist
+                sql.append(ProviderMeta.ProviderTableMeta._ID).append("=")
+                    .append(ProviderMeta.ProviderTableMeta._ID);
+            }
+            sql.append(" WHERE ").append(ProviderMeta.ProviderTableMeta._ID).append("=?");
+            update = db.compileStatement(sql.toString());
+            statements.put(key, update);
+        }
+        update.clearBindings();
+        int index = 1;
+        for (String column : columns) {
+            if (!ProviderMeta.ProviderTableMeta.FILE_KEEP_IN_SYNC.equals(column)) {
+                DatabaseUtils.bindObjectToProgram(update, index++, cv.get(column));
+            }
+        }
+        update.bindLong(index, id);
+        return update.executeUpdateDelete() > 0;
+    }
+
+    private long insertFile(
+        SQLiteDatabase db, Map<String, SQLiteStatement> statements, String[] columns, ContentValues cv
+    ) {
+        String key = "INSERT " + TextUtils.join(",", columns);
+        SQLiteStatement insert = statements.get(key);
+        if (insert == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME)
+                .append(" (").append(TextUtils.join(",", columns)).append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+            insert = db.compileStatement(sql.toString());
+            statements.put(key, insert);
+        }
+        insert.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(insert, i + 1, cv.get(columns[i]));
+        }
+        long rowId = insert.executeInsert();
+        if (rowId < 0) {
+            throw new SQLException("ERROR inserting " + cv.getAsString(ProviderMeta.ProviderTableMeta.FILE_PATH));
+        }
+        return rowId;
+    }
+
 
     private class DataBaseHelper extends SQLiteOpenHelper {
 
@@ -716,6 +958,10 @@ public class FileContentProvider extends ContentProvider {
 
             // Create camera upload sync table
             createCameraUploadsSyncTable(db);
+
+            // Create indexes for the most frequent queries
+            createIndexes(db);
+            createContentHashIndex(db);
         }
 
         @Override
@@ -1072,6 +1318,72 @@ public class FileContentProvider extends ContentProvider {
                     db.endTransaction();
                 }
             }
+
+            if (oldVersion < 23 && newVersion >= 23) {
+                Log_OC.i("SQL", "Entering in the #23 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    createIndexes(db);
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            // uploads tables created in #14 already have the columns
+            if (oldVersion < 24 && newVersion >= 24 && oldVersion >= 14) {
+                Log_OC.i("SQL", "Entering in the #24 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    db.execSQL("ALTER TABLE " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME +
+                            " ADD COLUMN " + ProviderMeta.ProviderTableMeta.UPLOADS_TRANSFER_ID + " TEXT " +
+                            " DEFAULT NULL");
+                    db.execSQL("ALTER TABLE " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME +
+                            " ADD COLUMN " + ProviderMeta.ProviderTableMeta.UPLOADS_CHUNK_SIZE + " INTEGER " +
+                            " DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME +
+                            " ADD COLUMN " + ProviderMeta.ProviderTableMeta.UPLOADS_ACKNOWLEDGED_CHUNKS + " TEXT " +
+                            " DEFAULT NULL");
+                    db.execSQL("ALTER TABLE " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME +
+                            " ADD COLUMN " + ProviderMeta.ProviderTableMeta.UPLOADS_SOURCE_LAST_MODIFIED + " INTEGER " +
+                            " DEFAULT 0");
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (oldVersion < 25 && newVersion >= 25) {
+                Log_OC.i("SQL", "Entering in the #25 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    if (oldVersion >= 14) {
+                        db.execSQL("ALTER TABLE " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME +
+                                " ADD COLUMN " + ProviderMeta.ProviderTableMeta.UPLOADS_CONTENT_HASH + " TEXT " +
+                                " DEFAULT NULL");
+                        db.execSQL("ALTER TABLE " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME +
+                                " ADD COLUMN " + ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_ETAG + " TEXT " +
+                                " DEFAULT NULL");
+                    }
+                    createContentHashIndex(db);
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (oldVersion < 26 && newVersion >= 26) {
+                Log_OC.i("SQL", "Entering in the #26 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    // adds the index of uploads by last result
+                    createIndexes(db);
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
             if (!upgraded) {
                 Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
                         ", newVersion == " + newVersion);
@@ -1176,7 +1488,13 @@ public class FileContentProvider extends ContentProvider {
                 + ProviderMeta.ProviderTableMeta.UPLOADS_IS_CREATE_REMOTE_FOLDER + " INTEGER, "  // boolean
                 + ProviderMeta.ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP + " INTEGER, "
                 + ProviderMeta.ProviderTableMeta.UPLOADS_LAST_RESULT + " INTEGER, "     // Upload LastResult
-                + ProviderMeta.ProviderTableMeta.UPLOADS_CREATED_BY + " INTEGER );"    // Upload createdBy
+                + ProviderMeta.ProviderTableMeta.UPLOADS_CREATED_BY + " INTEGER, "    // Upload createdBy
+                + ProviderMeta.ProviderTableMeta.UPLOADS_TRANSFER_ID + " TEXT, "         // chunked upload in progress
+                + ProviderMeta.ProviderTableMeta.UPLOADS_CHUNK_SIZE + " INTEGER, "
+                + ProviderMeta.ProviderTableMeta.UPLOADS_ACKNOWLEDGED_CHUNKS + " TEXT, " // comma-separated indexes
+                + ProviderMeta.ProviderTableMeta.UPLOADS_SOURCE_LAST_MODIFIED + " INTEGER, "
+                + ProviderMeta.ProviderTableMeta.UPLOADS_CONTENT_HASH + " TEXT, "   // hex SHA-256
+                + ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_ETAG + " TEXT );"
         );
     }
 
@@ -1198,6 +1516,73 @@ public class FileContentProvider extends ContentProvider {
         );
     }
 
+    /**
+     * Creates the secondary indexes used by the lookups in FileDataStorageManager and
+     * {@link UploadsStorageManager}; without them every lookup by path, parent or status
+     * walks the whole table.
+     *
+     * @param db        Database where the indexes are created.
+     */
+    private void createIndexes(SQLiteDatabase db) {
+        // files, by owner and path; also serves the lookups by owner alone
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME + "_owner_path_idx ON "
+                + ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME + "("
+                + ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER + ", "
+                + ProviderMeta.ProviderTableMeta.FILE_PATH + ");"
+        );
+        // files, by parent folder
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME + "_parent_idx ON "
+                + ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME + "("
+                + ProviderMeta.ProviderTableMeta.FILE_PARENT + ", "
+                + ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER + ");"
+        );
+        // files, by available offline status
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME + "_keep_in_sync_idx ON "
+                + ProviderMeta.ProviderTableMeta.FILE_TABLE_NAME + "("
+                + ProviderMeta.ProviderTableMeta.FILE_KEEP_IN_SYNC + ", "
+                + ProviderMeta.ProviderTableMeta.FILE_ACCOUNT_OWNER + ");"
+        );
+        // shares, by owner and path
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderMeta.ProviderTableMeta.OCSHARES_TABLE_NAME + "_owner_path_idx ON "
+                + ProviderMeta.ProviderTableMeta.OCSHARES_TABLE_NAME + "("
+                + ProviderMeta.ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + ", "
+                + ProviderMeta.ProviderTableMeta.OCSHARES_PATH + ");"
+        );
+        // uploads, by status
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME + "_status_idx ON "
+                + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME + "("
+                + ProviderMeta.ProviderTableMeta.UPLOADS_STATUS + ");"
+        );
+        // uploads, by last result; with the index by status, serves the lookups of one OR the other
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME + "_last_result_idx ON "
+                + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME + "("
+                + ProviderMeta.ProviderTableMeta.UPLOADS_LAST_RESULT + ");"
+        );
+        // uploads, by account and remote path
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME + "_account_path_idx ON "
+                + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME + "("
+                + ProviderMeta.ProviderTableMeta.UPLOADS_ACCOUNT_NAME + ", "
+                + ProviderMeta.ProviderTableMeta.UPLOADS_REMOTE_PATH + ");"
+        );
+    }
+
+    /**
+     * Creates the index of uploads by content, used to find uploads of the same content already in the
+     * server.
+     *
+     * Not part of {@link #createIndexes(SQLiteDatabase)}, since the indexed columns don't exist yet when
+     * that is called from older upgrades.
+     *
+     * @param db        Database where the index is created.
+     */
+    private void createContentHashIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME + "_account_hash_idx ON "
+                + ProviderMeta.ProviderTableMeta.UPLOADS_TABLE_NAME + "("
+                + ProviderMeta.ProviderTableMeta.UPLOADS_ACCOUNT_NAME + ", "
+                + ProviderMeta.ProviderTableMeta.UPLOADS_CONTENT_HASH + ");"
+        );
+    }
+
     /**
      * Version 10 of database does not modify its scheme. It coincides with the upgrade of the ownCloud account names
      * structure to include in it the path to the server instance. Updating the account names and path to local files
@@ -42,23 +42,44 @@ public class FileCursor extends MatrixCursor {
     };
 
     public FileCursor(String[] projection) {
-        super(projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION);
+        super(getDocumentProjection(projection));
     }
 
     public void addFile(OCFile file) {
         if (file == null) return;
 
-        final int iconRes = MimetypeIconUtil.getFileTypeIconId(file.getMimetype(), file.getFileName());
-        final String mimeType = file.isFolder() ? Document.MIME_TYPE_DIR : file.getMimetype();
-        final String imagePath = file.isImage() && file.isDown() ? file.getStoragePath() : null;
-        int flags = imagePath != null ? Document.FLAG_SUPPORTS_THUMBNAIL : 0;
+        RowBuilder row = newRow();
+        for (String column : getColumnNames()) {
+            row.add(column, getDocumentColumn(file, column));
+        }
+    }
+
+    /**
+     * @return  Value of a column of {@link Document} for a file; NULL for the columns not supported.
+     */
+    static Object getDocumentColumn(OCFile file, String column) {
+        switch (column) {
+            case Document.COLUMN_DOCUMENT_ID:
+                return Long.toString(file.getFileId());
+            case Document.COLUMN_DISPLAY_NAME:
+                return file.getFileName();
+            case Document.COLUMN_LAST_MODIFIED:
+                return file.getModificationTimestamp();
+            case Document.COLUMN_SIZE:
+                return file.getFileLength();
+            case Document.COLUMN_FLAGS:
+                final String imagePath = file.isImage() && file.isDown() ? file.getStoragePath() : null;
+                return imagePath != null ? Document.FLAG_SUPPORTS_THUMBNAIL : 0;
+            case Document.COLUMN_ICON:
+                return MimetypeIconUtil.getFileTypeIconId(file.getMimetype(), file.getFileName());
+            case Document.COLUMN_MIME_TYPE:
+                return file.isFolder() ? Document.MIME_TYPE_DIR : file.getMimetype();
+            default:
+                return null;
+        }
+    }
 
-        newRow().add(Document.COLUMN_DOCUMENT_ID, Long.toString(file.getFileId()))
-                .add(Document.COLUMN_DISPLAY_NAME, file.getFileName())
-                .add(Document.COLUMN_LAST_MODIFIED, file.getModificationTimestamp())
-                .add(Document.COLUMN_SIZE, file.getFileLength())
-                .add(Document.COLUMN_FLAGS, flags)
-                .add(Document.COLUMN_ICON, iconRes)
-                .add(Document.COLUMN_MIME_TYPE, mimeType);
+    static String[] getDocumentProjection(String[] projection) {
+        return projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION;
     }
 }
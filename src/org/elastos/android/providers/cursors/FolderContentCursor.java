@@ -0,0 +1,124 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.providers.cursors;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Build;
+
+import org.elastos.android.datamodel.FolderContentWindow;
+import org.elastos.android.datamodel.OCFile;
+
+/**
+ * Cursor of documents over a {@link FolderContentWindow}; unlike {@link FileCursor}, rows are not copied,
+ * every value is read from the window when requested.
+ *
+ * Closing the cursor closes the window.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class FolderContentCursor extends AbstractCursor {
+
+    private final String[] mColumnNames;
+    private final FolderContentWindow mWindow;
+
+    public FolderContentCursor(String[] projection, FolderContentWindow window) {
+        if (window == null)
+            throw new IllegalArgumentException("NULL window argument received");
+        mColumnNames = FileCursor.getDocumentProjection(projection);
+        mWindow = window;
+    }
+
+    @Override
+    public int getCount() {
+        return mWindow.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = getValue(column);
+        if (value == null) {
+            return Cursor.FIELD_TYPE_NULL;
+        } else if (value instanceof Number) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        }
+        return Cursor.FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = getValue(column);
+        return (value == null) ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = getValue(column);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return (value == null) ? 0 : Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getValue(column) == null;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mWindow.close();
+    }
+
+    private Object getValue(int column) {
+        if (column < 0 || column >= mColumnNames.length) {
+            throw new IllegalArgumentException("Column " + column + " out of " + mColumnNames.length);
+        }
+        checkPosition();
+        OCFile file = mWindow.get(getPosition());
+        return FileCursor.getDocumentColumn(file, mColumnNames[column]);
+    }
+}
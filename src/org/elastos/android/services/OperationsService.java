@@ -706,7 +706,8 @@ public class OperationsService extends Service {
                             System.currentTimeMillis(),  // TODO remove this dependency from construction time
                             pushOnly,
                             false,
-                            syncContentOfRegularFiles
+                            syncContentOfRegularFiles,
+                            true                        // ETag already checked in the parent folder
                     );
 
                 } else if (action.equals(ACTION_MOVE_FILE)) {
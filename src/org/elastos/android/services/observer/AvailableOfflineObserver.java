@@ -34,13 +34,11 @@ import org.elastos.android.operations.SynchronizeFileOperation;
 import org.elastos.android.ui.activity.ConflictsResolveActivity;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 
 /**
  * Observer watching a folder to request the synchronization of kept-in-sync files
@@ -54,25 +52,21 @@ import java.util.Stack;
  *  The second case requires to monitor the folder parent of the files, since a direct 
  *  {@link FileObserver} on it will not receive more events after the file is deleted to
  *  be replaced.
+ *
+ *  Synchronizations are not started right away, but when the modified files stay quiet for a
+ *  while, see {@link SyncEventCoalescer}.
+ *
+ *  Folders are watched through the shared {@link FolderWatchRegistry}.
  */
-public class AvailableOfflineObserver extends FileObserver {
+public class AvailableOfflineObserver implements FolderWatchRegistry.OnWatchEventListener {
 
     private static String TAG = AvailableOfflineObserver.class.getSimpleName();
 
     private static int UPDATE_MASK = (
         FileObserver.ATTRIB | FileObserver.MODIFY |
-        FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE |
-        FileObserver.CREATE |   // to detect new subfolders in recursive mode
-        FileObserver.MOVED_TO   // to detect renamed subfolders in recursive mode
+        FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
     );
 
-    private static int IN_ISDIR = 0x40000000;
-
-    private static int IN_IGNORE = 32768;
-    /*
-    private static int ALL_EVENTS_EVEN_THOSE_NOT_DOCUMENTED = 0x7fffffff;   // NEVER use 0xffffffff
-    */
-
     private String mPath;
     private Account mAccount;
     private Context mContext;
@@ -82,7 +76,9 @@ public class AvailableOfflineObserver extends FileObserver {
     private Map<String, Boolean> mIncludedChildren;
     private Set<String> mExcludedChildren;
 
-    private List<SubfolderObserver> mFolderTreeObservers;
+    private FolderWatchRegistry.Subscription mSubscription;
+
+    private SyncEventCoalescer mSyncEventCoalescer;
 
     /**
      * Constructor.
@@ -95,8 +91,6 @@ public class AvailableOfflineObserver extends FileObserver {
      * @param context       Used to start an operation to synchronize the file, when needed.
      */
     public AvailableOfflineObserver(String path, Account account, Context context) {
-        super(path, UPDATE_MASK);
-
         if (path == null)
             throw new IllegalArgumentException("NULL path argument received");
         if (account == null)
@@ -111,7 +105,12 @@ public class AvailableOfflineObserver extends FileObserver {
         mIncludedChildren = new HashMap<>();
         mExcludedChildren = Collections.newSetFromMap(new HashMap<String, Boolean>());
 
-        mFolderTreeObservers = new ArrayList<>();
+        mSyncEventCoalescer = new SyncEventCoalescer(new SyncEventCoalescer.OnSyncBatchReadyListener() {
+            @Override
+            public void onSyncBatchReady(String folderPath, List<String> paths) {
+                synchronizeFiles(folderPath, paths);
+            }
+        });
     }
 
     /**
@@ -137,7 +136,7 @@ public class AvailableOfflineObserver extends FileObserver {
                 }
             }
             if (new File(mPath).exists()) {
-                startWatching();
+                subscribe(false);
                 Log_OC.d(TAG, "Watching folder " + mPath + " for changes in " + relativePath);
             } else {
                 Log_OC.w(
@@ -165,12 +164,13 @@ public class AvailableOfflineObserver extends FileObserver {
      * @param relativePath         Name of a file inside the observed folder.
      */
     public void stopWatching(String relativePath) {
+        mSyncEventCoalescer.discard(relativePath);
         if (!mRecursiveWatch) {
             // selective mode
             synchronized (mIncludedLock) {
                 mIncludedChildren.remove(relativePath);
                 if (mIncludedChildren.isEmpty()) {
-                    super.stopWatching();
+                    unsubscribe();
                     Log_OC.d(TAG, "Stopped watching " + mPath + " for changes in selected children");
                 }
             }
@@ -192,7 +192,7 @@ public class AvailableOfflineObserver extends FileObserver {
         if (!mRecursiveWatch) {
             // TODO - should do this?
             synchronized (mIncludedLock) {
-                super.stopWatching();
+                unsubscribe();
                 mIncludedChildren.clear();
                 Log_OC.d(TAG, "Stopped watching " + mPath + " for changes in selected children");
             }
@@ -202,47 +202,37 @@ public class AvailableOfflineObserver extends FileObserver {
         }
 
         mExcludedChildren.clear();
-        Stack<String> stack = new Stack<>();
-        stack.push(mPath);
-        // scan file tree and create subordinate observers
-        while (!stack.empty()) {
-            String parent = stack.pop();
-            Log_OC.d(TAG, "Adding observer for all files in " + parent);
-            mFolderTreeObservers.add(new SubfolderObserver(parent, UPDATE_MASK));
-            File path = new File(parent);
-            File[] files = path.listFiles();
-            if (files == null) continue;
-            for (File file : files) {
-                if (file.isDirectory()
-                    && !".".equals(file.getName())
-                    && !"..".equals(file.getName())
-                ) {
-                    stack.push(file.getPath());
-                }
-            }
-        }
-
-        for (int i = 0; i < mFolderTreeObservers.size(); i++) {
-            mFolderTreeObservers.get(i).startWatching();
-        }
+        // the registry scans the file tree, and follows the subfolders created or removed later
+        subscribe(true);
         Log_OC.d(TAG, "Watching folder tree hanging from " + mPath);
     }
 
     public void stopWatchingAll() {
-        for (int i = 0; i < mFolderTreeObservers.size(); ++i) {
-            mFolderTreeObservers.get(i).stopWatching();
-        }
-        mFolderTreeObservers.clear();
+        unsubscribe();
+        mSyncEventCoalescer.discardAll();
         Log_OC.d(TAG, "Stopped watching folder tree hanging from " + mPath);
         mExcludedChildren.clear();
     }
 
-    @Override
     public void stopWatching() {
         if (mRecursiveWatch) {
             stopWatchingAll();
         } else {
-            super.stopWatching();
+            unsubscribe();
+            mSyncEventCoalescer.discardAll();
+        }
+    }
+
+    private void subscribe(boolean recursive) {
+        if (mSubscription == null) {
+            mSubscription = FolderWatchRegistry.getInstance().watch(mPath, UPDATE_MASK, recursive, this);
+        }
+    }
+
+    private void unsubscribe() {
+        if (mSubscription != null) {
+            FolderWatchRegistry.getInstance().unwatch(mSubscription);
+            mSubscription = null;
         }
     }
 
@@ -255,6 +245,14 @@ public class AvailableOfflineObserver extends FileObserver {
         }
     }
 
+    /**
+     * @return      Number of synchronizations of modified files collapsed into a pending one, in every
+     *              observer, since the app started.
+     */
+    public static long getCollapsedSyncEventsCount() {
+        return SyncEventCoalescer.getCollapsedEventsCount();
+    }
+
     /**
      * Receives and processes events about updates of the monitored folder and its children files.
      *
@@ -262,7 +260,7 @@ public class AvailableOfflineObserver extends FileObserver {
      * @param path      Relative path of the file referred by the event.
      */
     @Override
-    public void onEvent(int event, String path) {
+    public void onWatchEvent(int event, String path) {
         Log_OC.v(TAG, "Got event " + event + " on FOLDER " + mPath + " about "
             + ((path != null) ? path : "") + " in THREAD " + Thread.currentThread().getName() + ", " + Thread.currentThread().getId());
 
@@ -275,6 +273,7 @@ public class AvailableOfflineObserver extends FileObserver {
                         (event & FileObserver.ATTRIB) != 0 ||
                         (event & FileObserver.MOVED_TO) != 0) {
                         mIncludedChildren.put(path, Boolean.valueOf(true));
+                        mSyncEventCoalescer.onActivity(path);
                     }
 
                     if ((event & FileObserver.CLOSE_WRITE) != 0 &&
@@ -283,21 +282,6 @@ public class AvailableOfflineObserver extends FileObserver {
                         shouldSynchronize = true;
                     }
 
-                    if ((event & IN_ISDIR) != 0) {
-                        // event on a subfolder
-
-                        if ((event & FileObserver.CREATE) != 0 ||
-                            (event & FileObserver.MOVED_TO) != 0
-                            ) {
-                            SubfolderObserver newObserver = new SubfolderObserver(
-                                mPath + File.separator + path, UPDATE_MASK
-                            );
-                            mFolderTreeObservers.add(newObserver);
-                            newObserver.startWatching();
-                        }
-
-                    }
-
                 } else if (mIncludedChildren.containsKey(path)) {
                     /// selective mode
                     if (((event & FileObserver.MODIFY) != 0) ||
@@ -307,6 +291,7 @@ public class AvailableOfflineObserver extends FileObserver {
                         if (mIncludedChildren.get(path) != true) {
                             mIncludedChildren.put(path, Boolean.valueOf(true));
                         }
+                        mSyncEventCoalescer.onActivity(path);
                     }
 
                     if ((event & FileObserver.CLOSE_WRITE) != 0 &&
@@ -318,25 +303,36 @@ public class AvailableOfflineObserver extends FileObserver {
             }
         }
         if (shouldSynchronize) {
-            startSyncOperation(path);
+            // released once the file stays quiet; further saves meanwhile are collapsed
+            mSyncEventCoalescer.requestSync(path);
         }
+    }
 
-        if ((event & IN_IGNORE) != 0 &&
-            (path == null || path.length() == 0)) {
-            Log_OC.d(TAG, "Stopping the observance on " + mPath);
+    /**
+     * Synchronizes a batch of files released by the {@link SyncEventCoalescer}, all of them in the
+     * same folder.
+     *
+     * @param folderPath        Path of the folder containing the files, relative to the watched one.
+     * @param fileNames         Relative paths of files inside the watched folder.
+     */
+    private void synchronizeFiles(String folderPath, List<String> fileNames) {
+        Log_OC.d(TAG, "Synchronizing " + fileNames.size() + " files in " + mPath + File.separator +
+            folderPath + "; " + SyncEventCoalescer.getCollapsedEventsCount() + " events collapsed so far");
+        FileDataStorageManager storageManager =
+                new FileDataStorageManager(mAccount, mContext.getContentResolver());
+        for (String fileName : fileNames) {
+            startSyncOperation(storageManager, fileName);
         }
-
     }
 
     /**
      * Triggers an operation to synchronize the contents of a file inside the observed folder with
      * its remote counterpart in the associated ownCloud account.
      *    
+     * @param storageManager    Storage manager of the account, shared by the files of a batch.
      * @param fileName          Name of a file inside the watched folder.
      */
-    private void startSyncOperation(String fileName) {
-        FileDataStorageManager storageManager = 
-                new FileDataStorageManager(mAccount, mContext.getContentResolver());
+    private void startSyncOperation(FileDataStorageManager storageManager, String fileName) {
         // a fresh object is needed; many things could have occurred to the file
         // since it was registered to observe again, assuming that local files
         // are linked to a remote file AT MOST, SOMETHING TO BE DONE;
@@ -359,24 +355,4 @@ public class AvailableOfflineObserver extends FileObserver {
         }
     }
 
-
-    private class SubfolderObserver extends FileObserver {
-        private String mRelativePath;
-
-        SubfolderObserver(String path, int mask) {
-            super(path, mask);
-            mRelativePath = path.replace(AvailableOfflineObserver.this.mPath, "");
-            if (mRelativePath.startsWith(File.separator)) {
-                mRelativePath = mRelativePath.substring(1);
-            }
-        }
-
-        @Override
-        public void onEvent(int event, String path) {
-            String newPath = (mRelativePath.length() > 0) ? mRelativePath + File.separator + path : path;
-            AvailableOfflineObserver.this.onEvent(event, newPath);
-        }
-
-    }
-
 }
@@ -0,0 +1,361 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.services.observer;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.TreeMap;
+
+/**
+ * Registry of the local folders watched for changes, shared by every observer and account.
+ *
+ * Every folder gets a single {@link FileObserver}, no matter how many subscriptions include it; observers
+ * on the same path share the inotify watch, and stopping one of them would silently stop the rest.
+ *
+ * Events are delivered to subscriptions in a single dispatcher thread. Recursive subscriptions follow
+ * the changes in the tree: folders created or moved inside are watched, scanning only the new subtree,
+ * and folders deleted or moved out are released. Nothing but the watched folders is kept in memory.
+ */
+public class FolderWatchRegistry {
+
+    private static final String TAG = FolderWatchRegistry.class.getSimpleName();
+
+    private static final int IN_ISDIR = 0x40000000;
+    private static final int IN_IGNORED = 0x00008000;
+
+    /**
+     * Events watched in every folder; subscriptions filter them with their own masks.
+     */
+    private static final int WATCH_MASK = (
+        FileObserver.ATTRIB | FileObserver.MODIFY | FileObserver.CLOSE_WRITE |
+        FileObserver.CREATE | FileObserver.DELETE |
+        FileObserver.MOVED_FROM | FileObserver.MOVED_TO |
+        FileObserver.DELETE_SELF | FileObserver.MOVE_SELF
+    );
+
+    private static FolderWatchRegistry sInstance;
+
+    /**
+     * Receives the events in the folders of a subscription.
+     */
+    public interface OnWatchEventListener {
+
+        /**
+         * Called in the dispatcher thread of the registry.
+         *
+         * @param event     Kind of event occurred, as in {@link FileObserver#onEvent(int, String)}.
+         * @param path      Path of the file referred by the event, relative to the root of the subscription;
+         *                  null if the event refers to the root itself.
+         */
+        void onWatchEvent(int event, String path);
+    }
+
+    /**
+     * Subscription to the events of a folder, or of a folder tree.
+     */
+    public static class Subscription {
+
+        private final String mRootPath;
+        private final int mMask;
+        private final boolean mRecursive;
+        private final OnWatchEventListener mListener;
+        private volatile boolean mActive = true;
+
+        private Subscription(String rootPath, int mask, boolean recursive, OnWatchEventListener listener) {
+            mRootPath = rootPath;
+            mMask = mask;
+            mRecursive = recursive;
+            mListener = listener;
+        }
+
+        public String getRootPath() {
+            return mRootPath;
+        }
+
+        public boolean isRecursive() {
+            return mRecursive;
+        }
+    }
+
+    private final Handler mDispatcher;
+
+    private final Object mWatchesLock = new Object();
+
+    /**
+     * Watched folders, sorted by path so that the folders below one of them are contiguous.
+     */
+    private final TreeMap<String, FolderWatch> mWatches = new TreeMap<>();
+
+
+    public static synchronized FolderWatchRegistry getInstance() {
+        if (sInstance == null) {
+            HandlerThread thread = new HandlerThread("Folder watch dispatcher",
+                Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sInstance = new FolderWatchRegistry(new Handler(thread.getLooper()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param dispatcher    Handler delivering the events to subscriptions.
+     */
+    FolderWatchRegistry(Handler dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+
+    /**
+     * Starts watching a folder.
+     *
+     * @param rootPath      Absolute path to the local folder to watch.
+     * @param mask          Events to deliver, as in {@link FileObserver}.
+     * @param recursive     When 'true', every folder below is watched too.
+     * @param listener      Receiver of the events.
+     * @return              Subscription to pass to {@link #unwatch(Subscription)}.
+     */
+    public Subscription watch(String rootPath, int mask, boolean recursive, OnWatchEventListener listener) {
+        if (rootPath == null)
+            throw new IllegalArgumentException("NULL path argument received");
+        if (listener == null)
+            throw new IllegalArgumentException("NULL listener argument received");
+
+        Subscription subscription = new Subscription(normalize(rootPath), mask, recursive, listener);
+        synchronized (mWatchesLock) {
+            if (recursive) {
+                addTree(subscription.mRootPath, subscription);
+            } else {
+                addWatch(subscription.mRootPath, subscription);
+            }
+        }
+        Log_OC.d(TAG, "Watching " + (recursive ? "folder tree hanging from " : "folder ") +
+            subscription.mRootPath + "; " + getWatchedFoldersCount() + " folders watched");
+        return subscription;
+    }
+
+    /**
+     * Stops delivering events to a subscription, and releases the watches nobody else needs.
+     *
+     * @param subscription  Subscription returned by {@link #watch(String, int, boolean, OnWatchEventListener)}.
+     */
+    public void unwatch(Subscription subscription) {
+        if (subscription == null || !subscription.mActive) {
+            return;
+        }
+        subscription.mActive = false;
+        synchronized (mWatchesLock) {
+            if (subscription.mRecursive) {
+                removeTree(subscription.mRootPath, subscription);
+            } else {
+                removeWatch(subscription.mRootPath, subscription);
+            }
+        }
+        Log_OC.d(TAG, "Stopped watching " + subscription.mRootPath + "; " + getWatchedFoldersCount() +
+            " folders watched");
+    }
+
+    /**
+     * @return  Number of local folders currently watched.
+     */
+    public int getWatchedFoldersCount() {
+        synchronized (mWatchesLock) {
+            return mWatches.size();
+        }
+    }
+
+
+    /**
+     * Watches a folder and every folder below for a recursive subscription.
+     */
+    private void addTree(String rootPath, Subscription subscription) {
+        // caller holds mWatchesLock
+        Stack<String> stack = new Stack<>();
+        stack.push(rootPath);
+        while (!stack.empty()) {
+            String folderPath = stack.pop();
+            if (!addWatch(folderPath, subscription)) {
+                continue;
+            }
+            File[] files = new File(folderPath).listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    stack.push(file.getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return  'True' if the folder is watched for the subscription.
+     */
+    private boolean addWatch(String folderPath, Subscription subscription) {
+        // caller holds mWatchesLock
+        FolderWatch watch = mWatches.get(folderPath);
+        if (watch == null) {
+            if (!new File(folderPath).isDirectory()) {
+                Log_OC.w(TAG, "Observance of " + folderPath + " could not start, it's not an existing folder");
+                return false;
+            }
+            watch = new FolderWatch(folderPath);
+            mWatches.put(folderPath, watch);
+            watch.startWatching();
+        }
+        if (!watch.mSubscriptions.contains(subscription)) {
+            watch.mSubscriptions.add(subscription);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a subscription from a folder and every folder below; with a null subscription, stops
+     * watching all of them.
+     */
+    private void removeTree(String rootPath, Subscription subscription) {
+        // caller holds mWatchesLock
+        removeWatch(rootPath, subscription);
+        String prefix = rootPath + File.separator;
+        Iterator<Map.Entry<String, FolderWatch>> it =
+            mWatches.subMap(prefix, prefix + Character.MAX_VALUE).entrySet().iterator();
+        while (it.hasNext()) {
+            FolderWatch watch = it.next().getValue();
+            if (subscription == null) {
+                watch.mSubscriptions.clear();
+            } else {
+                watch.mSubscriptions.remove(subscription);
+            }
+            if (watch.mSubscriptions.isEmpty()) {
+                watch.stopWatching();
+                it.remove();
+            }
+        }
+    }
+
+    private void removeWatch(String folderPath, Subscription subscription) {
+        // caller holds mWatchesLock
+        FolderWatch watch = mWatches.get(folderPath);
+        if (watch == null) {
+            return;
+        }
+        if (subscription == null) {
+            watch.mSubscriptions.clear();
+        } else {
+            watch.mSubscriptions.remove(subscription);
+        }
+        if (watch.mSubscriptions.isEmpty()) {
+            watch.stopWatching();
+            mWatches.remove(folderPath);
+        }
+    }
+
+
+    /**
+     * Updates the watched tree with an event of a folder, and delivers it to the subscriptions including it.
+     *
+     * Runs in the dispatcher thread.
+     */
+    private void dispatch(FolderWatch watch, int event, String name) {
+        boolean aboutFolder = (name == null || name.length() == 0);
+        String path = aboutFolder ? watch.mPath : watch.mPath + File.separator + name;
+        List<Subscription> subscriptions;
+
+        synchronized (mWatchesLock) {
+            if (mWatches.get(watch.mPath) != watch) {
+                // stopped meanwhile
+                return;
+            }
+            subscriptions = new ArrayList<>(watch.mSubscriptions);
+
+            if (aboutFolder && (event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                Log_OC.d(TAG, "Stopping the observance on " + watch.mPath + ", moved or deleted");
+                removeTree(watch.mPath, null);
+
+            } else if (!aboutFolder && (event & IN_ISDIR) != 0) {
+                if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+                    for (Subscription subscription : subscriptions) {
+                        if (subscription.mRecursive) {
+                            addTree(path, subscription);
+                        }
+                    }
+                } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                    removeTree(path, null);
+                }
+            }
+        }
+
+        for (Subscription subscription : subscriptions) {
+            if (!subscription.mActive || (event & subscription.mMask & FileObserver.ALL_EVENTS) == 0) {
+                continue;
+            }
+            String relativePath = path.equals(subscription.mRootPath) ?
+                null :
+                path.substring(subscription.mRootPath.length() + 1);
+            subscription.mListener.onWatchEvent(event, relativePath);
+        }
+    }
+
+    private static String normalize(String path) {
+        return (path.length() > 1 && path.endsWith(File.separator)) ?
+            path.substring(0, path.length() - 1) :
+            path;
+    }
+
+
+    /**
+     * Single watch of a folder; hands the events to the dispatcher thread.
+     */
+    private class FolderWatch extends FileObserver {
+
+        private final String mPath;
+        private final List<Subscription> mSubscriptions = new ArrayList<>(1);
+
+        FolderWatch(String path) {
+            super(path, WATCH_MASK);
+            mPath = path;
+        }
+
+        @Override
+        public void onEvent(final int event, final String path) {
+            if ((event & IN_IGNORED) != 0) {
+                // watch removed by the system; the folder is gone
+                return;
+            }
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(FolderWatch.this, event, path);
+                }
+            });
+        }
+    }
+}
@@ -20,18 +20,19 @@
 
 package org.elastos.android.services.observer;
 
-import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Stack;
-
 import android.os.FileObserver;
 
+/**
+ * Observer of a full folder tree, watched through the shared {@link FolderWatchRegistry}.
+ *
+ * Events are received in {@link #onEvent(int, String)} with absolute paths, in the dispatcher thread of
+ * the registry.
+ */
 public abstract class RecursiveFolderObserver extends FileObserver {
 
     public static int CHANGES_ONLY = CLOSE_WRITE | MOVE_SELF | MOVED_FROM;
 
-    List<SingleFolderObserver> mObservers;
+    FolderWatchRegistry.Subscription mSubscription;
     String mPath;
     int mMask;
 
@@ -47,52 +48,26 @@ public abstract class RecursiveFolderObserver extends FileObserver {
 
     @Override
     public void startWatching() {
-        if (mObservers != null) return;
-        mObservers = new ArrayList<SingleFolderObserver>();
-        Stack<String> stack = new Stack<String>();
-        stack.push(mPath);
-
-        while (!stack.empty()) {
-            String parent = stack.pop();
-            mObservers.add(new SingleFolderObserver(parent, mMask));
-            File path = new File(parent);
-            File[] files = path.listFiles();
-            if (files == null) continue;
-            for (File file : files) {
-                if (file.isDirectory() && !file.getName().equals(".")
-                    && !file.getName().equals("..")) {
-                    stack.push(file.getPath());
+        if (mSubscription != null) return;
+        mSubscription = FolderWatchRegistry.getInstance().watch(
+            mPath,
+            mMask,
+            true,
+            new FolderWatchRegistry.OnWatchEventListener() {
+                @Override
+                public void onWatchEvent(int event, String path) {
+                    String newPath = (path == null) ? mPath : mPath + "/" + path;
+                    RecursiveFolderObserver.this.onEvent(event, newPath);
                 }
             }
-        }
-        for (int i = 0; i < mObservers.size(); i++)
-            mObservers.get(i).startWatching();
+        );
     }
 
     @Override
     public void stopWatching() {
-        if (mObservers == null) return;
-
-        for (int i = 0; i < mObservers.size(); ++i)
-            mObservers.get(i).stopWatching();
-
-        mObservers.clear();
-        mObservers = null;
-    }
-
-    private class SingleFolderObserver extends FileObserver {
-        private String mPath;
-
-        public SingleFolderObserver(String path, int mask) {
-            super(path, mask);
-            mPath = path;
-        }
-
-        @Override
-        public void onEvent(int event, String path) {
-            String newPath = mPath + "/" + path;
-            RecursiveFolderObserver.this.onEvent(event, newPath);
-        }
+        if (mSubscription == null) return;
 
+        FolderWatchRegistry.getInstance().unwatch(mSubscription);
+        mSubscription = null;
     }
-}
\ No newline at end of file
+}
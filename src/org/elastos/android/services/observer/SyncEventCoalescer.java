@@ -0,0 +1,275 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.services.observer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gathers the synchronizations requested by a {@link AvailableOfflineObserver} and releases them once
+ * the files stay quiet for a while.
+ *
+ * Every request on a file postpones its release until no event arrives on it during the quiet period;
+ * requests on a file already waiting are collapsed into the pending one. This way, an app saving a file
+ * repeatedly results in a single synchronization of its last version, instead of one per save, some of
+ * them uploading a half written file.
+ *
+ * Files released together are grouped by folder, so that every folder gets a single batch.
+ */
+class SyncEventCoalescer {
+
+    private static final String TAG = SyncEventCoalescer.class.getSimpleName();
+
+    /**
+     * Time without events on a file before its synchronization is released.
+     */
+    static final long DEFAULT_QUIET_PERIOD_MS = 2000;
+
+    private static Handler sDefaultHandler;
+
+    private static final AtomicLong sCollapsedEventsCount = new AtomicLong(0);
+    private static final AtomicLong sReleasedSyncsCount = new AtomicLong(0);
+
+    /**
+     * Receives the synchronizations released.
+     */
+    interface OnSyncBatchReadyListener {
+
+        /**
+         * Called in the thread of the coalescer handler, with no lock held.
+         *
+         * @param folderPath    Path of the folder containing the files, relative to the observed one;
+         *                      empty for the observed folder itself.
+         * @param paths         Paths of the files to synchronize, relative to the observed folder.
+         */
+        void onSyncBatchReady(String folderPath, List<String> paths);
+    }
+
+    private final long mQuietPeriodMs;
+    private final Handler mHandler;
+    private final OnSyncBatchReadyListener mListener;
+
+    private final Object mPendingLock = new Object();
+
+    /**
+     * Files waiting to be released, with the time of their last event, in the order they were requested.
+     */
+    private final Map<String, Long> mPending = new LinkedHashMap<>();
+    private boolean mReleaseScheduled = false;
+
+    private final Runnable mReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseQuietFiles();
+        }
+    };
+
+
+    SyncEventCoalescer(OnSyncBatchReadyListener listener) {
+        this(DEFAULT_QUIET_PERIOD_MS, getDefaultHandler(), listener);
+    }
+
+    /**
+     * @param quietPeriodMs     Time without events on a file before its synchronization is released.
+     * @param handler           Handler running the releases, and then the listener.
+     * @param listener          Receiver of the synchronizations released.
+     */
+    SyncEventCoalescer(long quietPeriodMs, Handler handler, OnSyncBatchReadyListener listener) {
+        if (handler == null)
+            throw new IllegalArgumentException("NULL handler argument received");
+        if (listener == null)
+            throw new IllegalArgumentException("NULL listener argument received");
+        mQuietPeriodMs = quietPeriodMs;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+
+    /**
+     * @return  Number of synchronization requests collapsed into a pending one, in every coalescer, since
+     *          the app started.
+     */
+    static long getCollapsedEventsCount() {
+        return sCollapsedEventsCount.get();
+    }
+
+    /**
+     * @return  Number of synchronizations released, in every coalescer, since the app started.
+     */
+    static long getReleasedSyncsCount() {
+        return sReleasedSyncsCount.get();
+    }
+
+
+    /**
+     * Requests the synchronization of a file, once it stays quiet.
+     *
+     * @param path      Path of the file, relative to the observed folder.
+     */
+    void requestSync(String path) {
+        synchronized (mPendingLock) {
+            if (mPending.remove(path) != null) {
+                sCollapsedEventsCount.incrementAndGet();
+            }
+            // re-inserted to keep the order of the last requests
+            mPending.put(path, SystemClock.elapsedRealtime());
+            scheduleRelease(mQuietPeriodMs);
+        }
+    }
+
+    /**
+     * Notifies activity on a file; postpones the release of its synchronization, if requested.
+     *
+     * @param path      Path of the file, relative to the observed folder.
+     */
+    void onActivity(String path) {
+        synchronized (mPendingLock) {
+            if (mPending.containsKey(path)) {
+                mPending.put(path, SystemClock.elapsedRealtime());
+            }
+        }
+    }
+
+    /**
+     * Drops the synchronization of a file, or of every file in a folder, if requested and not released yet.
+     *
+     * @param path      Path of the file or folder, relative to the observed folder.
+     */
+    void discard(String path) {
+        String folderPrefix = path.endsWith(File.separator) ? path : path + File.separator;
+        synchronized (mPendingLock) {
+            Iterator<String> it = mPending.keySet().iterator();
+            while (it.hasNext()) {
+                String pendingPath = it.next();
+                if (pendingPath.equals(path) || pendingPath.startsWith(folderPrefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every synchronization not released yet; for observers that stop watching.
+     */
+    void discardAll() {
+        synchronized (mPendingLock) {
+            mPending.clear();
+            mHandler.removeCallbacks(mReleaseRunnable);
+            mReleaseScheduled = false;
+        }
+    }
+
+    /**
+     * @return  'True' if no synchronization is waiting to be released.
+     */
+    boolean isIdle() {
+        synchronized (mPendingLock) {
+            return mPending.isEmpty();
+        }
+    }
+
+
+    private void scheduleRelease(long delayMs) {
+        // caller holds mPendingLock
+        if (!mReleaseScheduled) {
+            mHandler.postDelayed(mReleaseRunnable, delayMs);
+            mReleaseScheduled = true;
+        }
+    }
+
+    /**
+     * Releases the files with no events during the quiet period, grouped by folder, and schedules the
+     * next release for the rest.
+     */
+    private void releaseQuietFiles() {
+        Map<String, List<String>> batches = new LinkedHashMap<>();
+        synchronized (mPendingLock) {
+            mReleaseScheduled = false;
+            long now = SystemClock.elapsedRealtime();
+            long nextDelayMs = -1;
+            Iterator<Map.Entry<String, Long>> it = mPending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                long quietMs = now - entry.getValue();
+                if (quietMs >= mQuietPeriodMs) {
+                    String folderPath = getFolderPath(entry.getKey());
+                    List<String> batch = batches.get(folderPath);
+                    if (batch == null) {
+                        batch = new ArrayList<>();
+                        batches.put(folderPath, batch);
+                    }
+                    batch.add(entry.getKey());
+                    it.remove();
+
+                } else if (nextDelayMs < 0 || mQuietPeriodMs - quietMs < nextDelayMs) {
+                    nextDelayMs = mQuietPeriodMs - quietMs;
+                }
+            }
+            if (nextDelayMs >= 0) {
+                scheduleRelease(nextDelayMs);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+            sReleasedSyncsCount.addAndGet(batch.getValue().size());
+            try {
+                mListener.onSyncBatchReady(batch.getKey(), batch.getValue());
+            } catch (RuntimeException e) {
+                // keeps the handler thread alive for the rest of observers
+                Log_OC.e(TAG, "Synchronization of files in '" + batch.getKey() + "' failed", e);
+            }
+        }
+        if (!batches.isEmpty()) {
+            Log_OC.d(TAG, "Released " + sReleasedSyncsCount.get() + " synchronizations, collapsed " +
+                sCollapsedEventsCount.get() + " requests, since the app started");
+        }
+    }
+
+    private static String getFolderPath(String path) {
+        int lastSeparator = path.lastIndexOf(File.separatorChar);
+        return (lastSeparator < 0) ? "" : path.substring(0, lastSeparator);
+    }
+
+    /**
+     * @return  Handler running the releases of every observer in a single background thread, as
+     *          {@link android.os.FileObserver}s do with their events.
+     */
+    private static synchronized Handler getDefaultHandler() {
+        if (sDefaultHandler == null) {
+            HandlerThread thread = new HandlerThread("Available offline sync thread",
+                Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sDefaultHandler = new Handler(thread.getLooper());
+        }
+        return sDefaultHandler;
+    }
+}
@@ -38,6 +38,7 @@ import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.util.Pair;
 
+import org.elastos.android.MainApp;
 import org.elastos.android.R;
 import org.elastos.android.authentication.AuthenticatorActivity;
 import org.elastos.android.datamodel.FileDataStorageManager;
@@ -52,10 +53,18 @@ import org.elastos.android.ui.activity.ErrorsWhileCopyingHandlerActivity;
 import org.apache.jackrabbit.webdav.DavException;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Implementation of {@link AbstractThreadedSyncAdapter} responsible for synchronizing 
@@ -71,6 +80,10 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     /** Maximum number of failed folder synchronizations that are supported before finishing
      * the synchronization operation */
     private static final int MAX_FAILED_RESULTS = 3; 
+
+    /** Maximum number of folders synchronized at the same time; every one of them waits mostly
+     * for the PROPFIND round trip to the server */
+    private static final int MAX_FOLDERS_IN_FLIGHT = 4;
     
     
     public static final String EVENT_FULL_SYNC_START = FileSyncAdapter.class.getName() +
@@ -94,7 +107,10 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     private long mCurrentSyncTime;
     
     /** Flag made 'true' when a request to cancel the synchronization is received */
-    private boolean mCancellation;
+    private volatile boolean mCancellation;
+
+    /** Folder synchronizations in progress, to cancel them when the synchronization is cancelled */
+    private final List<SynchronizeFolderOperation> mFolderSyncsInFlight = new ArrayList<>();
     
     /** When 'true' the process was requested by the user through the user interface;
      *  when 'false', it was requested automatically by the system */
@@ -185,7 +201,7 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             updateCapabilities();
             mCurrentSyncTime = System.currentTimeMillis();
             if (!mCancellation) {
-                synchronizeFolder(getStorageManager().getFileByPath(OCFile.ROOT_PATH), false);
+                synchronizeFolderTree(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
                 
             } else {
                 Log_OC.d(TAG, "Leaving synchronization before synchronizing the root folder " +
@@ -221,17 +237,22 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     /**
      * Called by system SyncManager when a synchronization is required to be cancelled.
      * 
-     * Sets the mCancellation flag to 'true'. THe synchronization will be stopped later, 
-     * before a new folder is fetched. Data of the last folder synchronized will be still 
-     * locally saved. 
+     * Sets the mCancellation flag to 'true', and cancels the folder synchronizations in progress.
+     * No new folder is fetched after that. Data of the last folders synchronized will be still
+     * locally saved.
      * 
      * See {@link #onPerformSync(Account, Bundle, String, ContentProviderClient, SyncResult)}
-     * and {@link #synchronizeFolder(OCFile, boolean)}.
+     * and {@link #synchronizeFolderTree(OCFile)}.
      */
     @Override
     public void onSyncCanceled() {
         Log_OC.d(TAG, "Synchronization of " + getAccount().name + " has been requested to cancel");
         mCancellation = true;
+        synchronized (mFolderSyncsInFlight) {
+            for (SynchronizeFolderOperation folderSync : mFolderSyncsInFlight) {
+                folderSync.cancel();
+            }
+        }
         super.onSyncCanceled();
     }
     
@@ -249,47 +270,161 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
 
 
     /**
-     *  Synchronizes the list of files contained in a folder identified with its remote path.
-     *  
-     *  Fetches the list and properties of the files contained in the given folder, including their 
-     *  properties, and updates the local database with them.
-     *  
-     *  Enters in the child folders to synchronize their contents also, following a recursive
-     *  depth first strategy. 
-     * 
-     *  @param folder                   Folder to synchronize.
-     *  @param pushOnly                 When 'true', it's assumed that the folder did not change in the
-     *                                  server, so data will not be fetched. Only local changes of
-     *                                  available offline files will be pushed.
+     *  Synchronizes the full tree of folders hanging from the given one.
+     *
+     *  Every folder is synchronized with a {@link SynchronizeFolderOperation}, which fetches the list
+     *  and properties of the files contained in it and updates the local database with them.
+     *
+     *  Up to {@link #MAX_FOLDERS_IN_FLIGHT} folders are synchronized at the same time. The subfolders
+     *  of a folder are visited once it's synchronized, following a depth first order. Only folders
+     *  with pending changes in the server, according to their ETags, are fetched again; the rest
+     *  only push the local changes of available offline files.
+     *
+     *  No more folders are started after a cancellation request, after more than
+     *  {@link #MAX_FAILED_RESULTS} failures, or after a failure finishing the synchronization, see
+     *  {@link #isFinisher(RemoteOperationResult)}. Folders in progress are let finish.
+     *
+     *  @param rootFolder       Folder to synchronize with every folder below.
      */
-    private void synchronizeFolder(OCFile folder, boolean pushOnly) {
-        
-        if (mFailedResultsCounter > MAX_FAILED_RESULTS || isFinisher(mLastFailedResult))
-            return;
-        
-        // folder synchronization
-        SynchronizeFolderOperation synchFolderOp = new SynchronizeFolderOperation(
+    private void synchronizeFolderTree(OCFile rootFolder) {
+        // folders waiting for a free slot, with the flag signaling pending changes in the server
+        Deque<Pair<OCFile, Boolean>> pendingFolders = new ArrayDeque<>();
+        pendingFolders.push(new Pair<>(rootFolder, true));
+
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_FOLDERS_IN_FLIGHT);
+        CompletionService<FolderSync> completion = new ExecutorCompletionService<>(executor);
+        int inFlight = 0;
+        try {
+            while (!pendingFolders.isEmpty() || inFlight > 0) {
+                while (inFlight < MAX_FOLDERS_IN_FLIGHT && !pendingFolders.isEmpty() &&
+                        canSynchronizeMoreFolders()) {
+                    Pair<OCFile, Boolean> next = pendingFolders.pop();
+                    completion.submit(newFolderSync(next.first, !next.second));
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+
+                FolderSync done = completion.take().get();
+                inFlight--;
+                synchronized (mFolderSyncsInFlight) {
+                    mFolderSyncsInFlight.remove(done.mOperation);
+                }
+
+                List<Pair<OCFile, Boolean>> subfolders = processFolderSync(done);
+                // pushed in reverse order, so that the first one is visited first
+                for (int i = subfolders.size() - 1; i >= 0; i--) {
+                    if (subfolders.get(i).first.isFolder()) {
+                        pendingFolders.push(subfolders.get(i));
+                    }
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Log_OC.w(TAG, "Synchronization of folders interrupted");
+            mCancellation = true;
+            Thread.currentThread().interrupt();
+
+        } catch (ExecutionException e) {
+            // not expected; failures of the operations come in their results
+            Log_OC.e(TAG, "Unexpected failure synchronizing folders", e.getCause());
+            mFailedResultsCounter++;
+
+        } finally {
+            synchronized (mFolderSyncsInFlight) {
+                for (SynchronizeFolderOperation folderSync : mFolderSyncsInFlight) {
+                    folderSync.cancel();
+                }
+                mFolderSyncsInFlight.clear();
+            }
+            executor.shutdownNow();
+        }
+
+        if (mCancellation && !pendingFolders.isEmpty()) {
+            Log_OC.d(
+                TAG,
+                "Leaving synchronization before synchronizing " +
+                    pendingFolders.peek().first.getRemotePath() +
+                    " due to cancelation request"
+            );
+        }
+    }
+
+    /**
+     * @return      'True' if the synchronization was not cancelled, nor failed too much.
+     */
+    private boolean canSynchronizeMoreFolders() {
+        return !mCancellation &&
+            mFailedResultsCounter <= MAX_FAILED_RESULTS &&
+            !isFinisher(mLastFailedResult);
+    }
+
+    /**
+     * Prepares the synchronization of a single folder, to run in the pool of the full synchronization.
+     *
+     * @param folder        Folder to synchronize.
+     * @param pushOnly      When 'true', it's assumed that the folder did not change in the
+     *                      server, so data will not be fetched. Only local changes of
+     *                      available offline files will be pushed.
+     */
+    private Callable<FolderSync> newFolderSync(final OCFile folder, boolean pushOnly) {
+        final SynchronizeFolderOperation synchFolderOp = new SynchronizeFolderOperation(
             getContext(),
             folder.getRemotePath(),
             getAccount(),
             mCurrentSyncTime,
             pushOnly,
             true,       // sync full account
-            false       // only sync contents of available offline files
+            false,      // only sync contents of available offline files
+            true        // ETag already checked in the parent folder
         );
+        synchronized (mFolderSyncsInFlight) {
+            mFolderSyncsInFlight.add(synchFolderOp);
+        }
 
-        RemoteOperationResult result;
-        boolean repeat;
-        int repeatCounter = 0;
-        do {
-            repeat = false;
-
-            result = synchFolderOp.execute(getClient(), getStorageManager());
+        return new Callable<FolderSync>() {
+            @Override
+            public FolderSync call() {
+                // own provider client and storage manager; a ContentProviderClient is not thread safe,
+                // the one received by the sync adapter stays in its thread
+                ContentProviderClient providerClient = getContext().getContentResolver().
+                    acquireContentProviderClient(MainApp.getAuthority());
+                RemoteOperationResult result;
+                try {
+                    if (providerClient == null) {
+                        throw new IllegalStateException("Provider of " + MainApp.getAuthority() + " not found");
+                    }
+                    FileDataStorageManager storageManager =
+                        new FileDataStorageManager(getAccount(), providerClient);
+                    result = synchFolderOp.execute(getClient(), storageManager);
+                } catch (RuntimeException e) {
+                    result = new RemoteOperationResult(e);
+                } finally {
+                    if (providerClient != null) {
+                        providerClient.release();
+                    }
+                }
+                return new FolderSync(folder, synchFolderOp, result);
+            }
+        };
+    }
 
-        } while (repeat);
+    /**
+     *  Updates the state of the full synchronization with the result of synchronizing a folder.
+     *
+     *  Runs in the thread of the sync adapter, so the counters are never updated concurrently.
+     *
+     *  @param folderSync       Finished synchronization of a folder.
+     *  @return                 Subfolders to visit, with boolean value signaling if there are pending
+     *                          changes to sync in the server; empty if the folder failed.
+     */
+    private List<Pair<OCFile, Boolean>> processFolderSync(FolderSync folderSync) {
+        SynchronizeFolderOperation synchFolderOp = folderSync.mOperation;
+        RemoteOperationResult result = folderSync.mResult;
 
         // synchronized folder -> notice to UI - ALWAYS, although !result.isSuccess
-        sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED, folder.getRemotePath(), result);
+        sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED, folderSync.mFolder.getRemotePath(), result);
         
         // check the result of synchronizing the folder
         if (result.isSuccess() || result.getCode() == ResultCode.SYNC_CONFLICT) {
@@ -301,14 +436,12 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             if (synchFolderOp.getForgottenLocalFiles().size() > 0) {
                 mForgottenLocalFiles.putAll(synchFolderOp.getForgottenLocalFiles());
             }
-            if (result.isSuccess()) {
-                // synchronize children folders 
-                List<Pair<OCFile, Boolean>> children = synchFolderOp.getFoldersToVisit();
-                // beware of the 'hidden' recursion here!
-                syncSubfolders(children);
+            if (result.isSuccess() && synchFolderOp.getFoldersToVisit() != null) {
+                return synchFolderOp.getFoldersToVisit();
             }
             
-        } else if (result.getCode() != ResultCode.FILE_NOT_FOUND) {
+        } else if (result.getCode() != ResultCode.FILE_NOT_FOUND &&
+                result.getCode() != ResultCode.CANCELLED) {
             // in failures, the statistics for the global result are updated
             if (RemoteOperationResult.ResultCode.UNAUTHORIZED.equals(result.getCode())) {
                 mSyncResult.stats.numAuthExceptions++;
@@ -324,8 +457,9 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
 
         } // else, ResultCode.FILE_NOT_FOUND is ignored, remote folder was
           // removed from other thread or other client during the synchronization,
-          // before this thread fetched its contents
-            
+          // before this thread fetched its contents; CANCELLED only follows a cancellation request
+
+        return new ArrayList<>();
     }
 
     /**
@@ -350,38 +484,6 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         return false;
     }
 
-    /**
-     * Triggers the synchronization of any folder contained in the list of received files.
-     *
-     * Every subfolder comes with a boolean flag, set to true if the previous sync operation detected
-     * that there are pending changes in the file.
-     *
-     * Only folders that have pending changes in the server will be sync'd here.
-     *
-     * @param folders       Subfolders to recursively synchronize, with boolean value signaling if there are pending
-     *                      changes to sync in the server.
-     */
-    private void syncSubfolders(List<Pair<OCFile, Boolean>> folders) {
-        int i;
-        Pair<OCFile, Boolean> pair;
-        for (i=0; i < folders.size() && !mCancellation; i++) {
-            pair = folders.get(i);
-            if (pair.first.isFolder()) {
-                synchronizeFolder(pair.first, !pair.second);
-            }
-        }
-       
-        if (mCancellation && i <folders.size()) {
-            Log_OC.d(
-                TAG,
-                "Leaving synchronization before synchronizing " +
-                    folders.get(i).first.getRemotePath() +
-                    " due to cancelation request"
-            );
-        }
-    }
-
-    
     /**
      * Sends a message to any application component interested in the progress of the
      * synchronization.
@@ -572,4 +674,21 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     private String i18n(int key, Object... args) {
         return getContext().getString(key, args);
     }
+
+
+    /**
+     * Synchronization of a folder run in the pool of the full synchronization.
+     */
+    private static class FolderSync {
+
+        private final OCFile mFolder;
+        private final SynchronizeFolderOperation mOperation;
+        private final RemoteOperationResult mResult;
+
+        FolderSync(OCFile folder, SynchronizeFolderOperation operation, RemoteOperationResult result) {
+            mFolder = folder;
+            mOperation = operation;
+            mResult = result;
+        }
+    }
 }
@@ -19,10 +19,8 @@
 
 package org.elastos.android.ui.adapter;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -35,14 +33,30 @@ import com.jakewharton.disklrucache.DiskLruCache;
 import org.elastos.android.BuildConfig;
 import com.owncloud.android.lib.common.utils.Log_OC;
 
+/**
+ * Disk cache of bitmaps.
+ *
+ * Entries are spread by key hash over {@link #SHARDS_COUNT} independent {@link DiskLruCache}s, each one
+ * in its own subfolder, so concurrent accesses to different keys rarely wait for the same journal.
+ * Bitmaps are compressed before opening an entry for writing and decoded after the entry is closed,
+ * so no lock is held while encoding or decoding.
+ *
+ * Thread safe; no external synchronization is needed.
+ */
 public class DiskLruImageCache {
 
-    private DiskLruCache mDiskCache;
+    private final DiskLruCache[] mShards;
+    private final File mCacheDir;
     private CompressFormat mCompressFormat;
     private int mCompressQuality;
     private static final int CACHE_VERSION = 1;
     private static final int VALUE_COUNT = 1;
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Number of independent caches the entries are spread over.
+     */
+    public static final int SHARDS_COUNT = 4;
             
     private static final String TAG = DiskLruImageCache.class.getSimpleName();
 
@@ -51,48 +65,72 @@ public class DiskLruImageCache {
             File diskCacheDir, int diskCacheSize, CompressFormat compressFormat, int quality 
             ) throws IOException {
 
-        mDiskCache = DiskLruCache.open(
-                diskCacheDir, CACHE_VERSION, VALUE_COUNT, diskCacheSize 
-        );
+        mCacheDir = diskCacheDir;
+        removeUnshardedCache(diskCacheDir);
+
+        mShards = new DiskLruCache[SHARDS_COUNT];
+        for (int i = 0; i < SHARDS_COUNT; i++) {
+            mShards[i] = DiskLruCache.open(
+                    new File(diskCacheDir, Integer.toString(i)),
+                    CACHE_VERSION,
+                    VALUE_COUNT,
+                    diskCacheSize / SHARDS_COUNT
+            );
+        }
         mCompressFormat = compressFormat;
         mCompressQuality = quality;
     }
 
-    private boolean writeBitmapToFile( Bitmap bitmap, DiskLruCache.Editor editor )
-        throws IOException, FileNotFoundException {
-        OutputStream out = null;
-        try {
-            out = new BufferedOutputStream( editor.newOutputStream( 0 ), IO_BUFFER_SIZE );
-            return bitmap.compress( mCompressFormat, mCompressQuality, out );
-        } finally {
-            if ( out != null ) {
-                out.close();
+    /**
+     * Removes the files of the single cache used before sharding, stored directly in the cache folder.
+     */
+    private static void removeUnshardedCache(File diskCacheDir) {
+        File[] files = diskCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !file.delete()) {
+                    Log_OC.w(TAG, "Could not remove old cache file " + file.getName());
+                }
             }
         }
     }
 
+    private DiskLruCache getShard( String validKey ) {
+        return mShards[(validKey.hashCode() & Integer.MAX_VALUE) % SHARDS_COUNT];
+    }
+
     public void put( String key, Bitmap data ) {
 
-        DiskLruCache.Editor editor = null;
+        // encode before touching the cache
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream( IO_BUFFER_SIZE );
         String validKey = convertToValidKey(key);
+        if ( !data.compress( mCompressFormat, mCompressQuality, encoded ) ) {
+            if ( BuildConfig.DEBUG ) {
+                Log_OC.d( "cache_test_DISK_", "ERROR on: image put on disk cache " + validKey );
+            }
+            return;
+        }
+
+        DiskLruCache shard = getShard( validKey );
+        DiskLruCache.Editor editor = null;
         try {
-            editor = mDiskCache.edit( validKey );
+            editor = shard.edit( validKey );
             if ( editor == null ) {
+                // being written by other thread
                 return;
             }
 
-            if( writeBitmapToFile( data, editor ) ) {               
-                mDiskCache.flush();
-                editor.commit();
-                if ( BuildConfig.DEBUG ) {
-                   Log_OC.d( "cache_test_DISK_", "image put on disk cache " + validKey );
-                }
-            } else {
-                editor.abort();
-                if ( BuildConfig.DEBUG ) {
-                    Log_OC.d( "cache_test_DISK_", "ERROR on: image put on disk cache " + validKey );
-                }
-            }   
+            OutputStream out = editor.newOutputStream( 0 );
+            try {
+                encoded.writeTo( out );
+            } finally {
+                out.close();
+            }
+            editor.commit();
+            shard.flush();
+            if ( BuildConfig.DEBUG ) {
+               Log_OC.d( "cache_test_DISK_", "image put on disk cache " + validKey );
+            }
         } catch (IOException e) {
             if ( BuildConfig.DEBUG ) {
                 Log_OC.d( "cache_test_DISK_", "ERROR on: image put on disk cache " + validKey );
@@ -109,20 +147,24 @@ public class DiskLruImageCache {
 
     public Bitmap getBitmap( String key ) {
 
-        Bitmap bitmap = null;
+        byte[] encoded = null;
         DiskLruCache.Snapshot snapshot = null;
         String validKey = convertToValidKey(key);
         try {
 
-            snapshot = mDiskCache.get( validKey );
+            snapshot = getShard( validKey ).get( validKey );
             if ( snapshot == null ) {
                 return null;
             }
             final InputStream in = snapshot.getInputStream( 0 );
             if ( in != null ) {
-                final BufferedInputStream buffIn = 
-                new BufferedInputStream( in, IO_BUFFER_SIZE );
-                bitmap = BitmapFactory.decodeStream( buffIn );              
+                ByteArrayOutputStream out = new ByteArrayOutputStream( IO_BUFFER_SIZE );
+                byte[] buffer = new byte[IO_BUFFER_SIZE];
+                int read;
+                while ( (read = in.read( buffer )) != -1 ) {
+                    out.write( buffer, 0, read );
+                }
+                encoded = out.toByteArray();
             }   
         } catch ( IOException e ) {
             e.printStackTrace();
@@ -132,6 +174,12 @@ public class DiskLruImageCache {
             }
         }
 
+        // decode once the entry is released
+        Bitmap bitmap = null;
+        if ( encoded != null ) {
+            bitmap = BitmapFactory.decodeByteArray( encoded, 0, encoded.length );
+        }
+
         if ( BuildConfig.DEBUG ) {
             Log_OC.d("cache_test_DISK_", bitmap == null ? 
                     "not found" : "image read from disk " + validKey);
@@ -147,7 +195,7 @@ public class DiskLruImageCache {
         DiskLruCache.Snapshot snapshot = null;
         String validKey = convertToValidKey(key);
         try {
-            snapshot = mDiskCache.get( validKey );
+            snapshot = getShard( validKey ).get( validKey );
             contained = snapshot != null;
         } catch (IOException e) {
             e.printStackTrace();
@@ -165,15 +213,17 @@ public class DiskLruImageCache {
         if ( BuildConfig.DEBUG ) {
             Log_OC.d( "cache_test_DISK_", "disk cache CLEARED");
         }
-        try {
-            mDiskCache.delete();
-        } catch ( IOException e ) {
-            e.printStackTrace();
+        for ( DiskLruCache shard : mShards ) {
+            try {
+                shard.delete();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
         }
     }
 
     public File getCacheFolder() {
-        return mDiskCache.getDirectory();
+        return mCacheDir;
     }
     
     private String convertToValidKey(String key) {
@@ -187,10 +237,10 @@ public class DiskLruImageCache {
     public void removeKey( String key ) {
         String validKey = convertToValidKey(key);
         try {
-            mDiskCache.remove(validKey);
+            getShard( validKey ).remove(validKey);
             Log_OC.d(TAG, "removeKey from cache: " + validKey);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -23,6 +23,7 @@ import android.accounts.Account;
 import android.content.Context;
 import android.database.DataSetObserver;
 import android.graphics.Bitmap;
+import android.net.Uri;
 import android.support.design.widget.Snackbar;
 import android.text.format.DateUtils;
 import android.view.LayoutInflater;
@@ -52,6 +53,7 @@ import com.owncloud.android.lib.common.utils.Log_OC;
 import org.elastos.android.ui.activity.FileActivity;
 import org.elastos.android.utils.DisplayUtils;
 import org.elastos.android.utils.MimetypeIconUtil;
+import org.elastos.android.utils.UriUtils;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
@@ -385,8 +387,7 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
                     view.setOnClickListener(new OnClickListener() {
                         @Override
                         public void onClick(View v) {
-                            File file = new File(upload.getLocalPath());
-                            if (file.exists()) {
+                            if (UriUtils.localFileExists(upload.getLocalPath(), mParentActivity)) {
                                 TransferRequester requester = new TransferRequester();
                                 requester.retry(mParentActivity, upload);
                                 refreshView();
@@ -462,7 +463,10 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
 
 
             } else if (fakeFileToCheatThumbnailsCacheManagerInterface.isImage()) {
-                File file = new File(upload.getLocalPath());
+                // shared content is uploaded straight from its content:// URI
+                Object file = upload.getLocalPath().startsWith(UriUtils.URI_CONTENT_SCHEME) ?
+                        Uri.parse(upload.getLocalPath()) :
+                        new File(upload.getLocalPath());
                 // Thumbnail in Cache?
                 Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(
                         String.valueOf(file.hashCode()));
@@ -24,6 +24,7 @@ package org.elastos.android.ui.adapter;
 
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 
 import android.accounts.Account;
@@ -40,13 +41,16 @@ import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ListAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import org.elastos.android.R;
 import org.elastos.android.authentication.AccountUtils;
 import org.elastos.android.datamodel.FileDataStorageManager;
+import org.elastos.android.datamodel.FolderContentWindow;
 import org.elastos.android.datamodel.OCFile;
 import org.elastos.android.datamodel.ThumbnailsCacheManager;
+import org.elastos.android.datamodel.ThumbnailsLoader;
 import org.elastos.android.db.PreferenceManager;
 import org.elastos.android.files.services.FileDownloader.FileDownloaderBinder;
 import org.elastos.android.files.services.FileUploader.FileUploaderBinder;
@@ -63,18 +67,48 @@ import org.elastos.android.db.PreferenceManager;
  * This Adapter populates a ListView with all files and folders in an ownCloud
  * instance.
  */
-public class FileListListAdapter extends BaseAdapter implements ListAdapter {
+public class FileListListAdapter extends BaseAdapter implements ListAdapter,
+    FolderContentLoader.OnFolderContentLoadedListener {
 
     private Context mContext;
-    private Vector<OCFile> mFiles = null;
+    private OCFile mFolder = null;
+    /**
+     * A {@link FolderContentWindow} for large folders, see
+     * {@link FolderContentLoader#loadFolder(FileDataStorageManager, OCFile, boolean)}.
+     */
+    private List<OCFile> mFiles = null;
     private boolean mJustFolders;
 
+    /**
+     * Incremented every time mFiles is replaced or reordered; not when single files are updated in place.
+     */
+    private int mFilesVersion = 0;
+
+    private final FolderContentLoader mLoader = new FolderContentLoader(this);
+    private OnFolderRefreshedListener mOnFolderRefreshedListener;
+
     private FileDataStorageManager mStorageManager;
     private Account mAccount;
     private ComponentsGetter mTransferServiceGetter;
 
     private enum ViewType {LIST_ITEM, GRID_IMAGE, GRID_ITEM}
 
+    /**
+     * Receives the changes applied by {@link #refreshDirectory(OCFile, FileDataStorageManager)}.
+     */
+    public interface OnFolderRefreshedListener {
+
+        /**
+         * Called in the main thread after every refresh, even if no file changed in the database: the
+         * transfer state shown in the rows is not in the database, and may have changed anyway.
+         *
+         * @param changedPositions  Positions of the files updated in place, maybe none; the visible rows
+         *                          must be bound again, see {@link #bindVisibleRows(AbsListView)}. Null if
+         *                          the whole list was replaced.
+         */
+        void onFolderRefreshed(int[] changedPositions);
+    }
+
     public FileListListAdapter(
             boolean justFolders,
             Context context,
@@ -300,31 +334,20 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
             // No Folder
             if (!file.isFolder()) {
                 if (file.isImage() && file.getRemoteId() != null) {
-                    // Thumbnail in Cache?
-                    Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(
+                    // Thumbnail in memory? disk cache is checked by the generation task, out of the UI thread
+                    Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromMemoryCache(
                             String.valueOf(file.getRemoteId())
                     );
                     if (thumbnail != null && !file.needsUpdateThumbnail()) {
+                        ThumbnailsLoader.cancel(fileIcon);
                         fileIcon.setImageBitmap(thumbnail);
                     } else {
-                        // generate new Thumbnail
-                        if (ThumbnailsCacheManager.cancelPotentialThumbnailWork(file, fileIcon)) {
-                            final ThumbnailsCacheManager.ThumbnailGenerationTask task =
-                                    new ThumbnailsCacheManager.ThumbnailGenerationTask(
-                                            fileIcon, mStorageManager, mAccount
-                                    );
-                            if (thumbnail == null) {
-                                thumbnail = ThumbnailsCacheManager.mDefaultImg;
-                            }
-                            final ThumbnailsCacheManager.AsyncThumbnailDrawable asyncDrawable =
-                                    new ThumbnailsCacheManager.AsyncThumbnailDrawable(
-                                        mContext.getResources(),
-                                        thumbnail,
-                                        task
-                                    );
-                            fileIcon.setImageDrawable(asyncDrawable);
-                            task.execute(file);
+                        // generate new Thumbnail; current one, if any, is shown meanwhile
+                        if (thumbnail == null) {
+                            thumbnail = ThumbnailsCacheManager.mDefaultImg;
                         }
+                        fileIcon.setImageBitmap(thumbnail);
+                        ThumbnailsLoader.load(file, fileIcon, mStorageManager, mAccount);
                     }
 
                     if (file.getMimetype().equalsIgnoreCase("image/png")) {
@@ -334,6 +357,7 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
 
 
                 } else {
+                    ThumbnailsLoader.cancel(fileIcon);
                     fileIcon.setImageResource(MimetypeIconUtil.getFileTypeIconId(file.getMimetype(),
                             file.getFileName()));
                 }
@@ -341,6 +365,7 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
 
             } else {
                 // Folder
+                ThumbnailsLoader.cancel(fileIcon);
                 fileIcon.setImageResource(
                         MimetypeIconUtil.getFolderTypeIconId(
                                 file.isSharedWithMe() || file.isSharedWithSharee(),
@@ -377,25 +402,157 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
      */
     public void swapDirectory(OCFile folder, FileDataStorageManager updatedStorageManager
             /*, boolean onlyOnDevice*/) {
-        if (updatedStorageManager != null && updatedStorageManager != mStorageManager) {
-            mStorageManager = updatedStorageManager;
-            mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
-        }
+        // effect of the thumbnails memory cache on the folder left behind
+        ThumbnailsCacheManager.logMemoryCacheStats();
+
+        updateStorageManager(updatedStorageManager);
+        mLoader.cancel();
+        mFolder = folder;
+        FolderContentLoader.release(mFiles);
         if (mStorageManager != null) {
             // TODO Enable when "On Device" is recovered ?
-            mFiles = mStorageManager.getFolderContent(folder/*, onlyOnDevice*/);
-
-            if (mJustFolders) {
-                mFiles = getFolders(mFiles);
-            }
+            mFiles = FolderContentLoader.loadFolder(mStorageManager, folder, mJustFolders/*, onlyOnDevice*/);
         } else {
             mFiles = null;
         }
 
-        mFiles = FileStorageUtils.sortFolder(mFiles);
+        mFilesVersion++;
         notifyDataSetChanged();
     }
 
+    /**
+     * Reloads the adapted directory out of the main thread, and applies only the changes found.
+     *
+     * Refreshes requested in a short time are served by a single load. Changes in some files are applied
+     * in place, see {@link OnFolderRefreshedListener}; any file added, removed or moved replaces the whole list.
+     *
+     * @param folder                Folder to reload; if it's not the adapted one, it's adapted right now
+     *                              with {@link #swapDirectory(OCFile, FileDataStorageManager)}.
+     * @param updatedStorageManager Optional updated storage manager; used to replace
+     *                              mStorageManager if is different (and not NULL)
+     */
+    public void refreshDirectory(OCFile folder, FileDataStorageManager updatedStorageManager) {
+        updateStorageManager(updatedStorageManager);
+        if (mStorageManager == null || folder == null || mFolder == null || mFiles == null ||
+            folder.getFileId() != mFolder.getFileId()) {
+            swapDirectory(folder, updatedStorageManager);
+            return;
+        }
+        // a large folder is not compared row by row, it's replaced
+        List<OCFile> baseFiles = (mFiles.size() > FolderContentLoader.MAX_LOADED_FOLDER_SIZE) ?
+            null :
+            new ArrayList<>(mFiles);
+        mLoader.requestLoad(folder, mStorageManager, mJustFolders, baseFiles, mFilesVersion);
+    }
+
+    @Override
+    public void onFolderContentLoaded(FolderContentLoader.Result result) {
+        if (mFolder == null || result.getFolder().getFileId() != mFolder.getFileId()) {
+            // other folder adapted meanwhile
+            FolderContentLoader.release(result.getFiles());
+            return;
+        }
+        int[] changedPositions = result.getChangedPositions();
+        if (changedPositions == null || result.getBaseVersion() != mFilesVersion || mFiles == null) {
+            FolderContentLoader.release(mFiles);
+            mFiles = result.getFiles();
+            mFilesVersion++;
+            notifyDataSetChanged();
+            changedPositions = null;
+
+        } else {
+            List<OCFile> files = result.getFiles();
+            for (int position : changedPositions) {
+                mFiles.set(position, files.get(position));
+            }
+        }
+        if (mOnFolderRefreshedListener != null) {
+            mOnFolderRefreshedListener.onFolderRefreshed(changedPositions);
+        }
+    }
+
+    /**
+     * Updates the views of the visible rows, reusing them, without a new layout of the list.
+     *
+     * Rows not visible are bound when scrolled into view.
+     *
+     * @param listView      View showing the list.
+     */
+    public void bindVisibleRows(AbsListView listView) {
+        int headers = (listView instanceof ListView) ? ((ListView) listView).getHeaderViewsCount() : 0;
+        int first = listView.getFirstVisiblePosition() - headers;
+        for (int i = 0; i < listView.getChildCount(); i++) {
+            int position = first + i;
+            if (position < 0 || position >= getCount()) {
+                // header or footer
+                continue;
+            }
+            View row = listView.getChildAt(i);
+            if (getView(position, row, listView) != row) {
+                // the row needs another layout
+                listView.invalidateViews();
+                return;
+            }
+        }
+    }
+
+    public void setOnFolderRefreshedListener(OnFolderRefreshedListener listener) {
+        mOnFolderRefreshedListener = listener;
+    }
+
+    /**
+     * @return  Number of folders in the adapted directory.
+     */
+    public int getFoldersCount() {
+        if (mFiles instanceof FolderContentWindow) {
+            return ((FolderContentWindow) mFiles).getFoldersCount();
+        }
+        int count = 0;
+        for (int i = 0; i < getCount(); i++) {
+            if (mFiles.get(i).isFolder()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return  Number of files in the adapted directory that are not folders, and are not hidden.
+     */
+    public int getFilesCount() {
+        if (mFiles instanceof FolderContentWindow) {
+            return ((FolderContentWindow) mFiles).getFilesCount();
+        }
+        int count = 0;
+        OCFile file;
+        for (int i = 0; i < getCount(); i++) {
+            file = mFiles.get(i);
+            if (!file.isFolder() && !file.isHidden()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Releases the adapted directory; nothing is shown until a new one is adapted.
+     */
+    public void close() {
+        mLoader.cancel();
+        mFolder = null;
+        FolderContentLoader.release(mFiles);
+        mFiles = null;
+        mFilesVersion++;
+        notifyDataSetChanged();
+    }
+
+    private void updateStorageManager(FileDataStorageManager updatedStorageManager) {
+        if (updatedStorageManager != null && updatedStorageManager != mStorageManager) {
+            mStorageManager = updatedStorageManager;
+            mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
+        }
+    }
+
     /**
      * Filter for getting only the folders
      *
@@ -423,8 +580,15 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
         FileStorageUtils.mSortOrder = order;
         FileStorageUtils.mSortAscending = ascending;
 
-        mFiles = FileStorageUtils.sortFolder(mFiles);
-        notifyDataSetChanged();
+        if (mFiles instanceof Vector) {
+            mFiles = FileStorageUtils.sortFolder((Vector<OCFile>) mFiles);
+            mFilesVersion++;
+            notifyDataSetChanged();
+
+        } else if (mFolder != null) {
+            // sorted by the database
+            swapDirectory(mFolder, null);
+        }
     }
 
 
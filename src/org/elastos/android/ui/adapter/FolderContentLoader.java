@@ -0,0 +1,358 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.ui.adapter;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import org.elastos.android.datamodel.FileDataStorageManager;
+import org.elastos.android.datamodel.FolderContentWindow;
+import org.elastos.android.datamodel.OCFile;
+import org.elastos.android.utils.FileStorageUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the content of the folder shown in a {@link FileListListAdapter} out of the main thread, and finds
+ * the rows that changed since the list shown.
+ *
+ * Requests are coalesced: a request waits a short delay before the load starts, and the requests arrived
+ * meanwhile, or while a load is running, are served by a single load of the last of them. This way, the
+ * broadcasts of a bulk transfer cause a few loads instead of one per file.
+ *
+ * Folders with more than {@link #MAX_LOADED_FOLDER_SIZE} entries are not loaded in memory, but kept in
+ * a {@link FolderContentWindow}, and replace the whole list when reloaded.
+ */
+class FolderContentLoader {
+
+    private static final String TAG = FolderContentLoader.class.getSimpleName();
+
+    /**
+     * Time a request waits for later ones before the load starts.
+     */
+    static final long DEFAULT_COALESCE_DELAY_MS = 150;
+
+    /**
+     * Largest folder loaded in memory; sorted in Java, and compared row by row when reloaded.
+     */
+    static final int MAX_LOADED_FOLDER_SIZE = FileDataStorageManager.MAX_SORTED_FOLDER_SIZE;
+
+    private static Handler sDefaultHandler;
+
+    private static final AtomicLong sRequestsCount = new AtomicLong(0);
+    private static final AtomicLong sLoadsCount = new AtomicLong(0);
+
+    /**
+     * Receives the content loaded.
+     */
+    interface OnFolderContentLoadedListener {
+
+        /**
+         * Called in the main thread.
+         */
+        void onFolderContentLoaded(Result result);
+    }
+
+    /**
+     * Content of a folder, and its differences with the list shown when it was requested.
+     */
+    static class Result {
+
+        private final OCFile mFolder;
+        private final List<OCFile> mFiles;
+        private final int[] mChangedPositions;
+        private final int mBaseVersion;
+
+        private Result(OCFile folder, List<OCFile> files, int[] changedPositions, int baseVersion) {
+            mFolder = folder;
+            mFiles = files;
+            mChangedPositions = changedPositions;
+            mBaseVersion = baseVersion;
+        }
+
+        OCFile getFolder() {
+            return mFolder;
+        }
+
+        /**
+         * @return  Files in the folder, sorted as the list; a {@link FolderContentWindow} for large folders.
+         */
+        List<OCFile> getFiles() {
+            return mFiles;
+        }
+
+        /**
+         * @return  Positions of the rows that changed, in ascending order; null if files were added, removed or
+         *          moved, and the whole list must be replaced.
+         */
+        int[] getChangedPositions() {
+            return mChangedPositions;
+        }
+
+        /**
+         * @return  Version of the list the differences were computed against.
+         */
+        int getBaseVersion() {
+            return mBaseVersion;
+        }
+    }
+
+    private static class Request {
+
+        private final OCFile mFolder;
+        private final FileDataStorageManager mStorageManager;
+        private final boolean mJustFolders;
+        private final List<OCFile> mBaseFiles;
+        private final int mBaseVersion;
+
+        private Request(OCFile folder, FileDataStorageManager storageManager, boolean justFolders,
+                        List<OCFile> baseFiles, int baseVersion) {
+            mFolder = folder;
+            mStorageManager = storageManager;
+            mJustFolders = justFolders;
+            mBaseFiles = baseFiles;
+            mBaseVersion = baseVersion;
+        }
+    }
+
+    private final long mCoalesceDelayMs;
+    private final Handler mLoaderHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final OnFolderContentLoadedListener mListener;
+
+    private final Object mRequestLock = new Object();
+    private Request mPendingRequest;
+    private boolean mLoadScheduled = false;
+
+    private final Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            load();
+        }
+    };
+
+
+    FolderContentLoader(OnFolderContentLoadedListener listener) {
+        this(DEFAULT_COALESCE_DELAY_MS, getDefaultHandler(), listener);
+    }
+
+    /**
+     * @param coalesceDelayMs   Time a request waits for later ones before the load starts.
+     * @param loaderHandler     Handler running the loads.
+     * @param listener          Receiver of the content loaded.
+     */
+    FolderContentLoader(long coalesceDelayMs, Handler loaderHandler, OnFolderContentLoadedListener listener) {
+        if (loaderHandler == null)
+            throw new IllegalArgumentException("NULL handler argument received");
+        if (listener == null)
+            throw new IllegalArgumentException("NULL listener argument received");
+        mCoalesceDelayMs = coalesceDelayMs;
+        mLoaderHandler = loaderHandler;
+        mListener = listener;
+    }
+
+
+    /**
+     * @return  Number of loads requested, in every loader, since the app started.
+     */
+    static long getRequestsCount() {
+        return sRequestsCount.get();
+    }
+
+    /**
+     * @return  Number of loads done, in every loader, since the app started.
+     */
+    static long getLoadsCount() {
+        return sLoadsCount.get();
+    }
+
+
+    /**
+     * Requests a load of the content of a folder; replaces any request not started yet.
+     *
+     * @param folder            Folder to load.
+     * @param storageManager    Access to the database.
+     * @param justFolders       When 'true', files are left out.
+     * @param baseFiles         Copy of the list currently shown, to compute the differences with; NULL
+     *                          if not available, then the whole list is replaced.
+     * @param baseVersion       Version of the list currently shown.
+     */
+    void requestLoad(OCFile folder, FileDataStorageManager storageManager, boolean justFolders,
+                     List<OCFile> baseFiles, int baseVersion) {
+        sRequestsCount.incrementAndGet();
+        synchronized (mRequestLock) {
+            mPendingRequest = new Request(folder, storageManager, justFolders, baseFiles, baseVersion);
+            if (!mLoadScheduled) {
+                mLoaderHandler.postDelayed(mLoadRunnable, mCoalesceDelayMs);
+                mLoadScheduled = true;
+            }
+        }
+    }
+
+    /**
+     * Drops the request not started yet, if any.
+     */
+    void cancel() {
+        synchronized (mRequestLock) {
+            mPendingRequest = null;
+        }
+    }
+
+
+    /**
+     * Runs in the loader thread.
+     */
+    private void load() {
+        Request request;
+        synchronized (mRequestLock) {
+            request = mPendingRequest;
+            mPendingRequest = null;
+            mLoadScheduled = false;
+        }
+        if (request == null) {
+            return;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        List<OCFile> files = loadFolder(request.mStorageManager, request.mFolder, request.mJustFolders);
+        int[] changedPositions = null;
+        if (files instanceof FolderContentWindow) {
+            // counted here, not in the main thread
+            ((FolderContentWindow) files).getFoldersCount();
+        } else {
+            changedPositions = computeChangedPositions(request.mBaseFiles, files);
+        }
+
+        final Result result = new Result(request.mFolder, files, changedPositions, request.mBaseVersion);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onFolderContentLoaded(result);
+            }
+        });
+
+        sLoadsCount.incrementAndGet();
+        Log_OC.v(TAG, "Loaded " + files.size() + " files of " + request.mFolder.getRemotePath() + " in " +
+            (SystemClock.elapsedRealtime() - startTime) + " ms, " +
+            ((changedPositions == null) ? "list changed" : changedPositions.length + " rows changed") +
+            "; " + sLoadsCount.get() + " loads for " + sRequestsCount.get() + " requests since the app started");
+    }
+
+
+    /**
+     * Reads the content of a folder, sorted as the list.
+     *
+     * @param storageManager    Access to the database.
+     * @param folder            Folder to read.
+     * @param justFolders       When 'true', files are left out.
+     * @return                  Files in the folder, sorted; a {@link FolderContentWindow} if there are more
+     *                          than {@link #MAX_LOADED_FOLDER_SIZE}, that must be closed when replaced.
+     */
+    static List<OCFile> loadFolder(FileDataStorageManager storageManager, OCFile folder, boolean justFolders) {
+        FolderContentWindow window = storageManager.getFolderContentWindow(folder, justFolders);
+        if (window.size() > MAX_LOADED_FOLDER_SIZE) {
+            return window;
+        }
+        // small enough; sorted again, to keep the order of names with numbers that SQL doesn't know
+        Vector<OCFile> files = new Vector<>(window);
+        window.close();
+        return FileStorageUtils.sortFolder(files);
+    }
+
+    /**
+     * Closes the list, if it's a {@link FolderContentWindow}.
+     */
+    static void release(List<OCFile> files) {
+        if (files instanceof FolderContentWindow) {
+            ((FolderContentWindow) files).close();
+        }
+    }
+
+    /**
+     * Finds the rows that changed between two versions of a list of files.
+     *
+     * @param oldFiles      List shown.
+     * @param newFiles      New list.
+     * @return              Positions of the files with any change, in ascending order; null if the lists do not
+     *                      have the same files in the same positions.
+     */
+    static int[] computeChangedPositions(List<OCFile> oldFiles, List<OCFile> newFiles) {
+        if (oldFiles == null || newFiles == null || oldFiles.size() != newFiles.size()) {
+            return null;
+        }
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < newFiles.size(); i++) {
+            OCFile oldFile = oldFiles.get(i);
+            OCFile newFile = newFiles.get(i);
+            if (oldFile.getFileId() != newFile.getFileId()) {
+                return null;
+            }
+            if (!isSameContent(oldFile, newFile)) {
+                changed.add(i);
+            }
+        }
+        int[] positions = new int[changed.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = changed.get(i);
+        }
+        return positions;
+    }
+
+    /**
+     * @return  'True' if nothing shown in the row of a file changed.
+     */
+    private static boolean isSameContent(OCFile oldFile, OCFile newFile) {
+        return TextUtils.equals(oldFile.getRemotePath(), newFile.getRemotePath()) &&
+            TextUtils.equals(oldFile.getMimetype(), newFile.getMimetype()) &&
+            TextUtils.equals(oldFile.getEtag(), newFile.getEtag()) &&
+            TextUtils.equals(oldFile.getEtagInConflict(), newFile.getEtagInConflict()) &&
+            TextUtils.equals(oldFile.getStoragePath(), newFile.getStoragePath()) &&
+            oldFile.getFileLength() == newFile.getFileLength() &&
+            oldFile.getModificationTimestamp() == newFile.getModificationTimestamp() &&
+            oldFile.getLastSyncDateForData() == newFile.getLastSyncDateForData() &&
+            oldFile.getAvailableOfflineStatus() == newFile.getAvailableOfflineStatus() &&
+            oldFile.isSharedViaLink() == newFile.isSharedViaLink() &&
+            oldFile.isSharedWithSharee() == newFile.isSharedWithSharee() &&
+            oldFile.isDownloading() == newFile.isDownloading() &&
+            oldFile.needsUpdateThumbnail() == newFile.needsUpdateThumbnail();
+    }
+
+    /**
+     * @return  Handler running the loads of every list in a single background thread.
+     */
+    private static synchronized Handler getDefaultHandler() {
+        if (sDefaultHandler == null) {
+            HandlerThread thread = new HandlerThread("Folder content loader",
+                Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sDefaultHandler = new Handler(thread.getLooper());
+        }
+        return sDefaultHandler;
+    }
+}
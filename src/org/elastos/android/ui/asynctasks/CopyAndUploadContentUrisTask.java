@@ -26,23 +26,29 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
 import android.widget.Toast;
 
 import org.elastos.android.R;
+import org.elastos.android.files.services.FileUploader;
 import org.elastos.android.files.services.TransferRequester;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import org.elastos.android.operations.UploadFileOperation;
 import org.elastos.android.utils.FileStorageUtils;
+import org.elastos.android.utils.UriUtils;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 
 /**
- * AsyncTask to copy a file from a uri in a temporal file
+ * AsyncTask to copy a file from a uri in a temporal file.
+ *
+ * URIs that can be read later from {@link FileUploader} are not copied, but handed to it as they are.
  */
 public class CopyAndUploadContentUrisTask extends AsyncTask<Object, Void, ResultCode> {
 
@@ -144,6 +150,18 @@ public class CopyAndUploadContentUrisTask extends AsyncTask<Object, Void, Result
                 currentUri = uris[i];
                 currentRemotePath = remotePaths[i];
 
+                if (canBeStreamed(currentUri, leakedContentResolver)) {
+                    // no copy needed, the upload will read straight from the URI
+                    requestUpload(
+                        account,
+                        currentUri.toString(),
+                        currentRemotePath,
+                        behaviour,
+                        leakedContentResolver.getType(currentUri)
+                    );
+                    continue;
+                }
+
                 fullTempPath = FileStorageUtils.getTemporalPath(account.name) + currentRemotePath;
                 inputStream = leakedContentResolver.openInputStream(currentUri);
                 File cacheFile = new File(fullTempPath);
@@ -221,6 +239,39 @@ public class CopyAndUploadContentUrisTask extends AsyncTask<Object, Void, Result
         return result;
     }
 
+    /**
+     * Checks if a content:// URI can be uploaded without a temporary copy.
+     *
+     * That requires a seekable descriptor with known length, and read access to the URI that survives the
+     * Activity the URI was sent to, since the upload will run later in {@link FileUploader}.
+     *
+     * @param uri               content:// URI to upload.
+     * @param contentResolver   {@link ContentResolver} with permission to open the URI.
+     * @return                  'true' if the URI can be handed to {@link FileUploader} as is.
+     */
+    private boolean canBeStreamed(Uri uri, ContentResolver contentResolver) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = contentResolver.openFileDescriptor(uri, "r");
+            return descriptor != null &&
+                UriUtils.isSeekable(descriptor) &&
+                UriUtils.keepReadAccess(uri, mAppContext);
+
+        } catch (FileNotFoundException e) {
+            // the copy will fail too and report it
+            return false;
+
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log_OC.w(TAG, "Ignoring exception of descriptor closure");
+                }
+            }
+        }
+    }
+
     private void requestUpload(Account account, String localPath, String remotePath, int behaviour, String mimeType) {
         TransferRequester requester = new TransferRequester();
         requester.uploadNewFile(
@@ -179,6 +179,15 @@ public class OCFileListFragment extends ExtendedListFragment {
     }
 
     
+    @Override
+    public void onDestroyView() {
+        if (mAdapter != null) {
+            // a new adapter is created with the next view
+            mAdapter.close();
+        }
+        super.onDestroyView();
+    }
+
     @Override
     public void onDetach() {
         setOnRefreshListener(null);
@@ -206,6 +215,20 @@ public class OCFileListFragment extends ExtendedListFragment {
                 getActivity(),
                 mContainerActivity
         );
+        mAdapter.setOnFolderRefreshedListener(new FileListListAdapter.OnFolderRefreshedListener() {
+            @Override
+            public void onFolderRefreshed(int[] changedPositions) {
+                if (mContainerActivity == null) {
+                    // detached meanwhile
+                    return;
+                }
+                if (changedPositions == null) {
+                    updateLayout();
+                } else {
+                    mAdapter.bindVisibleRows(mCurrentListView);
+                }
+            }
+        });
         setListAdapter(mAdapter);
 
         Bundle args = getArguments();
@@ -789,11 +812,17 @@ public class OCFileListFragment extends ExtendedListFragment {
     }
 
     /**
-     * Calls {@link OCFileListFragment#listDirectory(OCFile)} with a null parameter
+     * Reloads the listed directory out of the main thread, applying only the changes, or calls
+     * {@link OCFileListFragment#listDirectory(OCFile)} with a null parameter if there never was a directory.
      */
     public void listDirectory(boolean reloadData){
         if (reloadData) {
-            listDirectory(null);
+            FileDataStorageManager storageManager = mContainerActivity.getStorageManager();
+            if (storageManager != null && mFile != null) {
+                mAdapter.refreshDirectory(mFile, storageManager);
+            } else {
+                listDirectory(null);
+            }
         } else {
             getListView().invalidateViews();
         }
@@ -841,19 +870,9 @@ public class OCFileListFragment extends ExtendedListFragment {
 
     private void updateLayout() {
         if (!isShowingJustFolders()) {
-            int filesCount = 0, foldersCount = 0;
-            int count = mAdapter.getCount();
-            OCFile file;
-            for (int i=0; i < count ; i++) {
-                file = (OCFile) mAdapter.getItem(i);
-                if (file.isFolder()) {
-                    foldersCount++;
-                } else {
-                    if (!file.isHidden()) {
-                        filesCount++;
-                    }
-                }
-            }
+            // large folders are counted without reading every file
+            int filesCount = mAdapter.getFilesCount();
+            int foldersCount = mAdapter.getFoldersCount();
             // set footer text
             setFooterText(generateFooterText(filesCount, foldersCount));
 
@@ -32,6 +32,7 @@ import android.webkit.MimeTypeMap;
 
 import org.elastos.android.R;
 import org.elastos.android.authentication.AccountUtils;
+import org.elastos.android.datamodel.BlockIndex;
 import org.elastos.android.datamodel.OCFile;
 import org.elastos.android.files.services.FileDownloader.FileDownloaderBinder;
 import org.elastos.android.files.services.FileUploader.FileUploaderBinder;
@@ -508,6 +509,7 @@ public class FileOperationsHelper {
                     syncFile(file);
                 } else {
                     cancelTransference(file);
+                    BlockIndex.delete(mFileActivity.getAccount().name, file.getRemotePath());
                 }
             } else {
                 /// unexpected error
@@ -46,7 +46,8 @@ import java.util.List;
  *
  * URIs with scheme content:// are handling assuming that file is in private storage owned by a different app,
  * and that persistency permission is not granted. Due to this, contents of the file are temporary copied by
- * the OC app, and then passed {@link FileUploader}.
+ * the OC app, and then passed {@link FileUploader}; unless read access to the URI can be kept and its
+ * content read from a seekable descriptor, in which case the URI is passed as is and uploaded without copies.
  */
 public class UriUploader {
 
@@ -135,6 +135,9 @@ public class PreviewImageActivity extends FileActivity implements
             parentFolder = getStorageManager().getFileByPath(OCFile.ROOT_PATH);
         }
 
+        if (mPreviewImagePagerAdapter != null) {
+            mPreviewImagePagerAdapter.close();
+        }
         // TODO Enable when "On Device" is recovered ?
         mPreviewImagePagerAdapter = new PreviewImagePagerAdapter(
             getSupportFragmentManager(),
@@ -309,6 +312,15 @@ public class PreviewImageActivity extends FileActivity implements
     }
     
 
+    @Override
+    protected void onDestroy() {
+        if (mPreviewImagePagerAdapter != null) {
+            mPreviewImagePagerAdapter.close();
+        }
+        super.onDestroy();
+    }
+
+
     private void backToDisplayActivity() {
         finish();
     }
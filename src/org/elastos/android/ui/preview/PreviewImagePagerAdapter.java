@@ -22,9 +22,9 @@ package org.elastos.android.ui.preview;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
 
 import android.accounts.Account;
 import android.support.v4.app.Fragment;
@@ -33,11 +33,11 @@ import android.support.v4.app.FragmentStatePagerAdapter;
 import android.view.ViewGroup;
 
 import org.elastos.android.datamodel.FileDataStorageManager;
+import org.elastos.android.datamodel.FolderContentWindow;
 import org.elastos.android.datamodel.OCFile;
 import org.elastos.android.files.services.FileDownloader;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import org.elastos.android.ui.fragment.FileFragment;
-import org.elastos.android.utils.FileStorageUtils;
 
 /**
  * Adapter class that provides Fragment instances
@@ -47,7 +47,7 @@ public class PreviewImagePagerAdapter extends FragmentStatePagerAdapter {
 
     private static final String TAG = PreviewImagePagerAdapter.class.getCanonicalName();
 
-    private Vector<OCFile> mImageFiles;
+    private List<OCFile> mImageFiles;
     private Account mAccount;
     private Set<Object> mObsoleteFragments;
     private Set<Integer> mObsoletePositions;
@@ -82,9 +82,9 @@ public class PreviewImagePagerAdapter extends FragmentStatePagerAdapter {
         mAccount = account;
         mStorageManager = storageManager;
         // TODO Enable when "On Device" is recovered ?
-        mImageFiles = mStorageManager.getFolderImages(parentFolder/*, false*/);
-        
-        mImageFiles = FileStorageUtils.sortFolder(mImageFiles);
+        // same order as the list of the folder; in large folders, images are read from the database when
+        // their pages are created
+        mImageFiles = mStorageManager.getSortedFolderImages(parentFolder/*, false*/);
         
         mObsoleteFragments = new HashSet<>();
         mObsoletePositions = new HashSet<>();
@@ -205,6 +205,15 @@ public class PreviewImagePagerAdapter extends FragmentStatePagerAdapter {
         return mDownloadErrors.contains(position);
     }
 
+    /**
+     * Releases the access to the database; the adapter can't be used anymore.
+     */
+    public void close() {
+        if (mImageFiles instanceof FolderContentWindow) {
+            ((FolderContentWindow) mImageFiles).close();
+        }
+    }
+
     /**
      * Reset the image zoom to default value for each CachedFragments
      */
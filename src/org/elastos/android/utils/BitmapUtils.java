@@ -34,6 +34,7 @@ import android.support.v4.graphics.drawable.RoundedBitmapDrawableFactory;
 import android.webkit.MimeTypeMap;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
@@ -82,6 +83,37 @@ public class BitmapUtils {
     }    
 
 
+    /**
+     * Decodes a bitmap from a file descriptor minimizing the memory use, known that the bitmap
+     * will be drawn in a surface of reqWidth x reqHeight
+     *
+     * @param descriptor    Descriptor of the content of the image; must be seekable, its position
+     *                      is not changed.
+     * @param reqWidth      Width of the surface where the Bitmap will be drawn on, in pixels.
+     * @param reqHeight     Height of the surface where the Bitmap will be drawn on, in pixels.
+     * @return
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor descriptor, int reqWidth,
+                                                           int reqHeight) {
+        final Options options = new Options();
+        options.inScaled = true;
+        options.inPurgeable = true;
+        options.inPreferQualityOverSpeed = false;
+        options.inMutable = false;
+
+        // make a false load of the bitmap to get its dimensions
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(descriptor, null, options);
+
+        // calculate factor to subsample the bitmap
+        options.inSampleSize = calculateSampleFactor(options, reqWidth, reqHeight);
+
+        // decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFileDescriptor(descriptor, null, options);
+    }
+
+
     /**
      * Calculates a proper value for options.inSampleSize in order to decode a Bitmap minimizing 
      * the memory overload and covering a target surface of reqWidth x reqHeight if the original
@@ -0,0 +1,281 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2018 ownCloud GmbH.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.elastos.android.utils;
+
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Places local files in the folders of the app, as needed before and after uploads.
+ *
+ * Files are renamed when moved inside the same file system, so that no byte is copied. Otherwise the
+ * content is copied with {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)} in big windows, letting the kernel move the data without
+ * passing it through the Java heap.
+ *
+ * Copies can also hash the content while it is copied, so that it is read only once; the hash is used to
+ * recognize contents already uploaded. {@link #contentHash(FileInputStream, AtomicBoolean)} reads a
+ * content only to hash it, for contents that are not copied.
+ */
+public class FileStagingUtils {
+
+    private static final String TAG = FileStagingUtils.class.getSimpleName();
+
+    /**
+     * Maximum number of bytes copied in a single call to the kernel; cancellation is checked and
+     * progress reported between windows.
+     */
+    private static final long TRANSFER_WINDOW = 8 * 1024 * 1024;
+
+    private static final int FALLBACK_BUFFER_SIZE = 64 * 1024;
+
+    private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * Receives the progress of a copy.
+     */
+    public interface OnStagingProgressListener {
+        void onStagingProgress(long stagedBytes, long totalBytes);
+    }
+
+
+    /**
+     * Copies or moves a file to a new location, replacing any previous file there.
+     *
+     * Copies are never hard links: the target is later moved into the folder of the account and
+     * handled as a file of the app, and must not share its content with the original file.
+     *
+     * @param sourceFile        File to copy or move.
+     * @param targetFile        New location; parent folder must exist.
+     * @param move              When 'true', the source file is removed.
+     * @param cancellation      Set by other thread to interrupt the copy; can be NULL.
+     * @param listener          Receives the progress of the copy, if any is needed; can be NULL.
+     * @throws OperationCancelledException  If 'cancellation' was set before the end; target file
+     *                                      is removed.
+     * @throws IOException                  If the file could not be staged.
+     */
+    public static void stage(File sourceFile, File targetFile, boolean move, AtomicBoolean cancellation,
+                             OnStagingProgressListener listener)
+            throws IOException, OperationCancelledException {
+        stage(sourceFile, targetFile, move, null, cancellation, listener);
+    }
+
+
+    /**
+     * Copies or moves a file to a new location, as {@link #stage(File, File, boolean, AtomicBoolean,
+     * OnStagingProgressListener)}, updating a digest with the content copied.
+     *
+     * @param digest            Updated with the content copied; can be NULL.
+     * @return                  'true' if the content was copied and passed to the digest; 'false' if it
+     *                          was not read, because the file was moved with a rename or was already
+     *                          in place.
+     */
+    public static boolean stage(File sourceFile, File targetFile, boolean move, MessageDigest digest,
+                             AtomicBoolean cancellation, OnStagingProgressListener listener)
+            throws IOException, OperationCancelledException {
+
+        if (sourceFile.equals(targetFile)) {
+            return false;
+        }
+        if (move && sourceFile.renameTo(targetFile)) {
+            return false;
+        }
+
+        FileInputStream in = new FileInputStream(sourceFile);
+        try {
+            stage(in, sourceFile.length(), targetFile, digest, cancellation, listener);
+        } finally {
+            in.close();
+        }
+        if (move && !sourceFile.delete()) {
+            Log_OC.w(TAG, "Could not remove " + sourceFile.getAbsolutePath() + " after moving it");
+        }
+        return true;
+    }
+
+
+    /**
+     * Copies the content read from a stream into a file, replacing any previous file there.
+     *
+     * Used for sources without a path in the file system, such as the descriptors of content URIs.
+     *
+     * @param in                Stream to copy; left open.
+     * @param length            Length of the content, or a negative value if unknown.
+     * @param targetFile        File to write; parent folder must exist.
+     * @param cancellation      Set by other thread to interrupt the copy; can be NULL.
+     * @param listener          Receives the progress of the copy; can be NULL.
+     * @throws OperationCancelledException  If 'cancellation' was set before the end; target file
+     *                                      is removed.
+     * @throws IOException                  If the content could not be copied.
+     */
+    public static void stage(FileInputStream in, long length, File targetFile, AtomicBoolean cancellation,
+                             OnStagingProgressListener listener)
+            throws IOException, OperationCancelledException {
+        stage(in, length, targetFile, null, cancellation, listener);
+    }
+
+
+    /**
+     * Copies the content read from a stream into a file, as {@link #stage(FileInputStream, long, File,
+     * AtomicBoolean, OnStagingProgressListener)}, updating a digest with the content copied.
+     *
+     * The content must pass through the Java heap to be hashed, so no zero-copy transfer is done when
+     * a digest is given; still cheaper than reading the content twice.
+     *
+     * @param digest            Updated with the content copied; can be NULL.
+     */
+    public static void stage(FileInputStream in, long length, File targetFile, MessageDigest digest,
+                             AtomicBoolean cancellation, OnStagingProgressListener listener)
+            throws IOException, OperationCancelledException {
+
+        FileChannel inChannel = in.getChannel();
+        FileOutputStream out = new FileOutputStream(targetFile);
+        boolean done = false;
+        try {
+            FileChannel outChannel = out.getChannel();
+            long position = 0;
+
+            // zero-copy transfer while the length is known and the source is a regular file
+            while (digest == null && length > 0 && position < length) {
+                checkCancellation(cancellation);
+                long transferred = inChannel.transferTo(
+                    position,
+                    Math.min(TRANSFER_WINDOW, length - position),
+                    outChannel
+                );
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                if (listener != null) {
+                    listener.onStagingProgress(position, length);
+                }
+            }
+
+            // pipes and sockets don't support positional transfers, and hashing needs the bytes; copy
+            // what is left
+            if (length < 0 || position < length) {
+                if (position > 0) {
+                    inChannel.position(position);
+                }
+                ByteBuffer buffer = ByteBuffer.allocateDirect(FALLBACK_BUFFER_SIZE);
+                while (inChannel.read(buffer) != -1) {
+                    checkCancellation(cancellation);
+                    buffer.flip();
+                    if (digest != null) {
+                        digest.update(buffer);
+                        buffer.rewind();
+                    }
+                    while (buffer.hasRemaining()) {
+                        position += outChannel.write(buffer);
+                    }
+                    buffer.clear();
+                    if (listener != null) {
+                        listener.onStagingProgress(position, length);
+                    }
+                }
+            }
+            done = true;
+
+        } finally {
+            out.close();
+            if (!done) {
+                targetFile.delete();
+            }
+        }
+    }
+
+
+    /**
+     * Computes the SHA-256 of a content, streaming it through a direct buffer.
+     *
+     * The content is read with positional reads from its start, so the position of 'in' is not changed
+     * and a descriptor read later for the upload doesn't need to be rewound.
+     *
+     * @param in                Content to hash; must support positional reads.
+     * @param cancellation      Set by other thread to interrupt the hashing; can be NULL.
+     * @return                  SHA-256 of the content, in lower case hexadecimal.
+     * @throws OperationCancelledException  If 'cancellation' was set before the end.
+     * @throws IOException                  If the content could not be read.
+     */
+    public static String contentHash(FileInputStream in, AtomicBoolean cancellation)
+            throws IOException, OperationCancelledException {
+        MessageDigest digest = newContentDigest();
+
+        FileChannel channel = in.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(FALLBACK_BUFFER_SIZE);
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) >= 0) {
+            checkCancellation(cancellation);
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+
+        return toHex(digest);
+    }
+
+
+    /**
+     * @return  New digest for the hash of contents, to pass to the copies.
+     * @throws IOException  If the algorithm is not available.
+     */
+    public static MessageDigest newContentDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(CONTENT_HASH_ALGORITHM + " not available", e);
+        }
+    }
+
+
+    /**
+     * Completes a digest.
+     *
+     * @return  Hash of the content passed to the digest, in lower case hexadecimal.
+     */
+    public static String toHex(MessageDigest digest) {
+        byte[] hash = digest.digest();
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+
+    private static void checkCancellation(AtomicBoolean cancellation) throws OperationCancelledException {
+        if (cancellation != null && cancellation.get()) {
+            throw new OperationCancelledException();
+        }
+    }
+}
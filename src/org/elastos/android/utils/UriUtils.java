@@ -19,20 +19,29 @@
 
 package org.elastos.android.utils;
 
+import android.Manifest;
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.webkit.MimeTypeMap;
 
 import com.owncloud.android.lib.common.utils.Log_OC;
 
+import java.io.File;
+
 
 /**
  * A helper class for some Uri operations.
@@ -279,4 +288,143 @@ public class UriUtils {
     }
 
 
+    /**
+     * Checks if the content behind a descriptor can be read more than once and has a known length, so it
+     * can be uploaded straight from it.
+     *
+     * Descriptors of pipes, as some content providers return for content generated on the fly, are not.
+     *
+     * @param descriptor    Descriptor opened for reading.
+     * @return              'true' if the descriptor is seekable and its length is known.
+     */
+    public static boolean isSeekable(ParcelFileDescriptor descriptor) {
+        if (descriptor.getStatSize() < 0) {
+            return false;
+        }
+        try {
+            Os.lseek(descriptor.getFileDescriptor(), 0, OsConstants.SEEK_CUR);
+            return true;
+
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Tries to keep read access to a content:// URI after the permission granted with it is gone; for
+     * instance, when the Activity receiving it finishes.
+     *
+     * @param uri           content:// URI.
+     * @param context       Context of the app.
+     * @return              'true' if the app will be able to read the URI later, out of the current
+     *                      Activity.
+     */
+    public static boolean keepReadAccess(Uri uri, Context context) {
+        try {
+            context.getContentResolver().takePersistableUriPermission(
+                uri,
+                Intent.FLAG_GRANT_READ_URI_PERMISSION
+            );
+            return true;
+
+        } catch (SecurityException e) {
+            // not granted as persistable; media files are readable with the storage permission
+            return MediaStore.AUTHORITY.equals(uri.getAuthority()) &&
+                PermissionUtil.checkSelfPermission(context, Manifest.permission.READ_EXTERNAL_STORAGE);
+        }
+    }
+
+
+    /**
+     * Gives up the persisted read permission on a content:// URI, if any.
+     *
+     * @param uri           content:// URI.
+     * @param resolver      Resolver of the app.
+     */
+    public static void releaseReadAccess(Uri uri, ContentResolver resolver) {
+        try {
+            resolver.releasePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        } catch (SecurityException e) {
+            // permission was not persisted; nothing to release
+        }
+    }
+
+
+    /**
+     * Checks if the local source of an upload can still be read; a path in the file system, or a
+     * content:// URI.
+     *
+     * @param localPath     Path or content:// URI of the file.
+     * @param context       Context of the app.
+     * @return              'true' if the file exists or, for URIs, if the provider still serves it to
+     *                      the app.
+     */
+    public static boolean localFileExists(String localPath, Context context) {
+        if (localPath == null) {
+            return false;
+        }
+        if (!localPath.startsWith(URI_CONTENT_SCHEME)) {
+            return new File(localPath).exists();
+        }
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(
+                Uri.parse(localPath),
+                new String[]{OpenableColumns.DISPLAY_NAME},
+                null,
+                null,
+                null
+            );
+            return cursor != null && cursor.moveToFirst();
+
+        } catch (Exception e) {
+            // SecurityException if the permission is gone; others if the provider is not there anymore
+            Log_OC.d(TAG, "Could not access " + localPath + ": " + e.getMessage());
+            return false;
+
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+
+    /**
+     * @param uri           content:// URI.
+     * @param context       Context of the app.
+     * @return              Last modification time of the content behind the URI, in milliseconds, or the
+     *                      current time if the provider doesn't tell.
+     */
+    public static long getLastModified(Uri uri, Context context) {
+        Cursor cursor = null;
+        try {
+            // all the columns; providers may fail when asked for a column they don't have
+            cursor = context.getContentResolver().query(uri, null, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                // document providers, in milliseconds
+                int column = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (column >= 0 && !cursor.isNull(column)) {
+                    return cursor.getLong(column);
+                }
+                // MediaStore, in seconds
+                column = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+                if (column >= 0 && !cursor.isNull(column)) {
+                    return cursor.getLong(column) * 1000;
+                }
+            }
+
+        } catch (Exception e) {
+            Log_OC.d(TAG, "Could not retrieve last modification time for " + uri.toString());
+
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
 }